@@ -18,6 +18,7 @@
 
 package com.telefonica.iot.cygnus.backends.ckan;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -58,4 +59,58 @@ public interface CKANBackend {
     void persist(String recvTime, String orgName, String pkgName, String resName, Map<String, String> attrList,
             Map<String, String> attrMdList) throws Exception;
     
+    /**
+     * Persist a list of records in the CKAN datastore associated with the entity in a given organization. The records
+     * are upserted by means of as few requests as possible, each request being bounded in number of records and bytes.
+     *
+     * @param orgName Organization name
+     * @param pkgName Package/dataset name
+     * @param resName Resource name
+     * @param records Records to persist, each one being a Json object serialization as created by createRecord
+     * @param createEnabled True if the organization, package and resource are created if not existing (row mode),
+     * false otherwise (column mode)
+     * @throws Exception
+     */
+    void persist(String orgName, String pkgName, String resName, List<String> records, boolean createEnabled)
+        throws Exception;
+    
+    /**
+     * Creates a record to be persisted (row mode), in the format the persist method expects.
+     * 
+     * @param recvTimeTs Reception time in milliseconds
+     * @param recvTime Reception time (human readable)
+     * @param attrName Attribute name
+     * @param attrType Attribute type
+     * @param attrValue Attribute value
+     * @param attrMd Attribute metadata string serialization
+     * @return The record
+     */
+    String createRecord(long recvTimeTs, String recvTime, String attrName, String attrType, String attrValue,
+            String attrMd);
+    
+    /**
+     * Creates a record to be persisted (column mode), in the format the persist method expects.
+     * 
+     * @param recvTime Reception time (human readable)
+     * @param attrList Hashmap containing the attributes to persist
+     * @param attrMdList Hashmap containing the metadata string serialization to persist
+     * @return The record
+     */
+    String createRecord(String recvTime, Map<String, String> attrList, Map<String, String> attrMdList);
+    
+    /**
+     * Waits for the pipelined datastore_upsert requests, if any. It is invoked once per batch, before committing it.
+     * 
+     * @throws Exception
+     */
+    void sync() throws Exception;
+    
+    /**
+     * Closes the backend, releasing the cache it shares with other backends; the last backend sharing it closes the
+     * cache, saving the cache snapshot if the snapshots are enabled.
+     * 
+     * @throws Exception
+     */
+    void close() throws Exception;
+    
 } // CKANBackend
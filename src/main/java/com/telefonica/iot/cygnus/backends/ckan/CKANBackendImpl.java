@@ -19,6 +19,7 @@
 package com.telefonica.iot.cygnus.backends.ckan;
 
 import com.telefonica.iot.cygnus.backends.http.JsonResponse;
+import com.telefonica.iot.cygnus.backends.http.HostSelector;
 import com.telefonica.iot.cygnus.backends.http.HttpBackend;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
@@ -26,8 +27,11 @@ import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import org.json.simple.JSONObject;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import org.apache.http.Header;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
@@ -41,8 +45,18 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
 
     private static final CygnusLogger LOGGER = new CygnusLogger(CKANBackendImpl.class);
     private final String orionUrl;
+    private static final int DEF_MAX_RECORDS_PER_UPSERT = 1000;
+    private static final long DEF_MAX_BYTES_PER_UPSERT = 1048576;
+    private static final long DEF_CACHE_TTL = 3600000;
+    private static final int DEF_CACHE_MAX_ORGS = 1000;
+    // the caches are shared by all the backends, since they are per CKAN endpoint and API key; a cache is closed
+    // once closed all the backends sharing it
+    private static final HashMap<String, CKANCache> CACHES = new HashMap<String, CKANCache>();
     private final String apiKey;
+    private final int maxRecordsPerUpsert;
+    private final long maxBytesPerUpsert;
     private CKANCache cache;
+    private String cacheKey; // key of the shared cache, null once released
 
     /**
      * Constructor.
@@ -54,66 +68,259 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
      */
     public CKANBackendImpl(String apiKey, String ckanHost, String ckanPort, String orionUrl,
             boolean ssl) {
-        super(new String[]{ckanHost}, ckanPort, ssl, false, null, null, null, null);
+        this(apiKey, ckanHost, ckanPort, orionUrl, ssl, DEF_MAX_RECORDS_PER_UPSERT, DEF_MAX_BYTES_PER_UPSERT,
+                DEF_CACHE_TTL, DEF_CACHE_MAX_ORGS);
+    } // CKANBackendImpl
+    
+    /**
+     * Constructor.
+     * @param apiKey
+     * @param ckanHost
+     * @param ckanPort
+     * @param orionUrl
+     * @param ssl
+     * @param maxRecordsPerUpsert Maximum number of records sent within a single datastore_upsert request
+     * @param maxBytesPerUpsert Maximum number of bytes of the records sent within a single datastore_upsert request
+     * @param cacheTtl Milliseconds a cached organization is used before refreshing it from CKAN
+     * @param cacheMaxOrgs Maximum number of cached organizations
+     */
+    public CKANBackendImpl(String apiKey, String ckanHost, String ckanPort, String orionUrl,
+            boolean ssl, int maxRecordsPerUpsert, long maxBytesPerUpsert, long cacheTtl, int cacheMaxOrgs) {
+        super(ckanHost.split(","), ckanPort, ssl, false, null, null, null, null);
         
         // this class attributes
         this.apiKey = apiKey;
         this.orionUrl = orionUrl;
+        this.maxRecordsPerUpsert = maxRecordsPerUpsert;
+        this.maxBytesPerUpsert = maxBytesPerUpsert;
         
-        // create the cache
-        cache = new CKANCache(new String[]{ckanHost}, ckanPort, ssl, apiKey);
+        // get the cache, creating it if not yet existing
+        cacheKey = (ssl ? "https://" : "http://") + ckanHost + ":" + ckanPort + "/" + apiKey;
+        cache = retainCache(cacheKey, ckanHost, ckanPort, ssl, apiKey, cacheTtl, cacheMaxOrgs);
     } // CKANBackendImpl
+    
+    /**
+     * Gets the cache shared by all the backends regarding the given CKAN endpoint and API key, creating it if not yet
+     * existing, and adds this backend to the ones sharing it. The cache is configured by the first backend creating
+     * it; a different configuration given by other backend is ignored.
+     * @param key
+     * @param ckanHost
+     * @param ckanPort
+     * @param ssl
+     * @param apiKey
+     * @param cacheTtl
+     * @param cacheMaxOrgs
+     * @return The shared cache
+     */
+    private static CKANCache retainCache(String key, String ckanHost, String ckanPort, boolean ssl, String apiKey,
+            long cacheTtl, int cacheMaxOrgs) {
+        synchronized (CACHES) {
+            CKANCache cache = CACHES.get(key);
+            
+            if (cache == null) {
+                cache = new CKANCache(ckanHost.split(","), ckanPort, ssl, apiKey, cacheTtl, cacheMaxOrgs);
+                CACHES.put(key, cache);
+            } else if (cache.getTtl() != cacheTtl || cache.getMaxOrgs() != cacheMaxOrgs) {
+                LOGGER.warn("The cache shared with other backends was already created with another configuration, "
+                        + "the given one is ignored (ttl=" + cache.getTtl() + ", maxOrgs=" + cache.getMaxOrgs()
+                        + ", ignored ttl=" + cacheTtl + ", ignored maxOrgs=" + cacheMaxOrgs + ")");
+            } // if else
+            
+            cache.retain();
+            return cache;
+        } // synchronized
+    } // retainCache
+    
+    /**
+     * Removes this backend from the ones sharing the cache. The last one closes it, i.e. its snapshots are stopped
+     * and a last snapshot is saved; otherwise, a snapshot is saved anyway.
+     * @throws Exception
+     */
+    private void releaseCache() throws Exception {
+        CKANCache sharedCache;
+        boolean last;
+        
+        synchronized (CACHES) {
+            if (cacheKey == null) {
+                return;
+            } // if
+            
+            sharedCache = CACHES.get(cacheKey);
+            last = sharedCache.release();
+            
+            if (last) {
+                CACHES.remove(cacheKey);
+            } // if
+            
+            cacheKey = null;
+        } // synchronized
+        
+        if (last) {
+            sharedCache.close();
+        } else {
+            sharedCache.saveSnapshot();
+        } // if else
+    } // releaseCache
 
+    @Override
+    public void setHostSelection(HostSelector.Strategy strategy) {
+        super.setHostSelection(strategy);
+        cache.setHostSelection(strategy);
+    } // setHostSelection
+    
+    /**
+     * Enables the snapshots of the cache, loading the given snapshot file if existing. Since the cache is shared, the
+     * snapshots are enabled by the first backend calling this method.
+     * @param fileName Snapshot file
+     * @param interval Milliseconds between snapshots
+     */
+    public void enableCacheSnapshots(String fileName, long interval) {
+        cache.enableSnapshots(fileName, interval);
+    } // enableCacheSnapshots
+    
+    /**
+     * Warms up the cache by bulk querying CKAN for all the organizations, packages and resources.
+     * @param pageSize Maximum number of packages per package_search request
+     * @param parallelism Maximum number of package_search requests in flight
+     * @throws Exception
+     */
+    public void warmUpCache(int pageSize, int parallelism) throws Exception {
+        cache.warmUp(pageSize, parallelism);
+    } // warmUpCache
+    
+    @Override
+    public void sync() throws Exception {
+        await();
+    } // sync
+    
+    @Override
+    public void close() throws Exception {
+        super.close();
+        releaseCache();
+    } // close
+    
     @Override
     public void persist(long recvTimeTs, String recvTime, String orgName, String pkgName, String resName,
         String attrName, String attrType, String attrValue, String attrMd) throws Exception {
-        LOGGER.debug("Going to lookup for the resource id, the cache may be updated during the process (orgName="
-                + orgName + ", pkgName=" + pkgName + ", resName=" + resName + ")");
-        String resId = resourceLookupOrCreate(orgName, pkgName, resName, true);
-        
-        if (resId == null) {
-            throw new CygnusRuntimeError("Cannot persist the data (orgName=" + orgName + ", pkgName=" + pkgName
-                    + ", resName=" + resName + ")");
-        } else {
-            LOGGER.debug("Going to persist the data (orgName=" + orgName + ", pkgName=" + pkgName
-                    + ", resName/resId=" + resName + "/" + resId + ")");
-            insert(recvTimeTs, recvTime, resId, attrName, attrType, attrValue, attrMd);
-        } // if else
+        ArrayList<String> records = new ArrayList<String>();
+        records.add(createRecord(recvTimeTs, recvTime, attrName, attrType, attrValue, attrMd));
+        persist(orgName, pkgName, resName, records, true);
     } // persist
 
     @Override
     public void persist(String recvTime, String orgName, String pkgName, String resName, Map<String, String> attrList,
         Map<String, String> attrMdList) throws Exception {
+        ArrayList<String> records = new ArrayList<String>();
+        records.add(createRecord(recvTime, attrList, attrMdList));
+        persist(orgName, pkgName, resName, records, false);
+    } // persist
+    
+    @Override
+    public void persist(String orgName, String pkgName, String resName, List<String> records, boolean createEnabled)
+        throws Exception {
         LOGGER.debug("Going to lookup for the resource id, the cache may be updated during the process (orgName="
                 + orgName + ", pkgName=" + pkgName + ", resName=" + resName + ")");
-        String resId = resourceLookupOrCreate(orgName, pkgName, resName, false);
+        String resId = resourceLookupOrCreate(orgName, pkgName, resName, createEnabled);
                 
         if (resId == null) {
             throw new CygnusRuntimeError("Cannot persist the data (orgName=" + orgName + ", pkgName=" + pkgName
                     + ", resName=" + resName + ")");
         } else {
             LOGGER.debug("Going to persist the data (orgName=" + orgName + ", pkgName=" + pkgName
-                    + ", resName/resId=" + resName + "/" + resId + ")");
-            insert(recvTime, resId, attrList, attrMdList);
+                    + ", resName/resId=" + resName + "/" + resId + ", records=" + records.size() + ")");
+            upsert(resId, records);
         } // if else
     } // persist
     
+    /**
+     * Creates a record to be persisted (row mode), as a Json object serialization.
+     * @param recvTimeTs Reception time in milliseconds
+     * @param recvTime Reception time (human readable)
+     * @param attrName
+     * @param attrType
+     * @param attrValue
+     * @param attrMd
+     * @return The Json serialization of the record
+     */
+    @Override
+    public String createRecord(long recvTimeTs, String recvTime, String attrName, String attrType,
+            String attrValue, String attrMd) {
+        String record = "\"" + Constants.RECV_TIME_TS + "\": \"" + recvTimeTs / 1000 + "\", "
+                + "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\", "
+                + "\"" + Constants.ATTR_NAME + "\": \"" + attrName + "\", "
+                + "\"" + Constants.ATTR_TYPE + "\": \"" + attrType + "\", "
+                + "\"" + Constants.ATTR_VALUE + "\": " + attrValue;
+
+        // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
+        // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
+        if (!attrMd.equals(Constants.EMPTY_MD)) {
+            record += ", \"" + Constants.ATTR_MD + "\": " + attrMd;
+        } // if
+        
+        return "{ " + record + " }";
+    } // createRecord
+    
+    /**
+     * Creates a record to be persisted (column mode), as a Json object serialization.
+     * @param recvTime Reception time (human readable)
+     * @param attrList map with the attributes to persist
+     * @param attrMdList map with the metadata to persist
+     * @return The Json serialization of the record
+     */
+    @Override
+    public String createRecord(String recvTime, Map<String, String> attrList, Map<String, String> attrMdList) {
+        String record = "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\"";
+
+        for (String attrName : attrList.keySet()) {
+            String attrValue = attrList.get(attrName);
+            record += ", \"" + attrName + "\": " + attrValue;
+        } // for
+
+        for (String attrName : attrMdList.keySet()) {
+            String attrMd = attrMdList.get(attrName);
+
+            // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
+            // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
+            if (!attrMd.equals(Constants.EMPTY_MD)) {
+                record += ", \"" + attrName + "\": " + attrMd;
+            } // if
+        } // for
+        
+        return "{ " + record + " }";
+    } // createRecord
+    
     private String resourceLookupOrCreate(String orgName, String pkgName, String resName, boolean createEnabled)
+        throws Exception {
+        // the elements are looked up without creating them, most of the times they will be cached
+        String resId = doResourceLookupOrCreate(orgName, pkgName, resName, false);
+        
+        if (resId != null || !createEnabled) {
+            return resId;
+        } // if
+        
+        // some element must be created; it is done by a single thread at a time per organization, which looks up
+        // again for the elements (another thread may have created them in the meantime)
+        synchronized (cache.getLock(orgName)) {
+            return doResourceLookupOrCreate(orgName, pkgName, resName, true);
+        } // synchronized
+    } // resourceLookupOrCreate
+    
+    private String doResourceLookupOrCreate(String orgName, String pkgName, String resName, boolean createEnabled)
         throws Exception {
         if (!cache.isCachedOrg(orgName)) {
             LOGGER.debug("The organization was not cached nor existed in CKAN (orgName=" + orgName + ")");
             
             if (createEnabled) {
                 String orgId = createOrganization(orgName);
-                cache.addOrg(orgName);
                 cache.setOrgId(orgName, orgId);
+                cache.addOrg(orgName);
                 String pkgId = createPackage(pkgName, orgId);
-                cache.addPkg(orgName, pkgName);
                 cache.setPkgId(pkgName, pkgId);
+                cache.addPkg(orgName, pkgName);
                 String resId = createResource(resName, pkgId);
-                cache.addRes(orgName, pkgName, resName);
-                cache.setResId(resName, resId);
                 createDataStore(resId);
+                cache.setResId(resName, resId);
+                cache.addRes(orgName, pkgName, resName);
                 return resId;
             } else {
                 return null;
@@ -128,12 +335,12 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
             
             if (createEnabled) {
                 String pkgId = createPackage(pkgName, cache.getOrgId(orgName));
-                cache.addPkg(orgName, pkgName);
                 cache.setPkgId(pkgName, pkgId);
+                cache.addPkg(orgName, pkgName);
                 String resId = createResource(resName, pkgId);
-                cache.addRes(orgName, pkgName, resName);
-                cache.setResId(resName, resId);
                 createDataStore(resId);
+                cache.setResId(resName, resId);
+                cache.addRes(orgName, pkgName, resName);
                 return resId;
             } else {
                 return null;
@@ -148,9 +355,9 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
             
             if (createEnabled) {
                 String resId = this.createResource(resName, cache.getPkgId(pkgName));
-                cache.addRes(orgName, pkgName, resName);
-                cache.setResId(resName, resId);
                 createDataStore(resId);
+                cache.setResId(resName, resId);
+                cache.addRes(orgName, pkgName, resName);
                 return resId;
             } else {
                 return null;
@@ -161,98 +368,70 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
                 + resName + ")");
         
         return cache.getResId(resName);
-    } // resourceLookupOrCreate
+    } // doResourceLookupOrCreate
 
     /**
-     * Insert record in datastore (row mode).
-     * @param recvTimeTs timestamp.
-     * @param recvTime timestamp (human readable)
-     * @param resId the resource in which datastore the record is going to be inserted.
-     * @param attrName attribute CKANBackend.
-     * @param attrType attribute type.
-     * @param attrValue attribute value.
+     * Upserts records in datastore. The records are sent within as few datastore_upsert requests as possible, each
+     * one containing up to maxRecordsPerUpsert records and up to maxBytesPerUpsert bytes (a single record exceeding
+     * such a size is sent alone). If the asynchronous requests are enabled, the requests are pipelined, being completed
+     * by sync().
+     * @param resourceId the resource in which datastore the records are going to be inserted.
+     * @param records the Json serialization of the records
      * @throws Exception
      */
-    private void insert(long recvTimeTs, String recvTime, String resourceId, String attrName, String attrType,
-            String attrValue, String attrMd) throws Exception {
-        String urlPath;
-        String jsonString;
+    private void upsert(String resourceId, List<String> records) throws Exception {
+        StringBuilder chunk = new StringBuilder();
+        int chunkRecords = 0;
+        long chunkBytes = 0;
         
-        try {
-            // create the CKAN request JSON
-            String records = "\"" + Constants.RECV_TIME_TS + "\": \"" + recvTimeTs / 1000 + "\", "
-                    + "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\", "
-                    + "\"" + Constants.ATTR_NAME + "\": \"" + attrName + "\", "
-                    + "\"" + Constants.ATTR_TYPE + "\": \"" + attrType + "\", "
-                    + "\"" + Constants.ATTR_VALUE + "\": " + attrValue;
-
-            // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
-            // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
-            if (!attrMd.equals(Constants.EMPTY_MD)) {
-                records += ", \"" + Constants.ATTR_MD + "\": " + attrMd;
+        for (String record : records) {
+            long recordBytes = record.getBytes("UTF-8").length;
+            
+            if (chunkRecords > 0
+                    && (chunkRecords >= maxRecordsPerUpsert || chunkBytes + recordBytes > maxBytesPerUpsert)) {
+                submitInsert(resourceId, chunk.toString(), chunkRecords);
+                chunk.setLength(0);
+                chunkRecords = 0;
+                chunkBytes = 0;
             } // if
-
-            jsonString = "{ \"resource_id\": \"" + resourceId
-                    + "\", \"records\": [ { " + records + " } ], "
-                    + "\"method\": \"insert\", "
-                    + "\"force\": \"true\" }";
             
-            // create the CKAN request URL
-            urlPath = "/api/3/action/datastore_upsert";
+            chunk.append(chunkRecords == 0 ? "" : ", ").append(record);
+            chunkRecords++;
+            chunkBytes += recordBytes;
+        } // for
         
-            // do the CKAN request
-            JsonResponse res = doCKANRequest("POST", urlPath, jsonString);
+        if (chunkRecords > 0) {
+            submitInsert(resourceId, chunk.toString(), chunkRecords);
+        } // if
+    } // upsert
+    
+    private void submitInsert(final String resourceId, final String records, final int numRecords) throws Exception {
+        submit(new Callable<Void>() {
             
-            // check the status
-            if (res.getStatusCode() == 200) {
-                LOGGER.debug("Successful insert (resource/datastore id=" + resourceId + ")");
-            } else {
-                throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode());
-            } // if else
-        } catch (Exception e) {
-            if (e instanceof CygnusRuntimeError
-                    || e instanceof CygnusPersistenceError
-                    || e instanceof CygnusBadConfiguration) {
-                throw e;
-            } else {
-                throw new CygnusRuntimeError(e.getMessage());
-            } // if else
-        } // try catch
-    } // insert
+            @Override
+            public Void call() throws Exception {
+                insert(resourceId, records, numRecords);
+                return null;
+            } // call
+            
+        });
+    } // submitInsert
 
     /**
-     * Insert record in datastore (column mode).
-     * @param recvTime timestamp (human readable)
-     * @param resId the resource in which datastore the record is going to be inserted.
-     * @param attrList map with the attributes to persist
+     * Insert records in datastore.
+     * @param resourceId the resource in which datastore the records are going to be inserted.
+     * @param records the comma-separated Json serialization of the records
+     * @param numRecords the number of records
      * @throws Exception
      */
-    private void insert(String recvTime, String resourceId, Map<String, String> attrList,
-            Map<String, String> attrMdList) throws Exception {
+    private void insert(String resourceId, String records, int numRecords) throws Exception {
         String urlPath;
         String jsonString;
         
         try {
             // create the CKAN request JSON
-            String records = "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\"";
-
-            for (String attrName : attrList.keySet()) {
-                String attrValue = attrList.get(attrName);
-                records += ", \"" + attrName + "\": " + attrValue;
-            } // for
-            
-            for (String attrName : attrMdList.keySet()) {
-                String attrMd = attrMdList.get(attrName);
-
-                // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
-                // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
-                if (!attrMd.equals(Constants.EMPTY_MD)) {
-                    records += ", \"" + attrName + "\": " + attrMd;
-                } // if
-            } // for
-
             jsonString = "{ \"resource_id\": \"" + resourceId
-                    + "\", \"records\": [ { " + records + " } ], "
+                    + "\", \"records\": [ " + records + " ], "
                     + "\"method\": \"insert\", "
                     + "\"force\": \"true\" }";
             
@@ -261,10 +440,11 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
         
             // do the CKAN request
             JsonResponse res = doCKANRequest("POST", urlPath, jsonString);
-
+            
             // check the status
             if (res.getStatusCode() == 200) {
-                LOGGER.debug("Successful insert (resource/datastore id=" + resourceId + ")");
+                LOGGER.debug("Successful insert (resource/datastore id=" + resourceId + ", records=" + numRecords
+                        + ")");
             } else {
                 throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode());
             } // if else
@@ -456,6 +636,16 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
         } // try catch
     } // createResource
     
+    /**
+     * Gets the number of shared caches. This is protected since it is only used by the tests.
+     * @return The number of shared caches
+     */
+    protected static int getNumSharedCaches() {
+        synchronized (CACHES) {
+            return CACHES.size();
+        } // synchronized
+    } // getNumSharedCaches
+    
     /**
      * Sets the CKAN cache. This is protected since it is only used by the tests.
      * @param cache
@@ -464,10 +654,26 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
         this.cache = cache;
     } // setCache
     
+    /**
+     * Does a CKAN request. A 5xx status (including the one given when no CKAN endpoint could be connected) is thrown
+     * as a persistence error, so that the data is retried; any other status is returned to the caller.
+     * @param method
+     * @param urlPath
+     * @param jsonString
+     * @return The CKAN response
+     * @throws Exception
+     */
     private JsonResponse doCKANRequest(String method, String urlPath, String jsonString) throws Exception {
         ArrayList<Header> headers = new ArrayList<Header>();
         headers.add(new BasicHeader("Authorization", apiKey));
-        return doRequest(method, urlPath, true, headers, new StringEntity(jsonString));
+        JsonResponse res = doRequest(method, urlPath, true, headers, new StringEntity(jsonString));
+        
+        if (res.getStatusCode() >= 500) {
+            throw new CygnusPersistenceError("CKAN is not available (method=" + method + ", urlPath=" + urlPath
+                    + ", respCode=" + res.getStatusCode() + ")");
+        } // if
+        
+        return res;
     } // doCKANRequest
 
 } // CKANBackendImpl
@@ -23,27 +23,79 @@ import com.telefonica.iot.cygnus.backends.http.HttpBackend;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 
 /**
  *
  * @author frb
+ * 
+ * Cache of the CKAN organizations, packages and resources, and their identifiers. It may be shared by several sinks,
+ * thus it is thread-safe:
+ *  - At most maxOrgs organizations are cached, the least recently used one (together with its packages and
+ *    resources) being evicted when exceeding such a number.
+ *  - A cached organization is refreshed from CKAN once ttl milliseconds have elapsed since it was queried; if the
+ *    refresh fails, the cached information is still used.
+ *  - There is at most a single CKAN query in flight per organization or package; concurrent misses on the same
+ *    element wait for the result of that query.
+ * 
+ * The cache may be periodically saved to a snapshot file, loaded when enabling the snapshots (typically at startup).
+ * The loaded organizations keep the time they were queried, thus they are lazily revalidated against CKAN, the first
+ * time they are used once expired.
+ * 
+ * The cache may be warmed up as well (typically at startup), by bulk querying CKAN for all the organizations and their
+ * packages and resources.
  */
 public class CKANCache extends HttpBackend {
     
     private static final CygnusLogger LOGGER = new CygnusLogger(CKANCache.class);
+    private static final int NUM_LOCKS = 64;
     private String apiKey;
-    private HashMap<String, HashMap<String, ArrayList<String>>> tree; // this cache only contain human readable names
-    private HashMap<String, String> orgMap; // this cache contains the translation from organization name to identifier
-    private HashMap<String, String> pkgMap; // this cache contains the translation from package name to identifier
-    private HashMap<String, String> resMap; // this cache contains the translation from resource name to identifier
+    private final long ttl;
+    private final int maxOrgs;
+    private final Map<String, OrgEntry> tree; // this cache only contain human readable names
+    private Map<String, String> orgMap; // this cache contains the translation from organization name to identifier
+    private Map<String, String> pkgMap; // this cache contains the translation from package name to identifier
+    private Map<String, String> resMap; // this cache contains the translation from resource name to identifier
+    private final ConcurrentHashMap<String, FutureTask<Boolean>> inFlight; // CKAN queries in flight, per element
+    private final Object[] locks;
+    private final AtomicLong numHits;
+    private final AtomicLong numMisses;
+    private final AtomicLong numEvictions;
     private String ckanVersion;
+    private File snapshotFile;
+    private ScheduledExecutorService snapshotScheduler;
+    private long snapshotInterval;
+    private int numReferences; // backends sharing this cache, only accessed while holding the lock of the shared caches
     
     /**
      * Constructor.
@@ -53,12 +105,49 @@ public class CKANCache extends HttpBackend {
      * @param apiKey
      */
     public CKANCache(String[] hosts, String port, boolean ssl, String apiKey) {
+        this(hosts, port, ssl, apiKey, 3600000, 1000);
+    } // CKANCache
+    
+    /**
+     * Constructor.
+     * @param hosts
+     * @param port
+     * @param ssl
+     * @param apiKey
+     * @param ttl Milliseconds a cached organization is used before refreshing it from CKAN
+     * @param maxOrgs Maximum number of cached organizations
+     */
+    public CKANCache(String[] hosts, String port, boolean ssl, String apiKey, long ttl, final int maxOrgs) {
         super(hosts, port, ssl, false, null, null, null, null);
         this.apiKey = apiKey;
-        tree = new HashMap<String, HashMap<String, ArrayList<String>>>();
-        orgMap = new HashMap<String, String>();
-        pkgMap = new HashMap<String, String>();
-        resMap = new HashMap<String, String>();
+        this.ttl = ttl;
+        this.maxOrgs = maxOrgs;
+        tree = Collections.synchronizedMap(new LinkedHashMap<String, OrgEntry>(16, 0.75f, true) {
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, OrgEntry> eldest) {
+                if (size() > maxOrgs) {
+                    evict(eldest.getKey(), eldest.getValue());
+                    return true;
+                } else {
+                    return false;
+                } // if else
+            } // removeEldestEntry
+            
+        });
+        orgMap = new ConcurrentHashMap<String, String>();
+        pkgMap = new ConcurrentHashMap<String, String>();
+        resMap = new ConcurrentHashMap<String, String>();
+        inFlight = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+        locks = new Object[NUM_LOCKS];
+        
+        for (int i = 0; i < NUM_LOCKS; i++) {
+            locks[i] = new Object();
+        } // for
+        
+        numHits = new AtomicLong(0);
+        numMisses = new AtomicLong(0);
+        numEvictions = new AtomicLong(0);
         
         // get the CKAN version (just once)
         LOGGER.debug("Going to get the CKAN version");
@@ -67,7 +156,7 @@ public class CKANCache extends HttpBackend {
             ckanVersion = getCKANVersion();
         } catch (Exception e) {
             LOGGER.error("Could not get the CKAN version. Details=" + e.getMessage());
-        } // try catch // try catch // try catch // try catch
+        } // try catch
     } // CKANCache
     
     /**
@@ -129,7 +218,7 @@ public class CKANCache extends HttpBackend {
      * @param orgName
      */
     public void addOrg(String orgName) {
-        tree.put(orgName, new HashMap<String, ArrayList<String>>());
+        tree.put(orgName, new OrgEntry());
     } // addOrg
     
     /**
@@ -138,7 +227,11 @@ public class CKANCache extends HttpBackend {
      * @param pkgName
      */
     public void addPkg(String orgName, String pkgName) {
-        tree.get(orgName).put(pkgName, new ArrayList<String>());
+        OrgEntry org = tree.get(orgName);
+        
+        if (org != null) {
+            org.pkgs.put(pkgName, newResSet());
+        } // if
     } // addPkg
     
     /**
@@ -148,24 +241,589 @@ public class CKANCache extends HttpBackend {
      * @param resName
      */
     public void addRes(String orgName, String pkgName, String resName) {
-        tree.get(orgName).get(pkgName).add(resName);
+        OrgEntry org = tree.get(orgName);
+        Set<String> ress = (org == null ? null : org.pkgs.get(pkgName));
+        
+        if (ress != null) {
+            ress.add(resName);
+        } // if
     } // addRes
     
+    /**
+     * Gets the lock to be held while creating elements within the given organization, so that several threads do not
+     * try to create the same elements at the same time.
+     * @param orgName
+     * @return The lock object
+     */
+    public Object getLock(String orgName) {
+        return locks[(orgName.hashCode() & Integer.MAX_VALUE) % NUM_LOCKS];
+    } // getLock
+    
+    /**
+     * Gets the number of cache hits.
+     * @return The number of cache hits
+     */
+    public long getNumHits() {
+        return numHits.get();
+    } // getNumHits
+    
+    /**
+     * Gets the number of cache misses, including the expired organizations.
+     * @return The number of cache misses
+     */
+    public long getNumMisses() {
+        return numMisses.get();
+    } // getNumMisses
+    
+    /**
+     * Gets the number of organizations evicted from the cache.
+     * @return The number of organizations evicted from the cache
+     */
+    public long getNumEvictions() {
+        return numEvictions.get();
+    } // getNumEvictions
+    
+    /**
+     * Enables the snapshots of the cache. The given snapshot file is loaded, if existing, and the cache is saved to it
+     * every interval milliseconds. Nothing is done if the snapshots were already enabled (the cache may be shared).
+     * @param fileName Snapshot file
+     * @param interval Milliseconds between snapshots
+     */
+    public synchronized void enableSnapshots(String fileName, long interval) {
+        if (snapshotFile != null) {
+            if (snapshotFile.equals(new File(fileName)) && snapshotInterval == interval) {
+                LOGGER.debug("The snapshots of the cache were already enabled (snapshotFile=" + snapshotFile + ")");
+            } else {
+                LOGGER.warn("The snapshots of the shared cache were already enabled with another configuration, "
+                        + "the given one is ignored (snapshotFile=" + snapshotFile + ", interval=" + snapshotInterval
+                        + ", ignored snapshotFile=" + fileName + ", ignored interval=" + interval + ")");
+            } // if else
+            
+            return;
+        } // if
+        
+        snapshotFile = new File(fileName);
+        snapshotInterval = interval;
+        loadSnapshot();
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ckan-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+            
+        });
+        snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                saveSnapshot();
+            } // run
+            
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    } // enableSnapshots
+    
+    /**
+     * Closes the cache, stopping the periodic snapshots and saving a last one if the snapshots are enabled.
+     * @throws Exception
+     */
+    @Override
+    public void close() throws Exception {
+        synchronized (this) {
+            if (snapshotScheduler != null) {
+                snapshotScheduler.shutdown();
+                snapshotScheduler = null;
+            } // if
+        } // synchronized
+        
+        saveSnapshot();
+        super.close();
+    } // close
+    
+    /**
+     * Gets the milliseconds a cached organization is used before refreshing it from CKAN.
+     * @return The time to live of the cached organizations
+     */
+    public long getTtl() {
+        return ttl;
+    } // getTtl
+    
+    /**
+     * Gets the maximum number of cached organizations.
+     * @return The maximum number of cached organizations
+     */
+    public int getMaxOrgs() {
+        return maxOrgs;
+    } // getMaxOrgs
+    
+    /**
+     * Adds a backend to the ones sharing this cache.
+     */
+    void retain() {
+        numReferences++;
+    } // retain
+    
+    /**
+     * Removes a backend from the ones sharing this cache.
+     * @return True if no backend shares this cache anymore, otherwise false
+     */
+    boolean release() {
+        numReferences--;
+        return numReferences <= 0;
+    } // release
+    
+    /**
+     * Saves the cache to the snapshot file, if the snapshots are enabled. The snapshot is written to a temporary file,
+     * then renamed, thus the snapshot file is never partially written.
+     */
+    public synchronized void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        } // if
+        
+        // copy the tree, since it cannot be iterated while other threads use it
+        LinkedHashMap<String, OrgEntry> orgs;
+        
+        synchronized (tree) {
+            orgs = new LinkedHashMap<String, OrgEntry>(tree);
+        } // synchronized
+        
+        JSONObject jsonOrgs = new JSONObject();
+        
+        for (Map.Entry<String, OrgEntry> org : orgs.entrySet()) {
+            String orgId = orgMap.get(org.getKey());
+            
+            if (orgId == null) {
+                continue;
+            } // if
+            
+            JSONObject jsonPkgs = new JSONObject();
+            
+            for (Map.Entry<String, Set<String>> pkg : org.getValue().pkgs.entrySet()) {
+                String pkgId = pkgMap.get(pkg.getKey());
+                
+                if (pkgId == null) {
+                    continue;
+                } // if
+                
+                JSONObject jsonRess = new JSONObject();
+                
+                for (String resName : pkg.getValue()) {
+                    String resId = resMap.get(resName);
+                    
+                    if (resId != null) {
+                        jsonRess.put(resName, resId);
+                    } // if
+                } // for
+                
+                JSONObject jsonPkg = new JSONObject();
+                jsonPkg.put("id", pkgId);
+                jsonPkg.put("resources", jsonRess);
+                jsonPkgs.put(pkg.getKey(), jsonPkg);
+            } // for
+            
+            JSONObject jsonOrg = new JSONObject();
+            jsonOrg.put("id", orgId);
+            jsonOrg.put("queriedAt", org.getValue().queriedAt);
+            jsonOrg.put("packages", jsonPkgs);
+            jsonOrgs.put(org.getKey(), jsonOrg);
+        } // for
+        
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        Writer writer = null;
+        
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            jsonOrgs.writeJSONString(writer);
+            writer.close();
+            writer = null;
+            
+            if (!tmpFile.renameTo(snapshotFile)) {
+                // some platforms do not rename onto an existing file
+                snapshotFile.delete();
+                
+                if (!tmpFile.renameTo(snapshotFile)) {
+                    throw new CygnusRuntimeError("Could not rename " + tmpFile + " to " + snapshotFile);
+                } // if
+            } // if
+            
+            LOGGER.debug("Cache snapshot saved (snapshotFile=" + snapshotFile + ", numOrgs=" + jsonOrgs.size()
+                    + ")");
+        } catch (Exception e) {
+            LOGGER.error("Could not save the cache snapshot (snapshotFile=" + snapshotFile + "). Details="
+                    + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (Exception e) {
+                    LOGGER.debug("Could not close the cache snapshot. Details=" + e.getMessage());
+                } // try catch
+            } // if
+        } // try catch finally
+    } // saveSnapshot
+    
+    /**
+     * Loads the cache from the snapshot file, if existing. The organizations already cached are not overwritten.
+     */
+    private void loadSnapshot() {
+        if (!snapshotFile.exists()) {
+            LOGGER.info("No cache snapshot to be loaded (snapshotFile=" + snapshotFile + ")");
+            return;
+        } // if
+        
+        Reader reader = null;
+        
+        try {
+            reader = new InputStreamReader(new FileInputStream(snapshotFile), "UTF-8");
+            JSONObject jsonOrgs = (JSONObject) new JSONParser().parse(reader);
+            int numOrgs = 0;
+            
+            for (Object orgObj : jsonOrgs.entrySet()) {
+                Map.Entry org = (Map.Entry) orgObj;
+                String orgName = (String) org.getKey();
+                JSONObject jsonOrg = (JSONObject) org.getValue();
+                
+                if (tree.containsKey(orgName)) {
+                    continue;
+                } // if
+                
+                OrgEntry orgEntry = new OrgEntry(((Number) jsonOrg.get("queriedAt")).longValue());
+                JSONObject jsonPkgs = (JSONObject) jsonOrg.get("packages");
+                
+                for (Object pkgObj : jsonPkgs.entrySet()) {
+                    Map.Entry pkg = (Map.Entry) pkgObj;
+                    String pkgName = (String) pkg.getKey();
+                    JSONObject jsonPkg = (JSONObject) pkg.getValue();
+                    JSONObject jsonRess = (JSONObject) jsonPkg.get("resources");
+                    Set<String> ress = newResSet();
+                    
+                    for (Object resObj : jsonRess.entrySet()) {
+                        Map.Entry res = (Map.Entry) resObj;
+                        resMap.put((String) res.getKey(), (String) res.getValue());
+                        ress.add((String) res.getKey());
+                    } // for
+                    
+                    pkgMap.put(pkgName, (String) jsonPkg.get("id"));
+                    orgEntry.pkgs.put(pkgName, ress);
+                } // for
+                
+                orgMap.put(orgName, (String) jsonOrg.get("id"));
+                tree.put(orgName, orgEntry);
+                numOrgs++;
+            } // for
+            
+            LOGGER.info("Cache snapshot loaded (snapshotFile=" + snapshotFile + ", numOrgs=" + numOrgs + ")");
+        } catch (Exception e) {
+            LOGGER.error("Could not load the cache snapshot, starting with an empty cache (snapshotFile="
+                    + snapshotFile + "). Details=" + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    LOGGER.debug("Could not close the cache snapshot. Details=" + e.getMessage());
+                } // try catch
+            } // if
+        } // try catch finally
+    } // loadSnapshot
+    
+    /**
+     * Warms up the cache by bulk querying CKAN: the packages (including their resources and their organization) are
+     * obtained by means of paged package_search requests, up to parallelism of them at the same time. The
+     * organizations are taken from the packages instead of being listed, since organization_list caps the number of
+     * organizations returned with all their fields; thus the organizations without packages are not cached, but
+     * lazily queried. The cache is only updated if all the requests succeed.
+     * @param pageSize Maximum number of packages per package_search request
+     * @param parallelism Maximum number of package_search requests in flight
+     * @throws Exception
+     */
+    public void warmUp(final int pageSize, int parallelism) throws Exception {
+        long start = System.currentTimeMillis();
+        final AtomicInteger numCalls = new AtomicInteger(0);
+        
+        // get the first page of packages, which gives the total number of packages, and the rest of pages in parallel
+        ArrayList<JSONObject> pages = new ArrayList<JSONObject>();
+        JSONObject firstPage = (JSONObject) warmUpQuery(buildPackageSearchURL(pageSize, 0), numCalls);
+        pages.add(firstPage);
+        int numPkgs = ((Number) firstPage.get("count")).intValue();
+        
+        if (numPkgs > pageSize) {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+            
+            try {
+                for (int offset = pageSize; offset < numPkgs; offset += pageSize) {
+                    final String url = buildPackageSearchURL(pageSize, offset);
+                    futures.add(executor.submit(new Callable<Object>() {
+                        
+                        @Override
+                        public Object call() throws Exception {
+                            return warmUpQuery(url, numCalls);
+                        } // call
+                        
+                    }));
+                } // for
+                
+                for (Future<Object> future : futures) {
+                    try {
+                        pages.add((JSONObject) future.get());
+                    } catch (ExecutionException e) {
+                        throw new CygnusRuntimeError("Could not warm up the cache. Details="
+                                + e.getCause().getMessage());
+                    } // try catch
+                } // for
+            } finally {
+                executor.shutdownNow();
+            } // try finally
+        } // if
+        
+        // aggregate the packages and resources per organization
+        HashMap<String, OrgEntry> orgEntries = new HashMap<String, OrgEntry>();
+        HashMap<String, String> orgIds = new HashMap<String, String>();
+        HashMap<String, String> pkgIds = new HashMap<String, String>();
+        HashMap<String, String> resIds = new HashMap<String, String>();
+        
+        for (JSONObject page : pages) {
+            for (Object pkgObj : (JSONArray) page.get("results")) {
+                JSONObject pkg = (JSONObject) pkgObj;
+                JSONObject org = (JSONObject) pkg.get("organization");
+                
+                if (org == null) {
+                    continue;
+                } // if
+                
+                String orgName = (String) org.get("name");
+                OrgEntry orgEntry = orgEntries.get(orgName);
+                
+                if (orgEntry == null) {
+                    orgEntry = new OrgEntry(start);
+                    orgEntries.put(orgName, orgEntry);
+                    orgIds.put(orgName, (String) org.get("id"));
+                } // if
+                
+                String pkgName = (String) pkg.get("name");
+                Set<String> ress = newResSet();
+                JSONArray resources = (JSONArray) pkg.get("resources");
+                
+                if (resources != null) {
+                    for (Object resObj : resources) {
+                        JSONObject res = (JSONObject) resObj;
+                        resIds.put((String) res.get("name"), (String) res.get("id"));
+                        ress.add((String) res.get("name"));
+                    } // for
+                } // if
+                
+                pkgIds.put(pkgName, (String) pkg.get("id"));
+                orgEntry.pkgs.put(pkgName, ress);
+            } // for
+        } // for
+        
+        // update the cache; the ids are put before the names, so that a cached name always has its id
+        resMap.putAll(resIds);
+        pkgMap.putAll(pkgIds);
+        orgMap.putAll(orgIds);
+        
+        for (Map.Entry<String, OrgEntry> orgEntry : orgEntries.entrySet()) {
+            tree.put(orgEntry.getKey(), orgEntry.getValue());
+        } // for
+        
+        LOGGER.info("CKAN cache warmed up (organizations=" + orgEntries.size() + ", packages=" + pkgIds.size()
+                + ", resources=" + resIds.size() + ", ckanCalls=" + numCalls.get() + ", elapsedMs="
+                + (System.currentTimeMillis() - start) + ")");
+    } // warmUp
+    
+    /**
+     * Queries CKAN while warming up the cache.
+     * @param url
+     * @param numCalls Counter of CKAN calls
+     * @return The result within the CKAN response
+     * @throws Exception
+     */
+    private Object warmUpQuery(String url, AtomicInteger numCalls) throws Exception {
+        ArrayList<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader("Authorization", apiKey));
+        numCalls.incrementAndGet();
+        JsonResponse res = doRequest("GET", url, true, headers, null);
+        
+        if (res.getStatusCode() == 200) {
+            return res.getJsonObject().get("result");
+        } else {
+            throw new CygnusRuntimeError("Could not warm up the cache, don't know how to treat response code "
+                    + res.getStatusCode() + " (url=" + url + ")");
+        } // if else
+    } // warmUpQuery
+    
+    private String buildPackageSearchURL(int pageSize, int offset) {
+        // the packages are sorted by id, so that the pages do not overlap
+        return "/api/3/action/package_search?q=*:*&sort=id%20asc&rows=" + pageSize + "&start=" + offset;
+    } // buildPackageSearchURL
+    
     /**
      * Checks if the organization is cached. If not cached, CKAN is queried in order to update the cache.
      * @param orgName Organization name
      * @return True if the organization was cached, false otherwise
      * @throws Exception
      */
-    public boolean isCachedOrg(String orgName) throws Exception {
-        // check if the organization has already been cached
-        if (tree.containsKey(orgName)) {
+    public boolean isCachedOrg(final String orgName) throws Exception {
+        // check if the organization has already been cached, and it has not expired
+        OrgEntry org = tree.get(orgName);
+        
+        if (org != null && System.currentTimeMillis() - org.queriedAt < ttl) {
             LOGGER.debug("Organization found in the cache (orgName=" + orgName + ")");
+            numHits.incrementAndGet();
+            return true;
+        } // if
+        
+        numMisses.incrementAndGet();
+        
+        if (org == null) {
+            LOGGER.debug("Organization not found in the cache, querying CKAN for it (orgName=" + orgName + ")");
+        } else {
+            LOGGER.debug("Organization expired in the cache, querying CKAN for it (orgName=" + orgName + ")");
+        } // if else
+        
+        try {
+            return query("org:" + orgName, new Callable<Boolean>() {
+                
+                @Override
+                public Boolean call() throws Exception {
+                    return queryOrg(orgName);
+                } // call
+                
+            });
+        } catch (CygnusRuntimeError e) {
+            if (org == null) {
+                throw e;
+            } // if
+            
+            LOGGER.warn("Could not refresh the organization, using the cached one (orgName=" + orgName
+                    + ", details=" + e.getMessage() + ")");
+            return true;
+        } // try catch
+    } // isCachedOrg
+    
+    /**
+     * Checks if the package is cached. If not cached, CKAN is queried in order to update the cache.
+     * This method assumes the given organization exists and it is cached.
+     * @param orgName Organization name
+     * @param pkgName Package name
+     * @return True if the organization was cached, false otherwise
+     * @throws Exception
+     */
+    public boolean isCachedPkg(final String orgName, final String pkgName) throws Exception {
+        // check if the package has already been cached
+        final OrgEntry org = getOrgEntry(orgName);
+        
+        if (org.pkgs.containsKey(pkgName)) {
+            LOGGER.debug("Package found in the cache (orgName=" + orgName + ", pkgName=" + pkgName + ")");
+            numHits.incrementAndGet();
             return true;
         } // if
         
-        LOGGER.debug("Organization not found in the cache, querying CKAN for it (orgName=" + orgName + ")");
+        numMisses.incrementAndGet();
+        LOGGER.debug("Package not found in the cache, querying CKAN for it (orgName=" + orgName + ", pkgName="
+                + pkgName + ")");
+        return query("pkg:" + orgName + "/" + pkgName, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return queryPkg(org, orgName, pkgName);
+            } // call
+
+        });
+    } // isCachedPkg
+    
+    /**
+     * Checks if the resource is cached. If not cached, CKAN is queried in order to update the cache.
+     * This method assumes the given organization and package exist and they are cached.
+     * @param orgName Organization name
+     * @param pkgName Package name
+     * @param resName Resource name
+     * @return True if the organization was cached, false otherwise
+     * @throws Exception
+     */
+    public boolean isCachedRes(final String orgName, final String pkgName, String resName) throws Exception {
+        // check if the resource has already been cached
+        final Set<String> ress = getOrgEntry(orgName).pkgs.get(pkgName);
         
+        if (ress == null) {
+            throw new CygnusRuntimeError("Unexpected package error when checking its resources... the package was "
+                    + "supposed to be cached! (orgName=" + orgName + ", pkgName=" + pkgName + ")");
+        } // if
+        
+        if (ress.contains(resName)) {
+            LOGGER.debug("Resource found in the cache (orgName=" + orgName + ", pkgName=" + pkgName + ", resName="
+                    + resName + ")");
+            numHits.incrementAndGet();
+            return true;
+        } // if
+        
+        numMisses.incrementAndGet();
+        LOGGER.debug("Resource not found in the cache, querying CKAN for the whole package containing it "
+                + "(orgName=" + orgName + ", pkgName=" + pkgName + ", resName=" + resName + ")");
+        
+        // reached this point, we need to query CKAN about the resource, in order to know if it exists in CKAN
+        // nevertheless, the CKAN API allows us to query for a certain resource by id, not by name...
+        // the only solution seems to query for the whole package and check again
+        query("res:" + orgName + "/" + pkgName, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return queryResources(ress, orgName, pkgName);
+            } // call
+
+        });
+        
+        return ress.contains(resName);
+    } // isCachedRes
+    
+    /**
+     * Queries CKAN given a key identifying the query, ensuring there is at most a single query in flight per key. If
+     * a query with the same key is already in flight, its result is waited for instead of querying CKAN again.
+     * @param key
+     * @param ckanQuery
+     * @return The result of the query
+     * @throws Exception
+     */
+    private boolean query(String key, Callable<Boolean> ckanQuery) throws Exception {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(ckanQuery);
+        FutureTask<Boolean> running = inFlight.putIfAbsent(key, task);
+        
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            } // try finally
+            
+            running = task;
+        } else {
+            LOGGER.debug("Waiting for the CKAN query in flight (key=" + key + ")");
+        } // if else
+        
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            
+            if (cause instanceof CygnusRuntimeError || cause instanceof CygnusBadConfiguration) {
+                throw (Exception) cause;
+            } else {
+                throw new CygnusRuntimeError(cause.getMessage());
+            } // if else
+        } // try catch
+    } // query
+    
+    /**
+     * Queries CKAN for an organization, caching it together with its packages and resources if existing.
+     * @param orgName
+     * @return True if the organization exists in CKAN, false otherwise
+     * @throws Exception
+     */
+    private boolean queryOrg(String orgName) throws Exception {
         // query CKAN for the organization information
         String ckanURL = "/api/3/action/organization_show?id=" + orgName;
         ArrayList<Header> headers = new ArrayList<Header>();
@@ -184,43 +842,37 @@ public class CKANCache extends HttpBackend {
                         + orgName + ")");
             } // if
 
-            // put the organization in the tree and in the organization map
+            // get the packages and populate the packages map; the organization is put in the tree once populated,
+            // so that other threads never see it partially populated
             String orgId = result.get("id").toString();
-            tree.put(orgName, new HashMap<String, ArrayList<String>>());
-            orgMap.put(orgName, orgId);
-            LOGGER.debug("Organization found in CKAN, now cached (orgName/orgId=" + orgName + "/" + orgId + ")");
-
-            // get the packages and populate the packages map
+            OrgEntry org = new OrgEntry();
             JSONArray packages = (JSONArray) result.get("packages");
             LOGGER.debug("Going to populate the packages cache (orgName=" + orgName + ")");
-            populatePackagesMap(packages, orgName);
+            populatePackagesMap(packages, org, orgName);
+            
+            // put the organization in the tree and in the organization map
+            orgMap.put(orgName, orgId);
+            tree.put(orgName, org);
+            LOGGER.debug("Organization found in CKAN, now cached (orgName/orgId=" + orgName + "/" + orgId + ")");
             return true;
         } else if (res.getStatusCode() == 404) {
+            tree.remove(orgName);
             return false;
         } else {
             throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode() + ")");
         } // if else
-    } // isCachedOrg
+    } // queryOrg
     
     /**
-     * Checks if the package is cached. If not cached, CKAN is queried in order to update the cache.
-     * This method assumes the given organization exists and it is cached.
-     * @param orgName Organization name
-     * @param pkgName Package name
-     * @return True if the organization was cached, false otherwise
+     * Queries CKAN for a package, caching it together with its resources if existing.
+     * @param org
+     * @param orgName
+     * @param pkgName
+     * @return True if the package exists in CKAN, false otherwise
      * @throws Exception
      */
-    public boolean isCachedPkg(String orgName, String pkgName) throws Exception {
-        // check if the package has already been cached
-        if (tree.get(orgName).containsKey(pkgName)) {
-            LOGGER.debug("Package found in the cache (orgName=" + orgName + ", pkgName=" + pkgName + ")");
-            return true;
-        } // if
-        
-        LOGGER.debug("Package not found in the cache, querying CKAN for it (orgName=" + orgName + ", pkgName="
-                + pkgName + ")");
-        
-        // query CKAN for the organization information
+    private boolean queryPkg(OrgEntry org, String orgName, String pkgName) throws Exception {
+        // query CKAN for the package information
         String ckanURL = "/api/3/action/package_show?id=" + pkgName;
         ArrayList<Header> headers = new ArrayList<Header>();
         headers.add(new BasicHeader("Authorization", apiKey));
@@ -238,51 +890,36 @@ public class CKANCache extends HttpBackend {
                         + ", pkgName=" + pkgName + ")");
             } // if
 
-            // put the package in the tree and in the package map
-            String pkgId = result.get("id").toString();
-            tree.get(orgName).put(pkgName, new ArrayList<String>());
-            orgMap.put(pkgName, pkgId);
-            LOGGER.debug("Package found in CKAN, now cached (orgName=" + orgName + ", pkgName/pkgId=" + pkgName
-                    + "/" + pkgId + ")");
-
             // get the resource and populate the resource map
+            String pkgId = result.get("id").toString();
+            Set<String> ress = newResSet();
             JSONArray resources = (JSONArray) result.get("resources");
             LOGGER.debug("Going to populate the resources cache (orgName=" + orgName + ", pkgName=" + pkgName
                     + ")");
-            populateResourcesMap(resources, orgName, pkgName, false);
+            populateResourcesMap(resources, ress, orgName, pkgName);
+            
+            // put the package in the tree and in the package map
+            pkgMap.put(pkgName, pkgId);
+            org.pkgs.put(pkgName, ress);
+            LOGGER.debug("Package found in CKAN, now cached (orgName=" + orgName + ", pkgName/pkgId=" + pkgName
+                    + "/" + pkgId + ")");
             return true;
         } else if (res.getStatusCode() == 404) {
             return false;
         } else {
             throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode() + ")");
         } // if else
-    } // isCachedPkg
+    } // queryPkg
     
     /**
-     * Checks if the resource is cached. If not cached, CKAN is queried in order to update the cache.
-     * This method assumes the given organization and package exist and they are cached.
-     * @param orgName Organization name
-     * @param pkgName Package name
-     * @param resName Resource name
-     * @return True if the organization was cached, false otherwise
+     * Queries CKAN for the resources of a package, caching them.
+     * @param ress
+     * @param orgName
+     * @param pkgName
+     * @return True
      * @throws Exception
      */
-    public boolean isCachedRes(String orgName, String pkgName, String resName) throws Exception {
-        // check if the resource has already been cached
-        if (tree.get(orgName).get(pkgName).contains(resName)) {
-            LOGGER.debug("Resource found in the cache (orgName=" + orgName + ", pkgName=" + pkgName + ", resName="
-                    + resName + ")");
-            return true;
-        } // if
-        
-        LOGGER.debug("Resource not found in the cache, querying CKAN for the whole package containing it "
-                + "(orgName=" + orgName + ", pkgName=" + pkgName + ", resName=" + resName + ")");
-        
-        // reached this point, we need to query CKAN about the resource, in order to know if it exists in CKAN
-        // nevertheless, the CKAN API allows us to query for a certain resource by id, not by name...
-        // the only solution seems to query for the whole package and check again
-        // query CKAN for the organization information
-        
+    private boolean queryResources(Set<String> ress, String orgName, String pkgName) throws Exception {
         String ckanURL = "/api/3/action/package_show?id=" + pkgName;
         ArrayList<Header> headers = new ArrayList<Header>();
         headers.add(new BasicHeader("Authorization", apiKey));
@@ -300,30 +937,65 @@ public class CKANCache extends HttpBackend {
             // get the resource and populate the resource map
             JSONObject result = (JSONObject) res.getJsonObject().get("result");
             JSONArray resources = (JSONArray) result.get("resources");
-            
-            if (resources.size() == 0) {
-                return false;
-            } else {
-                LOGGER.debug("Going to populate the resources cache (orgName=" + orgName + ", pkgName=" + pkgName
-                        + ")");
-                populateResourcesMap(resources, orgName, pkgName, true);
-                return true;
-            } // if else
+            LOGGER.debug("Going to populate the resources cache (orgName=" + orgName + ", pkgName=" + pkgName + ")");
+            populateResourcesMap(resources, ress, orgName, pkgName);
+            return true;
         } else if (res.getStatusCode() == 404) {
             throw new CygnusRuntimeError("Unexpected package error when updating its resources... the package was "
                     + "supposed to exist!");
         } else {
             throw new CygnusRuntimeError("Don't know how to treat response code " + res.getStatusCode() + ")");
         } // if else
-    } // isCachedRes
+    } // queryResources
+    
+    /**
+     * Gets the cached organization entry, querying CKAN for it if it was evicted in the meantime.
+     * @param orgName
+     * @return The cached organization entry
+     * @throws Exception
+     */
+    private OrgEntry getOrgEntry(String orgName) throws Exception {
+        OrgEntry org = tree.get(orgName);
+        
+        if (org == null && isCachedOrg(orgName)) {
+            org = tree.get(orgName);
+        } // if
+        
+        if (org == null) {
+            throw new CygnusRuntimeError("Unexpected organization error... the organization was supposed to be "
+                    + "cached! (orgName=" + orgName + ")");
+        } // if
+        
+        return org;
+    } // getOrgEntry
+    
+    /**
+     * Removes the identifiers of an evicted organization and its packages. The resource identifiers are not removed,
+     * since the resources are identified by their names only and the same name may be used within other packages; they
+     * are overwritten when the organization is cached again.
+     * @param orgName
+     * @param org
+     */
+    private void evict(String orgName, OrgEntry org) {
+        orgMap.remove(orgName);
+        
+        for (String pkgName : org.pkgs.keySet()) {
+            pkgMap.remove(pkgName);
+        } // for
+        
+        numEvictions.incrementAndGet();
+        LOGGER.debug("Organization evicted from the cache (orgName=" + orgName + ", hits=" + numHits.get()
+                + ", misses=" + numMisses.get() + ", evictions=" + numEvictions.get() + ")");
+    } // evict
 
     /**
      * Populates the package map of a given orgName with the package information from the CKAN response.
      * @param packages JSON vector from the CKAN response containing package information
+     * @param org Organization entry where the packages are cached
      * @param orgName Organization name
      * @throws Exception
      */
-    private void populatePackagesMap(JSONArray packages, String orgName) throws Exception {
+    private void populatePackagesMap(JSONArray packages, OrgEntry org, String orgName) throws Exception {
         // this check is for debuging purposes
         if (packages.size() == 0) {
             LOGGER.debug("The pacakges list is empty, nothing to cache");
@@ -350,7 +1022,8 @@ public class CKANCache extends HttpBackend {
             
             // put the package in the tree and in the packages map
             String pkgId = pkg.get("id").toString();
-            tree.get(orgName).put(pkgName, new ArrayList<String>());
+            Set<String> ress = newResSet();
+            org.pkgs.put(pkgName, ress);
             pkgMap.put(pkgName, pkgId);
             LOGGER.debug("Package found in CKAN, now cached (orgName=" + orgName + " -> pkgName/pkgId=" + pkgName
                     + "/" + pkgId + ")");
@@ -362,7 +1035,7 @@ public class CKANCache extends HttpBackend {
             // method returns no resource lists for its packages! (not in CKAN 2.2)
             // more info --> https://github.com/telefonicaid/fiware-cygnus/issues/153
             // if the resources list is null we must try to get it package by package
-            if (ckanVersion.equals("2.0")) {
+            if ("2.0".equals(ckanVersion)) {
                 LOGGER.debug("CKAN version is 2.0, try to discover the resources for this package (pkgName="
                         + pkgName + ")");
                 resources = discoverResources(pkgName);
@@ -375,20 +1048,20 @@ public class CKANCache extends HttpBackend {
             // populate the resources map
             LOGGER.debug("Going to populate the resources cache (orgName=" + orgName + ", pkgName=" + pkgName
                     + ")");
-            populateResourcesMap(resources, orgName, pkgName, false);
+            populateResourcesMap(resources, ress, orgName, pkgName);
         } // while
     } // populatePackagesMap
     
     /**
      * Populates the resourceName-resource map of a given orgName with the package information from the CKAN response.
      * @param resources JSON vector from the CKAN response containing resource information
+     * @param ress Set where the resource names of the package are cached
      * @param orgName Organization name
      * @param pkgName Package name
-     * @param checkExistence If true, checks if the queried resource already exists in the cache
      */
-    private void populateResourcesMap(JSONArray resources, String orgName, String pkgName, boolean checkExistence) {
+    private void populateResourcesMap(JSONArray resources, Set<String> ress, String orgName, String pkgName) {
         // this check is for debuging purposes
-        if (resources.size() == 0) {
+        if (resources == null || resources.size() == 0) {
             LOGGER.debug("The resources list is empty, nothing to cache");
             return;
         } // if
@@ -405,17 +1078,13 @@ public class CKANCache extends HttpBackend {
             String resourceName = (String) factObj.get("name");
             String resourceId = (String) factObj.get("id");
 
-            // put the resource in the tree and in the resource map
-            if (checkExistence) {
-                if (tree.get(orgName).get(pkgName).contains(resourceName)) {
-                    continue;
-                } // if
-            } // if
-            
-            tree.get(orgName).get(pkgName).add(resourceName);
+            // put the resource in the resource map and in the tree; the id must be available before the name
             resMap.put(resourceName, resourceId);
-            LOGGER.debug("Resource found in CKAN, now cached (orgName=" + orgName + " -> pkgName=" + pkgName
-                    + " -> " + "resourceName/resourceId=" + resourceName + "/" + resourceId + ")");
+            
+            if (ress.add(resourceName)) {
+                LOGGER.debug("Resource found in CKAN, now cached (orgName=" + orgName + " -> pkgName=" + pkgName
+                        + " -> " + "resourceName/resourceId=" + resourceName + "/" + resourceId + ")");
+            } // if
         } // while
     } // populateResourcesMap
 
@@ -463,11 +1132,19 @@ public class CKANCache extends HttpBackend {
         } // if else
     } // getCKANVersion
     
+    /**
+     * Creates an empty set of resource names.
+     * @return An empty set of resource names, thread-safe
+     */
+    private static Set<String> newResSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    } // newResSet
+    
     /**
      * Sets the organizations map. This is protected since it is only used by the tests.
      * @param orgMap
      */
-    protected void setOrgMap(HashMap<String, String> orgMap) {
+    protected void setOrgMap(Map<String, String> orgMap) {
         this.orgMap = orgMap;
     } // setOrgMap
 
@@ -475,7 +1152,7 @@ public class CKANCache extends HttpBackend {
      * Sets the packages map. This is protected since it is only used by the tests.
      * @param pkgMap
      */
-    protected void setPkgMap(HashMap<String, String> pkgMap) {
+    protected void setPkgMap(Map<String, String> pkgMap) {
         this.pkgMap = pkgMap;
     } // setPkgMap
 
@@ -483,7 +1160,7 @@ public class CKANCache extends HttpBackend {
      * Sets the resources map. This is protected since it is only used by the tests.
      * @param resMap
      */
-    protected void setResMap(HashMap<String, String> resMap) {
+    protected void setResMap(Map<String, String> resMap) {
         this.resMap = resMap;
     } // setResMap
     
@@ -492,7 +1169,45 @@ public class CKANCache extends HttpBackend {
      * @param tree
      */
     protected void setTree(HashMap<String, HashMap<String, ArrayList<String>>> tree) {
-        this.tree = tree;
+        this.tree.clear();
+        
+        for (Map.Entry<String, HashMap<String, ArrayList<String>>> pkgs : tree.entrySet()) {
+            OrgEntry org = new OrgEntry();
+            
+            for (Map.Entry<String, ArrayList<String>> ress : pkgs.getValue().entrySet()) {
+                Set<String> resNames = newResSet();
+                resNames.addAll(ress.getValue());
+                org.pkgs.put(ress.getKey(), resNames);
+            } // for
+            
+            this.tree.put(pkgs.getKey(), org);
+        } // for
     } // setTree
     
+    /**
+     * Cached organization, i.e. the names of its packages and resources, and the time it was queried.
+     */
+    private static class OrgEntry {
+        
+        private final long queriedAt;
+        private final ConcurrentHashMap<String, Set<String>> pkgs;
+        
+        /**
+         * Constructor.
+         */
+        public OrgEntry() {
+            this(System.currentTimeMillis());
+        } // OrgEntry
+        
+        /**
+         * Constructor.
+         * @param queriedAt
+         */
+        public OrgEntry(long queriedAt) {
+            this.queriedAt = queriedAt;
+            this.pkgs = new ConcurrentHashMap<String, Set<String>>();
+        } // OrgEntry
+        
+    } // OrgEntry
+    
 } // CKANCache
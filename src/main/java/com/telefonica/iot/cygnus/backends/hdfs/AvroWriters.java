@@ -0,0 +1,62 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ *
+ * @author frb
+ * 
+ * Creates the Avro container file writers used by the HDFS backends, independently of the API used for writing.
+ */
+final class AvroWriters {
+    
+    /**
+     * Constructor. It is private since utility classes should not have a public or default constructor.
+     */
+    private AvroWriters() {
+    } // AvroWriters
+    
+    /**
+     * Creates an Avro container file writer, not yet bound to any output stream.
+     * @param schema Schema of the records
+     * @param codec Compression codec of the blocks, i.e. 'deflate', 'snappy' or 'null'
+     * @return The Avro container file writer
+     */
+    static DataFileWriter<GenericRecord> createWriter(Schema schema, String codec) {
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(
+                new GenericDatumWriter<GenericRecord>(schema));
+        
+        if (codec.equals("deflate")) {
+            writer.setCodec(CodecFactory.deflateCodec(6));
+        } else if (codec.equals("snappy")) {
+            writer.setCodec(CodecFactory.snappyCodec());
+        } else {
+            writer.setCodec(CodecFactory.nullCodec());
+        } // if else
+        
+        return writer;
+    } // createWriter
+    
+} // AvroWriters
@@ -18,6 +18,10 @@
 
 package com.telefonica.iot.cygnus.backends.hdfs;
 
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+
 /**
  * Interface for those backends implementing the persistence in HDFS.
  * 
@@ -44,6 +48,19 @@ public interface HDFSBackend {
      */
     void createFile(String filePath, String data) throws Exception;
     
+    /**
+     * Writes Avro records in a file in HDFS given its relative path, as an Avro container file compressed with the
+     * given codec. Since Avro container files cannot be appended, the records are written in parts of the file,
+     * named after the file plus their creation time and located within the same directory.
+     * 
+     * @param filePath File to be written, ending in .avro
+     * @param schema Schema of the records
+     * @param codec Compression codec, i.e. 'deflate', 'snappy' or 'null'
+     * @param records Records to be written
+     * @throws Exception
+     */
+    void writeAvro(String filePath, Schema schema, String codec, List<GenericRecord> records) throws Exception;
+    
     /**
      * Appends data to an existent file in HDFS.
      * 
@@ -62,4 +79,76 @@ public interface HDFSBackend {
      */
     boolean exists(String filePath) throws Exception;
     
+    /**
+     * Provisions a Hive external table (row mode) on top of the given HDFS directory.
+     * 
+     * @param dirPath Directory the table is created on top of
+     * @throws Exception
+     */
+    void provisionHiveTable(String dirPath) throws Exception;
+    
+    /**
+     * Provisions a Hive external table (column mode) on top of the given HDFS directory.
+     * 
+     * @param dirPath Directory the table is created on top of
+     * @param fields Fields of the table
+     * @throws Exception
+     */
+    void provisionHiveTable(String dirPath, String fields) throws Exception;
+    
+    /**
+     * Provisions a Hive external table on top of the given HDFS directory, containing Avro files. The schema of the
+     * table is persisted within the directory as well, in a file hidden to Hive (_row.avsc or _column.avsc), replacing
+     * the previous one.
+     * 
+     * @param dirPath Directory the table is created on top of
+     * @param avroSchema Avro schema of the files, in Json format
+     * @param rowAttrPersistence True if the table is a row mode one, false if it is a column mode one
+     * @throws Exception
+     */
+    void provisionHiveAvroTable(String dirPath, String avroSchema, boolean rowAttrPersistence) throws Exception;
+    
+    /**
+     * Gets the schema of the Hive external table on top of the given HDFS directory, containing Avro files, as
+     * persisted within the directory the last time the table was provisioned (even by a previous run of Cygnus).
+     * 
+     * @param dirPath Directory the table is created on top of
+     * @param rowAttrPersistence True if the table is a row mode one, false if it is a column mode one
+     * @return The Avro schema of the table, in Json format, or null if not provisioned yet
+     * @throws Exception
+     */
+    String getHiveAvroTableSchema(String dirPath, boolean rowAttrPersistence) throws Exception;
+    
+    /**
+     * Provisions a partition of the Hive external table on top of the given HDFS directory.
+     * 
+     * @param dirPath Directory the table is created on top of
+     * @param partitionPath Path of the partition relative to the directory, e.g. year=2015/month=04/day=20/hour=12
+     * @param rowAttrPersistence True if the table is a row mode one, false if it is a column mode one
+     * @throws Exception
+     */
+    void provisionHivePartition(String dirPath, String partitionPath, boolean rowAttrPersistence) throws Exception;
+    
+    /**
+     * Makes durable all the data written so far. It is invoked once per batch, before committing it.
+     * 
+     * @throws Exception
+     */
+    void sync() throws Exception;
+    
+    /**
+     * Gets the files whose data written since the previous sync could not be written, as known by the last sync.
+     * 
+     * @return The files whose data could not be written, or null if they are not known, i.e. the data of any file
+     * written since the previous sync may have been lost
+     */
+    List<String> getFailedFiles();
+    
+    /**
+     * Closes the backend, releasing any file it may keep open.
+     * 
+     * @throws Exception
+     */
+    void close() throws Exception;
+    
 } // HDFSBackend
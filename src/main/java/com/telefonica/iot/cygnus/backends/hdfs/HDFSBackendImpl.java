@@ -18,15 +18,23 @@
 
 package com.telefonica.iot.cygnus.backends.hdfs;
 
-import com.telefonica.iot.cygnus.backends.hive.HiveBackend;
 import com.telefonica.iot.cygnus.backends.http.HttpBackend;
 import com.telefonica.iot.cygnus.backends.http.JsonResponse;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
-import com.telefonica.iot.cygnus.utils.Constants;
-import com.telefonica.iot.cygnus.utils.Utils;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
 
@@ -41,12 +49,17 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
     
     private final String hdfsUser;
     private final String oauth2Token;
-    private final String hiveHost;
-    private final String hivePort;
     private final boolean serviceAsNamespace;
+    private final HiveTableProvisioner hiveTableProvisioner;
     private static final CygnusLogger LOGGER = new CygnusLogger(HDFSBackendImpl.class);
     private static final String BASE_URL = "/webhdfs/v1/user/";
     private ArrayList<Header> headers;
+    private final ArrayList<Header> dataHeaders;
+    // pipelined appends per HDFS file not yet synced; the map is only accessed by the sink thread
+    private final HashMap<String, FileAppends> pendingAppends;
+    // files whose pipelined appends failed, as known by the last sync; only accessed by the sink thread
+    private ArrayList<String> failedFiles;
+    private long lastPartTs;
     
     /**
      * 
@@ -62,16 +75,17 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
      * @param krb5LoginConfFile
      * @param krb5ConfFile
      * @param serviceAsNamespace
+     * @param partitioned
      */
     public HDFSBackendImpl(String[] hdfsHosts, String hdfsPort, String hdfsUser, String oauth2Token, String hiveHost,
             String hivePort, boolean krb5, String krb5User, String krb5Password, String krb5LoginConfFile,
-            String krb5ConfFile, boolean serviceAsNamespace) {
+            String krb5ConfFile, boolean serviceAsNamespace, boolean partitioned) {
         super(hdfsHosts, hdfsPort, false, krb5, krb5User, krb5Password, krb5LoginConfFile, krb5ConfFile);
         this.hdfsUser = hdfsUser;
         this.oauth2Token = oauth2Token;
-        this.hiveHost = hiveHost;
-        this.hivePort = hivePort;
         this.serviceAsNamespace = serviceAsNamespace;
+        this.hiveTableProvisioner = new HiveTableProvisioner(hdfsUser, oauth2Token, hiveHost, hivePort,
+                serviceAsNamespace, partitioned);
         
         // add the OAuth2 token as a the unique header that will be sent
         if (oauth2Token != null && oauth2Token.length() > 0) {
@@ -80,6 +94,18 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
         } else {
             headers = null;
         } // if else
+        
+        // the headers sent when writing the data, built once instead of growing the above ones at each write
+        dataHeaders = new ArrayList<Header>();
+        pendingAppends = new HashMap<String, FileAppends>();
+        failedFiles = new ArrayList<String>();
+        lastPartTs = 0;
+        
+        if (headers != null) {
+            dataHeaders.addAll(headers);
+        } // if
+        
+        dataHeaders.add(new BasicHeader("Content-Type", "application/octet-stream"));
     } // HDFSBackendImpl
    
     @Override
@@ -99,8 +125,39 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
     @Override
     public void createFile(String filePath, String data)
         throws Exception {
+        createFile(filePath, new StringEntity(data + "\n"), false);
+    } // createFile
+    
+    /**
+     * Writes Avro records in a new part of a file, i.e. a new Avro container file is created each time. Since the
+     * parts are not rolled but written once per call, the callers should buffer as many records as possible.
+     * @param filePath
+     * @param schema
+     * @param codec
+     * @param records
+     * @throws Exception
+     */
+    @Override
+    public void writeAvro(String filePath, Schema schema, String codec, List<GenericRecord> records)
+        throws Exception {
+        // the parts are named after their creation time, which is made unique within this backend
+        lastPartTs = Math.max(System.currentTimeMillis(), lastPartTs + 1);
+        String partPath = filePath.substring(0, filePath.length() - ".avro".length()) + "_" + lastPartTs + ".avro";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataFileWriter<GenericRecord> writer = AvroWriters.createWriter(schema, codec);
+        writer.create(schema, out);
+        
+        for (GenericRecord record : records) {
+            writer.append(record);
+        } // for
+        
+        writer.close();
+        createFile(partPath, new ByteArrayEntity(out.toByteArray()), false);
+    } // writeAvro
+    
+    private void createFile(String filePath, HttpEntity entity, boolean overwrite) throws Exception {
         String relativeURL = BASE_URL + (serviceAsNamespace ? "" : (hdfsUser + "/")) + filePath
-                + "?op=create&user.name=" + hdfsUser;
+                + "?op=create" + (overwrite ? "&overwrite=true" : "") + "&user.name=" + hdfsUser;
         JsonResponse response = doRequest("PUT", relativeURL, true, headers, null);
         
         // check the status
@@ -115,12 +172,7 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
         String absoluteURL = header.getValue();
 
         // do second step
-        if (headers == null) {
-            headers = new ArrayList<Header>();
-        } // if
-        
-        headers.add(new BasicHeader("Content-Type", "application/octet-stream"));
-        response = doRequest("PUT", absoluteURL, false, headers, new StringEntity(data + "\n"));
+        response = doRequest("PUT", absoluteURL, false, dataHeaders, entity);
     
         // check the status
         if (response.getStatusCode() != 201) {
@@ -131,7 +183,83 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
     } // createFile
     
     @Override
-    public void append(String filePath, String data) throws Exception {
+    public void append(final String filePath, final String data) throws Exception {
+        if (!isAsync()) {
+            doAppend(filePath, data);
+            return;
+        } // if
+        
+        // the appends to the same file are pipelined, but they must be done in order; thus they are queued and a
+        // single task per file does them, instead of a task per append waiting for the previous one
+        final FileAppends fileAppends;
+        
+        if (pendingAppends.containsKey(filePath)) {
+            fileAppends = pendingAppends.get(filePath);
+        } else {
+            fileAppends = new FileAppends();
+            pendingAppends.put(filePath, fileAppends);
+        } // if else
+        
+        synchronized (fileAppends) {
+            // once an append fails, the later ones are not done, otherwise the file would have a gap
+            if (fileAppends.failed) {
+                return;
+            } // if
+            
+            fileAppends.queue.add(data);
+            
+            if (fileAppends.running) {
+                return;
+            } // if
+            
+            fileAppends.running = true;
+        } // synchronized
+        
+        try {
+            submit(new Callable<Void>() {
+                
+                @Override
+                public Void call() throws Exception {
+                    doAppends(filePath, fileAppends);
+                    return null;
+                } // call
+                
+            });
+        } catch (Exception e) {
+            fileAppends.fail();
+            throw e;
+        } // try catch
+    } // append
+    
+    /**
+     * Does in order the appends queued for a HDFS file, until the queue is empty.
+     * @param filePath
+     * @param fileAppends
+     * @throws Exception
+     */
+    private void doAppends(String filePath, FileAppends fileAppends) throws Exception {
+        while (true) {
+            String data;
+            
+            synchronized (fileAppends) {
+                data = fileAppends.queue.poll();
+                
+                if (data == null) {
+                    fileAppends.running = false;
+                    return;
+                } // if
+            } // synchronized
+            
+            try {
+                doAppend(filePath, data);
+            } catch (Exception e) {
+                fileAppends.fail();
+                throw e;
+            } // try catch
+        } // while
+    } // doAppends
+    
+    private void doAppend(String filePath, String data) throws Exception {
         String relativeURL = BASE_URL + (serviceAsNamespace ? "" : (hdfsUser + "/")) + filePath
                 + "?op=append&user.name=" + hdfsUser;
         JsonResponse response = doRequest("POST", relativeURL, true, headers, null);
@@ -148,12 +276,7 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
         String absoluteURL = header.getValue();
 
         // do second step
-        if (headers == null) {
-            headers = new ArrayList<Header>();
-        } // if
-
-        headers.add(new BasicHeader("Content-Type", "application/octet-stream"));
-        response = doRequest("POST", absoluteURL, false, headers, new StringEntity(data + "\n"));
+        response = doRequest("POST", absoluteURL, false, dataHeaders, new StringEntity(data + "\n"));
         
         // check the status
         if (response.getStatusCode() != 200) {
@@ -161,7 +284,7 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
                     + filePath + " file exists in HDFS, but could not write the data. HttpFS response: "
                     + response.getStatusCode() + " " + response.getReasonPhrase());
         } // if
-    } // append
+    } // doAppend
     
     @Override
     public boolean exists(String filePath) throws Exception {
@@ -173,70 +296,119 @@ public class HDFSBackendImpl extends HttpBackend implements HDFSBackend {
         return (response.getStatusCode() == 200);
     } // exists
     
-    /**
-     * Provisions a Hive external table (row mode).
-     * @param dirPath
-     * @throws Exception
-     */
+    @Override
     public void provisionHiveTable(String dirPath) throws Exception {
-        // get the table name to be created
-        // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
-        String tableName = Utils.encodeHive((serviceAsNamespace ? "" : hdfsUser + "_") + dirPath) + "_row";
-        LOGGER.info("Creating Hive external table=" + tableName);
+        hiveTableProvisioner.provisionRowTable(dirPath);
+    } // provisionHiveTable
+    
+    @Override
+    public void provisionHiveTable(String dirPath, String fields) throws Exception {
+        hiveTableProvisioner.provisionColumnTable(dirPath, fields);
+    } // provisionHiveTable
+    
+    @Override
+    public void provisionHiveAvroTable(String dirPath, String avroSchema, boolean rowAttrPersistence)
+        throws Exception {
+        // the schema is persisted before provisioning the table, thus it is never narrower than the table one
+        createFile(HiveTableProvisioner.buildAvroSchemaPath(dirPath, rowAttrPersistence),
+                new StringEntity(avroSchema), true);
+        hiveTableProvisioner.provisionAvroTable(dirPath, avroSchema, rowAttrPersistence);
+    } // provisionHiveAvroTable
+    
+    @Override
+    public String getHiveAvroTableSchema(String dirPath, boolean rowAttrPersistence) throws Exception {
+        String schemaPath = HiveTableProvisioner.buildAvroSchemaPath(dirPath, rowAttrPersistence);
+        String relativeURL = BASE_URL + (serviceAsNamespace ? "" : (hdfsUser + "/")) + schemaPath
+                + "?op=open&user.name=" + hdfsUser;
+        JsonResponse response = doRequest("GET", relativeURL, true, headers, null);
         
-        // get a Hive client
-        HiveBackend hiveClient = new HiveBackend(hiveHost, hivePort, hdfsUser, oauth2Token);
-
-        // create the standard 8-fields
-        String fields = "("
-                + Constants.RECV_TIME_TS + " bigint, "
-                + Constants.RECV_TIME + " string, "
-                + Constants.ENTITY_ID + " string, "
-                + Constants.ENTITY_TYPE + " string, "
-                + Constants.ATTR_NAME + " string, "
-                + Constants.ATTR_TYPE + " string, "
-                + Constants.ATTR_VALUE + " string, "
-                + Constants.ATTR_MD + " array<string>"
-                + ")";
-
-        // create the query
+        // WebHDFS redirects the request to a DataNode, HttpFS serves the data itself
+        if (response.getStatusCode() == 307) {
+            response = doRequest("GET", response.getLocationHeader().getValue(), false, headers, null);
+        } // if
         
-        String query = "create external table " + tableName + " " + fields + " row format serde "
-                + "'org.openx.data.jsonserde.JsonSerDe' location '/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/"))
-                + dirPath + "'";
-
-        // execute the query
-        if (!hiveClient.doCreateTable(query)) {
-            LOGGER.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
-                    + "Check your Hive/Shark installation");
+        if (response.getStatusCode() == 404) {
+            return null;
         } // if
-    } // provisionHiveTable
+        
+        if (response.getStatusCode() != 200 || response.getJsonObject() == null) {
+            throw new CygnusPersistenceError("The /user/" + (serviceAsNamespace ? "" : (hdfsUser + "/"))
+                    + schemaPath + " file could not be read from HDFS. HttpFS response: "
+                    + response.getStatusCode() + " " + response.getReasonPhrase());
+        } // if
+        
+        // the order of the fields is kept, since they are given as a Json array
+        return response.getJsonObject().toJSONString();
+    } // getHiveAvroTableSchema
+    
+    @Override
+    public void provisionHivePartition(String dirPath, String partitionPath, boolean rowAttrPersistence)
+        throws Exception {
+        hiveTableProvisioner.provisionPartition(dirPath, partitionPath, rowAttrPersistence);
+    } // provisionHivePartition
+    
+    @Override
+    public void sync() throws Exception {
+        // the pipelined appends, if any, are waited for; any other HttpFS request is completed before returning
+        ArrayList<String> failed = new ArrayList<String>();
+        
+        try {
+            await();
+        } finally {
+            for (Map.Entry<String, FileAppends> entry : pendingAppends.entrySet()) {
+                if (entry.getValue().isFailed()) {
+                    failed.add(entry.getKey());
+                } // if
+            } // for
+            
+            pendingAppends.clear();
+            failedFiles = failed;
+        } // try finally
+    } // sync
     
     /**
-     * Provisions a Hive external table (column mode).
-     * @param dirPath
-     * @param fields
-     * @throws Exception
+     * Gets the files whose pipelined appends failed, as known by the last sync. The rest of files written since the
+     * previous sync were completely written.
+     * @return The files whose pipelined appends failed
      */
-    public void provisionHiveTable(String dirPath, String fields) throws Exception {
-        // get the table name to be created
-        // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
-        String tableName = Utils.encodeHive((serviceAsNamespace ? "" : hdfsUser + "_") + dirPath) + "_column";
-        LOGGER.info("Creating Hive external table=" + tableName);
-        
-        // get a Hive client
-        HiveBackend hiveClient = new HiveBackend(hiveHost, hivePort, hdfsUser, oauth2Token);
-        
-        // create the query
-        String query = "create external table " + tableName + " (" + fields + ") row format serde "
-                + "'org.openx.data.jsonserde.JsonSerDe' location '/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/"))
-                + dirPath + "'";
-
-        // execute the query
-        if (!hiveClient.doCreateTable(query)) {
-            LOGGER.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
-                    + "Check your Hive/Shark installation");
-        } // if
-    } // provisionHiveTable
+    @Override
+    public List<String> getFailedFiles() {
+        return failedFiles;
+    } // getFailedFiles
+    
+    @Override
+    public void close() throws Exception {
+        // there are no open files, but the pipelined appends and the Hive provisioning must be stopped
+        super.close();
+        hiveTableProvisioner.close();
+    } // close
+    
+    /**
+     * Pipelined appends to a HDFS file, queued until the task of the file does them.
+     */
+    private static class FileAppends {
+        
+        private final LinkedList<String> queue = new LinkedList<String>();
+        private boolean running = false;
+        private boolean failed = false;
+        
+        /**
+         * Marks the file as failed, discarding the queued appends.
+         */
+        synchronized void fail() {
+            failed = true;
+            running = false;
+            queue.clear();
+        } // fail
+        
+        /**
+         * Gets if an append to the file failed.
+         * @return True if an append to the file failed, otherwise false
+         */
+        synchronized boolean isFailed() {
+            return failed;
+        } // isFailed
+        
+    } // FileAppends
 
 } // HDFSBackendImpl
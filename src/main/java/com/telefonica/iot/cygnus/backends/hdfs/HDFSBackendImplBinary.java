@@ -0,0 +1,507 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ *
+ * @author frb
+ * 
+ * HDFS persistence based on the Hadoop FileSystem client, i.e. the binary protocol of the NameNode (TCP/8020) is
+ * used instead of the HttpFS REST API. Instead of opening a file per write, the output streams are kept open (up to
+ * a maximum, closing the least recently used ones) and synced once per batch.
+ * 
+ * The files are never appended; instead, the data regarding a file is written in parts rolled on size or time. Being
+ * <dir>/<name>.txt the path of the file, each part is written in <dir>/<name>_<creationTimeMs>.txt, thus all the
+ * parts are located within the same directory, which is the location of the Hive table. The same applies to the Avro
+ * files, whose parts are Avro container files kept open as well, and also rolled when the schema of the records
+ * changes.
+ */
+public class HDFSBackendImplBinary implements HDFSBackend {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(HDFSBackendImplBinary.class);
+    private final FileSystem fileSystem;
+    private final String basePath;
+    private final int maxOpenFiles;
+    private final long rollMaxBytes;
+    private final long rollIntervalMs;
+    private final HiveTableProvisioner hiveTableProvisioner;
+    private final LinkedHashMap<String, OpenFile> openFiles;
+    private long lastPartTs;
+    
+    /**
+     * Constructor.
+     * @param fsURI File system URI, e.g. hdfs://<namenode_host>:<namenode_port>; any path within the URI is used as
+     * root directory (useful for testing purposes, e.g. file:///tmp/cygnus)
+     * @param hdfsUser
+     * @param oauth2Token
+     * @param hiveHost
+     * @param hivePort
+     * @param serviceAsNamespace
+     * @param partitioned True if the Hive tables are partitioned by year, month, day and hour, otherwise false
+     * @param maxOpenFiles Maximum number of files kept open at the same time
+     * @param rollMaxBytes Maximum size of a part, in bytes
+     * @param rollInterval Maximum time a part is written, in seconds
+     * @throws Exception
+     */
+    public HDFSBackendImplBinary(String fsURI, String hdfsUser, String oauth2Token, String hiveHost,
+            String hivePort, boolean serviceAsNamespace, boolean partitioned, int maxOpenFiles, long rollMaxBytes,
+            long rollInterval)
+        throws Exception {
+        URI uri = new URI(fsURI);
+        this.fileSystem = FileSystem.get(uri, new Configuration());
+        this.basePath = (uri.getPath() == null ? "" : uri.getPath()) + "/user/"
+                + (serviceAsNamespace ? "" : (hdfsUser + "/"));
+        this.maxOpenFiles = maxOpenFiles;
+        this.rollMaxBytes = rollMaxBytes;
+        this.rollIntervalMs = rollInterval * 1000;
+        this.hiveTableProvisioner = new HiveTableProvisioner(hdfsUser, oauth2Token, hiveHost, hivePort,
+                serviceAsNamespace, partitioned);
+        this.openFiles = new LinkedHashMap<String, OpenFile>(16, 0.75f, true);
+        this.lastPartTs = 0;
+    } // HDFSBackendImplBinary
+    
+    /**
+     * An open part of a file.
+     */
+    private class OpenFile {
+        
+        private final Path path;
+        private final FSDataOutputStream stream;
+        private final long openedAt;
+        private long bytes;
+        private final Schema avroSchema;
+        private final DataFileWriter<GenericRecord> avroWriter;
+        
+        /**
+         * Constructor.
+         * @param path
+         * @throws IOException
+         */
+        OpenFile(Path path) throws IOException {
+            this.path = path;
+            this.stream = fileSystem.create(path, false);
+            this.openedAt = System.currentTimeMillis();
+            this.bytes = 0;
+            this.avroSchema = null;
+            this.avroWriter = null;
+        } // OpenFile
+        
+        /**
+         * Constructor for Avro container files.
+         * @param path
+         * @param avroSchema
+         * @param avroCodec
+         * @throws IOException
+         */
+        OpenFile(Path path, Schema avroSchema, String avroCodec) throws IOException {
+            this.path = path;
+            this.stream = fileSystem.create(path, false);
+            this.openedAt = System.currentTimeMillis();
+            this.avroSchema = avroSchema;
+            this.avroWriter = AvroWriters.createWriter(avroSchema, avroCodec);
+            
+            try {
+                avroWriter.create(avroSchema, stream);
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            } // try catch
+            
+            this.bytes = stream.getPos();
+        } // OpenFile
+        
+        /**
+         * Writes data in the part.
+         * @param data
+         * @throws IOException
+         */
+        void write(byte[] data) throws IOException {
+            stream.write(data);
+            bytes += data.length;
+        } // write
+        
+        /**
+         * Writes Avro records in the part. The records are buffered in blocks, thus the size of the part only
+         * accounts for the blocks already written.
+         * @param records
+         * @throws IOException
+         */
+        void write(List<GenericRecord> records) throws IOException {
+            for (GenericRecord record : records) {
+                avroWriter.append(record);
+            } // for
+            
+            bytes = stream.getPos();
+        } // write
+        
+        /**
+         * Makes durable the data written so far in the part.
+         * @throws IOException
+         */
+        void sync() throws IOException {
+            if (avroWriter != null) {
+                avroWriter.flush();
+            } // if
+            
+            stream.sync();
+        } // sync
+        
+        /**
+         * Closes the part.
+         * @throws IOException
+         */
+        void close() throws IOException {
+            if (avroWriter != null) {
+                avroWriter.close();
+            } else {
+                stream.close();
+            } // if else
+        } // close
+        
+        /**
+         * Gets if the part must be rolled, i.e. if it has reached its maximum size or age.
+         * @param now
+         * @return True if the part must be rolled, otherwise false
+         */
+        boolean mustRoll(long now) {
+            return bytes >= rollMaxBytes || now - openedAt >= rollIntervalMs;
+        } // mustRoll
+        
+    } // OpenFile
+    
+    @Override
+    public void createDir(String dirPath) throws Exception {
+        try {
+            fileSystem.mkdirs(new Path(basePath + dirPath));
+        } catch (IOException e) {
+            throw new CygnusPersistenceError("The " + basePath + dirPath + " directory could not be created in "
+                    + "HDFS. Details=" + e.getMessage());
+        } // try catch
+    } // createDir
+    
+    @Override
+    public void createFile(String filePath, String data) throws Exception {
+        write(filePath, data);
+    } // createFile
+    
+    /**
+     * Writes Avro records in the current part of a file, opening a new part if there is no current part, it must be
+     * rolled or the schema of the records is not the one of the part.
+     * @param filePath
+     * @param schema
+     * @param codec
+     * @param records
+     * @throws Exception
+     */
+    @Override
+    public synchronized void writeAvro(String filePath, Schema schema, String codec, List<GenericRecord> records)
+        throws Exception {
+        OpenFile openFile = openFiles.get(filePath);
+        
+        if (openFile != null && (openFile.mustRoll(System.currentTimeMillis())
+                || !schema.equals(openFile.avroSchema))) {
+            openFiles.remove(filePath);
+            closeFile(openFile);
+            openFile = null;
+        } // if
+        
+        try {
+            if (openFile == null) {
+                openFile = new OpenFile(buildPartPath(filePath), schema, codec);
+                openFiles.put(filePath, openFile);
+                LOGGER.debug("HDFS file part opened (path=" + openFile.path + ")");
+                closeEldestFiles();
+            } // if
+            
+            openFile.write(records);
+        } catch (IOException e) {
+            if (openFile != null) {
+                openFiles.remove(filePath);
+                closeQuietly(openFile);
+            } // if
+            
+            throw new CygnusPersistenceError("The data could not be written in the " + basePath + filePath
+                    + " file in HDFS. Details=" + e.getMessage());
+        } // try catch
+    } // writeAvro
+    
+    @Override
+    public void append(String filePath, String data) throws Exception {
+        write(filePath, data);
+    } // append
+    
+    /**
+     * Checks if the file exists in HDFS. Since the files are written in parts, a file is considered to exist if it
+     * is open or its directory exists; in any case, its data will be written in a part within that directory.
+     * @param filePath
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public synchronized boolean exists(String filePath) throws Exception {
+        if (openFiles.containsKey(filePath)) {
+            return true;
+        } // if
+        
+        return fileSystem.exists(new Path(basePath + filePath).getParent());
+    } // exists
+    
+    @Override
+    public void provisionHiveTable(String dirPath) throws Exception {
+        hiveTableProvisioner.provisionRowTable(dirPath);
+    } // provisionHiveTable
+    
+    @Override
+    public void provisionHiveTable(String dirPath, String fields) throws Exception {
+        hiveTableProvisioner.provisionColumnTable(dirPath, fields);
+    } // provisionHiveTable
+    
+    @Override
+    public void provisionHiveAvroTable(String dirPath, String avroSchema, boolean rowAttrPersistence)
+        throws Exception {
+        // the schema is persisted before provisioning the table, thus it is never narrower than the table one
+        Path path = new Path(basePath + HiveTableProvisioner.buildAvroSchemaPath(dirPath, rowAttrPersistence));
+        
+        try {
+            FSDataOutputStream out = fileSystem.create(path, true);
+            
+            try {
+                out.write(avroSchema.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            } // try finally
+        } catch (IOException e) {
+            throw new CygnusPersistenceError("The " + path + " file could not be written in HDFS. Details="
+                    + e.getMessage());
+        } // try catch
+        
+        hiveTableProvisioner.provisionAvroTable(dirPath, avroSchema, rowAttrPersistence);
+    } // provisionHiveAvroTable
+    
+    @Override
+    public String getHiveAvroTableSchema(String dirPath, boolean rowAttrPersistence) throws Exception {
+        Path path = new Path(basePath + HiveTableProvisioner.buildAvroSchemaPath(dirPath, rowAttrPersistence));
+        
+        try {
+            if (!fileSystem.exists(path)) {
+                return null;
+            } // if
+            
+            BufferedReader reader = new BufferedReader(new InputStreamReader(fileSystem.open(path), "UTF-8"));
+            
+            try {
+                StringBuilder schema = new StringBuilder();
+                String line;
+                
+                while ((line = reader.readLine()) != null) {
+                    schema.append(line);
+                } // while
+                
+                return schema.toString();
+            } finally {
+                reader.close();
+            } // try finally
+        } catch (IOException e) {
+            throw new CygnusPersistenceError("The " + path + " file could not be read from HDFS. Details="
+                    + e.getMessage());
+        } // try catch
+    } // getHiveAvroTableSchema
+    
+    @Override
+    public void provisionHivePartition(String dirPath, String partitionPath, boolean rowAttrPersistence)
+        throws Exception {
+        hiveTableProvisioner.provisionPartition(dirPath, partitionPath, rowAttrPersistence);
+    } // provisionHivePartition
+    
+    /**
+     * Syncs all the open files, and closes those ones that must be rolled.
+     * @throws Exception
+     */
+    @Override
+    public synchronized void sync() throws Exception {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, OpenFile>> it = openFiles.entrySet().iterator();
+        
+        while (it.hasNext()) {
+            OpenFile openFile = it.next().getValue();
+            
+            if (openFile.mustRoll(now)) {
+                it.remove();
+                closeFile(openFile);
+            } else {
+                try {
+                    openFile.sync();
+                } catch (IOException e) {
+                    // the stream is not usable anymore, a new part will be opened when writing again
+                    it.remove();
+                    closeQuietly(openFile);
+                    throw new CygnusPersistenceError("The " + openFile.path + " file could not be synced in HDFS. "
+                            + "Details=" + e.getMessage());
+                } // try catch
+            } // if else
+        } // while
+    } // sync
+    
+    /**
+     * Gets the files whose data could not be synced. They are not known, since a failed sync stops syncing the rest
+     * of open files.
+     * @return Null
+     */
+    @Override
+    public List<String> getFailedFiles() {
+        return null;
+    } // getFailedFiles
+    
+    @Override
+    public synchronized void close() throws Exception {
+        ArrayList<OpenFile> toBeClosed = new ArrayList<OpenFile>(openFiles.values());
+        openFiles.clear();
+        
+        for (OpenFile openFile : toBeClosed) {
+            closeQuietly(openFile);
+        } // for
+        
+        hiveTableProvisioner.close();
+    } // close
+    
+    /**
+     * Gets the number of open files. It is protected since it is only used by the tests.
+     * @return The number of open files
+     */
+    protected synchronized int getNumOpenFiles() {
+        return openFiles.size();
+    } // getNumOpenFiles
+    
+    /**
+     * Writes data in the current part of a file, opening a new part if there is no current part or it must be
+     * rolled. The least recently used files are closed if the maximum number of open files is exceeded.
+     * @param filePath
+     * @param data
+     * @throws Exception
+     */
+    private synchronized void write(String filePath, String data) throws Exception {
+        OpenFile openFile = openFiles.get(filePath);
+        
+        if (openFile != null && openFile.mustRoll(System.currentTimeMillis())) {
+            openFiles.remove(filePath);
+            closeFile(openFile);
+            openFile = null;
+        } // if
+        
+        try {
+            if (openFile == null) {
+                openFile = new OpenFile(buildPartPath(filePath));
+                openFiles.put(filePath, openFile);
+                LOGGER.debug("HDFS file part opened (path=" + openFile.path + ")");
+                closeEldestFiles();
+            } // if
+            
+            openFile.write((data + "\n").getBytes("UTF-8"));
+        } catch (IOException e) {
+            if (openFile != null) {
+                openFiles.remove(filePath);
+                closeQuietly(openFile);
+            } // if
+            
+            throw new CygnusPersistenceError("The data could not be written in the " + basePath + filePath
+                    + " file in HDFS. Details=" + e.getMessage());
+        } // try catch
+    } // write
+    
+    /**
+     * Closes the least recently used files until the maximum number of open files is not exceeded.
+     * @throws Exception
+     */
+    private void closeEldestFiles() throws Exception {
+        Iterator<Map.Entry<String, OpenFile>> it = openFiles.entrySet().iterator();
+        
+        while (openFiles.size() > maxOpenFiles && it.hasNext()) {
+            OpenFile openFile = it.next().getValue();
+            it.remove();
+            closeFile(openFile);
+        } // while
+    } // closeEldestFiles
+    
+    /**
+     * Builds the path of a new part of a file.
+     * @param filePath
+     * @return The path of the new part
+     */
+    private Path buildPartPath(String filePath) {
+        // the parts are named after their creation time, which is made unique within this backend
+        lastPartTs = Math.max(System.currentTimeMillis(), lastPartTs + 1);
+        String partPath = basePath + filePath;
+        int dotIndex = partPath.lastIndexOf('.');
+        
+        if (dotIndex > partPath.lastIndexOf('/')) {
+            partPath = partPath.substring(0, dotIndex) + "_" + lastPartTs + partPath.substring(dotIndex);
+        } else {
+            partPath = partPath + "_" + lastPartTs;
+        } // if else
+        
+        return new Path(partPath);
+    } // buildPartPath
+    
+    /**
+     * Closes a part, making durable its data.
+     * @param openFile
+     * @throws Exception
+     */
+    private void closeFile(OpenFile openFile) throws Exception {
+        try {
+            openFile.close();
+            LOGGER.debug("HDFS file part closed (path=" + openFile.path + ", bytes=" + openFile.bytes + ")");
+        } catch (IOException e) {
+            throw new CygnusPersistenceError("The " + openFile.path + " file could not be closed in HDFS. Details="
+                    + e.getMessage());
+        } // try catch
+    } // closeFile
+    
+    /**
+     * Closes a part, logging any error instead of throwing it.
+     * @param openFile
+     */
+    private void closeQuietly(OpenFile openFile) {
+        try {
+            openFile.close();
+        } catch (IOException e) {
+            LOGGER.error("The " + openFile.path + " file could not be closed in HDFS. Details=" + e.getMessage());
+        } // try catch
+    } // closeQuietly
+    
+} // HDFSBackendImplBinary
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import com.telefonica.iot.cygnus.backends.hive.HiveBackend;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.Utils;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * @author frb
+ * 
+ * Provisions the Hive external tables on top of the HDFS directories written by the HDFS backends, independently of
+ * the API used for writing.
+ * 
+ * The provisioning is done asynchronously, off the sink thread, by a single thread (thus the tables are created
+ * before their partitions are added), through a pooled Hive backend. Each provisioning sentence is retried a few
+ * times if failing, and it is not executed again once succeeded (the sentence identifies the table name and its
+ * fields, or the partition).
+ */
+class HiveTableProvisioner {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(HiveTableProvisioner.class);
+    private static final int MAX_RETRIES = 3;
+    private static final int MAX_IDLE_CONNS = 2;
+    private final String hdfsUser;
+    private final boolean serviceAsNamespace;
+    private final boolean partitioned;
+    private final HiveBackend hiveClient;
+    private final long retryInterval;
+    private final Set<String> provisioned; // provisioning sentences already succeeded
+    private final Set<String> pending; // provisioning sentences submitted, but not succeeded yet
+    private final ExecutorService executor;
+    
+    /**
+     * Constructor.
+     * @param hdfsUser
+     * @param oauth2Token
+     * @param hiveHost
+     * @param hivePort
+     * @param serviceAsNamespace
+     * @param partitioned True if the tables are partitioned by year, month, day and hour, otherwise false
+     */
+    HiveTableProvisioner(String hdfsUser, String oauth2Token, String hiveHost, String hivePort,
+            boolean serviceAsNamespace, boolean partitioned) {
+        this(hdfsUser, serviceAsNamespace, partitioned,
+                new HiveBackend(hiveHost, hivePort, hdfsUser, oauth2Token, MAX_IDLE_CONNS), 1000);
+    } // HiveTableProvisioner
+    
+    /**
+     * Constructor. It is package-private since it is used by the tests.
+     * @param hdfsUser
+     * @param serviceAsNamespace
+     * @param partitioned
+     * @param hiveClient
+     * @param retryInterval Milliseconds waited before the first retry, doubled for each following one
+     */
+    HiveTableProvisioner(String hdfsUser, boolean serviceAsNamespace, boolean partitioned, HiveBackend hiveClient,
+            long retryInterval) {
+        this.hdfsUser = hdfsUser;
+        this.serviceAsNamespace = serviceAsNamespace;
+        this.partitioned = partitioned;
+        this.hiveClient = hiveClient;
+        this.retryInterval = retryInterval;
+        this.provisioned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hive-provisioner");
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+            
+        });
+    } // HiveTableProvisioner
+    
+    /**
+     * Provisions a Hive external table (row mode).
+     * @param dirPath
+     * @throws Exception
+     */
+    void provisionRowTable(String dirPath) throws Exception {
+        // create the standard 8-fields
+        String fields = Constants.RECV_TIME_TS + " bigint, "
+                + Constants.RECV_TIME + " string, "
+                + Constants.ENTITY_ID + " string, "
+                + Constants.ENTITY_TYPE + " string, "
+                + Constants.ATTR_NAME + " string, "
+                + Constants.ATTR_TYPE + " string, "
+                + Constants.ATTR_VALUE + " string, "
+                + Constants.ATTR_MD + " array<string>";
+        provisionTable(dirPath, fields, "_row");
+    } // provisionRowTable
+    
+    /**
+     * Provisions a Hive external table (column mode).
+     * @param dirPath
+     * @param fields
+     * @throws Exception
+     */
+    void provisionColumnTable(String dirPath, String fields) throws Exception {
+        provisionTable(dirPath, fields, "_column");
+    } // provisionColumnTable
+    
+    /**
+     * Provisions a Hive external table whose data are Avro files, the columns being derived from the Avro schema. If
+     * the table already exists, its schema is replaced by the given one.
+     * @param dirPath
+     * @param avroSchema
+     * @param rowAttrPersistence True if the table is a row mode one, false if it is a column mode one
+     * @throws Exception
+     */
+    void provisionAvroTable(String dirPath, String avroSchema, boolean rowAttrPersistence) throws Exception {
+        String tableName = buildTableName(dirPath, rowAttrPersistence ? "_row" : "_column");
+        
+        // create the query; no columns are given since they are taken from the Avro schema
+        String query = "create external table if not exists " + tableName
+                + (partitioned ? " partitioned by (year string, month string, day string, hour string)" : "")
+                + " row format serde 'org.apache.hadoop.hive.serde2.avro.AvroSerDe'"
+                + " stored as inputformat 'org.apache.hadoop.hive.ql.io.avro.AvroContainerInputFormat'"
+                + " outputformat 'org.apache.hadoop.hive.ql.io.avro.AvroContainerOutputFormat'"
+                + " location '" + buildLocation(dirPath) + "'"
+                + " tblproperties ('avro.schema.literal'='" + avroSchema.replace("'", "\\'") + "')";
+        submit(query, true, "Hive external table=" + tableName);
+        
+        // the table may have been created with a previous schema; the sentences are executed in order, thus the
+        // table exists when altering it
+        query = "alter table " + tableName + " set tblproperties ('avro.schema.literal'='"
+                + avroSchema.replace("'", "\\'") + "')";
+        submit(query, false, "Avro schema of Hive external table=" + tableName);
+    } // provisionAvroTable
+    
+    /**
+     * Builds the path of the file persisting the Avro schema of a Hive external table, within the directory the table
+     * is created on top of. The file name starts with '_', thus it is hidden to Hive.
+     * @param dirPath
+     * @param rowAttrPersistence True if the table is a row mode one, false if it is a column mode one
+     * @return The path of the file persisting the Avro schema
+     */
+    static String buildAvroSchemaPath(String dirPath, boolean rowAttrPersistence) {
+        return dirPath + (rowAttrPersistence ? "/_row.avsc" : "/_column.avsc");
+    } // buildAvroSchemaPath
+    
+    /**
+     * Provisions a partition of a Hive external table, given the path of the partition relative to the table
+     * location, e.g. year=2015/month=04/day=20/hour=12.
+     * @param dirPath
+     * @param partitionPath
+     * @param rowAttrPersistence True if the table is a row mode one, false if it is a column mode one
+     * @throws Exception
+     */
+    void provisionPartition(String dirPath, String partitionPath, boolean rowAttrPersistence) throws Exception {
+        String tableName = buildTableName(dirPath, rowAttrPersistence ? "_row" : "_column");
+        
+        // create the query; the partition spec is built from the partition path, e.g. year='2015', month='04',...
+        String spec = "";
+        
+        for (String keyValue : partitionPath.split("/")) {
+            String[] split = keyValue.split("=");
+            spec += (spec.isEmpty() ? "" : ", ") + split[0] + "='" + split[1] + "'";
+        } // for
+        
+        String query = "alter table " + tableName + " add if not exists partition (" + spec + ") location '"
+                + buildLocation(dirPath) + "/" + partitionPath + "'";
+        submit(query, false, "Hive partition=" + partitionPath + " of table=" + tableName);
+    } // provisionPartition
+    
+    /**
+     * Stops provisioning, discarding the pending sentences, and closes the Hive connections.
+     */
+    void close() {
+        executor.shutdownNow();
+        hiveClient.close();
+    } // close
+    
+    private void provisionTable(String dirPath, String fields, String tableSuffix) throws Exception {
+        String tableName = buildTableName(dirPath, tableSuffix);
+        
+        // create the query
+        String query = "create external table if not exists " + tableName + " (" + fields + ")"
+                + (partitioned ? " partitioned by (year string, month string, day string, hour string)" : "")
+                + " row format serde 'org.openx.data.jsonserde.JsonSerDe' location '" + buildLocation(dirPath) + "'";
+        submit(query, true, "Hive external table=" + tableName);
+    } // provisionTable
+    
+    /**
+     * Submits a provisioning sentence for its asynchronous execution, unless it already succeeded or it is pending.
+     * @param query
+     * @param create True if the sentence creates a table, false if it alters a table
+     * @param description Description of the provisioned object, for logging purposes
+     */
+    private void submit(final String query, final boolean create, final String description) {
+        if (provisioned.contains(query) || !pending.add(query)) {
+            LOGGER.debug("Already provisioned or being provisioned " + description);
+            return;
+        } // if
+        
+        executor.execute(new Runnable() {
+            
+            @Override
+            public void run() {
+                execute(query, create, description);
+            } // run
+            
+        });
+    } // submit
+    
+    /**
+     * Executes a provisioning sentence, retrying it if failing.
+     * @param query
+     * @param create
+     * @param description
+     */
+    private void execute(String query, boolean create, String description) {
+        long interval = retryInterval;
+        
+        try {
+            for (int i = 0; i <= MAX_RETRIES; i++) {
+                LOGGER.info("Provisioning " + description + (i == 0 ? "" : " (retry " + i + ")"));
+                
+                if (create ? hiveClient.doCreateTable(query) : hiveClient.doAlterTable(query)) {
+                    provisioned.add(query);
+                    return;
+                } // if
+                
+                if (i < MAX_RETRIES) {
+                    Thread.sleep(interval);
+                    interval *= 2;
+                } // if
+            } // for
+            
+            LOGGER.warn("The " + description + " could not be provisioned, but Cygnus can continue working... "
+                    + "Check your Hive/Shark installation");
+        } catch (InterruptedException e) {
+            LOGGER.debug("Provisioning of " + description + " interrupted");
+        } finally {
+            // if not succeeded, it will be tried again the next time it is requested
+            pending.remove(query);
+        } // try catch finally
+    } // execute
+    
+    private String buildTableName(String dirPath, String tableSuffix) {
+        // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
+        return Utils.encodeHive((serviceAsNamespace ? "" : hdfsUser + "_") + dirPath) + tableSuffix;
+    } // buildTableName
+    
+    private String buildLocation(String dirPath) {
+        return "/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath;
+    } // buildLocation
+    
+} // HiveTableProvisioner
@@ -24,10 +24,14 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedList;
 
 /**
  *
  * @author frb
+ * 
+ * Hive backend. The connections to the Hive server are pooled, i.e. up to a maximum number of idle connections are
+ * kept open in order to be reused by the following queries.
  */
 public class HiveBackend {
     
@@ -38,19 +42,37 @@ public class HiveBackend {
     private final String hivePort;
     private final String hadoopUser;
     private final String hadoopPassword;
+    private final int maxIdleConns;
+    private final LinkedList<Connection> idleConns;
+    private static boolean driverLoaded = false;
     
     /**
-     * Constructor.
+     * Constructor. A single idle connection is kept open.
      * @param hiveServer
      * @param hivePort
      * @param hadoopUser
      * @param hadoopPassword
      */
     public HiveBackend(String hiveServer, String hivePort, String hadoopUser, String hadoopPassword) {
+        this(hiveServer, hivePort, hadoopUser, hadoopPassword, 1);
+    } // HiveBackend
+    
+    /**
+     * Constructor.
+     * @param hiveServer
+     * @param hivePort
+     * @param hadoopUser
+     * @param hadoopPassword
+     * @param maxIdleConns Maximum number of idle connections kept open
+     */
+    public HiveBackend(String hiveServer, String hivePort, String hadoopUser, String hadoopPassword,
+            int maxIdleConns) {
         this.hiveServer = hiveServer;
         this.hivePort = hivePort;
         this.hadoopUser = hadoopUser;
         this.hadoopPassword = hadoopPassword;
+        this.maxIdleConns = maxIdleConns;
+        this.idleConns = new LinkedList<Connection>();
     } // HiveBackend
     
     /**
@@ -59,6 +81,25 @@ public class HiveBackend {
      * @return True if the table could be created, false otherwise.
      */
     public boolean doCreateTable(String query) {
+        return doDefinition(query, "The Hive table cannot be created");
+    } // doCreateTable
+    
+    /**
+     * Alters a HiveQL table, e.g. by adding a partition.
+     * @param query
+     * @return True if the table could be altered, false otherwise.
+     */
+    public boolean doAlterTable(String query) {
+        return doDefinition(query, "The Hive table cannot be altered");
+    } // doAlterTable
+    
+    /**
+     * Executes a HiveQL data definition sentence.
+     * @param query
+     * @param errorMessage Message logged if the sentence fails
+     * @return True if the sentence succeeded, false otherwise.
+     */
+    private boolean doDefinition(String query, String errorMessage) {
         Connection con = null;
         Statement stmt = null;
         ResultSet rs = null;
@@ -74,13 +115,13 @@ public class HiveBackend {
             // execute the query
             rs = stmt.executeQuery(query);
         } catch (Throwable e) {
-            LOGGER.error("Runtime error (The Hive table cannot be created. Hive query='" + query + "'. Details="
+            LOGGER.error("Runtime error (" + errorMessage + ". Hive query='" + query + "'. Details="
                     + e.getMessage() + ")");
             res = false;
         } finally {
-            return res && closeHiveObjects(con, stmt, rs);
+            return closeHiveObjects(con, stmt, rs, !res) && res;
         } // try catch finally
-    } // doCreateTable
+    } // doDefinition
 
     /**
      * Executes a HiveQL sentence.
@@ -118,28 +159,21 @@ public class HiveBackend {
                     + e.getMessage() + ")");
             res = false;
         } finally {
-            return res && closeHiveObjects(con, stmt, rs);
+            return closeHiveObjects(con, stmt, rs, !res) && res;
         } // try catch finally
     } // doQuery
     
     /**
-     * Close all the Hive objects previously opened by doCreateTable and doQuery.
+     * Close all the Hive objects previously opened by doDefinition and doQuery. The connection is given back to the
+     * pool, unless the query failed.
      * @param con
      * @param stmt
      * @param rs
+     * @param failed True if the query failed, otherwise false
      * @return True if the Hive objects have been closed, false otherwise.
      */
-    private boolean closeHiveObjects(Connection con, Statement stmt, ResultSet rs) {
+    private boolean closeHiveObjects(Connection con, Statement stmt, ResultSet rs, boolean failed) {
         boolean res = true;
-        
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                LOGGER.error("Runtime error (The Hive connection could not be closed. Details=" + e.getMessage() + ")");
-                res = false;
-            } // try catch // try catch
-        } // if
 
         if (stmt != null) {
             try {
@@ -159,17 +193,82 @@ public class HiveBackend {
             } // try catch // try catch
         } // if
         
+        if (con != null) {
+            res = releaseConnection(con, failed || !res) && res;
+        } // if
+        
         return res;
     } // closeHiveObjects
     
     /**
-     * Gets a connection to the Hive server.
+     * Closes all the idle connections.
+     */
+    public void close() {
+        LinkedList<Connection> toBeClosed;
+        
+        synchronized (idleConns) {
+            toBeClosed = new LinkedList<Connection>(idleConns);
+            idleConns.clear();
+        } // synchronized
+        
+        for (Connection con : toBeClosed) {
+            closeConnection(con);
+        } // for
+    } // close
+    
+    /**
+     * Gives back a connection to the pool. It is closed instead if it is suspicious of being broken, or if the
+     * maximum number of idle connections has been reached.
+     * @param con
+     * @param suspicious
+     * @return True if the connection was given back or closed, false otherwise
+     */
+    private boolean releaseConnection(Connection con, boolean suspicious) {
+        if (!suspicious) {
+            synchronized (idleConns) {
+                if (idleConns.size() < maxIdleConns) {
+                    idleConns.addFirst(con);
+                    return true;
+                } // if
+            } // synchronized
+        } // if
+        
+        return closeConnection(con);
+    } // releaseConnection
+    
+    private boolean closeConnection(Connection con) {
+        try {
+            con.close();
+            return true;
+        } catch (SQLException e) {
+            LOGGER.error("Runtime error (The Hive connection could not be closed. Details=" + e.getMessage() + ")");
+            return false;
+        } // try catch
+    } // closeConnection
+    
+    /**
+     * Gets a connection to the Hive server, reusing an idle one if available.
      * @return
      * @throws Exception
      */
     private Connection getConnection() throws Exception {
-        // dynamically load the Hive JDBC driver
-        Class.forName(DRIVERNAME);
+        synchronized (idleConns) {
+            while (!idleConns.isEmpty()) {
+                Connection con = idleConns.removeFirst();
+                
+                if (!con.isClosed()) {
+                    return con;
+                } // if
+            } // while
+        } // synchronized
+        
+        // dynamically load the Hive JDBC driver, only once
+        synchronized (HiveBackend.class) {
+            if (!driverLoaded) {
+                Class.forName(DRIVERNAME);
+                driverLoaded = true;
+            } // if
+        } // synchronized
 
         // return a connection based on the Hive JDBC driver
         LOGGER.debug("Connecting to jdbc:hive://" + hiveServer + ":" + hivePort + "/default?user=" + hadoopUser
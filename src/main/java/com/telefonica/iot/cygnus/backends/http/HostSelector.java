@@ -0,0 +1,323 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.http;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author frb
+ * 
+ * Selects the order in which the hosts of a HttpBackend are tried for each request. The hosts are passively health
+ * checked: a host failing a number of consecutive requests is ejected for a while, and once that time has elapsed
+ * it is put on probation, i.e. a single trial request is sent to it; if such a request succeeds the host is healthy
+ * again, otherwise it is ejected again. Ejected hosts are only tried as the last resort. This class is thread-safe.
+ */
+public class HostSelector {
+    
+    /**
+     * Available host selection strategies.
+     */
+    public enum Strategy { FAILOVER, ROUND_ROBIN, LEAST_OUTSTANDING, EWMA }
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(HostSelector.class);
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long DEF_EJECTION_TIME = 30000;
+    private static final double EWMA_WEIGHT = 0.3; // weight of the last latency sample
+    private final Strategy strategy;
+    private final List<HostStats> hosts;
+    private final long ejectionTime;
+    private final AtomicInteger next;
+    private volatile HostStats preferred;
+    
+    /**
+     * Constructor.
+     * @param hosts
+     * @param strategy
+     */
+    public HostSelector(String[] hosts, Strategy strategy) {
+        this(hosts, strategy, DEF_EJECTION_TIME);
+    } // HostSelector
+    
+    /**
+     * Constructor.
+     * @param hosts
+     * @param strategy
+     * @param ejectionTime Milliseconds a failing host is ejected before putting it on probation
+     */
+    public HostSelector(String[] hosts, Strategy strategy, long ejectionTime) {
+        ArrayList<HostStats> stats = new ArrayList<HostStats>();
+        
+        for (String host : hosts) {
+            stats.add(new HostStats(host));
+        } // for
+        
+        this.hosts = Collections.unmodifiableList(stats);
+        this.strategy = strategy;
+        this.ejectionTime = ejectionTime;
+        this.next = new AtomicInteger(0);
+        this.preferred = this.hosts.get(0);
+    } // HostSelector
+    
+    /**
+     * Statistics and health of a host.
+     */
+    private static class HostStats {
+        
+        private final String host;
+        private final AtomicInteger outstanding;
+        private final AtomicBoolean onTrial;
+        private double ewma; // milliseconds, negative if not yet sampled
+        private int consecutiveFailures;
+        private long ejectedUntil;
+        private boolean onProbation;
+        
+        /**
+         * Constructor.
+         * @param host
+         */
+        HostStats(String host) {
+            this.host = host;
+            this.outstanding = new AtomicInteger(0);
+            this.onTrial = new AtomicBoolean(false);
+            this.ewma = -1;
+            this.consecutiveFailures = 0;
+            this.ejectedUntil = 0;
+            this.onProbation = false;
+        } // HostStats
+        
+        synchronized double getScore() {
+            // not yet sampled hosts are preferred, in order to get a latency sample from them
+            return (ewma < 0 ? 0 : ewma) * (outstanding.get() + 1);
+        } // getScore
+        
+    } // HostStats
+    
+    /**
+     * Gets the strategy.
+     * @return The strategy
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    } // getStrategy
+    
+    /**
+     * Gets the hosts in the order they must be tried for a new request: first the host chosen by the strategy, then
+     * the remaining healthy hosts and finally the ejected ones.
+     * @return The ordered hosts
+     */
+    public List<String> select() {
+        long now = System.currentTimeMillis();
+        ArrayList<HostStats> healthy = new ArrayList<HostStats>();
+        ArrayList<HostStats> ejected = new ArrayList<HostStats>();
+        HostStats trial = null;
+        int n = hosts.size();
+        int offset = strategy == Strategy.FAILOVER ? 0 : Math.abs(next.getAndIncrement() % n);
+        
+        for (int i = 0; i < n; i++) {
+            HostStats stats = hosts.get((offset + i) % n);
+            
+            synchronized (stats) {
+                if (stats.ejectedUntil > now) {
+                    ejected.add(stats);
+                } else if (!stats.onProbation) {
+                    healthy.add(stats);
+                } else if (trial == null && stats.onTrial.compareAndSet(false, true)) {
+                    // a single request at a time is sent to a host on probation
+                    trial = stats;
+                } else {
+                    ejected.add(stats);
+                } // if else
+            } // synchronized
+        } // for
+        
+        switch (strategy) {
+            case FAILOVER:
+                HostStats first = preferred;
+                
+                if (healthy.remove(first)) {
+                    healthy.add(0, first);
+                } // if
+                
+                break;
+            case LEAST_OUTSTANDING:
+                Collections.sort(healthy, new Comparator<HostStats>() {
+                    
+                    @Override
+                    public int compare(HostStats s1, HostStats s2) {
+                        return s1.outstanding.get() - s2.outstanding.get();
+                    } // compare
+                    
+                });
+                
+                break;
+            case EWMA:
+                // the scores are taken once, since they may change while sorting
+                final HashMap<HostStats, Double> scores = new HashMap<HostStats, Double>();
+                
+                for (HostStats stats : healthy) {
+                    scores.put(stats, stats.getScore());
+                } // for
+                
+                Collections.sort(healthy, new Comparator<HostStats>() {
+                    
+                    @Override
+                    public int compare(HostStats s1, HostStats s2) {
+                        return Double.compare(scores.get(s1), scores.get(s2));
+                    } // compare
+                    
+                });
+                
+                break;
+            default:
+                // round robin, the rotation is already done
+                break;
+        } // switch
+        
+        ArrayList<String> selected = new ArrayList<String>(n);
+        
+        if (trial != null) {
+            selected.add(trial.host);
+        } // if
+        
+        for (HostStats stats : healthy) {
+            selected.add(stats.host);
+        } // for
+        
+        for (HostStats stats : ejected) {
+            selected.add(stats.host);
+        } // for
+        
+        return selected;
+    } // select
+    
+    /**
+     * Notifies a request is going to be sent to the given host.
+     * @param host
+     */
+    public void onStart(String host) {
+        HostStats stats = getStats(host);
+        
+        if (stats != null) {
+            stats.outstanding.incrementAndGet();
+        } // if
+    } // onStart
+    
+    /**
+     * Notifies a request sent to the given host succeeded.
+     * @param host
+     * @param latency Milliseconds the request took
+     */
+    public void onSuccess(String host, long latency) {
+        HostStats stats = getStats(host);
+        
+        if (stats == null) {
+            return;
+        } // if
+        
+        stats.outstanding.decrementAndGet();
+        
+        synchronized (stats) {
+            stats.ewma = stats.ewma < 0 ? latency : (EWMA_WEIGHT * latency) + ((1 - EWMA_WEIGHT) * stats.ewma);
+            stats.consecutiveFailures = 0;
+            
+            if (stats.onProbation || stats.ejectedUntil > 0) {
+                LOGGER.info("The host is healthy again (host=" + host + ")");
+            } // if
+            
+            stats.onProbation = false;
+            stats.ejectedUntil = 0;
+            stats.onTrial.set(false);
+        } // synchronized
+        
+        preferred = stats;
+    } // onSuccess
+    
+    /**
+     * Notifies a request sent to the given host failed.
+     * @param host
+     */
+    public void onFailure(String host) {
+        HostStats stats = getStats(host);
+        
+        if (stats == null) {
+            return;
+        } // if
+        
+        stats.outstanding.decrementAndGet();
+        
+        synchronized (stats) {
+            stats.consecutiveFailures++;
+            
+            if (stats.onProbation || stats.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                stats.ejectedUntil = System.currentTimeMillis() + ejectionTime;
+                stats.onProbation = true;
+                LOGGER.warn("Ejecting the host (host=" + host + ", consecutiveFailures="
+                        + stats.consecutiveFailures + ", ejectionTime=" + ejectionTime + " ms)");
+            } // if
+            
+            stats.onTrial.set(false);
+        } // synchronized
+    } // onFailure
+    
+    /**
+     * Gets if the given host is currently ejected.
+     * @param host
+     * @return True if the host is ejected, otherwise false
+     */
+    public boolean isEjected(String host) {
+        HostStats stats = getStats(host);
+        
+        if (stats == null) {
+            return false;
+        } // if
+        
+        synchronized (stats) {
+            return stats.ejectedUntil > System.currentTimeMillis();
+        } // synchronized
+    } // isEjected
+    
+    /**
+     * Gets the number of requests currently sent to the given host and not yet finished.
+     * @param host
+     * @return The number of outstanding requests
+     */
+    public int getOutstanding(String host) {
+        HostStats stats = getStats(host);
+        return stats == null ? 0 : stats.outstanding.get();
+    } // getOutstanding
+    
+    private HostStats getStats(String host) {
+        for (HostStats stats : hosts) {
+            if (stats.host.equals(host)) {
+                return stats;
+            } // if
+        } // for
+        
+        return null;
+    } // getStats
+    
+} // HostSelector
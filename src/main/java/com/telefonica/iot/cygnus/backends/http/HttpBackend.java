@@ -25,13 +25,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.security.AccessController;
 import java.security.Principal;
-import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.security.auth.Subject;
-import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -41,7 +48,6 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -52,7 +58,8 @@ import org.json.simple.parser.JSONParser;
  */
 public abstract class HttpBackend {
     
-    private final LinkedList<String> hosts;
+    private final String[] hosts;
+    private volatile HostSelector hostSelector;
     private final String port;
     private final boolean ssl;
     private final boolean krb5;
@@ -60,7 +67,14 @@ public abstract class HttpBackend {
     private final String krb5Password;
     private final HttpClientFactory httpClientFactory;
     private HttpClient httpClient;
+    private final KerberosSubjectCache krb5Subjects;
+    private ExecutorService asyncExecutor;
+    private Semaphore asyncWindow;
+    private HashMap<String, Semaphore> hostWindows;
+    private final ArrayList<Future<?>> pending;
     private static final CygnusLogger LOGGER = new CygnusLogger(HttpBackend.class);
+    // the Kerberos subjects are shared by all the backends, since they are per principal
+    private static final KerberosSubjectCache KRB5_SUBJECTS = new KerberosSubjectCache();
     
     /**
      * Constructor.
@@ -75,12 +89,15 @@ public abstract class HttpBackend {
      */
     public HttpBackend(String[] hosts, String port, boolean ssl, boolean krb5, String krb5User, String krb5Password,
             String krb5LoginConfFile, String krb5ConfFile) {
-        this.hosts = new LinkedList(Arrays.asList(hosts));
+        this.hosts = hosts;
+        this.hostSelector = new HostSelector(hosts, HostSelector.Strategy.FAILOVER);
         this.port = port;
         this.ssl = ssl;
         this.krb5 = krb5;
         this.krb5User = krb5User;
         this.krb5Password = krb5Password;
+        this.krb5Subjects = KRB5_SUBJECTS;
+        this.pending = new ArrayList<Future<?>>();
         
         // create a Http clients factory and an initial connection
         httpClientFactory = new HttpClientFactory(ssl, krb5LoginConfFile, krb5ConfFile);
@@ -95,9 +112,208 @@ public abstract class HttpBackend {
         this.httpClient = httpClient;
     } // setHttpClient
     
+    /**
+     * Sets the strategy used for selecting the host each request is sent to. The health of the hosts is tracked
+     * from scratch.
+     * @param strategy
+     */
+    public void setHostSelection(HostSelector.Strategy strategy) {
+        this.hostSelector = new HostSelector(hosts, strategy);
+    } // setHostSelection
+    
+    /**
+     * Gets the host selector. It is protected due to it is only required for testing purposes.
+     * @return The host selector
+     */
+    protected HostSelector getHostSelector() {
+        return hostSelector;
+    } // getHostSelector
+    
+    /**
+     * Enables the asynchronous requests. From here on, the tasks given to submit() are run in the background, at most
+     * maxInFlightPerHost requests being in flight per host at the same time.
+     * @param maxInFlightPerHost
+     */
+    public void enableAsync(int maxInFlightPerHost) {
+        HashMap<String, Semaphore> windows = new HashMap<String, Semaphore>();
+        
+        for (String host : hosts) {
+            windows.put(host, new Semaphore(maxInFlightPerHost, true));
+        } // for
+        
+        // as many threads as permits, thus a submitted task never waits for a thread
+        int maxInFlight = maxInFlightPerHost * hosts.length;
+        hostWindows = windows;
+        asyncWindow = new Semaphore(maxInFlight, true);
+        asyncExecutor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "http-backend-async");
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+            
+        });
+    } // enableAsync
+    
+    /**
+     * Gets if the asynchronous requests are enabled.
+     * @return True if the asynchronous requests are enabled, otherwise false
+     */
+    public boolean isAsync() {
+        return asyncExecutor != null;
+    } // isAsync
+    
+    /**
+     * Submits a task doing requests. If the asynchronous requests are enabled, the task is run in the background
+     * once there is room in the in-flight window, blocking the caller until then; otherwise, it is run by the caller.
+     * In both cases, the task is completed (and any error is thrown) by await().
+     * @param task
+     * @return The future result of the task
+     * @throws Exception
+     */
+    protected <T> Future<T> submit(final Callable<T> task) throws Exception {
+        if (asyncExecutor == null) {
+            T result = task.call();
+            return new CompletedFuture<T>(result);
+        } // if
+        
+        asyncWindow.acquire();
+        Future<T> future;
+        
+        try {
+            future = asyncExecutor.submit(new Callable<T>() {
+                
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return task.call();
+                    } finally {
+                        asyncWindow.release();
+                    } // try finally
+                } // call
+                
+            });
+        } catch (RuntimeException e) {
+            asyncWindow.release();
+            throw e;
+        } // try catch
+        
+        synchronized (pending) {
+            pending.add(future);
+        } // synchronized
+        
+        return future;
+    } // submit
+    
+    /**
+     * Waits for all the tasks submitted so far. All of them are waited for, even if some of them fail; then, the
+     * first persistence error is thrown if any, otherwise the error of the first failed task. The rest of errors are
+     * logged.
+     * @throws Exception
+     */
+    public void await() throws Exception {
+        ArrayList<Future<?>> futures;
+        
+        synchronized (pending) {
+            futures = new ArrayList<Future<?>>(pending);
+            pending.clear();
+        } // synchronized
+        
+        Exception error = null;
+        
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : new CygnusRuntimeError(e.getCause().getMessage());
+                
+                // a persistence error must not be hidden by a non persistence one, otherwise the data would not be
+                // retried
+                if (error == null || (cause instanceof CygnusPersistenceError
+                        && !(error instanceof CygnusPersistenceError))) {
+                    if (error != null) {
+                        LOGGER.error("Asynchronous task failed (details=" + error.getMessage() + ")");
+                    } // if
+                    
+                    error = cause;
+                } else {
+                    LOGGER.error("Asynchronous task failed (details=" + cause.getMessage() + ")");
+                } // if else
+            } // try catch
+        } // for
+        
+        if (error != null) {
+            throw error;
+        } // if
+    } // await
+    
+    /**
+     * Closes the backend, stopping the background threads, if any. The tasks not yet awaited are not completed.
+     * @throws Exception
+     */
+    public void close() throws Exception {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+        } // if
+    } // close
+    
+    /**
+     * Future of a task already run by the caller.
+     */
+    private static class CompletedFuture<T> implements Future<T> {
+        
+        private final T result;
+        
+        /**
+         * Constructor.
+         * @param result
+         */
+        CompletedFuture(T result) {
+            this.result = result;
+        } // CompletedFuture
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        } // cancel
+        
+        @Override
+        public boolean isCancelled() {
+            return false;
+        } // isCancelled
+        
+        @Override
+        public boolean isDone() {
+            return true;
+        } // isDone
+        
+        @Override
+        public T get() {
+            return result;
+        } // get
+        
+        @Override
+        public T get(long timeout, TimeUnit unit) {
+            return result;
+        } // get
+        
+    } // CompletedFuture
+    
+    /**
+     * Gets the number of Kerberos logins performed so far by all the backends.
+     * @return The number of Kerberos logins performed so far
+     */
+    public static long getNumKrb5Logins() {
+        return KRB5_SUBJECTS.getNumLogins();
+    } // getNumKrb5Logins
+    
     /**
      * Does a Http request given a method, a relative URL (the final URL will be composed by using this relative URL
-     * and the active Http endpoint), a list of headers and the payload.
+     * and the active Http endpoint), a list of headers and the payload. The request is sent to another endpoint only
+     * if the endpoint cannot be connected or it answers with a 5xx status.
      * @param method
      * @param url
      * @param relative
@@ -107,18 +323,30 @@ public abstract class HttpBackend {
      * @throws Exception
      */
     public JsonResponse doRequest(String method, String url, boolean relative, ArrayList<Header> headers,
-            StringEntity entity) throws Exception {
+            HttpEntity entity) throws Exception {
         // default httpRes
         JSONParser jsonParser = new JSONParser();
         JSONObject jsonObject = (JSONObject) jsonParser.parse("{}");
         JsonResponse response = new JsonResponse(null, 503, "Service unavailable", null);
         
         if (relative) {
-            // iterate on the hosts
-            for (String host : hosts) {
+            // iterate on the hosts, in the order given by the host selection strategy
+            HostSelector selector = hostSelector;
+            
+            for (String host : selector.select()) {
                 // create the HttpFS URL
                 String effectiveURL = (ssl ? "https://" : "http://") + host + ":" + port + url;
                 
+                // at most maxInFlightPerHost requests are sent to the same host at the same time
+                Semaphore hostWindow = hostWindows == null ? null : hostWindows.get(host);
+                
+                if (hostWindow != null) {
+                    hostWindow.acquire();
+                } // if
+                
+                selector.onStart(host);
+                long start = System.currentTimeMillis();
+                
                 try {
                     if (krb5) {
                         response = doPrivilegedRequest(method, effectiveURL, headers, entity);
@@ -126,26 +354,29 @@ public abstract class HttpBackend {
                         response = doRequest(method, effectiveURL, headers, entity);
                     } // if else
                 } catch (Exception e) {
+                    selector.onFailure(host);
                     LOGGER.debug("There was a problem when performing the request (details=" + e.getMessage() + "). "
                             + "Most probably the used Http endpoint is not active, trying another one (host="
                             + host + ")");
                     continue;
-                } // try catch // try catch
+                } finally {
+                    if (hostWindow != null) {
+                        hostWindow.release();
+                    } // if
+                } // try catch finally
                 
                 int status = response.getStatusCode();
 
-                if (status != 200 && status != 307 && status != 404 && status != 201) {
-                    LOGGER.debug("The used Http endpoint is not active, trying another one (host=" + host + ")");
+                // a 4xx status is an answer about the request, not about the host, thus it is returned as it is; any
+                // other host would answer the same
+                if (status >= 500) {
+                    selector.onFailure(host);
+                    LOGGER.debug("The used Http endpoint is not active, trying another one (host=" + host
+                            + ", status=" + status + ")");
                     continue;
                 } // if
                 
-                // place the current host in the first place (if not yet placed), since it is currently working
-                if (!hosts.getFirst().equals(host)) {
-                    hosts.remove(host);
-                    hosts.add(0, host);
-                    LOGGER.debug("Placing the host in the first place of the list (host=" + host + ")");
-                } // if
-                
+                selector.onSuccess(host, System.currentTimeMillis() - start);
                 break;
             } // for
         } else {
@@ -159,7 +390,7 @@ public abstract class HttpBackend {
         return response;
     } // doRequest
         
-    private JsonResponse doRequest(String method, String url, ArrayList<Header> headers, StringEntity entity)
+    private JsonResponse doRequest(String method, String url, ArrayList<Header> headers, HttpEntity entity)
         throws Exception {
         HttpResponse httpRes = null;
         HttpRequestBase request = null;
@@ -208,29 +439,44 @@ public abstract class HttpBackend {
     // from here on, consider this link:
     // http://stackoverflow.com/questions/21629132/httpclient-set-credentials-for-kerberos-authentication
     private JsonResponse doPrivilegedRequest(String method, String url, ArrayList<Header> headers,
-            StringEntity entity) throws Exception {
+            HttpEntity entity) throws Exception {
+        Subject subject;
+        
         try {
-            LoginContext loginContext = new LoginContext("cygnus_krb5_login",
-                    new KerberosCallbackHandler(krb5User, krb5Password));
-            loginContext.login();
-            PrivilegedRequest req = new PrivilegedRequest(method, url, headers, entity);
-            return createJsonResponse((HttpResponse) Subject.doAs(loginContext.getSubject(), req));
+            // the authenticated subject is cached, a login is only performed if not existing or about to expire
+            subject = krb5Subjects.getSubject(krb5User, krb5Password);
         } catch (LoginException e) {
             LOGGER.error(e.getMessage());
-            return null;
-        } // try catch // try catch
+            throw new CygnusPersistenceError("Kerberos login failed (user=" + krb5User + ", details="
+                    + e.getMessage() + ")");
+        } // try catch
+        
+        JsonResponse response;
+        
+        try {
+            response = (JsonResponse) Subject.doAs(subject, new PrivilegedRequest(method, url, headers, entity));
+        } catch (PrivilegedActionException e) {
+            throw e.getException();
+        } // try catch
+        
+        // a rejected subject is not used anymore
+        if (response.getStatusCode() == 401) {
+            krb5Subjects.invalidate(krb5User);
+        } // if
+        
+        return response;
     } // doPrivilegedRequest
     
     /**
      * PrivilegedRequest class.
      */
-    private class PrivilegedRequest implements PrivilegedAction {
+    private class PrivilegedRequest implements PrivilegedExceptionAction {
         
         private final Logger logger;
         private final String method;
         private final String url;
         private final ArrayList<Header> headers;
-        private final StringEntity entity;
+        private final HttpEntity entity;
                
         /**
          * Constructor.
@@ -239,7 +485,7 @@ public abstract class HttpBackend {
          * @param headers
          * @param entity
          */
-        public PrivilegedRequest(String method, String url, ArrayList<Header> headers, StringEntity entity) {
+        public PrivilegedRequest(String method, String url, ArrayList<Header> headers, HttpEntity entity) {
             this.logger = Logger.getLogger(PrivilegedRequest.class);
             this.method = method;
             this.url = url;
@@ -248,20 +494,15 @@ public abstract class HttpBackend {
         } // PrivilegedRequest
 
         @Override
-        public Object run() {
-            try {
-                Subject current = Subject.getSubject(AccessController.getContext());
-                Set<Principal> principals = current.getPrincipals();
-                
-                for (Principal next : principals) {
-                    logger.info("DOAS Principal: " + next.getName());
-                } // for
+        public Object run() throws Exception {
+            Subject current = Subject.getSubject(AccessController.getContext());
+            Set<Principal> principals = current.getPrincipals();
 
-                return doRequest(method, url, headers, entity);
-            } catch (Exception e) {
-                logger.error(e.getMessage());
-                return null;
-            } // try catch
+            for (Principal next : principals) {
+                logger.debug("DOAS Principal: " + next.getName());
+            } // for
+
+            return doRequest(method, url, headers, entity);
         } // run
         
     } // PrivilegedRequest
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.http;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+/**
+ *
+ * @author frb
+ * 
+ * Cache of Kerberos authenticated subjects, one per principal (i.e. per user and realm). A subject is reused until
+ * its ticket granting ticket reaches the renewal point of its lifetime; then, a new login is proactively performed.
+ */
+class KerberosSubjectCache {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(KerberosSubjectCache.class);
+    private static final double RENEWAL_POINT = 0.8; // fraction of the ticket lifetime after which it is renewed
+    private final ConcurrentHashMap<String, CachedSubject> subjects;
+    private final AtomicLong numLogins;
+    
+    /**
+     * Constructor.
+     */
+    KerberosSubjectCache() {
+        subjects = new ConcurrentHashMap<String, CachedSubject>();
+        numLogins = new AtomicLong(0);
+    } // KerberosSubjectCache
+    
+    /**
+     * A cached subject, together with the time it must be renewed.
+     */
+    private static class CachedSubject {
+        
+        private Subject subject;
+        private long renewAt;
+        
+    } // CachedSubject
+    
+    /**
+     * Gets an authenticated subject for the given user, logging in only if there is no cached subject or the cached
+     * one must be renewed.
+     * @param user Principal, i.e. user and realm
+     * @param password
+     * @return An authenticated subject
+     * @throws LoginException
+     */
+    Subject getSubject(String user, String password) throws LoginException {
+        CachedSubject cached = subjects.get(user);
+        
+        if (cached == null) {
+            subjects.putIfAbsent(user, new CachedSubject());
+            cached = subjects.get(user);
+        } // if
+        
+        // only a thread logs in at a time for the same user, the others wait for its subject
+        synchronized (cached) {
+            if (cached.subject == null || System.currentTimeMillis() >= cached.renewAt) {
+                cached.subject = login(user, password);
+                cached.renewAt = getRenewalTime(cached.subject);
+                LOGGER.info("Kerberos login performed (user=" + user + ", logins=" + numLogins.incrementAndGet()
+                        + ")");
+            } // if
+            
+            return cached.subject;
+        } // synchronized
+    } // getSubject
+    
+    /**
+     * Invalidates the cached subject of the given user, e.g. because it was rejected, thus the next time a subject
+     * is requested a new login will be performed.
+     * @param user
+     */
+    void invalidate(String user) {
+        CachedSubject cached = subjects.get(user);
+        
+        if (cached != null) {
+            synchronized (cached) {
+                cached.subject = null;
+            } // synchronized
+        } // if
+    } // invalidate
+    
+    /**
+     * Gets the number of Kerberos logins performed so far.
+     * @return The number of Kerberos logins performed so far
+     */
+    long getNumLogins() {
+        return numLogins.get();
+    } // getNumLogins
+    
+    /**
+     * Logs in against the KDC. It is protected since it is overridden by the tests.
+     * @param user
+     * @param password
+     * @return The authenticated subject
+     * @throws LoginException
+     */
+    protected Subject login(String user, String password) throws LoginException {
+        LoginContext loginContext = new LoginContext("cygnus_krb5_login",
+                new KerberosCallbackHandler(user, password));
+        loginContext.login();
+        return loginContext.getSubject();
+    } // login
+    
+    /**
+     * Gets the time a subject must be renewed, given the lifetime of its ticket granting ticket. If no such a ticket
+     * is found, the subject is renewed at the next request.
+     * @param subject
+     * @return The time the subject must be renewed
+     */
+    private long getRenewalTime(Subject subject) {
+        Set<KerberosTicket> tickets = subject.getPrivateCredentials(KerberosTicket.class);
+        
+        for (KerberosTicket ticket : tickets) {
+            if (ticket.getServer().getName().startsWith("krbtgt/")) {
+                long start = (ticket.getStartTime() == null ? ticket.getAuthTime() : ticket.getStartTime()).getTime();
+                long end = ticket.getEndTime().getTime();
+                return start + (long) ((end - start) * RENEWAL_POINT);
+            } // if
+        } // for
+        
+        LOGGER.warn("No ticket granting ticket found for the Kerberos subject, it will not be cached");
+        return 0;
+    } // getRenewalTime
+    
+} // KerberosSubjectCache
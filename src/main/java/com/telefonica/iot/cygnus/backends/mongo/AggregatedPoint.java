@@ -0,0 +1,173 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.backends.mongo;
+
+import com.telefonica.iot.cygnus.backends.mongo.MongoBackend.Resolution;
+
+/**
+ * Aggregated measures to be added to a single point (i.e. an offset within an origin, for a given resolution) of an
+ * aggregated document. Points regarding the same offset can be merged before being sent to MongoDB.
+ * 
+ * @author frb
+ */
+public class AggregatedPoint {
+    
+    private final String entityId;
+    private final String entityType;
+    private final String attrName;
+    private String attrType;
+    private final Resolution resolution;
+    private final long origin;
+    private final int offset;
+    private int samples;
+    private double sum;
+    private double sum2;
+    private double min;
+    private double max;
+    
+    /**
+     * Constructor.
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param resolution
+     * @param origin In seconds since the epoch
+     * @param offset
+     * @param samples
+     * @param sum
+     * @param sum2
+     * @param min
+     * @param max
+     */
+    public AggregatedPoint(String entityId, String entityType, String attrName, String attrType,
+            Resolution resolution, long origin, int offset, int samples, double sum, double sum2, double min,
+            double max) {
+        this.entityId = entityId;
+        this.entityType = entityType;
+        this.attrName = attrName;
+        this.attrType = attrType;
+        this.resolution = resolution;
+        this.origin = origin;
+        this.offset = offset;
+        this.samples = samples;
+        this.sum = sum;
+        this.sum2 = sum2;
+        this.min = min;
+        this.max = max;
+    } // AggregatedPoint
+    
+    /**
+     * Constructor for a single sample.
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param resolution
+     * @param origin In seconds since the epoch
+     * @param offset
+     * @param value
+     */
+    public AggregatedPoint(String entityId, String entityType, String attrName, String attrType,
+            Resolution resolution, long origin, int offset, double value) {
+        this(entityId, entityType, attrName, attrType, resolution, origin, offset, 1, value, value * value, value,
+                value);
+    } // AggregatedPoint
+    
+    /**
+     * Merges another point regarding the same offset into this one.
+     * @param point
+     */
+    public void merge(AggregatedPoint point) {
+        attrType = point.attrType; // the last type wins, as it happens when updating the points one by one
+        samples += point.samples;
+        sum += point.sum;
+        sum2 += point.sum2;
+        min = Math.min(min, point.min);
+        max = Math.max(max, point.max);
+    } // merge
+    
+    /**
+     * Gets a key identifying the offset this point regards to, within a collection.
+     * @return
+     */
+    public String getKey() {
+        return getDocumentKey() + "|" + offset;
+    } // getKey
+    
+    /**
+     * Gets a key identifying the aggregated document this point regards to, within a collection.
+     * @return
+     */
+    public String getDocumentKey() {
+        return resolution.ordinal() + "|" + origin + "|" + entityId + "|" + entityType + "|" + attrName;
+    } // getDocumentKey
+    
+    public String getEntityId() {
+        return entityId;
+    } // getEntityId
+    
+    public String getEntityType() {
+        return entityType;
+    } // getEntityType
+    
+    public String getAttrName() {
+        return attrName;
+    } // getAttrName
+    
+    public String getAttrType() {
+        return attrType;
+    } // getAttrType
+    
+    public Resolution getResolution() {
+        return resolution;
+    } // getResolution
+    
+    /**
+     * Gets the origin, in seconds since the epoch.
+     * @return
+     */
+    public long getOrigin() {
+        return origin;
+    } // getOrigin
+    
+    public int getOffset() {
+        return offset;
+    } // getOffset
+    
+    public int getSamples() {
+        return samples;
+    } // getSamples
+    
+    public double getSum() {
+        return sum;
+    } // getSum
+    
+    public double getSum2() {
+        return sum2;
+    } // getSum2
+    
+    public double getMin() {
+        return min;
+    } // getMin
+    
+    public double getMax() {
+        return max;
+    } // getMax
+    
+} // AggregatedPoint
@@ -19,25 +19,38 @@ package com.telefonica.iot.cygnus.backends.mongo;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
 import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.UpdateResult;
 import com.telefonica.iot.cygnus.backends.mysql.MySQLBackend;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.sinks.OrionMongoBaseSink;
 import com.telefonica.iot.cygnus.sinks.OrionMongoBaseSink.DataModel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.bson.Document;
 
 /**
@@ -51,12 +64,44 @@ public class MongoBackend {
      */
     public enum Resolution { SECOND, MINUTE, HOUR, DAY, MONTH }
     
+    /**
+     * Available layouts for the points within the aggregated documents. ARRAY is the layout expected by the STH
+     * component, i.e. an array of prepopulated points; KEYED is a sub-document per offset, keyed by the offset itself,
+     * which does not need to be prepopulated.
+     */
+    public enum PointsLayout { ARRAY, KEYED }
+    
     private MongoClient client;
     private final String mongoHosts;
     private final String mongoUsername;
     private final String mongoPassword;
     private final DataModel dataModel;
+    private final long maxBatchBytes;
+    private final int maxInsertRetries;
+    private final PointsLayout pointsLayout;
+    private final Map<String, Boolean> prepopulated; // aggregated documents known to be prepopulated
+    private final Set<String> knownCollections; // collections known to exist, as "<database>.<collection>"
+    private final Set<String> listedDbs; // databases whose collections have already been listed
+    private final Set<String> registeredHashes; // hashes already stored, as "<database>.<hash>[.aggr]"
     private static final CygnusLogger LOGGER = new CygnusLogger(MySQLBackend.class);
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final long INSERT_RETRY_BACKOFF = 100; // milliseconds before the first retry, doubled per retry
+    private static final int DOC_OVERHEAD_BYTES = 5;
+    private static final int FIELD_OVERHEAD_BYTES = 8;
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final long DAYS_PER_ERA = 146097; // 400 years
+    private static final long DAYS_0000_03_01_TO_EPOCH = 719468;
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+    private static final String[] RESOLUTION_NAMES = new String[RESOLUTIONS.length];
+    // prepopulated points per resolution; they are shared by all the prepopulations, thus they must not be modified
+    private static final BasicDBList[] PREPOPULATED_POINTS = new BasicDBList[RESOLUTIONS.length];
+    
+    static {
+        for (Resolution resolution : RESOLUTIONS) {
+            RESOLUTION_NAMES[resolution.ordinal()] = resolution.toString().toLowerCase();
+            PREPOPULATED_POINTS[resolution.ordinal()] = buildPrepopulatedPoints(resolution);
+        } // for
+    } // static
             
     /**
      * Constructor.
@@ -67,13 +112,53 @@ public class MongoBackend {
      */
     public MongoBackend(String mongoHosts, String mongoUsername, String mongoPassword,
             DataModel dataModel) {
+        this(mongoHosts, mongoUsername, mongoPassword, dataModel, 8388608, 3, PointsLayout.ARRAY, 10000);
+    } // MongoBackend
+    
+    /**
+     * Constructor.
+     * @param mongoHosts
+     * @param mongoUsername
+     * @param mongoPassword
+     * @param dataModel
+     * @param maxBatchBytes Maximum estimated size in bytes of the documents sent within a single insertMany
+     * @param maxInsertRetries Maximum number of times the documents failing within an insertMany are retried
+     * @param pointsLayout Layout of the points within the aggregated documents
+     * @param prepopulateCacheSize Maximum number of aggregated documents remembered as already prepopulated, 0 for
+     * always prepopulating
+     */
+    public MongoBackend(String mongoHosts, String mongoUsername, String mongoPassword,
+            DataModel dataModel, long maxBatchBytes, int maxInsertRetries, PointsLayout pointsLayout,
+            final int prepopulateCacheSize) {
         client = null;
         this.mongoHosts = mongoHosts;
         this.mongoUsername = mongoUsername;
         this.mongoPassword = mongoPassword;
         this.dataModel = dataModel;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxInsertRetries = maxInsertRetries;
+        this.pointsLayout = pointsLayout;
+        this.knownCollections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.listedDbs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.registeredHashes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.prepopulated = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > prepopulateCacheSize;
+            } // removeEldestEntry
+            
+        });
     } // MongoBackend
     
+    /**
+     * Sets the Mongo client. It is protected due to it is only required for testing purposes.
+     * @param client
+     */
+    protected void setClient(MongoClient client) {
+        this.client = client;
+    } // setClient
+    
     /**
      * Creates a database, given its name, if not exists.
      * @param dbName
@@ -85,12 +170,17 @@ public class MongoBackend {
     } // createDatabase
     
     /**
-     * Creates a collection, given its name, if not exists in the given database.
+     * Creates a collection, given its name, if not exists in the given database. Creation is only tried once per
+     * collection; the collections already existing in the database are listed the first time the database is used.
      * @param dbName
      * @param collectionName
      * @throws Exception
      */
     public void createCollection(String dbName, String collectionName) throws Exception {
+        if (isKnownCollection(dbName, collectionName)) {
+            return;
+        } // if
+        
         LOGGER.debug("Creating Mongo collection=" + collectionName + " at database=" + dbName);
         MongoDatabase db = getDatabase(dbName);
 
@@ -103,8 +193,73 @@ public class MongoBackend {
                 throw e;
             } // if else
         } // try catch
+        
+        knownCollections.add(dbName + "." + collectionName);
     } // createCollection
     
+    /**
+     * Warms up the cache of collections known to exist by listing the collections of all the databases whose name
+     * starts with the given prefix.
+     * @param dbPrefix
+     * @throws Exception
+     */
+    public void warmUpCollectionsCache(String dbPrefix) throws Exception {
+        // any database is valid in order to create the client
+        getDatabase("admin");
+        
+        for (String dbName : client.listDatabaseNames()) {
+            if (dbName.startsWith(dbPrefix)) {
+                listCollections(dbName);
+            } // if
+        } // for
+        
+        LOGGER.info("Mongo collections cache warmed up (databases=" + listedDbs.size() + ", collections="
+                + knownCollections.size() + ")");
+    } // warmUpCollectionsCache
+    
+    /**
+     * Gets if a collection is known to exist in the given database. If the database collections were not listed
+     * yet, they are listed now.
+     * @param dbName
+     * @param collectionName
+     * @return
+     */
+    protected boolean isKnownCollection(String dbName, String collectionName) {
+        String key = dbName + "." + collectionName;
+        
+        if (knownCollections.contains(key)) {
+            return true;
+        } // if
+        
+        if (listedDbs.contains(dbName)) {
+            return false;
+        } // if
+        
+        try {
+            listCollections(dbName);
+        } catch (Exception e) {
+            LOGGER.debug("The collections of database=" + dbName + " could not be listed. Details="
+                    + e.getMessage());
+            return false;
+        } // try catch
+        
+        return knownCollections.contains(key);
+    } // isKnownCollection
+    
+    /**
+     * Lists the collections of the given database, adding them to the cache of collections known to exist.
+     * @param dbName
+     */
+    private void listCollections(String dbName) {
+        LOGGER.debug("Listing Mongo collections at database=" + dbName);
+        
+        for (String collectionName : getDatabase(dbName).listCollectionNames()) {
+            knownCollections.add(dbName + "." + collectionName);
+        } // for
+        
+        listedDbs.add(dbName);
+    } // listCollections
+    
     /**
      * Inserts a new document in the given raw collection within the given database (row-like mode).
      * @param dbName
@@ -122,8 +277,132 @@ public class MongoBackend {
     public void insertContextDataRaw(String dbName, String collectionName, long recvTimeTs, String recvTime,
             String entityId, String entityType, String attrName, String attrType, String attrValue, String attrMd)
         throws Exception {
+        ArrayList<Document> docs = new ArrayList<Document>();
+        docs.add(createRawDocument(dataModel, recvTimeTs, entityId, entityType, attrName, attrType, attrValue));
+        insertContextDataRaw(dbName, collectionName, docs);
+    } // insertContextDataRaw
+    
+    /**
+     * Inserts a list of documents in the given raw collection within the given database (row-like mode). The
+     * documents are sent by means of unordered insertMany operations, each one of them not exceeding (in estimated
+     * size) the configured maximum batch bytes. Only the documents rejected by the server are retried.
+     * @param dbName
+     * @param collectionName
+     * @param docs
+     * @throws Exception
+     */
+    public void insertContextDataRaw(String dbName, String collectionName, List<Document> docs) throws Exception {
+        if (docs.isEmpty()) {
+            return;
+        } // if
+        
         MongoDatabase db = getDatabase(dbName);
-        MongoCollection collection = db.getCollection(collectionName);
+        MongoCollection<Document> collection = db.getCollection(collectionName);
+        ArrayList<Document> chunk = new ArrayList<Document>();
+        long chunkBytes = 0;
+        
+        for (Document doc : docs) {
+            long docBytes = estimateSize(doc);
+            
+            if (!chunk.isEmpty() && chunkBytes + docBytes > maxBatchBytes) {
+                insertMany(dbName, collectionName, collection, chunk);
+                chunk = new ArrayList<Document>();
+                chunkBytes = 0;
+            } // if
+            
+            chunk.add(doc);
+            chunkBytes += docBytes;
+        } // for
+        
+        insertMany(dbName, collectionName, collection, chunk);
+    } // insertContextDataRaw
+    
+    /**
+     * Inserts a chunk of documents by means of an unordered insertMany. The documents failing are retried up to the
+     * configured maximum number of retries, waiting an exponentially increasing time between retries; those documents
+     * failing with a duplicate key error were already inserted by a previous try, thus they are not retried. If the
+     * write concern could not be satisfied, all the documents are retried, since the duplicate key errors protect
+     * the already inserted ones. Documents still failing after the last retry make the insertion fail.
+     * @param dbName
+     * @param collectionName
+     * @param collection
+     * @param chunk
+     * @throws Exception
+     */
+    private void insertMany(String dbName, String collectionName, MongoCollection<Document> collection,
+            List<Document> chunk) throws Exception {
+        List<Document> pending = chunk;
+        int retries = 0;
+        
+        while (!pending.isEmpty()) {
+            LOGGER.debug("Inserting " + pending.size() + " documents within collection=" + collectionName
+                    + " at database=" + dbName);
+            
+            try {
+                collection.insertMany(pending, new InsertManyOptions().ordered(false));
+                return;
+            } catch (MongoBulkWriteException e) {
+                ArrayList<Document> failed = new ArrayList<Document>();
+                HashSet<Integer> duplicated = new HashSet<Integer>();
+                String lastError = null;
+                
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() == DUPLICATE_KEY_ERROR) {
+                        duplicated.add(error.getIndex());
+                        continue;
+                    } // if
+                    
+                    failed.add(pending.get(error.getIndex()));
+                    lastError = error.getMessage();
+                } // for
+                
+                if (e.getWriteConcernError() != null) {
+                    // the documents not reported as failed may not be durably inserted, thus all of them are retried
+                    failed.clear();
+                    
+                    for (int i = 0; i < pending.size(); i++) {
+                        if (!duplicated.contains(i)) {
+                            failed.add(pending.get(i));
+                        } // if
+                    } // for
+                    
+                    lastError = e.getWriteConcernError().getMessage();
+                } // if
+                
+                if (failed.isEmpty()) {
+                    return;
+                } // if
+                
+                if (retries == maxInsertRetries) {
+                    throw new CygnusPersistenceError(failed.size() + " documents not inserted within collection="
+                            + collectionName + " at database=" + dbName + " after " + retries + " retries (last "
+                            + "error: " + lastError + ")");
+                } // if
+                
+                pending = failed;
+                Thread.sleep(INSERT_RETRY_BACKOFF << retries);
+                retries++;
+            } catch (MongoSocketException e) {
+                throw new CygnusPersistenceError(e.getMessage());
+            } catch (MongoTimeoutException e) {
+                throw new CygnusPersistenceError(e.getMessage());
+            } // try catch
+        } // while
+    } // insertMany
+    
+    /**
+     * Creates a raw document to be inserted in a raw collection (row-like mode), depending on the data model.
+     * @param dataModel
+     * @param recvTimeTs
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param attrValue
+     * @return
+     */
+    public static Document createRawDocument(DataModel dataModel, long recvTimeTs, String entityId,
+            String entityType, String attrName, String attrType, String attrValue) {
         Document doc = new Document("recvTime", new Date(recvTimeTs * 1000));
         
         switch (dataModel) {
@@ -146,10 +425,27 @@ public class MongoBackend {
             default:
                 // this will never be reached
         } // switch
-
-        LOGGER.debug("Inserting data=" + doc.toString() + " within collection=" + collectionName);
-        collection.insertOne(doc);
-    } // insertContextDataRaw
+        
+        return doc;
+    } // createRawDocument
+    
+    /**
+     * Estimates the BSON size of a raw document. Raw documents only contain strings and dates, thus the estimation
+     * is based on the length of the field names and the string representation of the values.
+     * @param doc
+     * @return
+     */
+    private static long estimateSize(Document doc) {
+        long size = DOC_OVERHEAD_BYTES;
+        
+        for (Map.Entry<String, Object> field : doc.entrySet()) {
+            Object value = field.getValue();
+            size += FIELD_OVERHEAD_BYTES + field.getKey().length()
+                    + (value instanceof String ? ((String) value).length() : FIELD_OVERHEAD_BYTES);
+        } // for
+        
+        return size;
+    } // estimateSize
     
     /**
      * Inserts a new document in the given aggregated collection within the given database (row-like mode).
@@ -168,147 +464,385 @@ public class MongoBackend {
     public void insertContextDataAggregated(String dbName, String collectionName, long recvTimeTs, String recvTime,
             String entityId, String entityType, String attrName, String attrType, String attrValue, String attrMd)
         throws Exception {
-        // preprocess some values
-        double value = new Double(attrValue);
-        GregorianCalendar calendar = new GregorianCalendar();
-        calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
-        calendar.setTimeInMillis(recvTimeTs * 1000);
-        
-        // insert the data in an aggregated fashion for each resolution type
-        insertContextDataAggregatedForResoultion(dbName, collectionName, calendar, entityId, entityType,
-                attrName, attrType, value, Resolution.SECOND);
-        insertContextDataAggregatedForResoultion(dbName, collectionName, calendar, entityId, entityType,
-                attrName, attrType, value, Resolution.MINUTE);
-        insertContextDataAggregatedForResoultion(dbName, collectionName, calendar, entityId, entityType,
-                attrName, attrType, value, Resolution.HOUR);
-        insertContextDataAggregatedForResoultion(dbName, collectionName, calendar, entityId, entityType,
-                attrName, attrType, value, Resolution.DAY);
-        insertContextDataAggregatedForResoultion(dbName, collectionName, calendar, entityId, entityType,
-                attrName, attrType, value, Resolution.MONTH);
+        insertContextDataAggregated(dbName, collectionName, createAggregatedPoints(recvTimeTs, entityId, entityType,
+                attrName, attrType, new Double(attrValue)));
     } // insertContextDataAggregated
-        
+    
     /**
-     * Inserts a new document with given resolution in the given aggregated collection within the given database
-     * (row-like mode).
+     * Inserts a list of aggregated points in the given aggregated collection within the given database (row-like
+     * mode). All the points are sent within a single bulk write, whose content depends on the points layout. Since the
+     * updates are increments, they must not be applied twice: a persistence error is thrown only if none of the
+     * updates was applied, thus all of them can be retried; if only some of them were applied, the rest are lost and
+     * a non persistence error is thrown.
      * @param dbName
      * @param collectionName
-     * @param recvTimeTs
-     * @param entityId
-     * @param entityType
-     * @param attrName
-     * @param attrType
-     * @param attrValue
-     * @param resolution
+     * @param points
+     * @throws Exception
      */
-    private void insertContextDataAggregatedForResoultion(String dbName, String collectionName, GregorianCalendar calendar,
-            String entityId, String entityType, String attrName, String attrType, double attrValue,
-            Resolution resolution) {
+    public void insertContextDataAggregated(String dbName, String collectionName, List<AggregatedPoint> points)
+        throws Exception {
+        if (points.isEmpty()) {
+            return;
+        } // if
+        
         // get database and collection
         MongoDatabase db = getDatabase(dbName);
-        MongoCollection collection = db.getCollection(collectionName);
+        MongoCollection<Document> collection = db.getCollection(collectionName);
         
-        // build the query
-        BasicDBObject query = buildQueryForInsertAggregated(calendar, entityId, entityType, attrName, resolution);
+        try {
+            if (pointsLayout == PointsLayout.KEYED) {
+                insertContextDataAggregatedKeyed(dbName, collectionName, collection, points);
+            } else {
+                insertContextDataAggregatedArray(dbName, collectionName, collection, points);
+            } // if else
+        } catch (MongoSocketException e) {
+            throw new CygnusPersistenceError(e.getMessage());
+        } catch (MongoTimeoutException e) {
+            throw new CygnusPersistenceError(e.getMessage());
+        } // try catch
+    } // insertContextDataAggregated
+    
+    /**
+     * Inserts a list of aggregated points, array layout. The bulk write contains the upserts prepopulating the
+     * aggregated documents not known to be already prepopulated (just one per document), followed by the updates of
+     * the points themselves. The bulk write is ordered since an update must not be applied before the prepopulation
+     * of its document. If a request fails, the previous ones were applied, thus only the failed request and the
+     * following ones are retried, up to the configured maximum number of retries.
+     * @param dbName
+     * @param collectionName
+     * @param collection
+     * @param points
+     * @throws Exception
+     */
+    private void insertContextDataAggregatedArray(String dbName, String collectionName,
+            MongoCollection<Document> collection, List<AggregatedPoint> points) throws Exception {
+        // build the prepopulations (one per aggregated document not known to be prepopulated) and the updates
+        LinkedHashMap<String, WriteModel<Document>> prepopulations = new LinkedHashMap<String, WriteModel<Document>>();
+        HashSet<String> docKeys = new HashSet<String>();
+        ArrayList<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
         
-        // prepopulate if needed
-        BasicDBObject insert = buildInsertForPrepopulate(attrType, resolution);
-        UpdateResult res = collection.updateOne(query, insert, new UpdateOptions().upsert(true));
+        for (AggregatedPoint point : points) {
+            BasicDBObject query = new BasicDBObject("_id", buildIdForInsertAggregated(point))
+                    .append("points.offset", point.getOffset());
+            String docKey = dbName + "/" + collectionName + "/" + point.getDocumentKey();
+            docKeys.add(docKey);
+            
+            if (!prepopulations.containsKey(docKey) && prepopulated.get(docKey) == null) {
+                BasicDBObject insert = buildInsertForPrepopulate(point.getAttrType(), point.getResolution());
+                prepopulations.put(docKey, new UpdateOneModel<Document>(query, insert,
+                        new UpdateOptions().upsert(true)));
+            } // if
+            
+            BasicDBObject update = buildUpdateForUpdate(point);
+            updates.add(new UpdateOneModel<Document>(query, update));
+        } // for
         
-        if (res.getMatchedCount() == 0) {
-            LOGGER.debug("Prepopulating data, database=" + dbName + ", collection=" + collectionName + ", query="
-                    + query.toString() + ", insert=" + insert.toString());
+        ArrayList<WriteModel<Document>> requests = new ArrayList<WriteModel<Document>>(prepopulations.values());
+        requests.addAll(updates);
+        LOGGER.debug("Updating data, database=" + dbName + ", collection=" + collectionName + ", prepopulations="
+                + prepopulations.size() + ", updates=" + updates.size());
+        List<WriteModel<Document>> pending = requests;
+        int matched = 0;
+        int upserted = 0;
+        int retries = 0;
+        
+        while (true) {
+            // the requests previous to the pending ones were applied
+            int appliedUpdates = Math.max(0, requests.size() - pending.size() - prepopulations.size());
+            
+            try {
+                BulkWriteResult res = collection.bulkWrite(pending, new BulkWriteOptions().ordered(true));
+                matched += res.getMatchedCount();
+                upserted += res.getUpserts().size();
+                break;
+            } catch (MongoSocketException e) {
+                throw buildUpdateError(dbName, collectionName, appliedUpdates, updates.size() - appliedUpdates,
+                        e.getMessage());
+            } catch (MongoTimeoutException e) {
+                throw buildUpdateError(dbName, collectionName, appliedUpdates, updates.size() - appliedUpdates,
+                        e.getMessage());
+            } catch (MongoBulkWriteException e) {
+                // the requests previous to the failed one were applied
+                matched += e.getWriteResult().getMatchedCount();
+                upserted += e.getWriteResult().getUpserts().size();
+                
+                if (e.getWriteErrors().isEmpty()) {
+                    // all the requests were applied by the primary, but not acknowledged by the configured write
+                    // concern; retrying them would increase twice the aggregated measures
+                    LOGGER.error("Data updated but not acknowledged by the write concern, database=" + dbName
+                            + ", collection=" + collectionName + " (details=" + e.getWriteConcernError().getMessage()
+                            + ")");
+                    prepopulated.keySet().removeAll(docKeys);
+                    return;
+                } // if
+                
+                BulkWriteError error = e.getWriteErrors().get(0);
+                
+                if (retries == maxInsertRetries) {
+                    prepopulated.keySet().removeAll(docKeys);
+                    appliedUpdates = Math.max(0, requests.size() - pending.size() + error.getIndex()
+                            - prepopulations.size());
+                    throw buildUpdateError(dbName, collectionName, appliedUpdates, updates.size() - appliedUpdates,
+                            "not applied after " + retries + " retries, " + error.getMessage());
+                } // if
+                
+                LOGGER.debug("Error while updating data, retrying the not applied requests, database=" + dbName
+                        + ", collection=" + collectionName + ", not applied=" + (pending.size() - error.getIndex())
+                        + "/" + requests.size() + " (details=" + error.getMessage() + ")");
+                pending = pending.subList(error.getIndex(), pending.size());
+                Thread.sleep(INSERT_RETRY_BACKOFF << retries);
+                retries++;
+            } // try catch
+        } // while
+        
+        if (upserted > 0) {
+            LOGGER.debug("Prepopulated data, database=" + dbName + ", collection=" + collectionName
+                    + ", documents=" + upserted);
         } // if
-
-        // do the update
-        BasicDBObject update = buildUpdateForUpdate(attrType, attrValue);
-        LOGGER.debug("Updating data, database=" + dbName + ", collection=" + collectionName + ", query="
-                + query.toString() + ", update=" + update.toString());
-        collection.updateOne(query, update);
-    } // insertContextDataAggregated
-
+        
+        // all the prepopulations not upserting a document must have matched an existing one, as all the updates; if
+        // not, some document was removed while being cached as prepopulated
+        int expectedMatches = prepopulations.size() - upserted + updates.size();
+        
+        if (matched < expectedMatches) {
+            prepopulated.keySet().removeAll(docKeys);
+            throw buildUpdateError(dbName, collectionName, updates.size() - (expectedMatches - matched),
+                    expectedMatches - matched, "some aggregated documents were not found");
+        } // if
+        
+        for (String docKey : prepopulations.keySet()) {
+            prepopulated.put(docKey, Boolean.TRUE);
+        } // for
+    } // insertContextDataAggregatedArray
+    
+    /**
+     * Inserts a list of aggregated points, keyed layout. Each point is updated by means of a single upsert, thus no
+     * prepopulation is needed and the bulk write can be unordered. An upsert failing because of a concurrent upsert
+     * of the same document (duplicate key) is retried once, since it was not applied; any other failure makes the
+     * insertion fail.
+     * @param dbName
+     * @param collectionName
+     * @param collection
+     * @param points
+     * @throws Exception
+     */
+    private void insertContextDataAggregatedKeyed(String dbName, String collectionName,
+            MongoCollection<Document> collection, List<AggregatedPoint> points) throws Exception {
+        ArrayList<WriteModel<Document>> requests = new ArrayList<WriteModel<Document>>();
+        
+        for (AggregatedPoint point : points) {
+            BasicDBObject query = new BasicDBObject("_id", buildIdForInsertAggregated(point));
+            requests.add(new UpdateOneModel<Document>(query, buildUpdateForKeyedUpdate(point),
+                    new UpdateOptions().upsert(true)));
+        } // for
+        
+        LOGGER.debug("Updating data, database=" + dbName + ", collection=" + collectionName + ", upserts="
+                + requests.size());
+        int numUpdates = requests.size();
+        int appliedUpdates = 0;
+        
+        for (int i = 0; i < 2 && !requests.isEmpty(); i++) {
+            try {
+                collection.bulkWrite(requests, new BulkWriteOptions().ordered(false));
+                return;
+            } catch (MongoSocketException e) {
+                throw buildUpdateError(dbName, collectionName, appliedUpdates, numUpdates - appliedUpdates,
+                        e.getMessage());
+            } catch (MongoTimeoutException e) {
+                throw buildUpdateError(dbName, collectionName, appliedUpdates, numUpdates - appliedUpdates,
+                        e.getMessage());
+            } catch (MongoBulkWriteException e) {
+                ArrayList<WriteModel<Document>> failed = new ArrayList<WriteModel<Document>>();
+                int lost = 0;
+                String lastError = null;
+                
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() == DUPLICATE_KEY_ERROR) {
+                        failed.add(requests.get(error.getIndex()));
+                    } else {
+                        lost++;
+                        lastError = error.getMessage();
+                    } // if else
+                } // for
+                
+                // the upserts not failing were applied
+                appliedUpdates += requests.size() - e.getWriteErrors().size();
+                
+                if (lost > 0) {
+                    throw buildUpdateError(dbName, collectionName, appliedUpdates, numUpdates - appliedUpdates,
+                            lastError);
+                } // if
+                
+                if (e.getWriteConcernError() != null) {
+                    // the upserts not failing were applied by the primary, thus retrying them would increase twice
+                    // the aggregated measures
+                    LOGGER.error("Data updated but not acknowledged by the write concern, database=" + dbName
+                            + ", collection=" + collectionName + " (details=" + e.getWriteConcernError().getMessage()
+                            + ")");
+                } // if
+                
+                requests = failed;
+            } // try catch
+        } // for
+        
+        if (!requests.isEmpty()) {
+            throw buildUpdateError(dbName, collectionName, appliedUpdates, requests.size(), "duplicate key");
+        } // if
+    } // insertContextDataAggregatedKeyed
+    
     /**
-     * Builds the Json query used both to prepopulate and update an aggregated collection.
+     * Builds the error regarding aggregated updates not applied. If none of the updates of the bulk write was
+     * applied, a persistence error is built, thus all of them will be retried; otherwise, retrying them would
+     * increase twice the aggregated measures of the applied ones, thus a non persistence error is built and the not
+     * applied updates are lost.
+     * @param dbName
+     * @param collectionName
+     * @param appliedUpdates
+     * @param lostUpdates
+     * @param details
+     * @return The error
+     */
+    private Exception buildUpdateError(String dbName, String collectionName, int appliedUpdates, int lostUpdates,
+            String details) {
+        if (appliedUpdates == 0) {
+            return new CygnusPersistenceError("Error while updating data, database=" + dbName + ", collection="
+                    + collectionName + ", lost updates=" + lostUpdates + " (details=" + details + ")");
+        } else {
+            return new CygnusRuntimeError("Data partially updated, the not applied updates cannot be retried, "
+                    + "database=" + dbName + ", collection=" + collectionName + ", applied updates=" + appliedUpdates
+                    + ", lost updates=" + lostUpdates + " (details=" + details + ")");
+        } // if else
+    } // buildUpdateError
+    
+    /**
+     * Creates the aggregated points, one per resolution, regarding a single sample. The origins and offsets are
+     * computed in UTC by means of plain arithmetic on the number of seconds since the epoch, without calendars.
      * @param recvTimeTs
      * @param entityId
      * @param entityType
      * @param attrName
      * @param attrType
-     * @param resolution
+     * @param value
      * @return
      */
-    private BasicDBObject buildQueryForInsertAggregated(GregorianCalendar calendar, String entityId, String entityType,
-            String attrName, Resolution resolution) {
-        int offset = 0;
+    public static List<AggregatedPoint> createAggregatedPoints(long recvTimeTs, String entityId, String entityType,
+            String attrName, String attrType, double value) {
+        // split the time into days since the epoch and seconds within the day
+        long days = recvTimeTs / SECONDS_PER_DAY;
+        long secondsOfDay = recvTimeTs % SECONDS_PER_DAY;
         
-        switch (resolution) {
-            case SECOND:
-                offset = calendar.get(Calendar.SECOND);
-                break;
-            case MINUTE:
-                offset = calendar.get(Calendar.MINUTE);
-                break;
-            case HOUR:
-                offset = calendar.get(Calendar.HOUR_OF_DAY);
-                break;
-            case DAY:
-                offset = calendar.get(Calendar.DAY_OF_MONTH);
-                break;
-            case MONTH:
-                offset = calendar.get(Calendar.MONTH) + 1;
-                break;
-            default:
-                // this should never be reached;
-        } // switch
+        if (secondsOfDay < 0) {
+            days--;
+            secondsOfDay += SECONDS_PER_DAY;
+        } // if
+        
+        // get the day of the month and the month (1-based) from the days since the epoch, and from them the days
+        // since the epoch of the first day of the month and of the year
+        long z = days + DAYS_0000_03_01_TO_EPOCH;
+        long era = (z >= 0 ? z : z - DAYS_PER_ERA + 1) / DAYS_PER_ERA;
+        long dayOfEra = z - era * DAYS_PER_ERA;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / (DAYS_PER_ERA - 1)) / 365;
+        long dayOfYearFromMarch = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthFromMarch = (5 * dayOfYearFromMarch + 2) / 153;
+        int day = (int) (dayOfYearFromMarch - (153 * monthFromMarch + 2) / 5 + 1);
+        int month = (int) (monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        long monthOriginDays = days - day + 1;
+        long yearOriginDays = daysFromCivil(year, 1, 1);
         
-        BasicDBObject query = new BasicDBObject();
+        ArrayList<AggregatedPoint> points = new ArrayList<AggregatedPoint>(RESOLUTIONS.length);
+        points.add(new AggregatedPoint(entityId, entityType, attrName, attrType, Resolution.SECOND,
+                recvTimeTs - secondsOfDay % 60, (int) (secondsOfDay % 60), value));
+        points.add(new AggregatedPoint(entityId, entityType, attrName, attrType, Resolution.MINUTE,
+                recvTimeTs - secondsOfDay % 3600, (int) (secondsOfDay / 60 % 60), value));
+        points.add(new AggregatedPoint(entityId, entityType, attrName, attrType, Resolution.HOUR,
+                days * SECONDS_PER_DAY, (int) (secondsOfDay / 3600), value));
+        points.add(new AggregatedPoint(entityId, entityType, attrName, attrType, Resolution.DAY,
+                monthOriginDays * SECONDS_PER_DAY, day, value));
+        points.add(new AggregatedPoint(entityId, entityType, attrName, attrType, Resolution.MONTH,
+                yearOriginDays * SECONDS_PER_DAY, month, value));
+        return points;
+    } // createAggregatedPoints
+    
+    /**
+     * Gets the number of days since the epoch of a given date (proleptic Gregorian calendar).
+     * @param year
+     * @param month 1-based
+     * @param day 1-based
+     * @return
+     */
+    private static long daysFromCivil(long year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYearFromMarch = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYearFromMarch;
+        return era * DAYS_PER_ERA + dayOfEra - DAYS_0000_03_01_TO_EPOCH;
+    } // daysFromCivil
+
+    /**
+     * Builds the Json identifier of an aggregated document, used both to prepopulate and update it.
+     * @param point
+     * @return
+     */
+    private BasicDBObject buildIdForInsertAggregated(AggregatedPoint point) {
+        Resolution resolution = point.getResolution();
+        BasicDBObject id;
                 
         switch (dataModel) {
             case COLLECTIONPERSERVICEPATH:
-                query.append("_id", new BasicDBObject("entityId", entityId)
-                            .append("entityType", entityType)
-                            .append("attrName", attrName)
-                            .append("origin", getOrigin(calendar, resolution))
-                            .append("resolution", resolution.toString().toLowerCase())
-                            .append("range", getRange(resolution)))
-                        .append("points.offset", offset);
+                id = new BasicDBObject("entityId", point.getEntityId())
+                        .append("entityType", point.getEntityType())
+                        .append("attrName", point.getAttrName());
                 break;
             case COLLECTIONPERENTITY:
-                query.append("_id", new BasicDBObject("attrName", attrName)
-                            .append("origin", getOrigin(calendar, resolution))
-                            .append("resolution", resolution.toString().toLowerCase())
-                            .append("range", getRange(resolution)))
-                        .append("points.offset", offset);
-                break;
-            case COLLECTIONPERATTRIBUTE:
-                query.append("_id", new BasicDBObject("origin", getOrigin(calendar, resolution))
-                            .append("resolution", resolution.toString().toLowerCase())
-                            .append("range", getRange(resolution)))
-                        .append("points.offset", offset);
+                id = new BasicDBObject("attrName", point.getAttrName());
                 break;
             default:
-                // this will never be reached
+                id = new BasicDBObject();
         } // switch
         
-        return query;
-    } // buildQueryForInsertAggregated
+        return id.append("origin", new Date(point.getOrigin() * 1000))
+                .append("resolution", RESOLUTION_NAMES[resolution.ordinal()])
+                .append("range", getRange(resolution));
+    } // buildIdForInsertAggregated
+    
     
     /**
      * Builds the Json update used when updating an aggregated collection.
-     * @param attrType
-     * @param attrValue
+     * @param point
      * @return
      */
-    private BasicDBObject buildUpdateForUpdate(String attrType, double attrValue) {
+    private BasicDBObject buildUpdateForUpdate(AggregatedPoint point) {
         BasicDBObject update = new BasicDBObject();
-        update.append("$set", new BasicDBObject("attrType", attrType))
-                .append("$inc", new BasicDBObject("points.$.samples", 1)
-                        .append("points.$.sum", attrValue)
-                        .append("points.$.sum2", Math.pow(attrValue, 2)))
-                .append("$min", new BasicDBObject("points.$.min", attrValue))
-                .append("$max", new BasicDBObject("points.$.max", attrValue));
+        update.append("$set", new BasicDBObject("attrType", point.getAttrType()))
+                .append("$inc", new BasicDBObject("points.$.samples", point.getSamples())
+                        .append("points.$.sum", point.getSum())
+                        .append("points.$.sum2", point.getSum2()))
+                .append("$min", new BasicDBObject("points.$.min", point.getMin()))
+                .append("$max", new BasicDBObject("points.$.max", point.getMax()));
         return update;
     } // buildUpdateForUpdate
     
+    /**
+     * Builds the Json update used when updating an aggregated collection, keyed layout. The points are sub-documents
+     * keyed by their offset, thus there is no need to prepopulate them: $inc, $min and $max on a missing field set
+     * it.
+     * @param point
+     * @return
+     */
+    private BasicDBObject buildUpdateForKeyedUpdate(AggregatedPoint point) {
+        String prefix = "points." + point.getOffset() + ".";
+        BasicDBObject update = new BasicDBObject();
+        update.append("$set", new BasicDBObject("attrType", point.getAttrType()))
+                .append("$inc", new BasicDBObject(prefix + "samples", point.getSamples())
+                        .append(prefix + "sum", point.getSum())
+                        .append(prefix + "sum2", point.getSum2()))
+                .append("$min", new BasicDBObject(prefix + "min", point.getMin()))
+                .append("$max", new BasicDBObject(prefix + "max", point.getMax()));
+        return update;
+    } // buildUpdateForKeyedUpdate
+    
     /**
      * Builds the Json used to prepopulate an aggregated collection.
      * @param attrType
@@ -318,15 +852,16 @@ public class MongoBackend {
     private BasicDBObject buildInsertForPrepopulate(String attrType, Resolution resolution) {
         BasicDBObject update = new BasicDBObject();
         update.append("$setOnInsert", new BasicDBObject("attrType", attrType)
-                .append("points", buildPrepopulatedPoints(resolution)));
+                .append("points", PREPOPULATED_POINTS[resolution.ordinal()]));
         return update;
     } // buildInsertForPrepopulate
     
     /**
-     * Builds the points part for the Json used to prepopulate.
+     * Builds the points part for the Json used to prepopulate. It is only invoked once per resolution, when building
+     * the templates.
      * @param resolution
      */
-    private BasicDBList buildPrepopulatedPoints(Resolution resolution) {
+    private static BasicDBList buildPrepopulatedPoints(Resolution resolution) {
         BasicDBList prepopulatedData = new BasicDBList();
         int offsetOrigin = 0;
         int numValues = 0;
@@ -416,7 +951,7 @@ public class MongoBackend {
      * @param resolution
      * @return
      */
-    private String getRange(Resolution resolution) {
+    private static String getRange(Resolution resolution) {
         switch(resolution) {
             case SECOND:
                 return "minute";
@@ -433,49 +968,10 @@ public class MongoBackend {
         } // switch
     } // getDataModel
     
-    /**
-     * Gets the origin date for the aggregated collection.
-     * @param calendar
-     * @param resolution
-     * @return
-     */
-    private Date getOrigin(GregorianCalendar calendar, Resolution resolution) {
-        int year = calendar.get(Calendar.YEAR);
-        int month = calendar.get(Calendar.MONTH);
-        int day = calendar.get(Calendar.DAY_OF_MONTH);
-        int hour = calendar.get(Calendar.HOUR_OF_DAY);
-        int minute = calendar.get(Calendar.MINUTE);
-        int second;
-        
-        switch (resolution) {
-            case MONTH:
-                month = 0;
-                // falls through
-            case DAY:
-                day = 1;
-                // falls through
-            case HOUR:
-                hour = 0;
-                // falls through
-            case MINUTE:
-                minute = 0;
-                // falls through
-            case SECOND:
-                second = 0;
-                break;
-            default:
-                // should never be reached
-                return null;
-        } // switch
-        
-        GregorianCalendar gc = new GregorianCalendar(year, month, day, hour, minute, second);
-        gc.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return new Date(gc.getTimeInMillis());
-    } // getOrigin
     
     /**
      * Stores in per-service/database "collection_names" collection the matching between a hash and the fields used to
-     * build it.
+     * build it. This is done only once per hash and process lifetime.
      * FIXME: destination is under study
      * @param dbName
      * @param hash
@@ -491,22 +987,16 @@ public class MongoBackend {
     public void storeCollectionHash(String dbName, String hash, boolean isAggregated, String fiwareService,
             String fiwareServicePath, String entityId, String entityType, String attrName, String destination)
         throws Exception {
+        // nothing to do if the hash was already stored by this process
+        String hashKey = dbName + "." + hash + (isAggregated ? ".aggr" : "");
+        
+        if (registeredHashes.contains(hashKey)) {
+            return;
+        } // if
+        
         // get the database and the collection; the collection is created if not existing
-        MongoDatabase db = getDatabase(dbName);
-        MongoCollection collection;
-
-        try {
-            LOGGER.debug("Creating Mongo collection=collection_names at database=" + dbName);
-            db.createCollection("collection_names");
-        } catch (Exception e) {
-            if (e.getMessage().contains("collection already exists")) {
-                LOGGER.debug("Collection already exists, nothing to create");
-            } else {
-                throw e;
-            } // if else
-        } finally {
-            collection = db.getCollection("collection_names");
-        } // try catch finally
+        createCollection(dbName, "collection_names");
+        MongoCollection collection = getDatabase(dbName).getCollection("collection_names");
 
         // Two updates operations are needed since MongoDB currently does not support the possibility to address the
         // same field in a $set operation as a $setOnInsert operation. More details:
@@ -522,6 +1012,7 @@ public class MongoBackend {
         LOGGER.debug("Updating data, database=" + dbName + ", collection=collection_names, query="
                 + query.toString() + ", update=" + update.toString());
         UpdateResult res = collection.updateOne(query, update, new UpdateOptions().upsert(true));
+        registeredHashes.add(hashKey);
 /*
         TECHDEBT:
         https://github.com/telefonicaid/fiware-cygnus/issues/428
@@ -18,6 +18,7 @@
 
 package com.telefonica.iot.cygnus.backends.mysql;
 
+import com.telefonica.iot.cygnus.backends.mysql.MySQLConnectionPool.PooledConnection;
 import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
@@ -25,52 +26,114 @@ import com.telefonica.iot.cygnus.log.CygnusLogger;
 import java.sql.Statement;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Map;
 import com.telefonica.iot.cygnus.utils.Constants;
+import java.sql.SQLNonTransientConnectionException;
 import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
  * @author frb
  * 
  * MySQL related operations (database and table creation, context data insertion) when dealing with a MySQL
- * persistence backend.
+ * persistence backend. Connections are taken from a bounded pool, and the insertion statements are prepared once per
+ * table and column set and then reused.
+ * 
+ * The databases and tables already known to exist are cached, thus they are not created again and again; the cache is
+ * invalidated when MySQL reports they do not exist anymore.
  */
 public class MySQLBackend {
     
     private static final String DRIVER_NAME = "com.mysql.jdbc.Driver";
+    private static final int DEFAULT_MAX_CONNS = 50;
+    private static final int DEFAULT_MAX_CONNS_PER_DB = 10;
+    private static final long DEFAULT_MAX_IDLE_TIME = 300000;
+    private static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+    private static final int DEFAULT_STMT_CACHE_SIZE = 50;
+    private static final int DEFAULT_MAX_ROWS_PER_INSERT = 100;
+    private static final int ER_BAD_DB_ERROR = 1049;
+    private static final int ER_NO_SUCH_TABLE = 1146;
+    private static final int ER_BAD_FIELD_ERROR = 1054;
     private final String mysqlHost;
     private final String mysqlPort;
     private final String mysqlUsername;
     private final String mysqlPassword;
-    private final HashMap<String, Connection> connections;
+    private final MySQLConnectionPool pool;
+    private final int maxRowsPerInsert;
+    private final Set<String> knownDbs;
+    private final Set<String> knownTables;
     private MySQLDriver driver;
     private static final CygnusLogger LOGGER = new CygnusLogger(MySQLBackend.class);
             
     /**
-     * Constructor.
+     * Constructor. Default connection pool limits are used.
      * @param mysqlHost
      * @param mysqlPort
      * @param mysqlUsername
      * @param mysqlPassword
      */
     public MySQLBackend(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword) {
+        this(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword, DEFAULT_MAX_CONNS, DEFAULT_MAX_CONNS_PER_DB,
+                DEFAULT_MAX_IDLE_TIME, DEFAULT_VALIDATION_INTERVAL, DEFAULT_STMT_CACHE_SIZE, DEFAULT_MAX_ROWS_PER_INSERT);
+    } // MySQLBackend
+    
+    /**
+     * Constructor.
+     * @param mysqlHost
+     * @param mysqlPort
+     * @param mysqlUsername
+     * @param mysqlPassword
+     * @param maxConns Maximum number of open connections
+     * @param maxConnsPerDb Maximum number of open connections per database
+     * @param maxIdleTime Milliseconds an idle connection is kept open
+     * @param validationInterval Milliseconds a connection is not validated again after a successful validation
+     * @param stmtCacheSize Maximum number of prepared statements cached per connection
+     * @param maxRowsPerInsert Maximum number of rows inserted by a single statement
+     */
+    public MySQLBackend(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword,
+            int maxConns, int maxConnsPerDb, long maxIdleTime, long validationInterval, int stmtCacheSize,
+            int maxRowsPerInsert) {
         this.mysqlHost = mysqlHost;
         this.mysqlPort = mysqlPort;
         this.mysqlUsername = mysqlUsername;
         this.mysqlPassword = mysqlPassword;
-        connections = new HashMap<String, Connection>();
+        this.maxRowsPerInsert = maxRowsPerInsert;
+        knownDbs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        knownTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         driver = new MySQLDriver();
+        pool = new MySQLConnectionPool(maxConns, maxConnsPerDb, maxIdleTime, validationInterval, stmtCacheSize) {
+            
+            @Override
+            protected Connection createConnection(String dbName) throws Exception {
+                try {
+                    return driver.getConnection(MySQLBackend.this.mysqlHost, MySQLBackend.this.mysqlPort, dbName,
+                            MySQLBackend.this.mysqlUsername, MySQLBackend.this.mysqlPassword);
+                } catch (SQLException e) {
+                    invalidateDDLCache(e, dbName, null);
+                    throw e;
+                } // try catch
+            } // createConnection
+            
+        };
     } // MySQLBackend
     
     /**
-     * Gets the map of database name-connection. It is protected since it is only used by the tests.
-     * @return The mao of database name-connection.
+     * Gets the map of database name-number of open connections. It is protected since it is only used by the tests.
+     * @return The map of database name-number of open connections.
      */
-    protected HashMap<String, Connection> getConnections() {
-        return connections;
+    protected HashMap<String, Integer> getConnections() {
+        return pool.getOpenConnections();
     } // getCnnections
     
     /**
@@ -82,31 +145,98 @@ public class MySQLBackend {
     } // setDriver
     
     /**
-     * Creates a database, given its name, if not exists.
+     * Closes all the pooled connections.
+     */
+    public void close() {
+        pool.close();
+    } // close
+    
+    /**
+     * Gets if a database is known to exist. It is protected since it is only used by the tests.
+     * @param dbName
+     * @return True if the database is known to exist, false otherwise
+     */
+    protected boolean isKnownDatabase(String dbName) {
+        return knownDbs.contains(dbName);
+    } // isKnownDatabase
+    
+    /**
+     * Gets if a table is known to exist. It is protected since it is only used by the tests.
      * @param dbName
+     * @param tableName
+     * @return True if the table is known to exist, false otherwise
+     */
+    protected boolean isKnownTable(String dbName, String tableName) {
+        return knownTables.contains(getTableKey(dbName, tableName));
+    } // isKnownTable
+    
+    /**
+     * Warms up the cache of databases and tables known to exist by querying the information schema.
      * @throws Exception
      */
-    public void createDatabase(String dbName) throws Exception {
+    public void warmUpDDLCache() throws Exception {
         Statement stmt = null;
         
         // get a connection to an empty database
-        Connection con = getConnection("");
+        PooledConnection con = pool.borrow("");
         
         try {
-            stmt = con.createStatement();
+            stmt = con.getConnection().createStatement();
+            String query = "select schema_name from information_schema.schemata";
+            LOGGER.debug("Executing MySQL query '" + query + "'");
+            ResultSet rs = stmt.executeQuery(query);
+            
+            while (rs.next()) {
+                knownDbs.add(rs.getString(1));
+            } // while
+            
+            rs.close();
+            query = "select table_schema, table_name from information_schema.tables";
+            LOGGER.debug("Executing MySQL query '" + query + "'");
+            rs = stmt.executeQuery(query);
+            
+            while (rs.next()) {
+                knownTables.add(getTableKey(rs.getString(1), rs.getString(2)));
+            } // while
+            
+            rs.close();
         } catch (Exception e) {
+            closeMySQLObjects(con, stmt, true);
             throw new CygnusRuntimeError(e.getMessage());
         } // try catch
         
+        closeMySQLObjects(con, stmt, false);
+        LOGGER.info("MySQL databases and tables cache warmed up (databases=" + knownDbs.size() + ", tables="
+                + knownTables.size() + ")");
+    } // warmUpDDLCache
+    
+    /**
+     * Creates a database, given its name, if not exists.
+     * @param dbName
+     * @throws Exception
+     */
+    public void createDatabase(String dbName) throws Exception {
+        if (knownDbs.contains(dbName)) {
+            return;
+        } // if
+        
+        Statement stmt = null;
+        
+        // get a connection to an empty database
+        PooledConnection con = pool.borrow("");
+        
         try {
+            stmt = con.getConnection().createStatement();
             String query = "create database if not exists `" + dbName + "`";
             LOGGER.debug("Executing MySQL query '" + query + "'");
             stmt.executeUpdate(query);
         } catch (Exception e) {
+            closeMySQLObjects(con, stmt, true);
             throw new CygnusRuntimeError(e.getMessage());
         } // try catch
         
-        closeMySQLObjects(con, stmt);
+        closeMySQLObjects(con, stmt, false);
+        knownDbs.add(dbName);
     } // createDatabase
     
     /**
@@ -116,18 +246,19 @@ public class MySQLBackend {
      * @throws Exception
      */
     public void createTable(String dbName, String tableName) throws Exception {
+        String tableKey = getTableKey(dbName, tableName);
+        
+        if (knownTables.contains(tableKey)) {
+            return;
+        } // if
+        
         Statement stmt = null;
         
         // get a connection to the given database
-        Connection con = getConnection(dbName);
-        
-        try {
-            stmt = con.createStatement();
-        } catch (Exception e) {
-            throw new CygnusRuntimeError(e.getMessage());
-        } // try catch
+        PooledConnection con = pool.borrow(dbName);
         
         try {
+            stmt = con.getConnection().createStatement();
             String query = "create table if not exists `" + tableName + "` ("
                     + Constants.RECV_TIME_TS + " long, "
                     + Constants.RECV_TIME + " text, "
@@ -140,10 +271,17 @@ public class MySQLBackend {
             LOGGER.debug("Executing MySQL query '" + query + "'");
             stmt.executeUpdate(query);
         } catch (Exception e) {
+            closeMySQLObjects(con, stmt, true);
+            
+            if (e instanceof SQLException) {
+                invalidateDDLCache((SQLException) e, dbName, tableName);
+            } // if
+            
             throw new CygnusRuntimeError(e.getMessage());
         } // try catch
         
-        closeMySQLObjects(con, stmt);
+        closeMySQLObjects(con, stmt, false);
+        knownTables.add(tableKey);
     } // createTable
     
     /**
@@ -162,30 +300,9 @@ public class MySQLBackend {
      */
     public void insertContextData(String dbName, String tableName, long recvTimeTs, String recvTime, String entityId,
             String entityType, String attrName, String attrType, String attrValue, String attrMd) throws Exception {
-        Statement stmt = null;
-        
-        // get a connection to the given database
-        Connection con = getConnection(dbName);
-            
-        try {
-            stmt = con.createStatement();
-        } catch (Exception e) {
-            throw new CygnusRuntimeError(e.getMessage());
-        } // try catch
-        
-        try {
-            String query = "insert into `" + tableName + "` values ('" + recvTimeTs + "', '" + recvTime + "', '"
-                    + entityId + "', '" + entityType + "', '" + attrName + "', '" + attrType + "', '" + attrValue
-                    + "', '" + attrMd + "')";
-            LOGGER.debug("Executing MySQL query '" + query + "'");
-            stmt.executeUpdate(query);
-        } catch (SQLTimeoutException e) {
-            throw new CygnusPersistenceError(e.getMessage());
-        } catch (SQLException e) {
-            throw new CygnusBadContextData(e.getMessage());
-        } // try catch
-        
-        closeMySQLObjects(con, stmt);
+        ArrayList<LinkedHashMap<String, String>> rows = new ArrayList<LinkedHashMap<String, String>>();
+        rows.add(createRow(recvTimeTs, recvTime, entityId, entityType, attrName, attrType, attrValue, attrMd));
+        insertContextData(dbName, tableName, rows);
     } // insertContextData
     
     /**
@@ -199,102 +316,273 @@ public class MySQLBackend {
      */
     public void insertContextData(String dbName, String tableName, String recvTime,
             Map<String, String> attrs, Map<String, String> mds) throws Exception {
-        Statement stmt = null;
-        String columnNames = null;
-        String columnValues = null;
+        ArrayList<LinkedHashMap<String, String>> rows = new ArrayList<LinkedHashMap<String, String>>();
+        rows.add(createRow(recvTime, attrs, mds));
+        insertContextData(dbName, tableName, rows);
+    } // insertContextData
+    
+    /**
+     * Inserts many rows in the given table within the given database. The rows are grouped by column set, and each
+     * group is inserted by means of JDBC batches of up to maxRowsPerInsert rows; the MySQL driver rewrites each batch
+     * as a multi-row insert. If a batch is rejected due to the data of some row, the rows of that batch are inserted
+     * one by one, discarding the wrong ones; if a group is rejected due to an unknown column, the whole group is
+     * discarded. In both cases, the rest of batches and groups are inserted anyway.
+     * @param dbName
+     * @param tableName
+     * @param rows Rows to be inserted, as ordered maps of column name-value; see createRow()
+     * @throws Exception
+     */
+    public void insertContextData(String dbName, String tableName, List<LinkedHashMap<String, String>> rows)
+        throws Exception {
+        if (rows.isEmpty()) {
+            return;
+        } // if
         
-        // get a connection to the MySQL server and get a statement
-        Connection con = getConnection(dbName);
+        // group the rows by column set, keeping their relative order
+        LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>> groups =
+                new LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>();
         
-        try {
+        for (LinkedHashMap<String, String> row : rows) {
+            String columnNames = "";
             
-            stmt = con.createStatement();
-
-            // for query building purposes
-            columnNames = Constants.RECV_TIME;
-            columnValues = "'" + recvTime + "'";
-
-            for (String attrName : attrs.keySet()) {
-                columnNames += "," + attrName;
-                String attrValue = attrs.get(attrName);
-                columnValues += ",'" + attrValue + "'";
+            for (String columnName : row.keySet()) {
+                columnNames += (columnNames.isEmpty() ? "" : ",") + columnName;
             } // for
             
-            for (String attrMdName : mds.keySet()) {
-                columnNames += "," + attrMdName;
-                String md = mds.get(attrMdName);
-                columnValues += ",'" + md + "'";
-            } // for
-        } catch (Exception e) {
-            throw new CygnusRuntimeError(e.getMessage());
-        } // try catch
+            ArrayList<LinkedHashMap<String, String>> group = groups.get(columnNames);
+            
+            if (group == null) {
+                group = new ArrayList<LinkedHashMap<String, String>>();
+                groups.put(columnNames, group);
+            } // if
+            
+            group.add(row);
+        } // for
+        
+        // get a connection to the given database
+        PooledConnection con = pool.borrow(dbName);
+        boolean suspicious = true;
                 
         try {
-            // finish creating the query and execute it
-            String query = "insert into `" + tableName + "` (" + columnNames + ") values (" + columnValues + ")";
-            LOGGER.debug("Executing MySQL query '" + query + "'");
-            stmt.executeUpdate(query);
-        } catch (SQLTimeoutException e) {
-            throw new CygnusPersistenceError(e.getMessage());
+            for (Map.Entry<String, ArrayList<LinkedHashMap<String, String>>> group : groups.entrySet()) {
+                String columnNames = group.getKey();
+                ArrayList<LinkedHashMap<String, String>> groupRows = group.getValue();
+                String placeholders = "?";
+                
+                for (int i = 1; i < groupRows.get(0).size(); i++) {
+                    placeholders += ",?";
+                } // for
+                
+                // the prepared statement is cached per table and column set
+                String query = "insert into `" + tableName + "` (" + columnNames + ") values (" + placeholders + ")";
+                PreparedStatement stmt = con.getStatement(query);
+                
+                try {
+                    for (int from = 0; from < groupRows.size(); from += maxRowsPerInsert) {
+                        insertChunk(stmt, query, groupRows.subList(from,
+                                Math.min(from + maxRowsPerInsert, groupRows.size())));
+                    } // for
+                } catch (SQLException e) {
+                    if (e.getErrorCode() != ER_BAD_FIELD_ERROR) {
+                        throw e;
+                    } // if
+                    
+                    // all the rows of the group share the column set, thus none of them can be inserted
+                    LOGGER.warn("Discarding the MySQL rows with an unknown column (database=" + dbName + ", table="
+                            + tableName + ", columns=" + columnNames + ", rows=" + groupRows.size() + ", details="
+                            + e.getMessage() + ")");
+                } // try catch
+            } // for
+            
+            suspicious = false;
         } catch (SQLException e) {
-            throw new CygnusBadContextData(e.getMessage());
-        } // try catch
-        
-        closeMySQLObjects(con, stmt);
+            // if the table was supposed to exist, the data will be retried once the table is created again
+            if (invalidateDDLCache(e, dbName, tableName)) {
+                throw new CygnusPersistenceError(e.getMessage());
+            } // if
+            
+            throw translateSQLException(e);
+        } finally {
+            // any exception, not only SQL ones, must give back the borrowed connection
+            pool.release(con, suspicious);
+        } // try catch finally
     } // insertContextData
     
     /**
-     * Gets a connection to the MySQL server.
-     * @return
-     * @throws Exception
+     * Inserts a chunk of rows by means of a single JDBC batch. If the batch is rejected due to the data of some row,
+     * the rows are inserted one by one (the rejected multi-row insert did not insert any of them), discarding the
+     * wrong ones.
+     * @param stmt
+     * @param query
+     * @param chunk
+     * @throws SQLException If the error is not caused by the data of a single row
      */
-    private Connection getConnection(String dbName) throws Exception {
+    private void insertChunk(PreparedStatement stmt, String query, List<LinkedHashMap<String, String>> chunk)
+        throws SQLException {
+        for (LinkedHashMap<String, String> row : chunk) {
+            setValues(stmt, row);
+            LOGGER.debug("Adding MySQL query to the batch '" + query + "' (values: " + row.values() + ")");
+            stmt.addBatch();
+        } // for
+        
         try {
-            // FIXME: the number of cached connections should be limited to a certain number; with such a limit
-            //        number, if a new connection is needed, the oldest one is closed
-            Connection con = connections.get(dbName);
-
-            if (con == null || !con.isValid(0)) {
-                if (con != null) {
-                    con.close();
-                } // if
-                
-                con = driver.getConnection(mysqlHost, mysqlPort, dbName, mysqlUsername, mysqlPassword);
-                connections.put(dbName, con);
-            } // if
-
-            return con;
-        } catch (ClassNotFoundException e) {
-            throw new CygnusPersistenceError(e.getMessage());
+            LOGGER.debug("Executing MySQL batch (rows=" + chunk.size() + ")");
+            stmt.executeBatch();
+            return;
         } catch (SQLException e) {
-            throw new CygnusPersistenceError(e.getMessage());
+            stmt.clearBatch();
+            
+            if (!isRowError(e)) {
+                throw e;
+            } // if
+            
+            LOGGER.warn("MySQL batch rejected due to the data of some row, inserting the rows one by one (rows="
+                    + chunk.size() + ", details=" + e.getMessage() + ")");
         } // try catch
-    } // getConnection
+        
+        for (LinkedHashMap<String, String> row : chunk) {
+            setValues(stmt, row);
+            
+            try {
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                if (!isRowError(e)) {
+                    throw e;
+                } // if
+                
+                LOGGER.warn("Discarding a wrong MySQL row '" + query + "' (values: " + row.values() + ", details="
+                        + e.getMessage() + ")");
+            } // try catch
+        } // for
+    } // insertChunk
     
     /**
-     * Close all the MySQL objects previously opened by doCreateTable and doQuery.
+     * Binds the values of a row to the given prepared statement.
+     * @param stmt
+     * @param row
+     * @throws SQLException
+     */
+    private void setValues(PreparedStatement stmt, LinkedHashMap<String, String> row) throws SQLException {
+        int i = 1;
+        
+        for (String value : row.values()) {
+            stmt.setString(i++, value);
+        } // for
+    } // setValues
+    
+    /**
+     * Gets if a SQL exception is caused by the data of a single row, i.e. it is neither a persistence error nor an
+     * error regarding the whole table or column set.
+     * @param e
+     * @return True if the SQL exception is caused by the data of a single row, otherwise false
+     */
+    private boolean isRowError(SQLException e) {
+        return translateSQLException(e) instanceof CygnusBadContextData && e.getErrorCode() != ER_BAD_DB_ERROR
+                && e.getErrorCode() != ER_NO_SUCH_TABLE && e.getErrorCode() != ER_BAD_FIELD_ERROR;
+    } // isRowError
+    
+    /**
+     * Creates a row representing a unique attribute change, to be inserted within a batch.
+     * @param recvTimeTs
+     * @param recvTime
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param attrValue
+     * @param attrMd
+     * @return A row as an ordered map of column name-value
+     */
+    public static LinkedHashMap<String, String> createRow(long recvTimeTs, String recvTime, String entityId,
+            String entityType, String attrName, String attrType, String attrValue, String attrMd) {
+        LinkedHashMap<String, String> row = new LinkedHashMap<String, String>();
+        row.put(Constants.RECV_TIME_TS, Long.toString(recvTimeTs));
+        row.put(Constants.RECV_TIME, recvTime);
+        row.put(Constants.ENTITY_ID, entityId);
+        row.put(Constants.ENTITY_TYPE, entityType);
+        row.put(Constants.ATTR_NAME, attrName);
+        row.put(Constants.ATTR_TYPE, attrType);
+        row.put(Constants.ATTR_VALUE, attrValue);
+        row.put(Constants.ATTR_MD, attrMd);
+        return row;
+    } // createRow
+    
+    /**
+     * Creates a row representing full attribute list changes, to be inserted within a batch.
+     * @param recvTime
+     * @param attrs
+     * @param mds
+     * @return A row as an ordered map of column name-value
+     */
+    public static LinkedHashMap<String, String> createRow(String recvTime, Map<String, String> attrs,
+            Map<String, String> mds) {
+        LinkedHashMap<String, String> row = new LinkedHashMap<String, String>();
+        row.put(Constants.RECV_TIME, recvTime);
+        row.putAll(attrs);
+        row.putAll(mds);
+        return row;
+    } // createRow
+    
+    /**
+     * Removes from the cache of databases and tables known to exist those ones MySQL reports as not existing.
+     * @param e The exception reported by MySQL
+     * @param dbName
+     * @param tableName Table name, or null if no table was involved
+     * @return True if any cached database or table was invalidated, false otherwise
+     */
+    private boolean invalidateDDLCache(SQLException e, String dbName, String tableName) {
+        if (e.getErrorCode() == ER_BAD_DB_ERROR && knownDbs.remove(dbName)) {
+            LOGGER.info("MySQL database does not exist anymore, removed from the cache (database=" + dbName + ")");
+            return true;
+        } else if (e.getErrorCode() == ER_NO_SUCH_TABLE && tableName != null
+                && knownTables.remove(getTableKey(dbName, tableName))) {
+            LOGGER.info("MySQL table does not exist anymore, removed from the cache (database=" + dbName + ", table="
+                    + tableName + ")");
+            return true;
+        } else {
+            return false;
+        } // if else if
+    } // invalidateDDLCache
+    
+    private String getTableKey(String dbName, String tableName) {
+        return dbName + "." + tableName;
+    } // getTableKey
+    
+    /**
+     * Translates a SQL exception into a Cygnus one. Timeouts and connection errors are considered persistence errors,
+     * thus the data will be retried; any other error is considered to be caused by the data itself.
+     * @param e
+     * @return The Cygnus exception
+     */
+    private Exception translateSQLException(SQLException e) {
+        if (e instanceof SQLTimeoutException || e instanceof SQLTransientConnectionException
+                || e instanceof SQLNonTransientConnectionException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("08"))) {
+            return new CygnusPersistenceError(e.getMessage());
+        } else {
+            return new CygnusBadContextData(e.getMessage());
+        } // if else
+    } // translateSQLException
+    
+    /**
+     * Closes the statement and gives back the connection to the pool.
      * @param con
      * @param stmt
-     * @return True if the MySQL objects have been closed, false otherwise.
+     * @param suspicious True if the connection should be validated before being borrowed again
      */
-    private void closeMySQLObjects(Connection con, Statement stmt) throws Exception {
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive connection could not be closed. Details="
-                        + e.getMessage());
-            } // try catch
-        } // if
-
-        if (stmt != null) {
-            try {
+    private void closeMySQLObjects(PooledConnection con, Statement stmt, boolean suspicious) throws Exception {
+        // the statement is closed before giving back the connection, otherwise another borrower could get the
+        // connection while the statement is still open on it
+        try {
+            if (stmt != null) {
                 stmt.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive statement could not be closed. Details="
-                        + e.getMessage());
-            } // try catch
-        } // if
+            } // if
+        } catch (SQLException e) {
+            suspicious = true;
+            throw new CygnusRuntimeError("The MySQL statement could not be closed. Details=" + e.getMessage());
+        } finally {
+            pool.release(con, suspicious);
+        } // try catch finally
     } // closeMySQLObjects
     
     /**
@@ -319,10 +607,11 @@ public class MySQLBackend {
             Class.forName(DRIVER_NAME);
 
             // return a connection based on the MySQL JDBC driver
-            LOGGER.debug("Connecting to jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName + "?user="
-                    + mysqlUsername + "&password=XXXXXXXXXX");
-            return DriverManager.getConnection("jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName,
-                    mysqlUsername, mysqlPassword);
+            LOGGER.debug("Connecting to jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName
+                    + "?rewriteBatchedStatements=true&user=" + mysqlUsername + "&password=XXXXXXXXXX");
+            // batched insertions are rewritten by the driver as multi-row insertions
+            return DriverManager.getConnection("jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName
+                    + "?rewriteBatchedStatements=true", mysqlUsername, mysqlPassword);
         } // getConnection
         
     } // MySQLDriver
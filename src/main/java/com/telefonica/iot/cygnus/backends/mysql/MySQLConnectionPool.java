@@ -0,0 +1,414 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.mysql;
+
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ *
+ * @author frb
+ * 
+ * Bounded pool of MySQL connections. The connections are pooled per database, and both the number of connections per
+ * database and the total number of connections are limited. When the global limit is reached and a connection to a new
+ * database is needed, the least recently used idle connection (whichever its database is) is closed.
+ * 
+ * Idle connections are closed once they have been unused for longer than the configured idle time, and borrowed
+ * connections are validated only if they have not been validated for longer than the configured validation interval.
+ * 
+ * Each pooled connection caches its prepared statements, since these are bound to the connection they were created
+ * with.
+ */
+public abstract class MySQLConnectionPool {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(MySQLConnectionPool.class);
+    private static final long MAX_WAIT = 10000;
+    private static final int VALIDATION_TIMEOUT = 5;
+    private final int maxConns;
+    private final int maxConnsPerDb;
+    private final long maxIdleTime;
+    private final long validationInterval;
+    private final int stmtCacheSize;
+    private final HashMap<String, LinkedList<PooledConnection>> idleConns;
+    private final HashMap<String, Integer> openConns;
+    private int numOpenConns;
+    private boolean closed;
+    
+    /**
+     * Constructor.
+     * @param maxConns Maximum number of open connections
+     * @param maxConnsPerDb Maximum number of open connections per database
+     * @param maxIdleTime Milliseconds an idle connection is kept open
+     * @param validationInterval Milliseconds a connection is not validated again after a successful validation
+     * @param stmtCacheSize Maximum number of prepared statements cached per connection
+     */
+    public MySQLConnectionPool(int maxConns, int maxConnsPerDb, long maxIdleTime, long validationInterval,
+            int stmtCacheSize) {
+        this.maxConns = maxConns;
+        this.maxConnsPerDb = maxConnsPerDb;
+        this.maxIdleTime = maxIdleTime;
+        this.validationInterval = validationInterval;
+        this.stmtCacheSize = stmtCacheSize;
+        idleConns = new HashMap<String, LinkedList<PooledConnection>>();
+        openConns = new HashMap<String, Integer>();
+        numOpenConns = 0;
+        closed = false;
+    } // MySQLConnectionPool
+    
+    /**
+     * Creates a new connection to the given database.
+     * @param dbName
+     * @return A new connection to the given database
+     * @throws Exception
+     */
+    protected abstract Connection createConnection(String dbName) throws Exception;
+    
+    /**
+     * Gets the number of open connections per database. It is protected since it is only used by the tests.
+     * @return The number of open connections per database
+     */
+    protected synchronized HashMap<String, Integer> getOpenConnections() {
+        return new HashMap<String, Integer>(openConns);
+    } // getOpenConnections
+    
+    /**
+     * Borrows a connection to the given database. The connection must be given back by means of release(). The pool
+     * lock is only held while choosing an idle connection or reserving room for a new one; the connections are
+     * validated and created outside it, thus a slow database does not block the borrowers of the rest of databases.
+     * @param dbName
+     * @return A connection to the given database
+     * @throws Exception
+     */
+    public PooledConnection borrow(String dbName) throws Exception {
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        
+        while (true) {
+            PooledConnection pooledCon = null;
+            int numConns;
+            
+            synchronized (this) {
+                if (closed) {
+                    throw new CygnusPersistenceError("The MySQL connection pool is closed (database=" + dbName + ")");
+                } // if
+                
+                evictIdle();
+                
+                // try to reuse an idle connection, the most recently used one
+                LinkedList<PooledConnection> idle = idleConns.get(dbName);
+                
+                if (idle != null && !idle.isEmpty()) {
+                    pooledCon = idle.removeFirst();
+                } // if
+                
+                // if the global limit has been reached, try to make room by closing the least recently used idle
+                // connection
+                if (pooledCon == null && numOpenConns >= maxConns && getOpenConnections(dbName) < maxConnsPerDb) {
+                    closeLeastRecentlyUsed();
+                } // if
+                
+                // otherwise, reserve room for a new connection if the limits allow it, or wait for a connection to be
+                // released
+                if (pooledCon == null) {
+                    if (numOpenConns < maxConns && getOpenConnections(dbName) < maxConnsPerDb) {
+                        openConns.put(dbName, getOpenConnections(dbName) + 1);
+                        numOpenConns++;
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        
+                        if (remaining <= 0) {
+                            throw new CygnusPersistenceError("No MySQL connection available (database=" + dbName
+                                    + ", open connections=" + numOpenConns + ")");
+                        } // if
+                        
+                        wait(remaining);
+                        continue;
+                    } // if else
+                } // if
+                
+                numConns = numOpenConns;
+            } // synchronized
+            
+            if (pooledCon != null) {
+                if (pooledCon.validate()) {
+                    return pooledCon;
+                } // if
+                
+                pooledCon.close();
+                forget(dbName);
+                continue;
+            } // if
+            
+            // create the new connection the room was reserved for
+            Connection con;
+            
+            try {
+                con = createConnection(dbName);
+            } catch (ClassNotFoundException e) {
+                forget(dbName);
+                throw new CygnusPersistenceError(e.getMessage());
+            } catch (SQLException e) {
+                forget(dbName);
+                throw new CygnusPersistenceError(e.getMessage());
+            } catch (Exception e) {
+                forget(dbName);
+                throw e;
+            } // try catch
+            
+            LOGGER.debug("MySQL connection created (database=" + dbName + ", open connections=" + numConns + ")");
+            return new PooledConnection(dbName, con);
+        } // while
+    } // borrow
+    
+    /**
+     * Gives back a previously borrowed connection.
+     * @param pooledCon
+     * @param suspicious True if the connection should be validated before being borrowed again, e.g. because an error
+     * was raised while using it
+     */
+    public synchronized void release(PooledConnection pooledCon, boolean suspicious) {
+        if (pooledCon == null) {
+            return;
+        } // if
+        
+        if (closed) {
+            close(pooledCon);
+            return;
+        } // if
+        
+        pooledCon.lastUsed = System.currentTimeMillis();
+        
+        if (suspicious) {
+            pooledCon.lastValidated = 0;
+        } // if
+        
+        LinkedList<PooledConnection> idle = idleConns.get(pooledCon.dbName);
+        
+        if (idle == null) {
+            idle = new LinkedList<PooledConnection>();
+            idleConns.put(pooledCon.dbName, idle);
+        } // if
+        
+        idle.addFirst(pooledCon);
+        evictIdle();
+        notifyAll();
+    } // release
+    
+    /**
+     * Closes all the idle connections. Connections borrowed at this moment are closed once released.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+        
+        for (LinkedList<PooledConnection> idle : idleConns.values()) {
+            for (PooledConnection pooledCon : idle) {
+                close(pooledCon);
+            } // for
+            
+            idle.clear();
+        } // for
+    } // close
+    
+    private int getOpenConnections(String dbName) {
+        Integer num = openConns.get(dbName);
+        return num == null ? 0 : num;
+    } // getOpenConnections
+    
+    /**
+     * Closes those idle connections that have not been used for longer than the maximum idle time.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        
+        for (LinkedList<PooledConnection> idle : idleConns.values()) {
+            Iterator<PooledConnection> it = idle.iterator();
+            
+            while (it.hasNext()) {
+                PooledConnection pooledCon = it.next();
+                
+                if (now - pooledCon.lastUsed > maxIdleTime) {
+                    it.remove();
+                    close(pooledCon);
+                } // if
+            } // while
+        } // for
+    } // evictIdle
+    
+    /**
+     * Closes the least recently used idle connection, if any.
+     */
+    private void closeLeastRecentlyUsed() {
+        LinkedList<PooledConnection> lruIdle = null;
+        
+        for (LinkedList<PooledConnection> idle : idleConns.values()) {
+            if (!idle.isEmpty() && (lruIdle == null || idle.getLast().lastUsed < lruIdle.getLast().lastUsed)) {
+                lruIdle = idle;
+            } // if
+        } // for
+        
+        if (lruIdle != null) {
+            close(lruIdle.removeLast());
+        } // if
+    } // closeLeastRecentlyUsed
+    
+    private void close(PooledConnection pooledCon) {
+        pooledCon.close();
+        forget(pooledCon.dbName);
+    } // close
+    
+    /**
+     * Forgets a connection to the given database, either closed or whose creation failed, waking up the borrowers
+     * waiting for room.
+     * @param dbName
+     */
+    private synchronized void forget(String dbName) {
+        int num = getOpenConnections(dbName) - 1;
+        
+        if (num > 0) {
+            openConns.put(dbName, num);
+        } else {
+            openConns.remove(dbName);
+        } // if else
+        
+        numOpenConns--;
+        LOGGER.debug("MySQL connection closed (database=" + dbName + ", open connections=" + numOpenConns + ")");
+        notifyAll();
+    } // forget
+    
+    /**
+     * A pooled connection, together with its prepared statements cache.
+     */
+    public class PooledConnection {
+        
+        private final String dbName;
+        private final Connection con;
+        private final LinkedHashMap<String, PreparedStatement> stmts;
+        private long lastUsed;
+        private long lastValidated;
+        
+        /**
+         * Constructor.
+         * @param dbName
+         * @param con
+         */
+        private PooledConnection(String dbName, Connection con) {
+            this.dbName = dbName;
+            this.con = con;
+            this.lastUsed = System.currentTimeMillis();
+            this.lastValidated = lastUsed;
+            
+            // access-ordered map; the least recently used statement is closed when the cache is full
+            this.stmts = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > stmtCacheSize) {
+                        closeStatement(eldest.getValue());
+                        return true;
+                    } // if
+                    
+                    return false;
+                } // removeEldestEntry
+                
+            };
+        } // PooledConnection
+        
+        /**
+         * Gets the underlying connection.
+         * @return The underlying connection
+         */
+        public Connection getConnection() {
+            return con;
+        } // getConnection
+        
+        /**
+         * Gets a prepared statement for the given SQL sentence; it is created if not yet cached. Since the insertion
+         * sentences only depend on the table name and the column names, the cache is in practice keyed by table and
+         * column set. The parameters and the batch of a cached statement are cleared before returning it.
+         * @param sql SQL sentence to be prepared if not yet cached
+         * @return A prepared statement
+         * @throws SQLException
+         */
+        public PreparedStatement getStatement(String sql) throws SQLException {
+            PreparedStatement stmt = stmts.get(sql);
+            
+            if (stmt == null) {
+                stmt = con.prepareStatement(sql);
+                stmts.put(sql, stmt);
+            } else {
+                stmt.clearParameters();
+                stmt.clearBatch();
+            } // if else
+            
+            return stmt;
+        } // getStatement
+        
+        private boolean validate() {
+            long now = System.currentTimeMillis();
+            
+            if (now - lastValidated <= validationInterval) {
+                return true;
+            } // if
+            
+            try {
+                if (con.isValid(VALIDATION_TIMEOUT)) {
+                    lastValidated = now;
+                    return true;
+                } // if
+            } catch (SQLException e) {
+                LOGGER.debug("MySQL connection validation error (database=" + dbName + ", details=" + e.getMessage()
+                        + ")");
+            } // try catch
+            
+            return false;
+        } // validate
+        
+        private void close() {
+            for (PreparedStatement stmt : stmts.values()) {
+                closeStatement(stmt);
+            } // for
+            
+            stmts.clear();
+            
+            try {
+                con.close();
+            } catch (SQLException e) {
+                LOGGER.warn("The MySQL connection could not be closed. Details=" + e.getMessage());
+            } // try catch
+        } // close
+        
+        private void closeStatement(PreparedStatement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                LOGGER.warn("The MySQL statement could not be closed. Details=" + e.getMessage());
+            } // try catch
+        } // closeStatement
+        
+    } // PooledConnection
+    
+} // MySQLConnectionPool
@@ -24,12 +24,34 @@ package com.telefonica.iot.cygnus.errors;
  */
 public class CygnusPersistenceError extends Exception {
     
+    private final int persistedEvents;
+    
     /**
      * Constructor.
      * @param message
      */
     public CygnusPersistenceError(String message) {
         super("Persistence error (" + message + ")");
+        persistedEvents = 0;
+    } // CygnusPersistenceError
+    
+    /**
+     * Constructor for a batch whose first events were already persisted when the error happened.
+     * @param e The original persistence error
+     * @param persistedEvents Number of events at the beginning of the batch already persisted
+     */
+    public CygnusPersistenceError(CygnusPersistenceError e, int persistedEvents) {
+        super(e.getMessage(), e);
+        this.persistedEvents = persistedEvents;
     } // CygnusPersistenceError
     
+    /**
+     * Gets the number of events at the beginning of the batch already persisted when the error happened; they must
+     * not be re-injected.
+     * @return The number of events already persisted
+     */
+    public int getPersistedEvents() {
+        return persistedEvents;
+    } // getPersistedEvents
+    
 } // CygnusPersistenceError
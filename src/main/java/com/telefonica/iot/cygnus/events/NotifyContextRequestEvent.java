@@ -0,0 +1,59 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.events;
+
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import java.util.Map;
+import org.apache.flume.event.SimpleEvent;
+
+/**
+ *
+ * @author frb
+ * 
+ * Flume event carrying, in addition to the headers and the body, the NotifyContextRequest object the body was parsed
+ * into at the source. This way the interceptors and the sinks reading from memory-based channels do not have to parse
+ * the notification again. File-based channels only persist the headers and the body, thus the notification is not
+ * available after the event is recovered from disk and the body must be parsed in that case.
+ */
+public class NotifyContextRequestEvent extends SimpleEvent {
+    
+    private final NotifyContextRequest notification;
+    
+    /**
+     * Constructor.
+     * @param headers
+     * @param body
+     * @param notification
+     */
+    public NotifyContextRequestEvent(Map<String, String> headers, byte[] body, NotifyContextRequest notification) {
+        super();
+        setHeaders(headers);
+        setBody(body);
+        this.notification = notification;
+    } // NotifyContextRequestEvent
+    
+    /**
+     * Gets the already parsed notification.
+     * @return The already parsed notification
+     */
+    public NotifyContextRequest getNotification() {
+        return notification;
+    } // getNotification
+    
+} // NotifyContextRequestEvent
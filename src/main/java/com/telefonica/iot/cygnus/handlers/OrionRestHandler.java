@@ -18,6 +18,9 @@
 
 package com.telefonica.iot.cygnus.handlers;
 
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import java.io.BufferedReader;
 import java.util.ArrayList;
@@ -235,6 +238,24 @@ public class OrionRestHandler implements HTTPSourceHandler {
         data = data.replaceAll(">[ ]*<", "><");
         LOGGER.info("Received data (" + data + ")");
         
+        // parse the notification just once; the parsed object travels within the event until the sinks, thus neither
+        // the interceptors nor the sinks have to parse it again (unless the event is read from a file-based channel).
+        // Json notifications are re-serialized in a compact way, which reduces the bytes written by such channels
+        NotifyContextRequest notification;
+        
+        try {
+            notification = Utils.parseNotifyContextRequest(data, contentType);
+            
+            if (contentType.contains("application/json")) {
+                data = Utils.toCompactJson(notification);
+            } // if
+        } catch (CygnusBadContextData e) {
+            // the notification is not rejected here; as it was done before parsing at the source, the body is put
+            // in the channel and it will be discarded later by the interceptors or the sinks
+            LOGGER.warn("The notification could not be parsed at the source (" + e.getMessage() + ")");
+            notification = null;
+        } // try catch
+        
         // create the appropiate headers
         Map<String, String> eventHeaders = new HashMap<String, String>();
         eventHeaders.put(Constants.HEADER_CONTENT_TYPE, contentType);
@@ -253,7 +274,14 @@ public class OrionRestHandler implements HTTPSourceHandler {
         
         // create the event list containing only one event
         ArrayList<Event> eventList = new ArrayList<Event>();
-        Event event = EventBuilder.withBody(data.getBytes(), eventHeaders);
+        Event event;
+        
+        if (notification == null) {
+            event = EventBuilder.withBody(data.getBytes(), eventHeaders);
+        } else {
+            event = new NotifyContextRequestEvent(eventHeaders, data.getBytes(), notification);
+        } // if else
+        
         eventList.add(event);
         LOGGER.info("Event put in the channel (id=" + event.hashCode() + ", ttl=" + eventsTTL + ")");
         return eventList;
@@ -18,11 +18,11 @@
 
 package com.telefonica.iot.cygnus.interceptors;
 
-import com.google.gson.Gson;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
-import com.telefonica.iot.cygnus.containers.NotifyContextRequestSAXHandler;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
@@ -30,16 +30,12 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.interceptor.Interceptor;
@@ -47,8 +43,6 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * Custom interceptor in charge of extracting the destination where the data must be persisted. This destination is
@@ -235,48 +229,26 @@ public class GroupingInterceptor implements Interceptor {
     public Event intercept(Event event) {
         // get the original headers and body
         Map<String, String> headers = event.getHeaders();
-        String body = new String(event.getBody());
         
         // get some original header values
         String fiwareServicePath = headers.get(Constants.HEADER_SERVICE_PATH);
         
-        // parse the original body; this part may be unnecessary if notifications are parsed at the source only once
+        // get the notification; it was already parsed at the source unless the event was not created by
+        // OrionRestHandler, in that case the original body is parsed
         // see --> https://github.com/telefonicaid/fiware-cygnus/issues/359
         NotifyContextRequest notification;
 
-        if (headers.get(Constants.HEADER_CONTENT_TYPE).contains("application/json")) {
-            Gson gson = new Gson();
-
-            try {
-                notification = gson.fromJson(body, NotifyContextRequest.class);
-            } catch (Exception e) {
-                LOGGER.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } // try catch // try catch
-        } else if (headers.get(Constants.HEADER_CONTENT_TYPE).contains("application/xml")) {
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-            
+        if (event instanceof NotifyContextRequestEvent) {
+            notification = ((NotifyContextRequestEvent) event).getNotification();
+        } else {
             try {
-                SAXParser saxParser = saxParserFactory.newSAXParser();
-                NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
-                saxParser.parse(new InputSource(new StringReader(body)), handler);
-                notification = handler.getNotifyContextRequest();
-            } catch (ParserConfigurationException e) {
+                notification = Utils.parseNotifyContextRequest(new String(event.getBody()),
+                        headers.get(Constants.HEADER_CONTENT_TYPE));
+            } catch (CygnusBadContextData e) {
                 LOGGER.error("Runtime error (" + e.getMessage() + ")");
                 return null;
-            } catch (SAXException e) {
-                LOGGER.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } catch (IOException e) {
-                LOGGER.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } // try catch // try catch
-        } else {
-            // this point should never be reached since the content type has been checked when receiving the
-            // notification
-            LOGGER.error("Runtime error (Unrecognized content type (not Json nor XML)");
-            return null;
-        } // if else if
+            } // try catch
+        } // if else
         
         // iterate on the contextResponses
         ArrayList<String> destinations = new ArrayList<String>();
@@ -20,16 +20,21 @@ package com.telefonica.iot.cygnus.sinks;
 
 import com.telefonica.iot.cygnus.backends.ckan.CKANBackendImpl;
 import com.telefonica.iot.cygnus.backends.ckan.CKANBackend;
+import com.telefonica.iot.cygnus.backends.http.HostSelector;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.flume.Context;
 
@@ -49,6 +54,17 @@ public class OrionCKANSink extends OrionSink {
     private String orionUrl;
     private boolean rowAttrPersistence;
     private boolean ssl;
+    private int maxRecordsPerUpsert;
+    private long maxBytesPerUpsert;
+    private long cacheTtl;
+    private int cacheMaxOrgs;
+    private String cacheSnapshotFile;
+    private long cacheSnapshotInterval;
+    private boolean cacheWarmUp;
+    private int cacheWarmUpPageSize;
+    private int cacheWarmUpParallelism;
+    private HostSelector.Strategy hostSelection;
+    private int maxInFlightPerHost;
     private CKANBackend persistenceBackend;
     
     /**
@@ -91,6 +107,101 @@ public class OrionCKANSink extends OrionSink {
         return rowAttrPersistence;
     } // getRowAttrPersistence
 
+    /**
+     * Gets the maximum number of records sent within a single datastore_upsert request. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum number of records sent within a single datastore_upsert request
+     */
+    protected int getMaxRecordsPerUpsert() {
+        return maxRecordsPerUpsert;
+    } // getMaxRecordsPerUpsert
+    
+    /**
+     * Gets the maximum number of bytes sent within a single datastore_upsert request. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum number of bytes sent within a single datastore_upsert request
+     */
+    protected long getMaxBytesPerUpsert() {
+        return maxBytesPerUpsert;
+    } // getMaxBytesPerUpsert
+    
+    /**
+     * Gets the seconds a cached organization is used before refreshing it from CKAN. It is protected due to it is
+     * only required for testing purposes.
+     * @return The seconds a cached organization is used before refreshing it from CKAN
+     */
+    protected long getCacheTtl() {
+        return cacheTtl;
+    } // getCacheTtl
+    
+    /**
+     * Gets the maximum number of cached organizations. It is protected due to it is only required for testing
+     * purposes.
+     * @return The maximum number of cached organizations
+     */
+    protected int getCacheMaxOrgs() {
+        return cacheMaxOrgs;
+    } // getCacheMaxOrgs
+    
+    /**
+     * Gets the cache snapshot file. It is protected due to it is only required for testing purposes.
+     * @return The cache snapshot file, empty if the snapshots are disabled
+     */
+    protected String getCacheSnapshotFile() {
+        return cacheSnapshotFile;
+    } // getCacheSnapshotFile
+    
+    /**
+     * Gets the seconds between cache snapshots. It is protected due to it is only required for testing purposes.
+     * @return The seconds between cache snapshots
+     */
+    protected long getCacheSnapshotInterval() {
+        return cacheSnapshotInterval;
+    } // getCacheSnapshotInterval
+    
+    /**
+     * Returns if the cache is warmed up at startup. It is protected due to it is only required for testing purposes.
+     * @return True if the cache is warmed up at startup, false otherwise
+     */
+    protected boolean getCacheWarmUp() {
+        return cacheWarmUp;
+    } // getCacheWarmUp
+    
+    /**
+     * Gets the maximum number of packages per page when warming up the cache. It is protected due to it is only
+     * required for testing purposes.
+     * @return The maximum number of packages per page when warming up the cache
+     */
+    protected int getCacheWarmUpPageSize() {
+        return cacheWarmUpPageSize;
+    } // getCacheWarmUpPageSize
+    
+    /**
+     * Gets the maximum number of CKAN requests in flight when warming up the cache. It is protected due to it is only
+     * required for testing purposes.
+     * @return The maximum number of CKAN requests in flight when warming up the cache
+     */
+    protected int getCacheWarmUpParallelism() {
+        return cacheWarmUpParallelism;
+    } // getCacheWarmUpParallelism
+    
+    /**
+     * Gets the host selection strategy. It is protected due to it is only required for testing purposes.
+     * @return The host selection strategy
+     */
+    protected HostSelector.Strategy getHostSelection() {
+        return hostSelection;
+    } // getHostSelection
+    
+    /**
+     * Gets the maximum number of requests in flight per CKAN host. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of requests in flight per CKAN host
+     */
+    protected int getMaxInFlightPerHost() {
+        return maxInFlightPerHost;
+    } // getMaxInFlightPerHost
+
     /**
      * Returns the persistence backend. It is protected due to it is only required for testing purposes.
      * @return The persistence backend
@@ -109,6 +220,7 @@ public class OrionCKANSink extends OrionSink {
     
     @Override
     public void configure(Context context) {
+        super.configure(context);
         apiKey = context.getString("api_key", "nokey");
         LOGGER.debug("[" + this.getName() + "] Reading configuration (api_key=" + apiKey + ")");
         ckanHost = context.getString("ckan_host", "localhost");
@@ -122,23 +234,198 @@ public class OrionCKANSink extends OrionSink {
                 + ")");
         ssl = context.getString("ssl", "false").equals("true");
         LOGGER.debug("[" + this.getName() + "] Reading configuration (ssl=" + (ssl ? "true" : "false") + ")");
+        maxRecordsPerUpsert = context.getInteger("ckan_max_records_per_upsert", 1000);
+        
+        if (maxRecordsPerUpsert < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid ckan_max_records_per_upsert (" + maxRecordsPerUpsert
+                    + "), it must be greater than 0. Defaulting to ckan_max_records_per_upsert=1000");
+            maxRecordsPerUpsert = 1000;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_max_records_per_upsert="
+                    + maxRecordsPerUpsert + ")");
+        } // if else
+        
+        maxBytesPerUpsert = context.getLong("ckan_max_bytes_per_upsert", 1048576L);
+        
+        if (maxBytesPerUpsert < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid ckan_max_bytes_per_upsert (" + maxBytesPerUpsert
+                    + "), it must be greater than 0. Defaulting to ckan_max_bytes_per_upsert=1048576");
+            maxBytesPerUpsert = 1048576;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_max_bytes_per_upsert="
+                    + maxBytesPerUpsert + ")");
+        } // if else
+        
+        cacheTtl = context.getLong("ckan_cache_ttl", 3600L);
+        
+        if (cacheTtl < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid ckan_cache_ttl (" + cacheTtl + "), it must be greater "
+                    + "than 0. Defaulting to ckan_cache_ttl=3600");
+            cacheTtl = 3600;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_cache_ttl=" + cacheTtl + ")");
+        } // if else
+        
+        cacheMaxOrgs = context.getInteger("ckan_cache_max_orgs", 1000);
+        
+        if (cacheMaxOrgs < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid ckan_cache_max_orgs (" + cacheMaxOrgs + "), it must be "
+                    + "greater than 0. Defaulting to ckan_cache_max_orgs=1000");
+            cacheMaxOrgs = 1000;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_cache_max_orgs=" + cacheMaxOrgs
+                    + ")");
+        } // if else
+        
+        cacheSnapshotFile = context.getString("ckan_cache_snapshot_file", "");
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_cache_snapshot_file=" + cacheSnapshotFile
+                + ")");
+        cacheSnapshotInterval = context.getLong("ckan_cache_snapshot_interval", 60L);
+        
+        if (cacheSnapshotInterval < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid ckan_cache_snapshot_interval (" + cacheSnapshotInterval
+                    + "), it must be greater than 0. Defaulting to ckan_cache_snapshot_interval=60");
+            cacheSnapshotInterval = 60;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_cache_snapshot_interval="
+                    + cacheSnapshotInterval + ")");
+        } // if else
+        
+        cacheWarmUp = context.getBoolean("ckan_cache_warm_up", false);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_cache_warm_up=" + cacheWarmUp + ")");
+        cacheWarmUpPageSize = context.getInteger("ckan_cache_warm_up_page_size", 1000);
+        
+        if (cacheWarmUpPageSize < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid ckan_cache_warm_up_page_size (" + cacheWarmUpPageSize
+                    + "), it must be greater than 0. Defaulting to ckan_cache_warm_up_page_size=1000");
+            cacheWarmUpPageSize = 1000;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_cache_warm_up_page_size="
+                    + cacheWarmUpPageSize + ")");
+        } // if else
+        
+        cacheWarmUpParallelism = context.getInteger("ckan_cache_warm_up_parallelism", 4);
+        
+        if (cacheWarmUpParallelism < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid ckan_cache_warm_up_parallelism (" + cacheWarmUpParallelism
+                    + "), it must be greater than 0. Defaulting to ckan_cache_warm_up_parallelism=4");
+            cacheWarmUpParallelism = 4;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (ckan_cache_warm_up_parallelism="
+                    + cacheWarmUpParallelism + ")");
+        } // if else
+        
+        String hostSelectionStr = context.getString("host_selection", "failover");
+        
+        try {
+            hostSelection = HostSelector.Strategy.valueOf(hostSelectionStr.toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (host_selection=" + hostSelectionStr + ")");
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("[" + this.getName() + "] Invalid host_selection (" + hostSelectionStr + "), it must be "
+                    + "'failover', 'round_robin', 'least_outstanding' or 'ewma'. Defaulting to "
+                    + "host_selection=failover");
+            hostSelection = HostSelector.Strategy.FAILOVER;
+        } // try catch
+        
+        maxInFlightPerHost = context.getInteger("max_in_flight_per_host", 0);
+        
+        if (maxInFlightPerHost < 0 || maxInFlightPerHost > Constants.MAX_CONNS_PER_ROUTE) {
+            LOGGER.error("[" + this.getName() + "] Invalid max_in_flight_per_host (" + maxInFlightPerHost + "), it "
+                    + "must be between 0 and " + Constants.MAX_CONNS_PER_ROUTE + ". Defaulting to "
+                    + "max_in_flight_per_host=0");
+            maxInFlightPerHost = 0;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (max_in_flight_per_host="
+                    + maxInFlightPerHost + ")");
+        } // if else
     } // configure
 
     @Override
     public void start() {
         try {
             // create persistenceBackend backend
-            persistenceBackend = new CKANBackendImpl(apiKey, ckanHost, ckanPort, orionUrl, ssl);
+            CKANBackendImpl backend = new CKANBackendImpl(apiKey, ckanHost, ckanPort, orionUrl, ssl,
+                    maxRecordsPerUpsert, maxBytesPerUpsert, cacheTtl * 1000, cacheMaxOrgs);
+            backend.setHostSelection(hostSelection);
+            
+            // the upserts are pipelined, if configured
+            if (maxInFlightPerHost > 0) {
+                backend.enableAsync(maxInFlightPerHost);
+            } // if
+            
+            // load the cache snapshot, if any, and save it periodically
+            if (!cacheSnapshotFile.isEmpty()) {
+                backend.enableCacheSnapshots(cacheSnapshotFile, cacheSnapshotInterval * 1000);
+            } // if
+            
+            // warm up the cache, if configured, before draining the channel; the lookups are done lazily otherwise
+            if (cacheWarmUp) {
+                try {
+                    backend.warmUpCache(cacheWarmUpPageSize, cacheWarmUpParallelism);
+                } catch (Exception e) {
+                    LOGGER.error("[" + this.getName() + "] The CKAN cache could not be warmed up. Details="
+                            + e.getMessage());
+                } // try catch
+            } // if
+            
+            persistenceBackend = backend;
         } catch (Exception ex) {
             LOGGER.error(ex.getMessage());
-        } // try catch // try catch // try catch // try catch
+        } // try catch
 
         super.start();
         LOGGER.info("[" + this.getName() + "] Startup completed");
     } // start
     
+    @Override
+    public void stop() {
+        if (persistenceBackend != null) {
+            try {
+                persistenceBackend.close();
+            } catch (Exception e) {
+                LOGGER.error("[" + this.getName() + "] The CKAN persistence backend could not be closed. Details="
+                        + e.getMessage());
+            } // try catch
+        } // if
+        
+        super.stop();
+    } // stop
+    
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        // all the records regarding the same resource are upserted at the same time, even within a single event
+        LinkedHashMap<String, ResourceRecords> aggregation = new LinkedHashMap<String, ResourceRecords>();
+        aggregate(aggregation, eventHeaders, notification);
+        persistAggregation(aggregation);
+    } // persist
+    
+    @Override
+    void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+        // all the records regarding the same resource are upserted at the same time, independently of the event they
+        // come from
+        LinkedHashMap<String, ResourceRecords> aggregation = new LinkedHashMap<String, ResourceRecords>();
+        
+        for (NotifyContextRequestEvent event : batch) {
+            // the wrong events are discarded before writing anything
+            try {
+                aggregate(aggregation, event.getHeaders(), event.getNotification());
+            } catch (Exception e) {
+                skipWrongEvent(event, e);
+            } // try catch
+        } // for
+        
+        persistAggregation(aggregation);
+    } // persistBatch
+    
+    /**
+     * Aggregates the records to be upserted given a notification, per resource.
+     * @param aggregation
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void aggregate(LinkedHashMap<String, ResourceRecords> aggregation, Map<String, String> eventHeaders,
+            NotifyContextRequest notification) throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get("timestamp"));
         String fiwareService = eventHeaders.get(Constants.HEADER_SERVICE);
@@ -166,6 +453,13 @@ public class OrionCKANSink extends OrionSink {
             // build the pavkage and resource name
             String pkgName = buildPkgName(fiwareService, fiwareServicePaths[i]);
             String resName = buildResName(destinations[i]);
+            String resKey = orgName + "/" + pkgName + "/" + resName;
+            ResourceRecords resRecords = aggregation.get(resKey);
+            
+            if (resRecords == null) {
+                resRecords = new ResourceRecords(orgName, pkgName, resName);
+                aggregation.put(resKey, resRecords);
+            } // if
 
             // iterate on all this CKANBackend's attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -198,8 +492,8 @@ public class OrionCKANSink extends OrionSink {
                     LOGGER.info("[" + this.getName() + "] Persisting data at OrionCKANSink (orgName=" + orgName
                             + ", pkgName=" + pkgName + ", resName=" + resName + ", data=" + recvTimeTs + ", "
                             + recvTime + ", " + attrName + ", " + attrType + ", " + attrValue + ", " + attrMd + ")");
-                    persistenceBackend.persist(recvTimeTs, recvTime, orgName, pkgName, resName, attrName, attrType,
-                            attrValue, attrMd);
+                    resRecords.records.add(persistenceBackend.createRecord(recvTimeTs, recvTime, attrName,
+                            attrType, attrValue, attrMd));
                 } else {
                     attrs.put(attrName, attrValue);
                     mds.put(attrName + "_md", attrMd);
@@ -212,10 +506,61 @@ public class OrionCKANSink extends OrionSink {
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionCKANSink (orgName=" + orgName
                         + ", pkgName=" + pkgName + ", resName=" + resName + ", data=" + recvTime + ", "
                         + attrs.toString() + ", " + mds.toString() + ")");
-                persistenceBackend.persist(recvTime, orgName, pkgName, resName, attrs, mds);
+                resRecords.records.add(persistenceBackend.createRecord(recvTime, attrs, mds));
             } // if
         } // for
-    } // persist
+    } // aggregate
+    
+    /**
+     * Persists the aggregated records, upserting all the records regarding the same resource at the same time (the
+     * backend splits them into requests bounded in number of records and bytes). The records of a resource that cannot
+     * be upserted due to a non persistence error (e.g. a not provisioned resource in the per-column mode, or a
+     * rejected upsert) are logged and discarded, and the rest of resources are persisted anyway.
+     * @param aggregation
+     * @throws Exception
+     */
+    private void persistAggregation(LinkedHashMap<String, ResourceRecords> aggregation) throws Exception {
+        try {
+            for (ResourceRecords resRecords : aggregation.values()) {
+                if (resRecords.records.isEmpty()) {
+                    continue;
+                } // if
+                
+                try {
+                    persistenceBackend.persist(resRecords.orgName, resRecords.pkgName, resRecords.resName,
+                            resRecords.records, rowAttrPersistence);
+                } catch (CygnusPersistenceError e) {
+                    throw e;
+                } catch (Exception e) {
+                    LOGGER.error("[" + this.getName() + "] Discarding the records of a resource that could not be "
+                            + "persisted (orgName=" + resRecords.orgName + ", pkgName=" + resRecords.pkgName
+                            + ", resName=" + resRecords.resName + ", records=" + resRecords.records.size()
+                            + ", details=" + e.getMessage() + ")");
+                } // try catch
+            } // for
+        } catch (Exception e) {
+            // the upserts already in flight are waited for anyway, so that they are not mixed with the next batch
+            try {
+                persistenceBackend.sync();
+            } catch (Exception e2) {
+                LOGGER.debug("[" + this.getName() + "] Error while syncing a failed batch. Details="
+                        + e2.getMessage());
+            } // try catch
+            
+            throw e;
+        } // try catch
+        
+        // the batch is committed once all the pipelined upserts, if any, have been completed; the pipelined upserts
+        // rejected due to a non persistence error are discarded as well
+        try {
+            persistenceBackend.sync();
+        } catch (CygnusPersistenceError e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error("[" + this.getName() + "] Discarding the records of some pipelined upserts that could not "
+                    + "be persisted (details=" + e.getMessage() + ")");
+        } // try catch
+    } // persistAggregation
     
     /**
      * Builds an organization name given a fiwareService. It throws an exception if the naming conventions are violated.
@@ -277,4 +622,29 @@ public class OrionCKANSink extends OrionSink {
         return resName;
     } // buildResName
     
+    /**
+     * Records to be upserted in a resource.
+     */
+    private static class ResourceRecords {
+        
+        private final String orgName;
+        private final String pkgName;
+        private final String resName;
+        private final ArrayList<String> records;
+        
+        /**
+         * Constructor.
+         * @param orgName
+         * @param pkgName
+         * @param resName
+         */
+        public ResourceRecords(String orgName, String pkgName, String resName) {
+            this.orgName = orgName;
+            this.pkgName = pkgName;
+            this.resName = resName;
+            this.records = new ArrayList<String>();
+        } // ResourceRecords
+        
+    } // ResourceRecords
+    
 } // OrionCKANSink
@@ -20,18 +20,41 @@ package com.telefonica.iot.cygnus.sinks;
 
 import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackend;
 import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendImpl;
+import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendImplBinary;
+import com.telefonica.iot.cygnus.backends.http.HostSelector;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import java.util.ArrayList;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.flume.Context;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.NullNode;
 
 /**
  * 
@@ -89,13 +112,44 @@ public class OrionHDFSSink extends OrionSink {
     private String krb5LoginConfFile;
     private String krb5ConfFile;
     private boolean serviceAsNamespace;
-    private HDFSBackendImpl persistenceBackend;
+    private int bufferMaxBytes;
+    private int bufferMaxLines;
+    private boolean partitionedLayout;
+    private boolean avroOutput;
+    private String avroCodec;
+    private boolean binaryBackend;
+    private int backendMaxOpenFiles;
+    private long rollMaxBytes;
+    private long rollInterval;
+    private HostSelector.Strategy hostSelection;
+    private int maxInFlightPerHost;
+    private HDFSBackend persistenceBackend;
+    private final Set<String> knownFiles; // HDFS files known to exist
+    private final Set<String> knownDirs; // HDFS directories known to exist, together with their Hive tables
+    private final SimpleDateFormat partitionFormat;
+    private final HashMap<String, Schema> tableSchemas; // Avro schema of the Hive tables, per HDFS directory and mode
+    private static final Schema ROW_SCHEMA = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"CygnusRow\","
+            + "\"namespace\":\"com.telefonica.iot.cygnus\",\"fields\":["
+            + "{\"name\":\"" + Constants.RECV_TIME_TS + "\",\"type\":\"long\"},"
+            + "{\"name\":\"" + Constants.RECV_TIME + "\",\"type\":\"string\"},"
+            + "{\"name\":\"" + Constants.ENTITY_ID + "\",\"type\":\"string\"},"
+            + "{\"name\":\"" + Constants.ENTITY_TYPE + "\",\"type\":\"string\"},"
+            + "{\"name\":\"" + Constants.ATTR_NAME + "\",\"type\":\"string\"},"
+            + "{\"name\":\"" + Constants.ATTR_TYPE + "\",\"type\":\"string\"},"
+            + "{\"name\":\"" + Constants.ATTR_VALUE + "\",\"type\":\"string\"},"
+            + "{\"name\":\"" + Constants.ATTR_MD + "\",\"type\":{\"type\":\"array\",\"items\":\"string\"}}"
+            + "]}");
     
     /**
      * Constructor.
      */
     public OrionHDFSSink() {
         super();
+        knownFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        knownDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        partitionFormat = new SimpleDateFormat("'year='yyyy'/month='MM'/day='dd'/hour='HH");
+        partitionFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        tableSchemas = new HashMap<String, Schema>();
     } // OrionHDFSSink
     
     /**
@@ -139,6 +193,103 @@ public class OrionHDFSSink extends OrionSink {
         return hivePort;
     } // getHivePort
 
+    /**
+     * Gets the maximum number of characters buffered per HDFS file before writing them. It is protected due to it
+     * is only required for testing purposes.
+     * @return The maximum number of characters buffered per HDFS file
+     */
+    protected int getBufferMaxBytes() {
+        return bufferMaxBytes;
+    } // getBufferMaxBytes
+    
+    /**
+     * Gets the maximum number of lines buffered per HDFS file before writing them. It is protected due to it is only
+     * required for testing purposes.
+     * @return The maximum number of lines buffered per HDFS file
+     */
+    protected int getBufferMaxLines() {
+        return bufferMaxLines;
+    } // getBufferMaxLines
+
+    /**
+     * Gets if the HDFS files are partitioned by time. It is protected due to it is only required for testing
+     * purposes.
+     * @return True if the HDFS files are partitioned by time, otherwise false
+     */
+    protected boolean getPartitionedLayout() {
+        return partitionedLayout;
+    } // getPartitionedLayout
+    
+    /**
+     * Gets if the data is written as Avro files instead of Json lines. It is protected due to it is only required
+     * for testing purposes.
+     * @return True if the data is written as Avro files, otherwise false
+     */
+    protected boolean getAvroOutput() {
+        return avroOutput;
+    } // getAvroOutput
+    
+    /**
+     * Gets the compression codec of the Avro files. It is protected due to it is only required for testing purposes.
+     * @return The compression codec of the Avro files
+     */
+    protected String getAvroCodec() {
+        return avroCodec;
+    } // getAvroCodec
+    
+    /**
+     * Gets if the binary persistence backend is used instead of the REST one. It is protected due to it is only
+     * required for testing purposes.
+     * @return True if the binary persistence backend is used, otherwise false
+     */
+    protected boolean getBinaryBackend() {
+        return binaryBackend;
+    } // getBinaryBackend
+    
+    /**
+     * Gets the maximum number of files kept open by the binary persistence backend. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum number of open files
+     */
+    protected int getBackendMaxOpenFiles() {
+        return backendMaxOpenFiles;
+    } // getBackendMaxOpenFiles
+    
+    /**
+     * Gets the maximum size of a file part written by the binary persistence backend. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum size of a file part, in bytes
+     */
+    protected long getRollMaxBytes() {
+        return rollMaxBytes;
+    } // getRollMaxBytes
+    
+    /**
+     * Gets the maximum time a file part is written by the binary persistence backend. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum time a file part is written, in seconds
+     */
+    protected long getRollInterval() {
+        return rollInterval;
+    } // getRollInterval
+    
+    /**
+     * Gets the host selection strategy. It is protected due to it is only required for testing purposes.
+     * @return The host selection strategy
+     */
+    protected HostSelector.Strategy getHostSelection() {
+        return hostSelection;
+    } // getHostSelection
+    
+    /**
+     * Gets the maximum number of requests in flight per HDFS host. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of requests in flight per HDFS host
+     */
+    protected int getMaxInFlightPerHost() {
+        return maxInFlightPerHost;
+    } // getMaxInFlightPerHost
+
     /**
      * Returns the persistence backend. It is protected due to it is only required for testing purposes.
      * @return The persistence backend
@@ -151,12 +302,13 @@ public class OrionHDFSSink extends OrionSink {
      * Sets the persistence backend. It is protected due to it is only required for testing purposes.
      * @param persistenceBackend
      */
-    protected void setPersistenceBackend(HDFSBackendImpl persistenceBackend) {
+    protected void setPersistenceBackend(HDFSBackend persistenceBackend) {
         this.persistenceBackend = persistenceBackend;
     } // setPersistenceBackend
        
     @Override
     public void configure(Context context) {
+        super.configure(context);
         String cosmosHost = context.getString("cosmos_host");
         String hdfsHost = context.getString("hdfs_host");
         
@@ -172,6 +324,31 @@ public class OrionHDFSSink extends OrionSink {
             LOGGER.debug("[" + this.getName() + "] Defaulting to hdfs_host=localhost");
         } // if else
         
+        String backendImpl = context.getString("backend_impl", "rest");
+        
+        if (backendImpl.equals("rest") || backendImpl.equals("binary")) {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend_impl=" + backendImpl + ")");
+        } else {
+            LOGGER.error("[" + this.getName() + "] Invalid backend_impl (" + backendImpl + "), it must be 'rest' or "
+                    + "'binary'. Defaulting to backend_impl=rest");
+            backendImpl = "rest";
+        } // if else
+        
+        // the binary backend does not support Kerberos authentication
+        if (backendImpl.equals("binary") && context.getBoolean("krb5_auth", false)) {
+            LOGGER.error("[" + this.getName() + "] Invalid backend_impl (binary), Kerberos authentication "
+                    + "(krb5_auth=true) is only supported by 'rest'. Defaulting to backend_impl=rest");
+            backendImpl = "rest";
+        } // if
+        
+        // the binary backend connects to a single Namenode
+        if (backendImpl.equals("binary") && host.length > 1) {
+            LOGGER.error("[" + this.getName() + "] Several HDFS hosts are not supported by backend_impl=binary, "
+                    + "only the first one is used (hdfs_host=" + host[0] + ")");
+            host = new String[]{host[0]};
+        } // if
+        
+        binaryBackend = backendImpl.equals("binary");
         String cosmosPort = context.getString("cosmos_port");
         String hdfsPort = context.getString("hdfs_port");
         
@@ -183,8 +360,8 @@ public class OrionHDFSSink extends OrionSink {
             LOGGER.debug("[" + this.getName() + "] Reading configuration (cosmos_port=" + port + ")"
                     + " -- DEPRECATED, use hdfs_port instead");
         } else {
-            port = "14000";
-            LOGGER.debug("[" + this.getName() + "] Defaulting to hdfs_port=14000");
+            port = (binaryBackend ? "8020" : "14000");
+            LOGGER.debug("[" + this.getName() + "] Defaulting to hdfs_port=" + port);
         }
         
         String cosmosDefaultUsername = context.getString("cosmos_default_username");
@@ -234,15 +411,98 @@ public class OrionHDFSSink extends OrionSink {
         serviceAsNamespace = context.getBoolean("service_as_namespace", false);
         LOGGER.debug("[" + this.getName() + "] Reading configuration (service_as_namespace=" + serviceAsNamespace
                 + ")");
+        bufferMaxBytes = context.getInteger("buffer_max_bytes", 4194304);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (buffer_max_bytes=" + bufferMaxBytes + ")");
+        bufferMaxLines = context.getInteger("buffer_max_lines", 10000);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (buffer_max_lines=" + bufferMaxLines + ")");
+        String fileLayout = context.getString("file_layout", "flat");
+        
+        if (fileLayout.equals("flat") || fileLayout.equals("partitioned")) {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (file_layout=" + fileLayout + ")");
+        } else {
+            LOGGER.error("[" + this.getName() + "] Invalid file_layout (" + fileLayout + "), it must be 'flat' or "
+                    + "'partitioned'. Defaulting to file_layout=flat");
+            fileLayout = "flat";
+        } // if else
+        
+        partitionedLayout = fileLayout.equals("partitioned");
+        String outputFormat = context.getString("output_format", "json");
+        
+        if (outputFormat.equals("json") || outputFormat.equals("avro")) {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (output_format=" + outputFormat + ")");
+        } else {
+            LOGGER.error("[" + this.getName() + "] Invalid output_format (" + outputFormat + "), it must be 'json' or "
+                    + "'avro'. Defaulting to output_format=json");
+            outputFormat = "json";
+        } // if else
+        
+        avroOutput = outputFormat.equals("avro");
+        avroCodec = context.getString("avro_codec", "deflate");
+        
+        if (avroCodec.equals("deflate") || avroCodec.equals("snappy") || avroCodec.equals("null")) {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (avro_codec=" + avroCodec + ")");
+        } else {
+            LOGGER.error("[" + this.getName() + "] Invalid avro_codec (" + avroCodec + "), it must be 'deflate', "
+                    + "'snappy' or 'null'. Defaulting to avro_codec=deflate");
+            avroCodec = "deflate";
+        } // if else
+        
+        backendMaxOpenFiles = context.getInteger("backend_max_open_files", 100);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (backend_max_open_files=" + backendMaxOpenFiles
+                + ")");
+        rollMaxBytes = context.getLong("roll_max_bytes", 134217728L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (roll_max_bytes=" + rollMaxBytes + ")");
+        rollInterval = context.getLong("roll_interval", 3600L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (roll_interval=" + rollInterval + ")");
+        
+        String hostSelectionStr = context.getString("host_selection", "failover");
+        
+        try {
+            hostSelection = HostSelector.Strategy.valueOf(hostSelectionStr.toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (host_selection=" + hostSelectionStr + ")");
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("[" + this.getName() + "] Invalid host_selection (" + hostSelectionStr + "), it must be "
+                    + "'failover', 'round_robin', 'least_outstanding' or 'ewma'. Defaulting to "
+                    + "host_selection=failover");
+            hostSelection = HostSelector.Strategy.FAILOVER;
+        } // try catch
+        
+        maxInFlightPerHost = context.getInteger("max_in_flight_per_host", 0);
+        
+        if (maxInFlightPerHost < 0 || maxInFlightPerHost > Constants.MAX_CONNS_PER_ROUTE) {
+            LOGGER.error("[" + this.getName() + "] Invalid max_in_flight_per_host (" + maxInFlightPerHost + "), it "
+                    + "must be between 0 and " + Constants.MAX_CONNS_PER_ROUTE + ". Defaulting to "
+                    + "max_in_flight_per_host=0");
+            maxInFlightPerHost = 0;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (max_in_flight_per_host="
+                    + maxInFlightPerHost + ")");
+        } // if else
     } // configure
 
     @Override
     public void start() {
         try {
             // create the persistence backend
-            persistenceBackend = new HDFSBackendImpl(host, port, username, oauth2Token, hiveHost, hivePort, krb5,
-                    krb5User, krb5Password, krb5LoginConfFile, krb5ConfFile, serviceAsNamespace);
-            LOGGER.debug("[" + this.getName() + "] HDFS persistence backend created");
+            if (binaryBackend) {
+                persistenceBackend = new HDFSBackendImplBinary("hdfs://" + host[0] + ":" + port, username,
+                        oauth2Token, hiveHost, hivePort, serviceAsNamespace, partitionedLayout, backendMaxOpenFiles,
+                        rollMaxBytes, rollInterval);
+                LOGGER.debug("[" + this.getName() + "] HDFS binary persistence backend created");
+            } else {
+                HDFSBackendImpl backend = new HDFSBackendImpl(host, port, username, oauth2Token, hiveHost, hivePort,
+                        krb5, krb5User, krb5Password, krb5LoginConfFile, krb5ConfFile, serviceAsNamespace,
+                        partitionedLayout);
+                backend.setHostSelection(hostSelection);
+                
+                // the appends are pipelined, if configured
+                if (maxInFlightPerHost > 0) {
+                    backend.enableAsync(maxInFlightPerHost);
+                } // if
+                
+                persistenceBackend = backend;
+                LOGGER.debug("[" + this.getName() + "] HDFS persistence backend created");
+            } // if else
         } catch (Exception e) {
             LOGGER.error(e.getMessage());
         } // try catch // try catch
@@ -250,9 +510,282 @@ public class OrionHDFSSink extends OrionSink {
         super.start();
         LOGGER.info("[" + this.getName() + "] Startup completed");
     } // start
+    
+    @Override
+    public void stop() {
+        if (persistenceBackend != null) {
+            try {
+                persistenceBackend.close();
+            } catch (Exception e) {
+                LOGGER.error("[" + this.getName() + "] The HDFS persistence backend could not be closed. Details="
+                        + e.getMessage());
+            } // try catch
+        } // if
+        
+        super.stop();
+    } // stop
 
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        LinkedHashMap<String, HDFSFileData> aggregation = new LinkedHashMap<String, HDFSFileData>();
+        aggregate(aggregation, eventHeaders, notification);
+        persistAndSync(aggregation);
+    } // persist
+    
+    @Override
+    void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+        // all the lines regarding the same HDFS file are appended at the same time, independently of the event they
+        // come from. In any case, the batch is committed once all the lines have been written (including the
+        // pipelined appends) and synced, i.e. once this method returns
+        LinkedHashMap<String, HDFSFileData> aggregation = new LinkedHashMap<String, HDFSFileData>();
+        // first event, within the batch, whose lines are aggregated per HDFS file
+        HashMap<String, Integer> firstEvents = new HashMap<String, Integer>();
+        int persisted = 0;
+        
+        for (int i = 0; i < batch.size(); i++) {
+            NotifyContextRequestEvent event = batch.get(i);
+            LinkedHashMap<String, HDFSFileData> eventAggregation = new LinkedHashMap<String, HDFSFileData>();
+            
+            // the wrong events are discarded before writing anything
+            try {
+                aggregate(eventAggregation, event.getHeaders(), event.getNotification());
+            } catch (Exception e) {
+                skipWrongEvent(event, e);
+                continue;
+            } // try catch
+            
+            for (String hdfsFile : eventAggregation.keySet()) {
+                if (!firstEvents.containsKey(hdfsFile)) {
+                    firstEvents.put(hdfsFile, i);
+                } // if
+            } // for
+            
+            // bounded memory: once a file buffer reaches its maximum size, the lines of the events aggregated so far
+            // are written and synced now, between events; such events are not re-injected if a later write fails
+            if (addAll(aggregation, eventAggregation)) {
+                LOGGER.debug("[" + this.getName() + "] Maximum size of a file buffer reached, writing the lines "
+                        + "aggregated so far");
+                persistAndSync(aggregation, persisted, firstEvents);
+                aggregation.clear();
+                firstEvents.clear();
+                persisted = i + 1;
+            } // if
+        } // for
+        
+        persistAndSync(aggregation, persisted, firstEvents);
+    } // persistBatch
+    
+    /**
+     * Adds the lines aggregated for an event to the lines aggregated for the batch.
+     * @param aggregation
+     * @param eventAggregation
+     * @return True if the buffer of any file reached its maximum size, otherwise false
+     */
+    private boolean addAll(LinkedHashMap<String, HDFSFileData> aggregation,
+            LinkedHashMap<String, HDFSFileData> eventAggregation) {
+        boolean full = false;
+        
+        for (Map.Entry<String, HDFSFileData> entry : eventAggregation.entrySet()) {
+            HDFSFileData fileData = aggregation.get(entry.getKey());
+            
+            if (fileData == null) {
+                fileData = entry.getValue();
+                aggregation.put(entry.getKey(), fileData);
+            } else {
+                fileData.addAll(entry.getValue());
+            } // if else
+            
+            full = full || fileData.isFull();
+        } // for
+        
+        return full;
+    } // addAll
+    
+    /**
+     * Persists the aggregated lines and syncs the persistence backend, i.e. waits for the pipelined appends, if any.
+     * @param aggregation
+     * @throws Exception
+     */
+    private void persistAndSync(LinkedHashMap<String, HDFSFileData> aggregation) throws Exception {
+        persistAndSync(aggregation, 0, new HashMap<String, Integer>());
+    } // persistAndSync
+    
+    /**
+     * Persists the aggregated lines and syncs the persistence backend, i.e. waits for the pipelined appends, if any.
+     * A persistence error is thrown together with the number of events at the beginning of the batch already
+     * persisted; if the sync fails, this includes the aggregated events whose lines were all written in files not
+     * failing, thus the lines of the files failing since an earlier event are the only ones retried.
+     * @param aggregation
+     * @param persistedEvents
+     * @param firstEvents First event, within the batch, whose lines are aggregated per HDFS file
+     * @throws Exception
+     */
+    private void persistAndSync(LinkedHashMap<String, HDFSFileData> aggregation, int persistedEvents,
+            HashMap<String, Integer> firstEvents) throws Exception {
+        try {
+            persistAggregation(aggregation);
+        } catch (Exception e) {
+            // the appends already in flight are waited for anyway, so that they are not mixed with the next batch
+            try {
+                persistenceBackend.sync();
+            } catch (Exception e2) {
+                LOGGER.debug("[" + this.getName() + "] Error while syncing a failed batch. Details="
+                        + e2.getMessage());
+            } // try catch
+            
+            if (e instanceof CygnusPersistenceError) {
+                throw new CygnusPersistenceError((CygnusPersistenceError) e, persistedEvents);
+            } // if
+            
+            throw e;
+        } // try catch
+        
+        try {
+            persistenceBackend.sync();
+        } catch (Exception e) {
+            // a pipelined append may have failed because the file was removed from HDFS since it was first seen,
+            // thus the existence of the files is checked again when retrying the batch
+            knownFiles.clear();
+            
+            if (e instanceof CygnusPersistenceError) {
+                throw new CygnusPersistenceError((CygnusPersistenceError) e,
+                        getWrittenEvents(persistedEvents, firstEvents));
+            } // if
+            
+            throw e;
+        } // try catch
+    } // persistAndSync
+    
+    /**
+     * Gets the number of events at the beginning of the batch whose lines were all written, once the sync of the
+     * aggregated lines failed, i.e. the events before the first one having lines in a failed file.
+     * @param persistedEvents Number of events at the beginning of the batch already persisted before the sync
+     * @param firstEvents First event, within the batch, whose lines are aggregated per HDFS file
+     * @return The number of events at the beginning of the batch already persisted
+     */
+    private int getWrittenEvents(int persistedEvents, HashMap<String, Integer> firstEvents) {
+        List<String> failedFiles = persistenceBackend.getFailedFiles();
+        
+        if (failedFiles == null || failedFiles.isEmpty()) {
+            return persistedEvents;
+        } // if
+        
+        int writtenEvents = Integer.MAX_VALUE;
+        
+        for (String failedFile : failedFiles) {
+            Integer firstEvent = firstEvents.get(failedFile);
+            writtenEvents = Math.min(writtenEvents, firstEvent == null ? persistedEvents : firstEvent);
+        } // for
+        
+        return Math.max(writtenEvents, persistedEvents);
+    } // getWrittenEvents
+    
+    /**
+     * Lines to be persisted in a HDFS file, together with the information needed for creating such a file (and its
+     * Hive table) if not yet existing.
+     */
+    private class HDFSFileData {
+        
+        private final String hdfsFolder;
+        private final String partitionPath;
+        private final String hiveFields;
+        private final StringBuilder lines;
+        private final ArrayList<GenericRecord> records;
+        private Schema schema;
+        private int numLines;
+        private int numBytes;
+        
+        /**
+         * Constructor.
+         * @param hdfsFolder
+         * @param partitionPath Path of the partition within the folder when dealing with a partitioned layout, null
+         * otherwise
+         * @param hiveFields Hive fields when dealing with a per column attributes persistence, null otherwise
+         */
+        public HDFSFileData(String hdfsFolder, String partitionPath, String hiveFields) {
+            this.hdfsFolder = hdfsFolder;
+            this.partitionPath = partitionPath;
+            this.hiveFields = hiveFields;
+            this.lines = new StringBuilder();
+            this.records = new ArrayList<GenericRecord>();
+            this.schema = null;
+            this.numLines = 0;
+            this.numBytes = 0;
+        } // HDFSFileData
+        
+        /**
+         * Adds a line to be persisted.
+         * @param line
+         */
+        public void addLine(String line) {
+            if (lines.length() > 0) {
+                lines.append("\n");
+            } // if
+            
+            lines.append(line);
+            numLines++;
+            numBytes = lines.length();
+        } // addLine
+        
+        /**
+         * Adds an Avro record to be persisted. The record must match the schema of the buffered records.
+         * @param record
+         * @param size Approximate size of the record, in bytes
+         */
+        public void addRecord(GenericRecord record, int size) {
+            records.add(record);
+            numLines++;
+            numBytes += size;
+        } // addRecord
+        
+        /**
+         * Adds the lines buffered by other file data regarding the same HDFS file.
+         * @param other
+         */
+        public void addAll(HDFSFileData other) {
+            if (lines.length() > 0 && other.lines.length() > 0) {
+                lines.append("\n");
+            } // if
+            
+            lines.append(other.lines);
+            records.addAll(other.records);
+            numLines += other.numLines;
+            numBytes = avroOutput ? numBytes + other.numBytes : lines.length();
+            
+            if (other.schema != null) {
+                schema = other.schema;
+            } // if
+        } // addAll
+        
+        /**
+         * Gets if the buffered lines reached any of the configured maximums.
+         * @return
+         */
+        public boolean isFull() {
+            return numLines >= bufferMaxLines || numBytes >= bufferMaxBytes;
+        } // isFull
+        
+        /**
+         * Removes the buffered lines, once persisted.
+         */
+        public void clear() {
+            lines.setLength(0);
+            records.clear();
+            numLines = 0;
+            numBytes = 0;
+        } // clear
+        
+    } // HDFSFileData
+    
+    /**
+     * Aggregates the lines to be persisted given a notification, per HDFS file.
+     * @param aggregation
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void aggregate(LinkedHashMap<String, HDFSFileData> aggregation, Map<String, String> eventHeaders,
+            NotifyContextRequest notification) throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get("timestamp"));
         String fiwareService = eventHeaders.get(Constants.HEADER_SERVICE);
@@ -262,6 +795,9 @@ public class OrionHDFSSink extends OrionSink {
         // human readable version of the reception time
         String recvTime = Utils.getHumanReadable(recvTimeTs, true);
         
+        // partition the data regarding this event belongs to, if partitioning
+        String partitionPath = (partitionedLayout ? partitionFormat.format(new Date(recvTimeTs)) : null);
+        
         // iterate on the contextResponses
         ArrayList contextResponses = notification.getContextResponses();
         
@@ -279,14 +815,8 @@ public class OrionHDFSSink extends OrionSink {
             String secondLevel = buildSecondLevel(fiwareServicePaths[i]);
             String thirdLevel = buildThirdLevel(destinations[i]);
             String hdfsFolder = firstLevel + "/" + secondLevel + "/" + thirdLevel;
-            String hdfsFile = hdfsFolder + "/" + thirdLevel + ".txt";
-            
-            // check if the fileName exists in HDFS right now, i.e. when its attrName has been got
-            boolean fileExists = false;
-            
-            if (persistenceBackend.exists(hdfsFile)) {
-                fileExists = true;
-            } // if
+            String hdfsFile = hdfsFolder + "/" + (partitionPath == null ? "" : (partitionPath + "/")) + thirdLevel
+                    + (avroOutput ? ".avro" : ".txt");
             
             // iterate on all this entity's attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -306,6 +836,19 @@ public class OrionHDFSSink extends OrionSink {
             // with a per column attributes persistence; in that case the Hive table creation is not done using
             // standard 8-fields but a variable number of them
             String hiveFields = Constants.RECV_TIME + " string";
+            
+            // lines regarding the same HDFS file
+            HDFSFileData fileData = aggregation.get(hdfsFile);
+            
+            if (avroOutput) {
+                if (fileData == null) {
+                    fileData = new HDFSFileData(hdfsFolder, partitionPath, null);
+                    aggregation.put(hdfsFile, fileData);
+                } // if
+                
+                aggregateRecords(hdfsFile, fileData, recvTimeTs, recvTime, entityId, entityType, contextAttributes);
+                continue;
+            } // if
 
             for (ContextAttribute contextAttribute : contextAttributes) {
                 String attrName = contextAttribute.getName();
@@ -330,17 +873,12 @@ public class OrionHDFSSink extends OrionSink {
                     LOGGER.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file ("
                             + hdfsFile + "), Data (" + rowLine + ")");
                     
-                    // if the fileName exists, append the Json document to it; otherwise, create it with initial content
-                    // and mark as existing (this avoids checking if the fileName exists each time a Json document is
-                    // going to be persisted)
-                    if (fileExists) {
-                        persistenceBackend.append(hdfsFile, rowLine);
-                    } else {
-                        persistenceBackend.createDir(hdfsFolder);
-                        persistenceBackend.createFile(hdfsFile, rowLine);
-                        persistenceBackend.provisionHiveTable(hdfsFolder);
-                        fileExists = true;
-                    } // if else
+                    if (fileData == null) {
+                        fileData = new HDFSFileData(hdfsFolder, partitionPath, null);
+                        aggregation.put(hdfsFile, fileData);
+                    } // if
+                    
+                    fileData.addLine(rowLine);
                 } else {
                     columnLine += "\"" + attrName + "\":" + attrValue + ", \"" + attrName + "_md\":" + attrMetadata
                             + ",";
@@ -356,17 +894,362 @@ public class OrionHDFSSink extends OrionSink {
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file (" + hdfsFile
                         + "), Data (" + columnLine + ")");
                 
-                if (fileExists) {
-                    persistenceBackend.append(hdfsFile, columnLine);
-                } else {
-                    persistenceBackend.createDir(hdfsFolder);
-                    persistenceBackend.createFile(hdfsFile, columnLine);
-                    persistenceBackend.provisionHiveTable(hdfsFolder, hiveFields);
-                    fileExists = true;
-                } // if else
+                if (fileData == null) {
+                    fileData = new HDFSFileData(hdfsFolder, partitionPath, hiveFields);
+                    aggregation.put(hdfsFile, fileData);
+                } // if
+                
+                fileData.addLine(columnLine);
             } // if
         } // for
-    } // persist
+    } // aggregate
+    
+    /**
+     * Aggregates the Avro records to be persisted given the attributes of a context element. In row mode, a record
+     * is created per attribute; in column mode, a single record is created for all the attributes, the schema being
+     * derived from the attribute set (each record keeps its own schema, thus records with different attribute sets
+     * can be buffered together; the schema is reused while the attribute set does not change).
+     * @param hdfsFile
+     * @param fileData
+     * @param recvTimeTs
+     * @param recvTime
+     * @param entityId
+     * @param entityType
+     * @param contextAttributes
+     * @throws Exception
+     */
+    private void aggregateRecords(String hdfsFile, HDFSFileData fileData, long recvTimeTs, String recvTime,
+            String entityId, String entityType, ArrayList<ContextAttribute> contextAttributes) throws Exception {
+        if (rowAttrPersistence) {
+            fileData.schema = ROW_SCHEMA;
+            
+            for (ContextAttribute contextAttribute : contextAttributes) {
+                String attrValue = contextAttribute.getContextValue(false);
+                ArrayList<String> attrMd = parseMetadata(contextAttribute.getContextMetadata());
+                GenericRecord record = new GenericData.Record(ROW_SCHEMA);
+                record.put(Constants.RECV_TIME_TS, recvTimeTs / 1000);
+                record.put(Constants.RECV_TIME, recvTime);
+                record.put(Constants.ENTITY_ID, entityId);
+                record.put(Constants.ENTITY_TYPE, entityType);
+                record.put(Constants.ATTR_NAME, contextAttribute.getName());
+                record.put(Constants.ATTR_TYPE, contextAttribute.getType());
+                record.put(Constants.ATTR_VALUE, attrValue);
+                record.put(Constants.ATTR_MD, attrMd);
+                LOGGER.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file (" + hdfsFile
+                        + "), Data (" + record + ")");
+                fileData.addRecord(record, attrValue.length() + attrMd.toString().length());
+            } // for
+            
+            return;
+        } // if
+        
+        // derive the schema from the attribute set, unless it is the same one than the buffered records have
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        fieldNames.add(Constants.RECV_TIME);
+        
+        HashSet<String> uniqueFieldNames = new HashSet<String>(fieldNames);
+        
+        for (ContextAttribute contextAttribute : contextAttributes) {
+            String fieldName = encodeAvro(contextAttribute.getName());
+            
+            if (!uniqueFieldNames.add(fieldName) || !uniqueFieldNames.add(fieldName + "_md")) {
+                throw new CygnusBadContextData("The attribute " + contextAttribute.getName() + " is repeated or its "
+                        + "Avro field name (" + fieldName + ") collides with another attribute one");
+            } // if
+            
+            fieldNames.add(fieldName);
+            fieldNames.add(fieldName + "_md");
+        } // for
+        
+        if (fileData.schema == null || !getFieldNames(fileData.schema).equals(fieldNames)) {
+            fileData.schema = buildColumnSchema(fieldNames);
+        } // if
+        
+        GenericRecord record = new GenericData.Record(fileData.schema);
+        record.put(Constants.RECV_TIME, recvTime);
+        int size = recvTime.length();
+        
+        for (ContextAttribute contextAttribute : contextAttributes) {
+            String fieldName = encodeAvro(contextAttribute.getName());
+            String attrValue = contextAttribute.getContextValue(false);
+            ArrayList<String> attrMd = parseMetadata(contextAttribute.getContextMetadata());
+            record.put(fieldName, attrValue);
+            record.put(fieldName + "_md", attrMd);
+            size += attrValue.length() + attrMd.toString().length();
+        } // for
+        
+        LOGGER.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file (" + hdfsFile
+                + "), Data (" + record + ")");
+        fileData.addRecord(record, size);
+    } // aggregateRecords
+    
+    /**
+     * Builds the Avro schema of a column mode record given its field names; the attribute values are nullable
+     * strings, and the attribute metadata are arrays of strings. The attribute fields have default values (null and
+     * an empty array, respectively), thus a file written with a schema lacking some attributes can be read with a
+     * schema containing them.
+     * @param fieldNames
+     * @return The Avro schema
+     */
+    private Schema buildColumnSchema(ArrayList<String> fieldNames) {
+        ArrayList<Schema.Field> fields = new ArrayList<Schema.Field>();
+        fields.add(new Schema.Field(Constants.RECV_TIME, Schema.create(Schema.Type.STRING), null, null));
+        
+        for (int i = 1; i < fieldNames.size(); i += 2) {
+            fields.add(new Schema.Field(fieldNames.get(i), Schema.createUnion(Arrays.asList(
+                    Schema.create(Schema.Type.NULL), Schema.create(Schema.Type.STRING))), null,
+                    NullNode.getInstance()));
+            fields.add(new Schema.Field(fieldNames.get(i + 1), Schema.createArray(Schema.create(Schema.Type.STRING)),
+                    null, JsonNodeFactory.instance.arrayNode()));
+        } // for
+        
+        Schema schema = Schema.createRecord("CygnusColumn", null, "com.telefonica.iot.cygnus", false);
+        schema.setFields(fields);
+        return schema;
+    } // buildColumnSchema
+    
+    /**
+     * Merges a column mode schema into the schema of a Hive table, i.e. the fields not yet within the table schema
+     * are appended to it.
+     * @param tableSchema The schema of the Hive table, null if not yet known
+     * @param schema
+     * @return The merged schema, being the table schema itself if no field was appended
+     */
+    private Schema mergeColumnSchema(Schema tableSchema, Schema schema) {
+        if (tableSchema == null) {
+            return schema;
+        } // if
+        
+        ArrayList<String> fieldNames = getFieldNames(tableSchema);
+        int numFields = fieldNames.size();
+        
+        for (String fieldName : getFieldNames(schema)) {
+            if (!fieldNames.contains(fieldName)) {
+                fieldNames.add(fieldName);
+            } // if
+        } // for
+        
+        return fieldNames.size() == numFields ? tableSchema : buildColumnSchema(fieldNames);
+    } // mergeColumnSchema
+    
+    /**
+     * Gets the field names of an Avro schema.
+     * @param schema
+     * @return The field names
+     */
+    private ArrayList<String> getFieldNames(Schema schema) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        
+        for (Schema.Field field : schema.getFields()) {
+            fieldNames.add(field.name());
+        } // for
+        
+        return fieldNames;
+    } // getFieldNames
+    
+    /**
+     * Encodes an attribute name as an Avro field name, i.e. only letters, digits and '_' are allowed, and it cannot
+     * start with a digit. Since different attribute names may be encoded the same way (e.g. a-b and a_b), or as the
+     * metadata field name of another attribute (e.g. a_md), the names needing any change, ending in _md or equal to
+     * recvTime are suffixed with the hash of the original name; thus an attribute is always encoded the same way,
+     * independently of the rest of attributes notified with it.
+     * @param attrName
+     * @return The Avro field name
+     */
+    private String encodeAvro(String attrName) {
+        if (attrName.matches("[a-zA-Z_][a-zA-Z0-9_]*") && !attrName.endsWith("_md")
+                && !attrName.equals(Constants.RECV_TIME)) {
+            return attrName;
+        } // if
+        
+        String fieldName = attrName.replaceAll("[^a-zA-Z0-9_]", "_");
+        fieldName = (fieldName.isEmpty() || Character.isDigit(fieldName.charAt(0))) ? "_" + fieldName : fieldName;
+        return fieldName + "_" + String.format("%08x", attrName.hashCode());
+    } // encodeAvro
+    
+    /**
+     * Parses the Json array of metadata of an attribute, as given by getContextMetadata, as a list of strings, a
+     * string per metadata.
+     * @param attrMetadata
+     * @return The list of metadata
+     */
+    private ArrayList<String> parseMetadata(String attrMetadata) {
+        ArrayList<String> res = new ArrayList<String>();
+        JsonArray metadatas = new JsonParser().parse(attrMetadata).getAsJsonArray();
+        
+        for (JsonElement metadata : metadatas) {
+            res.add(metadata.toString());
+        } // for
+        
+        return res;
+    } // parseMetadata
+    
+    /**
+     * Persists the aggregated lines, a single HDFS operation per file.
+     * @param aggregation
+     * @throws Exception
+     */
+    private void persistAggregation(LinkedHashMap<String, HDFSFileData> aggregation) throws Exception {
+        for (Map.Entry<String, HDFSFileData> entry : aggregation.entrySet()) {
+            persistFile(entry.getKey(), entry.getValue());
+        } // for
+    } // persistAggregation
+    
+    /**
+     * Persists the lines buffered for a HDFS file, if any. If the file is known to exist, the lines are appended to
+     * it; otherwise, the file existence is checked and, if not existing, it is created with initial content. The
+     * directory of the file is created (and its Hive table is provisioned) the first time it is seen; when dealing
+     * with a partitioned layout, the Hive partition is provisioned each time a file is created. If an append
+     * fails because the file does not exist anymore, the file is forgotten and created again. The buffer is emptied
+     * afterwards.
+     * @param hdfsFile
+     * @param fileData
+     * @throws Exception
+     */
+    private void persistFile(String hdfsFile, HDFSFileData fileData) throws Exception {
+        if (fileData.numLines == 0) {
+            return;
+        } // if
+        
+        if (avroOutput) {
+            persistAvroFile(hdfsFile, fileData);
+            return;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Writing " + fileData.numLines + " lines in HDFS file (" + hdfsFile
+                + ")");
+        String data = fileData.lines.toString();
+
+        if (isKnownFile(hdfsFile)) {
+            try {
+                persistenceBackend.append(hdfsFile, data);
+                fileData.clear();
+                return;
+            } catch (Exception e) {
+                // the append may have failed because the file was removed from HDFS since it was first seen
+                knownFiles.remove(hdfsFile);
+                
+                if (persistenceBackend.exists(hdfsFile)) {
+                    throw e;
+                } // if
+                
+                LOGGER.info("[" + this.getName() + "] The HDFS file (" + hdfsFile + ") does not exist anymore, "
+                        + "it will be created again");
+                knownDirs.remove(fileData.hdfsFolder);
+            } // try catch
+        } // if
+        
+        if (!knownDirs.contains(fileData.hdfsFolder)) {
+            persistenceBackend.createDir(fileData.hdfsFolder);
+
+            if (rowAttrPersistence) {
+                persistenceBackend.provisionHiveTable(fileData.hdfsFolder);
+            } else {
+                persistenceBackend.provisionHiveTable(fileData.hdfsFolder, fileData.hiveFields);
+            } // if else
+            
+            knownDirs.add(fileData.hdfsFolder);
+        } // if
+        
+        persistenceBackend.createFile(hdfsFile, data);
+        
+        if (fileData.partitionPath != null) {
+            persistenceBackend.provisionHivePartition(fileData.hdfsFolder, fileData.partitionPath, rowAttrPersistence);
+        } // if
+        
+        knownFiles.add(hdfsFile);
+        fileData.clear();
+    } // persistFile
+    
+    /**
+     * Persists the Avro records buffered for a HDFS file, if any. Since Avro container files cannot be appended
+     * through HDFS, the backend writes them in parts of the file, named after the HDFS file plus their creation time
+     * (a new part per call when using HttpFS, a part kept open and rolled when using the binary API). The directory
+     * of the file is created (and its Hive table is provisioned) the first time it is seen; the same applies to the
+     * Hive partition when dealing with a partitioned layout. In column mode, the schema of the Hive table is the
+     * union of the schemas of the files written within the directory, thus it is provisioned again each time new
+     * attributes are written. The buffered records are written in runs of records sharing the same schema. The
+     * buffer is emptied afterwards.
+     * @param hdfsFile
+     * @param fileData
+     * @throws Exception
+     */
+    private void persistAvroFile(String hdfsFile, HDFSFileData fileData) throws Exception {
+        LOGGER.debug("[" + this.getName() + "] Writing " + fileData.numLines + " records in HDFS file (" + hdfsFile
+                + ")");
+        
+        if (!knownDirs.contains(fileData.hdfsFolder)) {
+            persistenceBackend.createDir(fileData.hdfsFolder);
+            knownDirs.add(fileData.hdfsFolder);
+        } // if
+        
+        // the row and column mode tables regarding the same directory are different ones
+        String tableKey = fileData.hdfsFolder + (rowAttrPersistence ? "_row" : "_column");
+        Schema tableSchema = tableSchemas.get(tableKey);
+        boolean provisioned = tableSchema != null;
+        
+        // the first time the table is seen, the schema persisted by a previous run, if any, is the base of the merge,
+        // thus the table never gets narrower; anyway, the table is provisioned again
+        if (!provisioned && !rowAttrPersistence) {
+            String persistedSchema = persistenceBackend.getHiveAvroTableSchema(fileData.hdfsFolder, false);
+            
+            if (persistedSchema != null) {
+                tableSchema = new Schema.Parser().parse(persistedSchema);
+            } // if
+        } // if
+        
+        int from = 0;
+        
+        while (from < fileData.records.size()) {
+            Schema schema = fileData.records.get(from).getSchema();
+            int to = from + 1;
+            
+            while (to < fileData.records.size() && fileData.records.get(to).getSchema().equals(schema)) {
+                to++;
+            } // while
+            
+            Schema mergedSchema = rowAttrPersistence ? ROW_SCHEMA : mergeColumnSchema(tableSchema, schema);
+            
+            if (!provisioned || mergedSchema != tableSchema) {
+                persistenceBackend.provisionHiveAvroTable(fileData.hdfsFolder, mergedSchema.toString(),
+                        rowAttrPersistence);
+                tableSchemas.put(tableKey, mergedSchema);
+                tableSchema = mergedSchema;
+                provisioned = true;
+            } // if
+            
+            persistenceBackend.writeAvro(hdfsFile, schema, avroCodec, fileData.records.subList(from, to));
+            from = to;
+        } // while
+        
+        if (fileData.partitionPath != null && !knownDirs.contains(fileData.hdfsFolder + "/" + fileData.partitionPath)) {
+            persistenceBackend.provisionHivePartition(fileData.hdfsFolder, fileData.partitionPath, rowAttrPersistence);
+            knownDirs.add(fileData.hdfsFolder + "/" + fileData.partitionPath);
+        } // if
+        
+        fileData.clear();
+    } // persistAvroFile
+    
+    
+    /**
+     * Gets if a HDFS file is known to exist. The file existence is checked against HDFS only the first time the file
+     * is seen; from then on, it is remembered.
+     * @param hdfsFile
+     * @return True if the file is known to exist, otherwise false
+     * @throws Exception
+     */
+    private boolean isKnownFile(String hdfsFile) throws Exception {
+        if (knownFiles.contains(hdfsFile)) {
+            return true;
+        } // if
+        
+        if (persistenceBackend.exists(hdfsFile)) {
+            knownFiles.add(hdfsFile);
+            return true;
+        } // if
+        
+        return false;
+    } // isKnownFile
     
     /**
      * Builds the first level of a HDFS path given a fiwareService. It throws an exception if the naming conventions are
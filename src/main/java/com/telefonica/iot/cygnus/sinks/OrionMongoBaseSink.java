@@ -18,11 +18,14 @@
 package com.telefonica.iot.cygnus.sinks;
 
 import com.telefonica.iot.cygnus.backends.mongo.MongoBackend;
+import com.telefonica.iot.cygnus.backends.mongo.MongoBackend.PointsLayout;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.flume.Context;
 
@@ -45,7 +48,22 @@ public abstract class OrionMongoBaseSink extends OrionSink {
     protected String dbPrefix;
     protected String collectionPrefix;
     protected boolean shouldHash;
+    protected long maxBatchBytes;
+    protected int maxInsertRetries;
+    protected PointsLayout pointsLayout;
+    protected int prepopulateCacheSize;
+    protected boolean cacheWarmUp;
     protected MongoBackend backend;
+    private static final int HASH_CACHE_SIZE = 10000;
+    // hashes already generated, per database and human readable collection name; the sink is run by a single thread
+    private final LinkedHashMap<String, String> hashes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > HASH_CACHE_SIZE;
+        } // removeEldestEntry
+        
+    };
     
     /**
      * Gets the mongo hosts. It is protected since it is used by the tests.
@@ -95,6 +113,41 @@ public abstract class OrionMongoBaseSink extends OrionSink {
         return collectionPrefix;
     } // getCollectionPrefix
     
+    /**
+     * Gets the maximum estimated size in bytes of the documents inserted at the same time. It is protected since it
+     * is used by the tests.
+     * @return
+     */
+    protected long getMaxBatchBytes() {
+        return maxBatchBytes;
+    } // getMaxBatchBytes
+    
+    /**
+     * Gets the maximum number of retries for the documents failing within a bulk insertion. It is protected since it
+     * is used by the tests.
+     * @return
+     */
+    protected int getMaxInsertRetries() {
+        return maxInsertRetries;
+    } // getMaxInsertRetries
+    
+    /**
+     * Gets the layout of the points within the aggregated documents. It is protected since it is used by the tests.
+     * @return
+     */
+    protected PointsLayout getPointsLayout() {
+        return pointsLayout;
+    } // getPointsLayout
+    
+    /**
+     * Gets the maximum number of aggregated documents remembered as already prepopulated. It is protected since it
+     * is used by the tests.
+     * @return
+     */
+    protected int getPrepopulateCacheSize() {
+        return prepopulateCacheSize;
+    } // getPrepopulateCacheSize
+    
     /**
      * Sets the backend. It is protected since it is used by the tests.
      * @param backend
@@ -113,6 +166,7 @@ public abstract class OrionMongoBaseSink extends OrionSink {
     
     @Override
     public void configure(Context context) {
+        super.configure(context);
         mongoHosts = context.getString("mongo_hosts", "localhost:27017");
         LOGGER.debug("[" + this.getName() + "] Reading configuration (mongo_hosts=" + mongoHosts + ")");
         mongoUsername = context.getString("mongo_username", "");
@@ -128,13 +182,48 @@ public abstract class OrionMongoBaseSink extends OrionSink {
         LOGGER.debug("[" + this.getName() + "] Reading configuration (collection_prefix=" + collectionPrefix + ")");
         shouldHash = context.getBoolean("should_hash", false);
         LOGGER.debug("[" + this.getName() + "] Reading configuration (should_hash=" + shouldHash + ")");
+        maxBatchBytes = context.getLong("mongo_max_batch_bytes", 8388608L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mongo_max_batch_bytes=" + maxBatchBytes + ")");
+        maxInsertRetries = context.getInteger("mongo_insert_retries", 3);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mongo_insert_retries=" + maxInsertRetries
+                + ")");
+        String pointsLayoutStr = context.getString("points_layout", "array");
+        
+        if (pointsLayoutStr.equals("keyed")) {
+            pointsLayout = PointsLayout.KEYED;
+        } else {
+            if (!pointsLayoutStr.equals("array")) {
+                LOGGER.error("[" + this.getName() + "] Invalid points_layout (" + pointsLayoutStr + "), it must be "
+                        + "array or keyed. Defaulting to points_layout=array");
+            } // if
+            
+            pointsLayout = PointsLayout.ARRAY;
+        } // if else
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (points_layout=" + pointsLayout + ")");
+        prepopulateCacheSize = context.getInteger("prepopulate_cache_size", 10000);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (prepopulate_cache_size=" + prepopulateCacheSize
+                + ")");
+        cacheWarmUp = context.getBoolean("mongo_cache_warm_up", false);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mongo_cache_warm_up=" + cacheWarmUp + ")");
     } // configure
     
     @Override
     public void start() {
         // create the persistence backend
-        backend = new MongoBackend(mongoHosts, mongoUsername, mongoPassword, dataModel);
+        backend = new MongoBackend(mongoHosts, mongoUsername, mongoPassword, dataModel, maxBatchBytes,
+                maxInsertRetries, pointsLayout, prepopulateCacheSize);
         LOGGER.debug("[" + this.getName() + "] Mongo persistence backend created");
+        
+        if (cacheWarmUp) {
+            try {
+                backend.warmUpCollectionsCache(dbPrefix);
+            } catch (Exception e) {
+                LOGGER.error("[" + this.getName() + "] The Mongo collections cache could not be warmed up. Details="
+                        + e.getMessage());
+            } // try catch
+        } // if
+        
         super.start();
         LOGGER.info("[" + this.getName() + "] Startup completed");
     } // start
@@ -236,7 +325,15 @@ public abstract class OrionMongoBaseSink extends OrionSink {
                 return null;
             } // if
             
-            String hash = generateHash(collectionName, limit);
+            // the hash only depends on the human readable collection name and the database name length
+            String hashKey = dbName + "/" + collectionName;
+            String hash = hashes.get(hashKey);
+            
+            if (hash == null) {
+                hash = generateHash(collectionName, limit);
+                hashes.put(hashKey, hash);
+            } // if
+            
             collectionName = collectionPrefix + hash;
             backend.storeCollectionHash(dbName, hash, isAggregated, fiwareService, fiwareServicePath, entityId,
                     entityType, attrName, destination);
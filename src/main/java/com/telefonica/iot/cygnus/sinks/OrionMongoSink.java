@@ -17,11 +17,16 @@
  */
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.backends.mongo.MongoBackend;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import org.bson.Document;
 
 /**
  * OrionMongoSink will be in charge of persisting Orion context data in a historic fashion within a MongoDB deployment.
@@ -48,6 +53,40 @@ public class OrionMongoSink extends OrionMongoBaseSink {
 
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        LinkedHashMap<String, LinkedHashMap<String, ArrayList<Document>>> aggregation =
+                new LinkedHashMap<String, LinkedHashMap<String, ArrayList<Document>>>();
+        aggregate(aggregation, eventHeaders, notification);
+        persistAggregation(aggregation);
+    } // persist
+    
+    @Override
+    void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+        // all the documents regarding the same collection are inserted at the same time, independently of the event
+        // they come from
+        LinkedHashMap<String, LinkedHashMap<String, ArrayList<Document>>> aggregation =
+                new LinkedHashMap<String, LinkedHashMap<String, ArrayList<Document>>>();
+        
+        for (NotifyContextRequestEvent event : batch) {
+            // the wrong events are discarded before writing anything
+            try {
+                aggregate(aggregation, event.getHeaders(), event.getNotification());
+            } catch (Exception e) {
+                skipWrongEvent(event, e);
+            } // try catch
+        } // for
+        
+        persistAggregation(aggregation);
+    } // persistBatch
+    
+    /**
+     * Aggregates the documents to be inserted given a notification, per database and collection.
+     * @param aggregation
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void aggregate(LinkedHashMap<String, LinkedHashMap<String, ArrayList<Document>>> aggregation,
+            Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get("timestamp"));
         String fiwareService = eventHeaders.get(Constants.HEADER_SERVICE);
@@ -62,20 +101,25 @@ public class OrionMongoSink extends OrionMongoBaseSink {
         // human readable version of the reception time
         String recvTime = Utils.getHumanReadable(recvTimeTs, true);
 
-        // create the database for this fiwareService if not yet existing... the cost of trying to create it is the same
-        // than checking if it exits and then creating it
+        // get the collections of the database for this fiwareService; the database is created when persisting the
+        // aggregation
         String dbName = buildDbName(fiwareService);
-        backend.createDatabase(dbName);
+        LinkedHashMap<String, ArrayList<Document>> collections = aggregation.get(dbName);
+        
+        if (collections == null) {
+            collections = new LinkedHashMap<String, ArrayList<Document>>();
+            aggregation.put(dbName, collections);
+        } // if
         
         // collection name container
         String collectionName = null;
 
-        // create the collection at this stage, if the data model is collection-per-service-path
+        // get the collection at this stage, if the data model is collection-per-service-path
         if (dataModel == DataModel.COLLECTIONPERSERVICEPATH) {
             for (String fiwareServicePath : fiwareServicePaths) {
                 collectionName = buildCollectionName(dbName, fiwareServicePath, null, null, false, null, null,
                         fiwareService);
-                backend.createCollection(dbName, collectionName);
+                getDocs(collections, collectionName);
             } // for
         } // if
         
@@ -91,11 +135,11 @@ public class OrionMongoSink extends OrionMongoBaseSink {
             LOGGER.debug("[" + this.getName() + "] Processing context element (id=" + entityId + ", type= "
                     + entityType + ")");
             
-            // create the collection at this stage, if the data model is collection-per-entity
+            // get the collection at this stage, if the data model is collection-per-entity
             if (dataModel == DataModel.COLLECTIONPERENTITY) {
                 collectionName = buildCollectionName(dbName, fiwareServicePaths[i], destinations[i], null, false,
                         entityId, entityType, fiwareService);
-                backend.createCollection(dbName, collectionName);
+                getDocs(collections, collectionName);
             } // if
             
             // iterate on all this entity's attributes, if there are attributes
@@ -115,21 +159,60 @@ public class OrionMongoSink extends OrionMongoBaseSink {
                 LOGGER.debug("[" + this.getName() + "] Processing context attribute (name=" + attrName + ", type="
                         + attrType + ")");
                 
-                // create the collection at this stage, if the data model is collection-per-attribute
+                // get the collection at this stage, if the data model is collection-per-attribute
                 if (dataModel == DataModel.COLLECTIONPERATTRIBUTE) {
                     collectionName = buildCollectionName(dbName, fiwareServicePaths[i], destinations[i], attrName,
                             false, entityId, entityType, fiwareService);
-                    backend.createCollection(dbName, collectionName);
                 } // if
 
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionMongoSink. Database: " + dbName
                         + ", Collection: " + collectionName + ", Data: " + recvTimeTs / 1000 + "," + recvTime + ","
                         + entityId + "," + entityType + "," + attrName + "," + entityType + "," + attrValue + ","
                         + attrMetadata);
-                backend.insertContextDataRaw(dbName, collectionName, recvTimeTs / 1000, recvTime,
-                        entityId, entityType, attrName, attrType, attrValue, attrMetadata);
+                getDocs(collections, collectionName).add(MongoBackend.createRawDocument(dataModel,
+                        recvTimeTs / 1000, entityId, entityType, attrName, attrType, attrValue));
             } // for
         } // for
-    } // persist
+    } // aggregate
+    
+    /**
+     * Gets the list of documents to be inserted in the given collection, creating it if not existing.
+     * @param collections
+     * @param collectionName
+     * @return
+     */
+    private ArrayList<Document> getDocs(LinkedHashMap<String, ArrayList<Document>> collections,
+            String collectionName) {
+        ArrayList<Document> docs = collections.get(collectionName);
+        
+        if (docs == null) {
+            docs = new ArrayList<Document>();
+            collections.put(collectionName, docs);
+        } // if
+        
+        return docs;
+    } // getDocs
+    
+    /**
+     * Persists the aggregated documents, inserting all the documents regarding the same collection at the same time.
+     * @param aggregation
+     * @throws Exception
+     */
+    private void persistAggregation(LinkedHashMap<String, LinkedHashMap<String, ArrayList<Document>>> aggregation)
+        throws Exception {
+        for (Map.Entry<String, LinkedHashMap<String, ArrayList<Document>>> collections : aggregation.entrySet()) {
+            String dbName = collections.getKey();
+            
+            // create the database for this fiwareService if not yet existing... the cost of trying to create it is
+            // the same than checking if it exits and then creating it
+            backend.createDatabase(dbName);
+            
+            for (Map.Entry<String, ArrayList<Document>> docs : collections.getValue().entrySet()) {
+                String collectionName = docs.getKey();
+                backend.createCollection(dbName, collectionName);
+                backend.insertContextDataRaw(dbName, collectionName, docs.getValue());
+            } // for
+        } // for
+    } // persistAggregation
 
 } // OrionMongoSink
@@ -24,11 +24,15 @@ import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribut
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.flume.Context;
 
@@ -58,6 +62,13 @@ public class OrionMySQLSink extends OrionSink {
     private String mysqlUsername;
     private String mysqlPassword;
     private boolean rowAttrPersistence;
+    private int maxConns;
+    private int maxConnsPerDb;
+    private int maxIdleTime;
+    private int validationInterval;
+    private int stmtCacheSize;
+    private int maxRowsPerInsert;
+    private boolean ddlCacheWarmUp;
     private MySQLBackend persistenceBackend;
     
     /**
@@ -107,6 +118,41 @@ public class OrionMySQLSink extends OrionSink {
     protected boolean getRowAttrPersistence() {
         return rowAttrPersistence;
     } // getRowAttrPersistence
+    
+    /**
+     * Gets the maximum number of MySQL connections. It is protected due to it is only required for testing purposes.
+     * @return The maximum number of MySQL connections
+     */
+    protected int getMaxConns() {
+        return maxConns;
+    } // getMaxConns
+    
+    /**
+     * Gets the maximum number of MySQL connections per database. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of MySQL connections per database
+     */
+    protected int getMaxConnsPerDb() {
+        return maxConnsPerDb;
+    } // getMaxConnsPerDb
+    
+    /**
+     * Gets the maximum number of rows inserted by a single statement. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of rows inserted by a single statement
+     */
+    protected int getMaxRowsPerInsert() {
+        return maxRowsPerInsert;
+    } // getMaxRowsPerInsert
+
+    /**
+     * Gets the size of the prepared statements cache per connection. It is protected due to it is only required for
+     * testing purposes.
+     * @return The size of the prepared statements cache per connection
+     */
+    protected int getStmtCacheSize() {
+        return stmtCacheSize;
+    } // getStmtCacheSize
 
     /**
      * Returns the persistence backend. It is protected due to it is only required for testing purposes.
@@ -126,6 +172,7 @@ public class OrionMySQLSink extends OrionSink {
     
     @Override
     public void configure(Context context) {
+        super.configure(context);
         mysqlHost = context.getString("mysql_host", "localhost");
         LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_host=" + mysqlHost + ")");
         mysqlPort = context.getString("mysql_port", "3306");
@@ -138,19 +185,133 @@ public class OrionMySQLSink extends OrionSink {
         rowAttrPersistence = context.getString("attr_persistence", "row").equals("row");
         LOGGER.debug("[" + this.getName() + "] Reading configuration (attr_persistence="
                 + (rowAttrPersistence ? "row" : "column") + ")");
+        maxConns = context.getInteger("mysql_max_conns", 50);
+        
+        if (maxConns <= 0) {
+            LOGGER.error("[" + this.getName() + "] Invalid mysql_max_conns (" + maxConns + "), it must be greater "
+                    + "than 0. Defaulting to mysql_max_conns=50");
+            maxConns = 50;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_max_conns=" + maxConns + ")");
+        maxConnsPerDb = context.getInteger("mysql_max_conns_per_db", 10);
+        
+        if (maxConnsPerDb <= 0) {
+            LOGGER.error("[" + this.getName() + "] Invalid mysql_max_conns_per_db (" + maxConnsPerDb + "), it must "
+                    + "be greater than 0. Defaulting to mysql_max_conns_per_db=10");
+            maxConnsPerDb = 10;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_max_conns_per_db=" + maxConnsPerDb + ")");
+        maxIdleTime = context.getInteger("mysql_max_idle_time", 300);
+        
+        if (maxIdleTime <= 0) {
+            LOGGER.error("[" + this.getName() + "] Invalid mysql_max_idle_time (" + maxIdleTime + "), it must be "
+                    + "greater than 0. Defaulting to mysql_max_idle_time=300");
+            maxIdleTime = 300;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_max_idle_time=" + maxIdleTime + ")");
+        validationInterval = context.getInteger("mysql_validation_interval", 30);
+        
+        if (validationInterval < 0) {
+            LOGGER.error("[" + this.getName() + "] Invalid mysql_validation_interval (" + validationInterval
+                    + "), it must be greater or equal than 0. Defaulting to mysql_validation_interval=30");
+            validationInterval = 30;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_validation_interval="
+                + validationInterval + ")");
+        stmtCacheSize = context.getInteger("mysql_stmt_cache_size", 50);
+        
+        // a cache unable to hold at least one statement would close the statement it has just prepared
+        if (stmtCacheSize <= 0) {
+            LOGGER.error("[" + this.getName() + "] Invalid mysql_stmt_cache_size (" + stmtCacheSize + "), it must "
+                    + "be greater than 0. Defaulting to mysql_stmt_cache_size=50");
+            stmtCacheSize = 50;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_stmt_cache_size=" + stmtCacheSize + ")");
+        maxRowsPerInsert = context.getInteger("mysql_max_rows_per_insert", 100);
+        
+        if (maxRowsPerInsert <= 0) {
+            LOGGER.error("[" + this.getName() + "] Invalid mysql_max_rows_per_insert (" + maxRowsPerInsert + "), it "
+                    + "must be greater than 0. Defaulting to mysql_max_rows_per_insert=100");
+            maxRowsPerInsert = 100;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_max_rows_per_insert=" + maxRowsPerInsert
+                + ")");
+        ddlCacheWarmUp = context.getBoolean("mysql_ddl_cache_warm_up", false);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (mysql_ddl_cache_warm_up=" + ddlCacheWarmUp
+                + ")");
     } // configure
 
     @Override
     public void start() {
         // create the persistence backend
         LOGGER.debug("[" + this.getName() + "] MySQL persistence backend created");
-        persistenceBackend = new MySQLBackend(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword);
+        persistenceBackend = new MySQLBackend(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword, maxConns,
+                maxConnsPerDb, maxIdleTime * 1000L, validationInterval * 1000L, stmtCacheSize, maxRowsPerInsert);
+        
+        if (ddlCacheWarmUp) {
+            try {
+                persistenceBackend.warmUpDDLCache();
+            } catch (Exception e) {
+                LOGGER.error("[" + this.getName() + "] The MySQL databases and tables cache could not be warmed up. "
+                        + "Details=" + e.getMessage());
+            } // try catch
+        } // if
+        
         super.start();
         LOGGER.info("[" + this.getName() + "] Startup completed");
     } // start
+    
+    @Override
+    public void stop() {
+        if (persistenceBackend != null) {
+            persistenceBackend.close();
+        } // if
+        
+        super.stop();
+    } // stop
 
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        LinkedHashMap<String, LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>> aggregation =
+                new LinkedHashMap<String, LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>>();
+        aggregate(aggregation, eventHeaders, notification);
+        persistAggregation(aggregation);
+    } // persist
+    
+    @Override
+    void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+        // all the rows regarding the same table are inserted at the same time, independently of the event they come
+        // from
+        LinkedHashMap<String, LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>> aggregation =
+                new LinkedHashMap<String, LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>>();
+        
+        for (NotifyContextRequestEvent event : batch) {
+            // the wrong events are discarded before writing anything
+            try {
+                aggregate(aggregation, event.getHeaders(), event.getNotification());
+            } catch (Exception e) {
+                skipWrongEvent(event, e);
+            } // try catch
+        } // for
+        
+        persistAggregation(aggregation);
+    } // persistBatch
+    
+    /**
+     * Aggregates the rows to be inserted given a notification, per database and table.
+     * @param aggregation
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void aggregate(LinkedHashMap<String, LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>>
+            aggregation, Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get("timestamp"));
         String fiwareService = eventHeaders.get(Constants.HEADER_SERVICE);
@@ -160,14 +321,13 @@ public class OrionMySQLSink extends OrionSink {
         // human readable version of the reception time
         String recvTime = Utils.getHumanReadable(recvTimeTs, false);
 
-        // create the database for this fiwareService if not yet existing... the cost of trying to create it is the same
-        // than checking if it exits and then creating it
+        // tables within the database for this fiwareService
         String dbName = buildDbName(fiwareService);
+        LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>> tables = aggregation.get(dbName);
         
-        // the database can be automatically created both in the per-column or per-row mode; anyway, it has no sense to
-        // create it in the per-column mode because there will not be any table within the database
-        if (rowAttrPersistence) {
-            persistenceBackend.createDatabase(dbName);
+        if (tables == null) {
+            tables = new LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>();
+            aggregation.put(dbName, tables);
         } // if
         
         // iterate on the contextResponses
@@ -182,16 +342,13 @@ public class OrionMySQLSink extends OrionSink {
             LOGGER.debug("[" + this.getName() + "] Processing context element (id=" + entityId + ", type= "
                     + entityType + ")");
             
-            // build the table name
+            // build the table name and get the rows to be inserted in it
             String tableName = buildTableName(fiwareServicePaths[i], destinations[i]);
+            ArrayList<LinkedHashMap<String, String>> rows = tables.get(tableName);
             
-            // if the attribute persistence is based in rows, create the table where the data will be persisted, since
-            // these tables are fixed 7-field row ones; otherwise, the size of the table is unknown and cannot be
-            // created in execution time, it must be previously provisioned
-            if (rowAttrPersistence) {
-                // create the table for this entity if not existing yet... the cost of trying yo create it is the same
-                // than checking if it exits and then creating it
-                persistenceBackend.createTable(dbName, tableName);
+            if (rows == null) {
+                rows = new ArrayList<LinkedHashMap<String, String>>();
+                tables.put(tableName, rows);
             } // if
             
             // iterate on all this entity's attributes, if there are attributes
@@ -226,8 +383,8 @@ public class OrionMySQLSink extends OrionSink {
                             + ", Table: " + tableName + ", Data: " + recvTimeTs / 1000 + "," + recvTime + ","
                             + entityId + "," + entityType + "," + attrName + "," + entityType + "," + attrValue + ","
                             + attrMetadata);
-                    persistenceBackend.insertContextData(dbName, tableName, recvTimeTs / 1000, recvTime,
-                            entityId, entityType, attrName, attrType, attrValue, attrMetadata);
+                    rows.add(MySQLBackend.createRow(recvTimeTs / 1000, recvTime, entityId, entityType, attrName,
+                            attrType, attrValue, attrMetadata));
                 } else {
                     attrs.put(attrName, attrValue);
                     mds.put(attrName + "_md", attrMetadata);
@@ -240,10 +397,63 @@ public class OrionMySQLSink extends OrionSink {
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionMySQLSink. Database: " + dbName
                         + ", Table: " + tableName + ", Timestamp: " + recvTime + ", Data (attrs): " + attrs.toString()
                         + ", (metadata): " + mds.toString());
-                persistenceBackend.insertContextData(dbName, tableName, recvTime, attrs, mds);
+                rows.add(MySQLBackend.createRow(recvTime, attrs, mds));
             } // if
         } // for
-    } // persist
+    } // aggregate
+    
+    /**
+     * Persists the aggregated rows, inserting all the rows regarding the same table at the same time. A table whose
+     * rows cannot be inserted due to a non persistence error (e.g. a not provisioned table in the per-column mode) is
+     * logged and discarded, and the rest of tables are persisted anyway; the wrong rows within a table are discarded
+     * by the backend itself.
+     * @param aggregation
+     * @throws Exception
+     */
+    private void persistAggregation(LinkedHashMap<String, LinkedHashMap<String, ArrayList<LinkedHashMap<String,
+            String>>>> aggregation) throws Exception {
+        for (Map.Entry<String, LinkedHashMap<String, ArrayList<LinkedHashMap<String, String>>>> tables
+                : aggregation.entrySet()) {
+            String dbName = tables.getKey();
+            
+            // create the database for this fiwareService if not yet existing (the backend caches the databases known
+            // to exist, thus this is not a round trip per event); anyway, it has no sense to create it in the
+            // per-column mode because there will not be any table within the database
+            if (rowAttrPersistence) {
+                try {
+                    persistenceBackend.createDatabase(dbName);
+                } catch (CygnusPersistenceError e) {
+                    throw e;
+                } catch (Exception e) {
+                    LOGGER.error("[" + this.getName() + "] Discarding the rows of a database that could not be "
+                            + "created (database=" + dbName + ", details=" + e.getMessage() + ")");
+                    continue;
+                } // try catch
+            } // if
+            
+            for (Map.Entry<String, ArrayList<LinkedHashMap<String, String>>> rows : tables.getValue().entrySet()) {
+                String tableName = rows.getKey();
+                
+                try {
+                    // if the attribute persistence is based in rows, create the table where the data will be
+                    // persisted (if not known to exist), since these tables are fixed 8-field row ones; otherwise, the
+                    // size of the table is unknown and cannot be created in execution time, it must be previously
+                    // provisioned
+                    if (rowAttrPersistence) {
+                        persistenceBackend.createTable(dbName, tableName);
+                    } // if
+                    
+                    persistenceBackend.insertContextData(dbName, tableName, rows.getValue());
+                } catch (CygnusPersistenceError e) {
+                    throw e;
+                } catch (Exception e) {
+                    LOGGER.error("[" + this.getName() + "] Discarding the rows of a table that could not be persisted "
+                            + "(database=" + dbName + ", table=" + tableName + ", rows=" + rows.getValue().size()
+                            + ", details=" + e.getMessage() + ")");
+                } // try catch
+            } // for
+        } // for
+    } // persistAggregation
     
     /**
      * Builds a database name given a fiwareService. It throws an exception if the naming conventions are violated.
@@ -17,18 +17,29 @@
  */
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.backends.mongo.AggregatedPoint;
+import com.telefonica.iot.cygnus.backends.mongo.MongoBackend;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import static com.telefonica.iot.cygnus.sinks.OrionMongoBaseSink.LOGGER;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import org.apache.flume.Context;
 
 /**
  *
  * @author frb
  */
 public class OrionSTHSink extends OrionMongoBaseSink {
+    
+    private boolean preAggregation;
+    private int maxAggregatedPoints;
 
     /**
      * Constructor.
@@ -37,8 +48,95 @@ public class OrionSTHSink extends OrionMongoBaseSink {
         super();
     } // OrionSTHSink
     
+    /**
+     * Gets if the points regarding the same offset are merged before being updated. It is protected since it is used
+     * by the tests.
+     * @return
+     */
+    protected boolean getPreAggregation() {
+        return preAggregation;
+    } // getPreAggregation
+    
+    /**
+     * Gets the maximum number of points kept in memory before updating them. It is protected since it is used by
+     * the tests.
+     * @return
+     */
+    protected int getMaxAggregatedPoints() {
+        return maxAggregatedPoints;
+    } // getMaxAggregatedPoints
+    
+    @Override
+    public void configure(Context context) {
+        super.configure(context);
+        preAggregation = context.getBoolean("pre_aggregation", false);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (pre_aggregation=" + preAggregation + ")");
+        maxAggregatedPoints = context.getInteger("max_aggregated_points", 10000);
+        
+        if (maxAggregatedPoints <= 0) {
+            LOGGER.error("[" + this.getName() + "] Invalid max_aggregated_points (" + maxAggregatedPoints
+                    + "), it must be greater than 0. Defaulting to max_aggregated_points=10000");
+            maxAggregatedPoints = 10000;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (max_aggregated_points=" + maxAggregatedPoints
+                + ")");
+    } // configure
+    
     @Override
     void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+        AggregatedPoints aggregation = new AggregatedPoints();
+        aggregate(aggregation, eventHeaders, notification);
+        persistAggregation(aggregation, 0);
+    } // persist
+    
+    @Override
+    void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+        // all the points regarding the same collection are updated at the same time, independently of the event they
+        // come from; if pre-aggregating, the points regarding the same offset are merged as well. In any case, the
+        // batch is committed once all the points have been updated, i.e. once this method returns
+        AggregatedPoints aggregation = new AggregatedPoints();
+        int persisted = 0;
+        
+        for (int i = 0; i < batch.size(); i++) {
+            NotifyContextRequestEvent event = batch.get(i);
+            AggregatedPoints eventAggregation = new AggregatedPoints();
+            
+            // the wrong events are discarded before writing anything
+            try {
+                aggregate(eventAggregation, event.getHeaders(), event.getNotification());
+            } catch (Exception e) {
+                skipWrongEvent(event, e);
+                continue;
+            } // try catch
+            
+            // bounded memory: if the points of this event would exceed the maximum number of points kept, the points
+            // of the previous events are updated now as a part; since the updates are increments, the events of a
+            // part whose updates were (even partially) applied must not be updated again, thus they are not
+            // re-injected if a later update fails
+            if (aggregation.size() > 0 && aggregation.size() + eventAggregation.size() > maxAggregatedPoints) {
+                LOGGER.debug("[" + this.getName() + "] Maximum number of aggregated points reached ("
+                        + aggregation.size() + "), updating them");
+                persistAggregation(aggregation, persisted);
+                aggregation.clear();
+                persisted = i;
+            } // if
+            
+            aggregation.addAll(eventAggregation);
+        } // for
+        
+        persistAggregation(aggregation, persisted);
+    } // persistBatch
+    
+    /**
+     * Aggregates the points to be updated given a notification, per database and collection.
+     * @param aggregation
+     * @param eventHeaders
+     * @param notification
+     * @throws Exception
+     */
+    private void aggregate(AggregatedPoints aggregation, Map<String, String> eventHeaders,
+            NotifyContextRequest notification) throws Exception {
         // get some header values; they are not null nor empty thanks to OrionRESTHandler
         Long recvTimeTs = new Long(eventHeaders.get(Constants.HEADER_TIMESTAMP));
         String fiwareService = eventHeaders.get(Constants.HEADER_SERVICE);
@@ -53,20 +151,18 @@ public class OrionSTHSink extends OrionMongoBaseSink {
         // human readable version of the reception time
         String recvTime = Utils.getHumanReadable(recvTimeTs, true);
 
-        // create the database for this fiwareService if not yet existing... the cost of trying to create it is the same
-        // than checking if it exits and then creating it
+        // the database for this fiwareService is created when persisting the aggregation
         String dbName = buildDbName(fiwareService);
-        backend.createDatabase(dbName);
         
         // collection name container
         String collectionName = null;
 
-        // create the collection at this stage, if the data model is collection-per-service-path
+        // get the collection at this stage, if the data model is collection-per-service-path
         if (dataModel == DataModel.COLLECTIONPERSERVICEPATH) {
             for (String fiwareServicePath : fiwareServicePaths) {
                 collectionName = buildCollectionName(dbName, fiwareServicePath, null, null, true, null, null,
                         fiwareService) + ".aggr";
-                backend.createCollection(dbName, collectionName);
+                aggregation.getCollectionPoints(dbName, collectionName);
             } // for
         } // if
         
@@ -82,11 +178,11 @@ public class OrionSTHSink extends OrionMongoBaseSink {
             LOGGER.debug("[" + this.getName() + "] Processing context element (id=" + entityId + ", type= "
                     + entityType + ")");
             
-            // create the collection at this stage, if the data model is collection-per-entity
+            // get the collection at this stage, if the data model is collection-per-entity
             if (dataModel == DataModel.COLLECTIONPERENTITY) {
                 collectionName = buildCollectionName(dbName, fiwareServicePaths[i], destinations[i], null, true,
                         entityId, entityType, fiwareService) + ".aggr";
-                backend.createCollection(dbName, collectionName);
+                aggregation.getCollectionPoints(dbName, collectionName);
             } // if
             
             // iterate on all this entity's attributes, if there are attributes
@@ -111,21 +207,209 @@ public class OrionSTHSink extends OrionMongoBaseSink {
                     continue;
                 } // if
                 
-                // create the collection at this stage, if the data model is collection-per-attribute
+                // get the collection at this stage, if the data model is collection-per-attribute
                 if (dataModel == DataModel.COLLECTIONPERATTRIBUTE) {
                     collectionName = buildCollectionName(dbName, fiwareServicePaths[i], destinations[i], attrName,
                             true, entityId, entityType, fiwareService) + ".aggr";
-                    backend.createCollection(dbName, collectionName);
                 } // if
 
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionSTHSink. Database: " + dbName
                         + ", Collection: " + collectionName + ", Data: " + recvTimeTs / 1000 + "," + recvTime + ","
                         + entityId + "," + entityType + "," + attrName + "," + entityType + "," + attrValue + ","
                         + attrMetadata);
-                backend.insertContextDataAggregated(dbName, collectionName, recvTimeTs / 1000, recvTime,
-                        entityId, entityType, attrName, attrType, attrValue, attrMetadata);
+                CollectionPoints points = aggregation.getCollectionPoints(dbName, collectionName);
+                
+                for (AggregatedPoint point : MongoBackend.createAggregatedPoints(recvTimeTs / 1000, entityId,
+                        entityType, attrName, attrType, new Double(attrValue))) {
+                    aggregation.add(points, point);
+                } // for
             } // for
         } // for
-    } // persist
+    } // aggregate
+    
+    /**
+     * Persists the aggregated points of a part of the batch, updating all the points regarding the same collection at
+     * the same time. Since the updates are increments, the events of the part must not be updated again once any of
+     * its collections has been updated: until then, a persistence error is thrown together with the number of events
+     * at the beginning of the batch already persisted (i.e. the whole part is retried); from then on, the part is
+     * considered as persisted, and the points of the collections failing are logged and discarded.
+     * @param aggregation
+     * @param persistedEvents
+     * @throws Exception
+     */
+    private void persistAggregation(AggregatedPoints aggregation, int persistedEvents) throws Exception {
+        boolean updated = false;
+        
+        for (Map.Entry<String, LinkedHashMap<String, CollectionPoints>> collections
+                : aggregation.getDatabases().entrySet()) {
+            String dbName = collections.getKey();
+            boolean dbCreated = false;
+            
+            for (Map.Entry<String, CollectionPoints> points : collections.getValue().entrySet()) {
+                String collectionName = points.getKey();
+                
+                try {
+                    // create the database for this fiwareService if not yet existing... the cost of trying to create
+                    // it is the same than checking if it exits and then creating it
+                    if (!dbCreated) {
+                        backend.createDatabase(dbName);
+                        dbCreated = true;
+                    } // if
+                    
+                    backend.createCollection(dbName, collectionName);
+                    backend.insertContextDataAggregated(dbName, collectionName, points.getValue().getPoints());
+                    updated = true;
+                } catch (CygnusPersistenceError e) {
+                    if (!updated) {
+                        throw new CygnusPersistenceError(e, persistedEvents);
+                    } // if
+                    
+                    LOGGER.error("[" + this.getName() + "] Discarding the points of a collection, since other "
+                            + "collections regarding the same events were already updated (database=" + dbName
+                            + ", collection=" + collectionName + ", details=" + e.getMessage() + ")");
+                } catch (Exception e) {
+                    // the collection may have been partially updated
+                    updated = true;
+                    LOGGER.error("[" + this.getName() + "] Discarding the points of a collection (database=" + dbName
+                            + ", collection=" + collectionName + ", details=" + e.getMessage() + ")");
+                } // try catch
+            } // for
+        } // for
+    } // persistAggregation
+    
+    /**
+     * Aggregated points to be updated, per database and collection.
+     */
+    private class AggregatedPoints {
+        
+        private final LinkedHashMap<String, LinkedHashMap<String, CollectionPoints>> databases;
+        private int size;
+        
+        /**
+         * Constructor.
+         */
+        public AggregatedPoints() {
+            databases = new LinkedHashMap<String, LinkedHashMap<String, CollectionPoints>>();
+            size = 0;
+        } // AggregatedPoints
+        
+        /**
+         * Gets the points to be updated in the given collection, creating them if not existing.
+         * @param dbName
+         * @param collectionName
+         * @return
+         */
+        public CollectionPoints getCollectionPoints(String dbName, String collectionName) {
+            LinkedHashMap<String, CollectionPoints> collections = databases.get(dbName);
+            
+            if (collections == null) {
+                collections = new LinkedHashMap<String, CollectionPoints>();
+                databases.put(dbName, collections);
+            } // if
+            
+            CollectionPoints points = collections.get(collectionName);
+            
+            if (points == null) {
+                points = new CollectionPoints();
+                collections.put(collectionName, points);
+            } // if
+            
+            return points;
+        } // getCollectionPoints
+        
+        /**
+         * Adds a point to the given collection points.
+         * @param points
+         * @param point
+         */
+        public void add(CollectionPoints points, AggregatedPoint point) {
+            if (points.add(point)) {
+                size++;
+            } // if
+        } // add
+        
+        /**
+         * Adds all the points of another aggregation, merging them if pre-aggregating.
+         * @param other
+         */
+        public void addAll(AggregatedPoints other) {
+            for (Map.Entry<String, LinkedHashMap<String, CollectionPoints>> collections
+                    : other.getDatabases().entrySet()) {
+                for (Map.Entry<String, CollectionPoints> points : collections.getValue().entrySet()) {
+                    CollectionPoints target = getCollectionPoints(collections.getKey(), points.getKey());
+                    
+                    for (AggregatedPoint point : points.getValue().getPoints()) {
+                        add(target, point);
+                    } // for
+                } // for
+            } // for
+        } // addAll
+        
+        public LinkedHashMap<String, LinkedHashMap<String, CollectionPoints>> getDatabases() {
+            return databases;
+        } // getDatabases
+        
+        /**
+         * Gets the number of points to be updated.
+         * @return
+         */
+        public int size() {
+            return size;
+        } // size
+        
+        /**
+         * Removes all the points to be updated.
+         */
+        public void clear() {
+            databases.clear();
+            size = 0;
+        } // clear
+        
+    } // AggregatedPoints
+    
+    /**
+     * Aggregated points to be updated within a collection. If pre-aggregating, the points regarding the same offset
+     * are merged into a single one.
+     */
+    private class CollectionPoints {
+        
+        private final ArrayList<AggregatedPoint> points;
+        private final HashMap<String, AggregatedPoint> index;
+        
+        /**
+         * Constructor.
+         */
+        public CollectionPoints() {
+            points = new ArrayList<AggregatedPoint>();
+            index = preAggregation ? new HashMap<String, AggregatedPoint>() : null;
+        } // CollectionPoints
+        
+        /**
+         * Adds a point, merging it with an already existing one regarding the same offset if pre-aggregating.
+         * @param point
+         * @return True if the point was added as a new point, false if it was merged
+         */
+        public boolean add(AggregatedPoint point) {
+            if (index != null) {
+                String key = point.getKey();
+                AggregatedPoint existing = index.get(key);
+                
+                if (existing != null) {
+                    existing.merge(point);
+                    return false;
+                } // if
+                
+                index.put(key, point);
+            } // if
+            
+            points.add(point);
+            return true;
+        } // add
+        
+        public ArrayList<AggregatedPoint> getPoints() {
+            return points;
+        } // getPoints
+        
+    } // CollectionPoints
     
 } // OrionSTHSink
@@ -18,24 +18,22 @@
 
 package com.telefonica.iot.cygnus.sinks;
 
-import com.google.gson.Gson;
 import com.telefonica.iot.cygnus.channels.CygnusChannel;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
-import com.telefonica.iot.cygnus.containers.NotifyContextRequestSAXHandler;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import java.util.Map;
 import com.telefonica.iot.cygnus.utils.Constants;
-import java.io.IOException;
-import java.io.StringReader;
+import com.telefonica.iot.cygnus.utils.Utils;
+import java.util.ArrayList;
 import java.util.Arrays;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.List;
 import org.apache.flume.Channel;
+import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.EventDeliveryException;
 import org.apache.flume.Sink.Status;
@@ -43,8 +41,6 @@ import org.apache.flume.Transaction;
 import org.apache.flume.conf.Configurable;
 import org.apache.flume.sink.AbstractSink;
 import org.apache.log4j.MDC;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  *
@@ -53,19 +49,25 @@ import org.xml.sax.SAXException;
  * Abstract class containing the common code to all the sinks persisting data comming from Orion Context Broker.
  * 
  * The common attributes are:
- *  - there is no common attributes
+ *  - batchSize, the maximum number of events taken from the channel within a single Flume transaction
+ *  - batchTimeout, the maximum number of seconds spent while filling a batch
  * The common methods are:
  *  - void stop()
+ *  - void configure(Context context), which must be invoked by the sinks when configuring themselves
  *  - Status process() throws EventDeliveryException
- *  - void persist(Event event) throws Exception
  * The non common parts, and therefore those that are sink dependant and must be implemented are:
  *  - void configure(Context context)
  *  - void start()
  *  - void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception
+ * Optionally, those sinks whose backend supports bulk persistence may override:
+ *  - void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception
  */
 public abstract class OrionSink extends AbstractSink implements Configurable {
 
     private static final CygnusLogger LOGGER = new CygnusLogger(OrionSink.class);
+    private int batchSize;
+    private int batchTimeout;
+    private static final long BATCH_POLL_INTERVAL = 100; // milliseconds between polls of an empty channel
     
     /**
      * Constructor.
@@ -80,12 +82,53 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         super.stop();
     } // stop
 
+    /**
+     * Gets the maximum number of events taken from the channel within a single Flume transaction. It is protected due
+     * to it is only required for testing purposes.
+     * @return The batch size
+     */
+    protected int getBatchSize() {
+        return batchSize;
+    } // getBatchSize
+    
+    /**
+     * Gets the maximum number of seconds spent while filling a batch. It is protected due to it is only required for
+     * testing purposes.
+     * @return The batch timeout
+     */
+    protected int getBatchTimeout() {
+        return batchTimeout;
+    } // getBatchTimeout
+    
+    @Override
+    public void configure(Context context) {
+        batchSize = context.getInteger("batch_size", 1);
+        
+        if (batchSize < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid batch_size (" + batchSize + "), it must be greater than 0. "
+                    + "Defaulting to batch_size=1");
+            batchSize = 1;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_size=" + batchSize + ")");
+        } // if else
+        
+        batchTimeout = context.getInteger("batch_timeout", 30);
+        
+        if (batchTimeout < 1) {
+            LOGGER.error("[" + this.getName() + "] Invalid batch_timeout (" + batchTimeout + "), it must be greater "
+                    + "than 0. Defaulting to batch_timeout=30");
+            batchTimeout = 30;
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_timeout=" + batchTimeout + ")");
+        } // if else
+    } // configure
+
     @Override
     public Status process() throws EventDeliveryException {
         Status status = null;
         Channel ch = null;
         Transaction txn = null;
-        Event event = null;
+        ArrayList<Event> events = new ArrayList<Event>();
 
         try {
             // get the channel
@@ -105,88 +148,98 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         } // try catch // try catch
 
         try {
-            // get the event
-            event = ch.take();
+            // get up to batchSize events, or as many as possible within batchTimeout seconds; if the channel is empty
+            // when starting the batch, nothing is waited for
+            long batchDeadline = System.currentTimeMillis() + batchTimeout * 1000L;
+            
+            while (events.size() < batchSize) {
+                Event event = ch.take();
+                
+                if (event != null) {
+                    events.add(event);
+                    continue;
+                } // if
+                
+                long remaining = batchDeadline - System.currentTimeMillis();
+                
+                if (events.isEmpty() || remaining <= 0) {
+                    break;
+                } // if
+                
+                // the channel is polled again until the batch is filled or the timeout is reached
+                Thread.sleep(Math.min(remaining, BATCH_POLL_INTERVAL));
+            } // while
 
-            if (event == null) {
+            if (events.isEmpty()) {
                 txn.commit();
                 txn.close();
                 return Status.READY;
             } // if
         } catch (Exception e) {
             LOGGER.error("Channel error (The event could not be got. Details=" + e.getMessage() + ")");
+            txn.rollback();
+            txn.close();
             throw new EventDeliveryException(e);
         } // try catch // try catch
+        
+        // the notifications within the batch; events whose notification cannot be obtained are discarded, in the same
+        // way they were discarded when not batching
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (Event event : events) {
+            try {
+                // set the transactionId in MDC
+                MDC.put(Constants.HEADER_TRANSACTION_ID, event.getHeaders().get(Constants.HEADER_TRANSACTION_ID));
+            } catch (Exception e) {
+                LOGGER.error("Runtime error (" + e.getMessage() + ")");
+            } // catch // catch
 
+            LOGGER.info("Event got from the channel (id=" + event.hashCode() + ", headers="
+                    + event.getHeaders().toString() + ", bodyLength=" + event.getBody().length + ")");
+            
+            try {
+                batch.add(getNotifyContextRequestEvent(event));
+            } catch (Exception e) {
+                LOGGER.debug(Arrays.toString(e.getStackTrace()));
+                LOGGER.warn(e.getMessage());
+            } // try catch
+        } // for
+        
         try {
-            // set the transactionId in MDC
-            MDC.put(Constants.HEADER_TRANSACTION_ID, event.getHeaders().get(Constants.HEADER_TRANSACTION_ID));
-        } catch (Exception e) {
-            LOGGER.error("Runtime error (" + e.getMessage() + ")");
-        } // catch // catch
-
-        LOGGER.info("Event got from the channel (id=" + event.hashCode() + ", headers="
-                + event.getHeaders().toString() + ", bodyLength=" + event.getBody().length + ")");
-
-        try {
-            // persist the event
-            persist(event);
-
-            // the transaction has succeded
-            txn.commit();
-            status = Status.READY;
-        } catch (Exception e) {
-            LOGGER.debug(Arrays.toString(e.getStackTrace()));
+            // persist the batch; those events that could not be persisted due to a persistence error are re-injected
+            // in the channel depending on their TTL
+            ArrayList<Event> reinjected = reinject(persist(batch));
             
-            // rollback only if the exception is about a persistence error
-            if (e instanceof CygnusPersistenceError) {
-                LOGGER.error(e.getMessage());
-
-                // check the event HEADER_TTL
-                int ttl;
-                String ttlStr = event.getHeaders().get(Constants.HEADER_TTL);
+            if (reinjected.isEmpty()) {
+                // the transaction has succeded
+                txn.commit();
+                status = Status.READY;
+            } else if (reinjected.size() == events.size()) {
+                // all the events must be re-injected, thus the whole transaction is rollbacked; this preserves the
+                // order of the events within the channel
+                txn.rollback();
                 
-                try {
-                    ttl = Integer.parseInt(ttlStr);
-                } catch (NumberFormatException nfe) {
-                    ttl = 0;
-                    LOGGER.error("Invalid TTL value (id=" + event.hashCode() + ", ttl=" + ttlStr
-                          +  ", " + nfe.getMessage() + ")");
-                } // try catch // try catch
+                if (ch instanceof CygnusChannel) {
+                    for (int i = 0; i < reinjected.size(); i++) {
+                        ((CygnusChannel) ch).rollback();
+                    } // for
+                } // if
                 
-                if (ttl == -1) {
-                    txn.rollback();
-                    ((CygnusChannel) ch).rollback();
-                    status = Status.BACKOFF;
-                    LOGGER.info("An event was put again in the channel (id=" + event.hashCode() + ", ttl=-1)");
-                } else if (ttl == 0) {
-                    LOGGER.warn("The event TTL has expired, it is no more re-injected in the channel (id="
-                            + event.hashCode() + ", ttl=0)");
-                    txn.commit();
-                    status = Status.READY;
-                } else {
-                    ttl--;
-                    String newTTLStr = Integer.toString(ttl);
-                    event.getHeaders().put(Constants.HEADER_TTL, newTTLStr);
-                    txn.rollback();
-                    status = Status.BACKOFF;
-                    LOGGER.info("An event was put again in the channel (id=" + event.hashCode() + ", ttl=" + ttl
-                            + ")");
-                } // if else
+                status = Status.BACKOFF;
             } else {
-                if (e instanceof CygnusRuntimeError) {
-                    LOGGER.error(e.getMessage());
-                } else if (e instanceof CygnusBadConfiguration) {
-                    LOGGER.warn(e.getMessage());
-                } else if (e instanceof CygnusBadContextData) {
-                    LOGGER.warn(e.getMessage());
-                } else {
-                    LOGGER.warn(e.getMessage());
-                } // if else if
-
+                // only some of the events must be re-injected, thus they are put again in the channel within the same
+                // transaction the rest of events are definitely taken
+                for (Event event : reinjected) {
+                    ch.put(event);
+                } // for
+                
                 txn.commit();
-                status = Status.READY;
-            } // if else
+                status = Status.BACKOFF;
+            } // if else if
+        } catch (Exception e) {
+            LOGGER.error("Channel error (The transaction could not be finished. Details=" + e.getMessage() + ")");
+            txn.rollback();
+            status = Status.BACKOFF;
         } finally {
             // close the transaction
             txn.close();
@@ -195,52 +248,148 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
 
         return status;
     } // process
-
+    
     /**
-     * Given an event, it is preprocessed before it is persisted. Depending on the content type, it is appropriately
-     * parsed (Json or XML) in order to obtain a NotifyContextRequest instance.
+     * Persists a batch of events. The batch is given to the sink as a whole, which is in charge of isolating the wrong
+     * events (see skipWrongEvent), and the wrong tables/collections/files/resources when they are detected once
+     * something has been written. If the persistence fails due to an error related to the persistence backend, the
+     * events not persisted yet are returned in order to be re-injected in the channel. If the persistence fails due to
+     * any other error escaping the sink, the error is logged and the batch is not persisted again, since the batch
+     * writes are not idempotent in general (e.g. increments, chunked or pipelined writes); thus the loss granularity
+     * of such errors is the batch.
      * 
-     * @param event A Flume event containing the data to be persisted and certain metadata (headers).
+     * @param batch A batch of events, each one carrying a parsed notification
+     * @return The events that could not be persisted due to a persistence error
+     */
+    private ArrayList<NotifyContextRequestEvent> persist(ArrayList<NotifyContextRequestEvent> batch) {
+        ArrayList<NotifyContextRequestEvent> failed = new ArrayList<NotifyContextRequestEvent>();
+        
+        if (batch.isEmpty()) {
+            return failed;
+        } // if
+        
+        try {
+            if (batch.size() == 1) {
+                persist(batch.get(0).getHeaders(), batch.get(0).getNotification());
+            } else {
+                persistBatch(batch);
+            } // if else
+            
+            return failed;
+        } catch (Exception e) {
+            LOGGER.debug(Arrays.toString(e.getStackTrace()));
+            
+            if (e instanceof CygnusPersistenceError) {
+                LOGGER.error(e.getMessage());
+                int persisted = ((CygnusPersistenceError) e).getPersistedEvents();
+                
+                if (persisted > 0) {
+                    LOGGER.info("Some events of the batch were already persisted, they are not re-injected (batchSize="
+                            + batch.size() + ", persisted=" + persisted + ")");
+                } // if
+                
+                failed.addAll(batch.subList(persisted, batch.size()));
+                return failed;
+            } else {
+                logNonPersistenceError(e);
+                return failed;
+            } // if else
+        } // try catch
+    } // persist
+    
+    /**
+     * Skips an event of a batch whose processing failed before writing anything. If the error is not related to the
+     * persistence backend (e.g. bad context data), it regards the event itself, thus it is logged and the event is
+     * discarded without affecting the rest of the batch; otherwise, the error is thrown again.
+     * @param event
+     * @param e
      * @throws Exception
      */
-    private void persist(Event event) throws Exception {
-        String eventData = new String(event.getBody());
-        Map<String, String> eventHeaders = event.getHeaders();
-
-        // parse the eventData
-        NotifyContextRequest notification = null;
-
-        if (eventHeaders.get(Constants.HEADER_CONTENT_TYPE).contains("application/json")) {
-            Gson gson = new Gson();
+    void skipWrongEvent(NotifyContextRequestEvent event, Exception e) throws Exception {
+        if (e instanceof CygnusPersistenceError) {
+            throw e;
+        } // if
+        
+        LOGGER.debug(Arrays.toString(e.getStackTrace()));
+        LOGGER.warn("[" + this.getName() + "] Discarding a wrong event of the batch (id=" + event.hashCode() + ")");
+        logNonPersistenceError(e);
+    } // skipWrongEvent
+    
+    /**
+     * Logs an error not related to the persistence backend. Events suffering such errors are not re-injected.
+     * @param e
+     */
+    private void logNonPersistenceError(Exception e) {
+        if (e instanceof CygnusRuntimeError) {
+            LOGGER.error(e.getMessage());
+        } else if (e instanceof CygnusBadConfiguration) {
+            LOGGER.warn(e.getMessage());
+        } else if (e instanceof CygnusBadContextData) {
+            LOGGER.warn(e.getMessage());
+        } else {
+            LOGGER.warn(e.getMessage());
+        } // if else if
+    } // logNonPersistenceError
+    
+    /**
+     * Checks the TTL of the given events, decreasing it if necessary.
+     * @param failed Events that could not be persisted due to a persistence error
+     * @return The events that must be re-injected in the channel, i.e. those whose TTL has not expired yet
+     */
+    private ArrayList<Event> reinject(ArrayList<NotifyContextRequestEvent> failed) {
+        ArrayList<Event> reinjected = new ArrayList<Event>();
+        
+        for (NotifyContextRequestEvent event : failed) {
+            // check the event HEADER_TTL
+            int ttl;
+            String ttlStr = event.getHeaders().get(Constants.HEADER_TTL);
 
             try {
-                notification = gson.fromJson(eventData, NotifyContextRequest.class);
-            } catch (Exception e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } // try catch
-        } else if (eventHeaders.get(Constants.HEADER_CONTENT_TYPE).contains("application/xml")) {
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+                ttl = Integer.parseInt(ttlStr);
+            } catch (NumberFormatException nfe) {
+                ttl = 0;
+                LOGGER.error("Invalid TTL value (id=" + event.hashCode() + ", ttl=" + ttlStr
+                      +  ", " + nfe.getMessage() + ")");
+            } // try catch // try catch
 
-            try {
-                SAXParser saxParser = saxParserFactory.newSAXParser();
-                NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
-                saxParser.parse(new InputSource(new StringReader(eventData)), handler);
-                notification = handler.getNotifyContextRequest();
-            } catch (ParserConfigurationException e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } catch (SAXException e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } catch (IOException e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } // try catch
-        } else {
-            // this point should never be reached since the content type has been checked when receiving the
-            // notification
-            throw new Exception("Unrecognized content type (not Json nor XML)");
-        } // if else if
+            if (ttl == -1) {
+                reinjected.add(event);
+                LOGGER.info("An event was put again in the channel (id=" + event.hashCode() + ", ttl=-1)");
+            } else if (ttl == 0) {
+                LOGGER.warn("The event TTL has expired, it is no more re-injected in the channel (id="
+                        + event.hashCode() + ", ttl=0)");
+            } else {
+                ttl--;
+                String newTTLStr = Integer.toString(ttl);
+                event.getHeaders().put(Constants.HEADER_TTL, newTTLStr);
+                reinjected.add(event);
+                LOGGER.info("An event was put again in the channel (id=" + event.hashCode() + ", ttl=" + ttl
+                        + ")");
+            } // if else
+        } // for
+        
+        return reinjected;
+    } // reinject
 
-        persist(eventHeaders, notification);
-    } // persist
+    /**
+     * Given an event, it is preprocessed before it is persisted. If the event already carries the NotifyContextRequest
+     * instance parsed at the source, it is reused; otherwise, depending on the content type, the body is appropriately
+     * parsed (Json or XML) in order to obtain such a NotifyContextRequest instance.
+     * 
+     * @param event A Flume event containing the data to be persisted and certain metadata (headers).
+     * @return An event carrying the parsed NotifyContextRequest instance
+     * @throws Exception
+     */
+    private NotifyContextRequestEvent getNotifyContextRequestEvent(Event event) throws Exception {
+        if (event instanceof NotifyContextRequestEvent) {
+            return (NotifyContextRequestEvent) event;
+        } // if
+        
+        Map<String, String> eventHeaders = event.getHeaders();
+        NotifyContextRequest notification = Utils.parseNotifyContextRequest(new String(event.getBody()),
+                eventHeaders.get(Constants.HEADER_CONTENT_TYPE));
+        return new NotifyContextRequestEvent(eventHeaders, event.getBody(), notification);
+    } // getNotifyContextRequestEvent
 
     /**
      * This is the method the classes extending this class must implement when dealing with persistence.
@@ -249,5 +398,26 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
      * @throws Exception
      */
     abstract void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception;
+    
+    /**
+     * This is the method the classes extending this class may override when their backend supports bulk persistence.
+     * By default, the events are persisted one by one; the wrong events are skipped, and a persistence error is
+     * thrown together with the number of events already persisted, so that those events are not re-injected.
+     * @param batch Events carrying the notification object (already parsed) regarding each event body
+     * @throws Exception
+     */
+    void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+        for (int i = 0; i < batch.size(); i++) {
+            NotifyContextRequestEvent event = batch.get(i);
+            
+            try {
+                persist(event.getHeaders(), event.getNotification());
+            } catch (CygnusPersistenceError e) {
+                throw new CygnusPersistenceError(e, i);
+            } catch (Exception e) {
+                skipWrongEvent(event, e);
+            } // try catch
+        } // for
+    } // persistBatch
 
 } // OrionSink
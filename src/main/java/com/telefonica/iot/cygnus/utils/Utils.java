@@ -18,21 +18,31 @@
 
 package com.telefonica.iot.cygnus.utils;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestSAXHandler;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Properties;
 import java.util.TimeZone;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 /**
  *
@@ -40,6 +50,9 @@ import org.w3c.dom.NodeList;
  */
 public final class Utils {
     
+    // Gson instances are thread-safe, thus a single one can be shared by the source, the interceptors and the sinks
+    private static final Gson GSON = new Gson();
+    
     /**
      * Constructor. It is private since utility classes should not have a public or default constructor.
      */
@@ -121,6 +134,63 @@ public final class Utils {
         } // if else if else
     } // basicXml2Json
     
+    /**
+     * Parses a notification, given its string representation and its content type (Json or XML), in order to obtain a
+     * NotifyContextRequest instance.
+     * @param data
+     * @param contentType
+     * @return The parsed NotifyContextRequest
+     * @throws CygnusBadContextData
+     */
+    public static NotifyContextRequest parseNotifyContextRequest(String data, String contentType)
+        throws CygnusBadContextData {
+        if (contentType == null) {
+            throw new CygnusBadContextData("Unrecognized content type (not Json nor XML)");
+        } else if (contentType.contains("application/json")) {
+            NotifyContextRequest notification;
+            
+            try {
+                notification = GSON.fromJson(data, NotifyContextRequest.class);
+            } catch (Exception e) {
+                throw new CygnusBadContextData(e.getMessage());
+            } // try catch
+            
+            if (notification == null) {
+                throw new CygnusBadContextData("Empty Json notification");
+            } // if
+            
+            return notification;
+        } else if (contentType.contains("application/xml")) {
+            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+
+            try {
+                SAXParser saxParser = saxParserFactory.newSAXParser();
+                NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
+                saxParser.parse(new InputSource(new StringReader(data)), handler);
+                return handler.getNotifyContextRequest();
+            } catch (ParserConfigurationException e) {
+                throw new CygnusBadContextData(e.getMessage());
+            } catch (SAXException e) {
+                throw new CygnusBadContextData(e.getMessage());
+            } catch (IOException e) {
+                throw new CygnusBadContextData(e.getMessage());
+            } // try catch
+        } else {
+            // this point should never be reached since the content type has been checked when receiving the
+            // notification
+            throw new CygnusBadContextData("Unrecognized content type (not Json nor XML)");
+        } // if else if
+    } // parseNotifyContextRequest
+    
+    /**
+     * Serializes an already parsed notification as compact Json, i.e. without any white space between tokens.
+     * @param notification
+     * @return The compact Json serialization of the notification
+     */
+    public static String toCompactJson(NotifyContextRequest notification) {
+        return GSON.toJson(notification);
+    } // toCompactJson
+    
     /**
      * Gets the Cygnus version from the pom.xml.
      * @return The Cygnus version
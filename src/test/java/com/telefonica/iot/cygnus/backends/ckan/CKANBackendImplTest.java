@@ -19,12 +19,16 @@
 package com.telefonica.iot.cygnus.backends.ckan;
 
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
+import java.util.ArrayList;
 import java.util.HashMap;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.mockito.Mockito;
@@ -32,6 +36,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -93,6 +99,8 @@ public class CKANBackendImplTest {
         BasicHttpResponse response = new BasicHttpResponse(new ProtocolVersion("http", 1, 1), 200, "ok");
         response.setEntity(new StringEntity("{\"result\": {\"whatever\":\"whatever\"}}"));
         when(mockHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenReturn(response);
+        attrList.put(attrName, attrValue);
+        attrMdList.put(attrName + "_md", attrMd);
     } // setUp
 
     /**
@@ -138,4 +146,123 @@ public class CKANBackendImplTest {
         } // try catch finally
     } // testPersistColumn
     
+    /**
+     * Test of persist (records) method, of class CKANBackendImpl. The records are upserted within requests bounded in
+     * number of records and bytes.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testPersistRecords() throws Exception {
+        System.out.println("Testing CKANBackendImpl.persist (records)");
+        ArrayList<String> records = new ArrayList<String>();
+        
+        for (int i = 0; i < 5; i++) {
+            records.add(backend.createRecord(recvTimeTs, recvTime, attrName, attrType, attrValue, attrMd));
+        } // for
+        
+        // bounded by the number of records: 2 + 2 + 1
+        backend = new CKANBackendImpl(apiKey, host, port, orionURL, ssl, 2, 1048576, 3600000, 1000);
+        backend.setCache(mockCache);
+        backend.setHttpClient(mockHttpClient);
+        backend.persist(orgName, pkgName, resName, records, true);
+        verify(mockHttpClient, times(3)).execute(Mockito.any(HttpUriRequest.class));
+        
+        // bounded by the number of bytes: a single record per request
+        backend = new CKANBackendImpl(apiKey, host, port, orionURL, ssl, 1000, records.get(0).length() + 1,
+                3600000, 1000);
+        backend.setCache(mockCache);
+        backend.setHttpClient(mockHttpClient);
+        backend.persist(orgName, pkgName, resName, records, true);
+        verify(mockHttpClient, times(3 + 5)).execute(Mockito.any(HttpUriRequest.class));
+    } // testPersistRecords
+    
+    /**
+     * Test of persist (records) and sync methods, of class CKANBackendImpl, when the upserts are pipelined.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testPersistRecordsAsync() throws Exception {
+        System.out.println("Testing CKANBackendImpl.persist (records, pipelined)");
+        ArrayList<String> records = new ArrayList<String>();
+        
+        for (int i = 0; i < 5; i++) {
+            records.add(backend.createRecord(recvTimeTs, recvTime, attrName, attrType, attrValue, attrMd));
+        } // for
+        
+        backend = new CKANBackendImpl(apiKey, host, port, orionURL, ssl, 1, 1048576, 3600000, 1000);
+        backend.setCache(mockCache);
+        backend.setHttpClient(mockHttpClient);
+        backend.enableAsync(2);
+        backend.persist(orgName, pkgName, resName, records, true);
+        backend.sync();
+        verify(mockHttpClient, times(5)).execute(Mockito.any(HttpUriRequest.class));
+        
+        // a rejected upsert is thrown when syncing
+        HttpClient failingHttpClient = Mockito.mock(HttpClient.class);
+        BasicHttpResponse response = new BasicHttpResponse(new ProtocolVersion("http", 1, 1), 409, "conflict");
+        when(failingHttpClient.execute(Mockito.any(HttpUriRequest.class))).thenReturn(response);
+        backend.setHttpClient(failingHttpClient);
+        backend.persist(orgName, pkgName, resName, records, true);
+        
+        try {
+            backend.sync();
+            fail("The failed upserts were not thrown");
+        } catch (Exception e) {
+            assertTrue(e instanceof CygnusRuntimeError);
+        } // try catch
+        
+        // an upsert failed due to CKAN not being available is thrown as a persistence error when syncing, even if
+        // other upserts were rejected
+        response = new BasicHttpResponse(new ProtocolVersion("http", 1, 1), 500, "error");
+        when(failingHttpClient.execute(Mockito.any(HttpUriRequest.class)))
+                .thenReturn(new BasicHttpResponse(new ProtocolVersion("http", 1, 1), 409, "conflict"))
+                .thenReturn(response);
+        backend.persist(orgName, pkgName, resName, records, true);
+        
+        try {
+            backend.sync();
+            fail("The failed upserts were not thrown");
+        } catch (Exception e) {
+            assertTrue(e instanceof CygnusPersistenceError);
+        } finally {
+            backend.close();
+        } // try catch finally
+    } // testPersistRecordsAsync
+    
+    /**
+     * Test of createRecord methods, of class CKANBackendImpl.
+     */
+    @Test
+    public void testCreateRecord() {
+        System.out.println("Testing CKANBackendImpl.createRecord");
+        assertEquals("{ \"recvTimeTs\": \"123456\", \"recvTime\": \"2014-09-23T11:26:45\", "
+                + "\"attrName\": \"temperature\", \"attrType\": \"centigrade\", \"attrValue\": 26.5 }",
+                backend.createRecord(recvTimeTs, recvTime, attrName, attrType, attrValue, attrMd));
+        assertEquals("{ \"recvTime\": \"2014-09-23T11:26:45\", \"temperature\": 26.5 }",
+                backend.createRecord(recvTime, attrList, attrMdList));
+    } // testCreateRecord
+    
+    /**
+     * Test of close method, of class CKANBackendImpl, regarding the cache shared by several backends.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCloseSharedCache() throws Exception {
+        System.out.println("Testing CKANBackendImpl.close (shared cache)");
+        int numSharedCaches = CKANBackendImpl.getNumSharedCaches();
+        CKANBackendImpl backend1 = new CKANBackendImpl("sharedApiKey", host, port, orionURL, ssl);
+        CKANBackendImpl backend2 = new CKANBackendImpl("sharedApiKey", host, port, orionURL, ssl, 1000, 1048576,
+                60000, 10);
+        assertEquals(numSharedCaches + 1, CKANBackendImpl.getNumSharedCaches());
+        backend1.close();
+        assertEquals(numSharedCaches + 1, CKANBackendImpl.getNumSharedCaches());
+        backend2.close();
+        assertEquals(numSharedCaches, CKANBackendImpl.getNumSharedCaches());
+        backend2.close();
+        assertEquals(numSharedCaches, CKANBackendImpl.getNumSharedCaches());
+    } // testCloseSharedCache
+    
 } // CKANBackendImplTest
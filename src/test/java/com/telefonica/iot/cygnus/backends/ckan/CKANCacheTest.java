@@ -18,17 +18,33 @@
 
 package com.telefonica.iot.cygnus.backends.ckan;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -49,6 +65,8 @@ public class CKANCacheTest {
     private HashMap<String, String> pkgMap;
     @Mock
     private HashMap<String, String> resMap;
+    @Mock
+    private HttpClient mockHttpClient;
     
     // constants
     private final String[] hosts = new String[]{"localhost"};
@@ -61,6 +79,9 @@ public class CKANCacheTest {
     private final String orgId = "org_id";
     private final String pkgId = "pkg_id";
     private final String resId = "res_id";
+    private final String orgShowResponse = "{\"result\": {\"id\": \"org_id\", \"state\": \"active\", "
+            + "\"packages\": [{\"id\": \"pkg_id\", \"name\": \"numeric-rooms\", \"state\": \"active\", "
+            + "\"resources\": [{\"id\": \"res_id\", \"name\": \"room1-room\"}]}]}}";
     
     /**
      * Sets up tests by creating a unique instance of the tested class, and by defining the behaviour of the mocked
@@ -191,4 +212,197 @@ public class CKANCacheTest {
         } // try catch
     } // testIsCachedRes
     
+    /**
+     * Test of isCachedOrg method, of class CKANCache. Concurrent misses on the same organization result in a single
+     * CKAN query, and the packages and resources of the organization are cached as well.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testIsCachedOrgSingleFlight() throws Exception {
+        System.out.println("Testing CKANCache.isCachedOrg (single flight)");
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(new Answer<BasicHttpResponse>() {
+            
+            @Override
+            public BasicHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(200);
+                return createResponse(orgShowResponse);
+            } // answer
+            
+        });
+        cache.setHttpClient(mockHttpClient);
+        final boolean[] cached = new boolean[4];
+        Thread[] threads = new Thread[cached.length];
+        
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                
+                @Override
+                public void run() {
+                    try {
+                        cached[index] = cache.isCachedOrg(orgName);
+                    } catch (Exception e) {
+                        cached[index] = false;
+                    } // try catch
+                } // run
+                
+            };
+            threads[i].start();
+        } // for
+        
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertTrue(cached[i]);
+        } // for
+        
+        assertTrue(cache.isCachedPkg(orgName, pkgName));
+        assertTrue(cache.isCachedRes(orgName, pkgName, resName));
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+        assertEquals(orgId, cache.getOrgId(orgName));
+        assertEquals(pkgId, cache.getPkgId(pkgName));
+        assertEquals(resId, cache.getResId(resName));
+        assertEquals(threads.length + 2, cache.getNumHits() + cache.getNumMisses());
+    } // testIsCachedOrgSingleFlight
+    
+    /**
+     * Test of isCachedOrg method, of class CKANCache. Expired organizations are queried again, the cached ones being
+     * used if the query fails.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testIsCachedOrgExpired() throws Exception {
+        System.out.println("Testing CKANCache.isCachedOrg (expired)");
+        cache = new CKANCache(hosts, port, ssl, apiKey, 0, 10);
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(createResponse(orgShowResponse),
+                createResponse(orgShowResponse)).thenThrow(new IOException("CKAN down"));
+        cache.setHttpClient(mockHttpClient);
+        assertTrue(cache.isCachedOrg(orgName));
+        assertTrue(cache.isCachedOrg(orgName));
+        assertTrue(cache.isCachedOrg(orgName));
+        verify(mockHttpClient, times(3)).execute(any(HttpUriRequest.class));
+        assertEquals(3, cache.getNumMisses());
+    } // testIsCachedOrgExpired
+    
+    /**
+     * Test of isCachedOrg method, of class CKANCache. The least recently used organization is evicted when exceeding
+     * the maximum number of cached organizations.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testIsCachedOrgEviction() throws Exception {
+        System.out.println("Testing CKANCache.isCachedOrg (eviction)");
+        cache = new CKANCache(hosts, port, ssl, apiKey, 3600000, 1);
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(createResponse(orgShowResponse),
+                createResponse(orgShowResponse.replace("numeric-rooms", "other-rooms")));
+        cache.setHttpClient(mockHttpClient);
+        assertTrue(cache.isCachedOrg(orgName));
+        assertTrue(cache.isCachedOrg("other"));
+        assertEquals(1, cache.getNumEvictions());
+        assertNull(cache.getOrgId(orgName));
+        assertNull(cache.getPkgId(pkgName));
+        assertEquals(pkgId, cache.getPkgId("other-rooms"));
+        assertEquals(resId, cache.getResId(resName));
+    } // testIsCachedOrgEviction
+    
+    /**
+     * Test of enableSnapshots and saveSnapshot methods, of class CKANCache. A cache loaded from a snapshot does not
+     * query CKAN for the organizations, packages and resources within the snapshot until they expire.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+        System.out.println("Testing CKANCache.enableSnapshots and saveSnapshot");
+        File snapshot = File.createTempFile("ckan-cache", ".json");
+        snapshot.delete();
+        
+        try {
+            when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(createResponse(orgShowResponse));
+            cache.setHttpClient(mockHttpClient);
+            cache.enableSnapshots(snapshot.getPath(), 3600000);
+            assertTrue(cache.isCachedOrg(orgName));
+            cache.saveSnapshot();
+            assertTrue(snapshot.exists());
+            
+            // a new cache, loading the snapshot
+            HttpClient otherHttpClient = mock(HttpClient.class);
+            CKANCache loaded = new CKANCache(hosts, port, ssl, apiKey);
+            loaded.setHttpClient(otherHttpClient);
+            loaded.enableSnapshots(snapshot.getPath(), 3600000);
+            assertTrue(loaded.isCachedOrg(orgName));
+            assertTrue(loaded.isCachedPkg(orgName, pkgName));
+            assertTrue(loaded.isCachedRes(orgName, pkgName, resName));
+            assertEquals(orgId, loaded.getOrgId(orgName));
+            assertEquals(pkgId, loaded.getPkgId(pkgName));
+            assertEquals(resId, loaded.getResId(resName));
+            verify(otherHttpClient, never()).execute(any(HttpUriRequest.class));
+            
+            // an expiring cache, loading the snapshot, revalidates the organization the first time it is used
+            CKANCache expiring = new CKANCache(hosts, port, ssl, apiKey, 0, 10);
+            expiring.setHttpClient(mockHttpClient);
+            expiring.enableSnapshots(snapshot.getPath(), 3600000);
+            assertTrue(expiring.isCachedOrg(orgName));
+            verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+        } finally {
+            snapshot.delete();
+            assertFalse(snapshot.exists());
+        } // try finally
+    } // testSnapshot
+    
+    /**
+     * Test of warmUp method, of class CKANCache. The packages are searched in pages, and the organizations are taken
+     * from them.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        System.out.println("Testing CKANCache.warmUp");
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(new Answer<BasicHttpResponse>() {
+            
+            @Override
+            public BasicHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                String url = ((HttpUriRequest) invocation.getArguments()[0]).getURI().toString();
+                
+                if (url.contains("start=0")) {
+                    return createResponse("{\"result\": {\"count\": 3, \"results\": ["
+                            + createPackage("numeric-rooms", "pkg_id", "rooms", "room1-room", "res_id") + ", "
+                            + createPackage("other-rooms", "pkg_id2", "rooms", "room2-room", "res_id2") + "]}}");
+                } else {
+                    return createResponse("{\"result\": {\"count\": 3, \"results\": ["
+                            + createPackage("more-rooms", "pkg_id3", "halls", "room3-room", "res_id3") + "]}}");
+                } // if else
+            } // answer
+            
+        });
+        cache.setHttpClient(mockHttpClient);
+        cache.warmUp(2, 2);
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+        assertTrue(cache.isCachedOrg(orgName));
+        assertTrue(cache.isCachedOrg("halls"));
+        assertTrue(cache.isCachedPkg(orgName, pkgName));
+        assertTrue(cache.isCachedPkg(orgName, "other-rooms"));
+        assertTrue(cache.isCachedRes("halls", "more-rooms", "room3-room"));
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+        assertEquals("rooms_id", cache.getOrgId(orgName));
+        assertEquals("halls_id", cache.getOrgId("halls"));
+        assertEquals(pkgId, cache.getPkgId(pkgName));
+        assertEquals("res_id3", cache.getResId("room3-room"));
+    } // testWarmUp
+    
+    private String createPackage(String name, String id, String org, String resName, String resId) {
+        return "{\"name\": \"" + name + "\", \"id\": \"" + id + "\", \"state\": \"active\", "
+                + "\"organization\": {\"name\": \"" + org + "\", \"id\": \"" + org + "_id\"}, "
+                + "\"resources\": [{\"name\": \"" + resName + "\", \"id\": \"" + resId + "\"}]}";
+    } // createPackage
+    
+    private BasicHttpResponse createResponse(String json) throws Exception {
+        BasicHttpResponse response = new BasicHttpResponse(new ProtocolVersion("http", 1, 1), 200, "ok");
+        response.setEntity(new StringEntity(json));
+        return response;
+    } // createResponse
+    
 } // CKANCacheTest
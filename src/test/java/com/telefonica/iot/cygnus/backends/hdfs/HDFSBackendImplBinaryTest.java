@@ -0,0 +1,265 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+
+/**
+ *
+ * @author frb
+ * 
+ * The binary backend is tested against the local file system.
+ */
+public class HDFSBackendImplBinaryTest {
+    
+    // constants
+    private final String user = "hdfs-user";
+    private final String dirPath = "path/to/my/data";
+    private final String filePath = "path/to/my/data/data.txt";
+    private final String avroFilePath = "path/to/my/data/data.avro";
+    private final String data = "this is a lot of data";
+    
+    // other instances
+    private File rootDir;
+    
+    /**
+     * Sets up tests by creating a temporary root directory.
+     * 
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        rootDir = File.createTempFile("cygnus-hdfs", "");
+        rootDir.delete();
+        rootDir.mkdirs();
+    } // setUp
+    
+    /**
+     * Removes the temporary root directory.
+     */
+    @After
+    public void tearDown() {
+        delete(rootDir);
+    } // tearDown
+    
+    /**
+     * Test of createFile and append methods, of class HDFSBackendImplBinary.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCreateFileAppend() throws Exception {
+        System.out.println("Testing HDFSBackendImplBinary.createFile and append (a single part)");
+        HDFSBackendImplBinary backend = createBackend(10, 1024, 3600);
+        assertFalse(backend.exists(filePath));
+        backend.createDir(dirPath);
+        assertTrue(backend.exists(filePath));
+        backend.createFile(filePath, data);
+        backend.append(filePath, data);
+        backend.sync();
+        assertEquals(1, backend.getNumOpenFiles());
+        File[] parts = getParts();
+        assertEquals(1, parts.length);
+        assertEquals(Arrays.asList(data, data), readLines(parts[0]));
+        backend.close();
+        assertEquals(0, backend.getNumOpenFiles());
+    } // testCreateFileAppend
+    
+    /**
+     * Test of append method, of class HDFSBackendImplBinary, regarding the rolling of parts.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAppendRolling() throws Exception {
+        System.out.println("Testing HDFSBackendImplBinary.append (parts rolled on size)");
+        HDFSBackendImplBinary backend = createBackend(10, data.length() + 1, 3600);
+        backend.createDir(dirPath);
+        backend.createFile(filePath, data);
+        backend.append(filePath, data);
+        backend.append(filePath, data);
+        backend.close();
+        File[] parts = getParts();
+        assertEquals(3, parts.length);
+        
+        for (File part : parts) {
+            assertEquals(Arrays.asList(data), readLines(part));
+        } // for
+        
+        System.out.println("Testing HDFSBackendImplBinary.append (least recently used files closed)");
+        backend = createBackend(1, 1024, 3600);
+        backend.append(filePath, data);
+        backend.append(dirPath + "/other.txt", data);
+        assertEquals(1, backend.getNumOpenFiles());
+        backend.close();
+        assertEquals(4, getParts().length);
+        assertTrue(Arrays.toString(new File(rootDir, "user/" + user + "/" + dirPath).list()).contains("other_"));
+    } // testAppendRolling
+    
+    /**
+     * Test of writeAvro method, of class HDFSBackendImplBinary.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWriteAvro() throws Exception {
+        System.out.println("Testing HDFSBackendImplBinary.writeAvro (a part kept open, rolled on schema change)");
+        HDFSBackendImplBinary backend = createBackend(10, 1024 * 1024, 3600);
+        backend.createDir(dirPath);
+        Schema schema = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"r\",\"fields\":["
+                + "{\"name\":\"a\",\"type\":\"string\"}]}");
+        Schema otherSchema = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"r\",\"fields\":["
+                + "{\"name\":\"a\",\"type\":\"string\"},{\"name\":\"b\",\"type\":\"string\"}]}");
+        backend.writeAvro(avroFilePath, schema, "deflate", Arrays.asList(buildRecord(schema, "1")));
+        backend.sync();
+        backend.writeAvro(avroFilePath, schema, "deflate", Arrays.asList(buildRecord(schema, "2")));
+        backend.sync();
+        assertEquals(1, backend.getNumOpenFiles());
+        backend.writeAvro(avroFilePath, otherSchema, "deflate", Arrays.asList(buildRecord(otherSchema, "3")));
+        backend.close();
+        File[] parts = new File(rootDir, "user/" + user + "/" + dirPath).listFiles(new FilenameFilter() {
+            
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("data_") && name.endsWith(".avro");
+            } // accept
+            
+        });
+        Arrays.sort(parts);
+        assertEquals(2, parts.length);
+        assertEquals(Arrays.asList("1", "2"), readAvro(parts[0]));
+        assertEquals(Arrays.asList("3"), readAvro(parts[1]));
+    } // testWriteAvro
+    
+    /**
+     * Test of getHiveAvroTableSchema method, of class HDFSBackendImplBinary.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetHiveAvroTableSchema() throws Exception {
+        System.out.println("Testing HDFSBackendImplBinary.getHiveAvroTableSchema (not persisted yet)");
+        HDFSBackendImplBinary backend = createBackend(10, 1024 * 1024, 3600);
+        backend.createDir(dirPath);
+        assertNull(backend.getHiveAvroTableSchema(dirPath, false));
+        
+        System.out.println("Testing HDFSBackendImplBinary.getHiveAvroTableSchema (persisted beside the data)");
+        String schema = "{\"type\":\"record\",\"name\":\"r\",\"fields\":[{\"name\":\"a\",\"type\":\"string\"}]}";
+        FileWriter writer = new FileWriter(new File(rootDir, "user/" + user + "/"
+                + HiveTableProvisioner.buildAvroSchemaPath(dirPath, false)));
+        writer.write(schema);
+        writer.close();
+        assertEquals(schema, backend.getHiveAvroTableSchema(dirPath, false));
+        assertNull(backend.getHiveAvroTableSchema(dirPath, true));
+        backend.close();
+    } // testGetHiveAvroTableSchema
+    
+    private HDFSBackendImplBinary createBackend(int maxOpenFiles, long rollMaxBytes, long rollInterval)
+        throws Exception {
+        return new HDFSBackendImplBinary(rootDir.toURI().toString(), user, null, "localhost", "10000", false,
+                false, maxOpenFiles, rollMaxBytes, rollInterval);
+    } // createBackend
+    
+    private File[] getParts() {
+        File[] parts = new File(rootDir, "user/" + user + "/" + dirPath).listFiles();
+        ArrayList<File> res = new ArrayList<File>();
+        
+        for (File part : parts) {
+            if (part.getName().startsWith("data_") && part.getName().endsWith(".txt")) {
+                res.add(part);
+            } // if
+        } // for
+        
+        return res.toArray(new File[res.size()]);
+    } // getParts
+    
+    private ArrayList<String> readLines(File file) throws Exception {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        
+        try {
+            String line = reader.readLine();
+            
+            while (line != null) {
+                lines.add(line);
+                line = reader.readLine();
+            } // while
+        } finally {
+            reader.close();
+        } // try finally
+        
+        return lines;
+    } // readLines
+    
+    private GenericRecord buildRecord(Schema schema, String value) {
+        GenericRecord record = new GenericData.Record(schema);
+        
+        for (Schema.Field field : schema.getFields()) {
+            record.put(field.name(), value);
+        } // for
+        
+        return record;
+    } // buildRecord
+    
+    private ArrayList<String> readAvro(File file) throws Exception {
+        ArrayList<String> values = new ArrayList<String>();
+        DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(file,
+                new GenericDatumReader<GenericRecord>());
+        
+        try {
+            assertEquals("deflate", reader.getMetaString("avro.codec"));
+            
+            for (GenericRecord record : reader) {
+                values.add(record.get("a").toString());
+            } // for
+        } finally {
+            reader.close();
+        } // try finally
+        
+        return values;
+    } // readAvro
+    
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            } // for
+        } // if
+        
+        file.delete();
+    } // delete
+    
+} // HDFSBackendImplBinaryTest
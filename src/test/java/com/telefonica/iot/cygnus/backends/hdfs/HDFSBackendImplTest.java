@@ -18,7 +18,15 @@
 
 package com.telefonica.iot.cygnus.backends.hdfs;
 
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.mockito.Mockito;
 import org.apache.http.client.HttpClient;
@@ -28,6 +36,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import static org.junit.Assert.*; // this is required by "fail" like assertions
 import static org.mockito.Mockito.*; // this is required by "when" like functions
@@ -72,7 +82,7 @@ public class HDFSBackendImplTest {
     public void setUp() throws Exception {
         // set up the instance of the tested class
         backend = new HDFSBackendImpl(hdfsHosts, hdfsPort, user, password, hiveHost, hivePort, false, null, null, null,
-                null, false);
+                null, false, false);
         
         // set up other instances
         BasicHttpResponse resp200 = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
@@ -137,6 +147,102 @@ public class HDFSBackendImplTest {
         } // try catch finally
     } // testAppend
     
+    /**
+     * Test of append and sync methods, of class HDFSBackendImpl, when the appends are pipelined.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAppendAsync() throws Exception {
+        System.out.println("Testing HDFSBackendImpl.append (pipelined)");
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        when(httpClient.execute(Mockito.any(HttpUriRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+            
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+                
+                // first step, redirect to the file
+                if (request.getURI().getQuery() != null) {
+                    BasicHttpResponse resp307 = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 307,
+                            "Temporary Redirect");
+                    resp307.addHeader(new BasicHeader("Location", "http://localhost:14000"
+                            + request.getURI().getPath()));
+                    return resp307;
+                } // if
+                
+                // second step, the first data written in each file is the slowest one
+                String data = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()).trim();
+                
+                if (data.endsWith("1")) {
+                    Thread.sleep(100);
+                } // if
+                
+                if (request.getURI().getPath().contains("file_c")) {
+                    return new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 403, "Forbidden");
+                } // if
+                
+                written.add(request.getURI().getPath() + ":" + data);
+                return new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+            } // answer
+            
+        });
+        
+        backend.setHttpClient(httpClient);
+        backend.enableAsync(2);
+        
+        for (int i = 1; i <= 2; i++) {
+            backend.append(dirPath + "/file_a.txt", "line" + i);
+            backend.append(dirPath + "/file_b.txt", "line" + i);
+        } // for
+        
+        backend.sync();
+        backend.close();
+        assertEquals(4, written.size());
+        
+        // the appends to the same file are done in order
+        for (String file : new String[] {"file_a", "file_b"}) {
+            int line1 = -1;
+            int line2 = -1;
+            
+            for (int i = 0; i < written.size(); i++) {
+                if (written.get(i).contains(file) && written.get(i).endsWith("line1")) {
+                    line1 = i;
+                } else if (written.get(i).contains(file) && written.get(i).endsWith("line2")) {
+                    line2 = i;
+                } // if else
+            } // for
+            
+            assertTrue(line1 >= 0 && line1 < line2);
+        } // for
+        
+        assertTrue(backend.getFailedFiles().isEmpty());
+        
+        System.out.println("Testing HDFSBackendImpl.append (pipelined, an append fails)");
+        backend = new HDFSBackendImpl(hdfsHosts, hdfsPort, user, password, hiveHost, hivePort, false, null, null,
+                null, null, false, false);
+        backend.setHttpClient(httpClient);
+        backend.enableAsync(2);
+        written.clear();
+        
+        for (int i = 1; i <= 2; i++) {
+            backend.append(dirPath + "/file_a.txt", "line" + i);
+            backend.append(dirPath + "/file_c.txt", "line" + i);
+        } // for
+        
+        try {
+            backend.sync();
+            fail("A persistence error was expected");
+        } catch (CygnusPersistenceError e) {
+            // the failed file is reported, and its later appends are not done
+            assertEquals(Arrays.asList(dirPath + "/file_c.txt"), backend.getFailedFiles());
+            assertEquals(2, written.size());
+        } finally {
+            backend.close();
+        } // try finally
+    } // testAppendAsync
+    
     /**
      * Test of exists method, of class HDFSBackendImpl.
      */
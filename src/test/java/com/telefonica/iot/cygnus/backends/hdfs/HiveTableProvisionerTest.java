@@ -0,0 +1,110 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import com.telefonica.iot.cygnus.backends.hive.HiveBackend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.mockito.Matchers.anyString;
+import org.mockito.Mock;
+import static org.mockito.Mockito.*; // this is required by "when" like functions
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class HiveTableProvisionerTest {
+    
+    // instance to be tested
+    private HiveTableProvisioner provisioner;
+    
+    // mocks
+    @Mock
+    private HiveBackend mockHiveClient;
+    
+    // constants
+    private final String user = "hdfs-user";
+    private final String dirPath = "path/to/my/data";
+    private final String partitionPath = "year=2015/month=04/day=20/hour=12";
+    
+    /**
+     * Sets up tests by creating a provisioner on top of a mocked Hive backend.
+     * 
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        provisioner = new HiveTableProvisioner(user, false, true, mockHiveClient, 10);
+    } // setUp
+    
+    /**
+     * Stops the provisioner.
+     */
+    @After
+    public void tearDown() {
+        provisioner.close();
+    } // tearDown
+    
+    /**
+     * Test of provisionRowTable and provisionPartition methods, of class HiveTableProvisioner. The same table and
+     * partition are provisioned once.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testProvisionCached() throws Exception {
+        System.out.println("Testing HiveTableProvisioner.provisionRowTable and provisionPartition (cached)");
+        when(mockHiveClient.doCreateTable(anyString())).thenReturn(true);
+        when(mockHiveClient.doAlterTable(anyString())).thenReturn(true);
+        provisioner.provisionRowTable(dirPath);
+        provisioner.provisionPartition(dirPath, partitionPath, true);
+        verify(mockHiveClient, timeout(5000)).doAlterTable(anyString());
+        provisioner.provisionRowTable(dirPath);
+        provisioner.provisionPartition(dirPath, partitionPath, true);
+        provisioner.provisionColumnTable(dirPath, "temperature string");
+        verify(mockHiveClient, timeout(5000).times(2)).doCreateTable(anyString());
+        verify(mockHiveClient, times(1)).doAlterTable(anyString());
+        verify(mockHiveClient).doCreateTable("create external table if not exists hdfs_user_path_to_my_data_row ("
+                + "recvTimeTs bigint, recvTime string, entityId string, entityType string, attrName string, "
+                + "attrType string, attrValue string, attrMd array<string>) partitioned by (year string, "
+                + "month string, day string, hour string) row format serde 'org.openx.data.jsonserde.JsonSerDe' "
+                + "location '/user/hdfs-user/path/to/my/data'");
+    } // testProvisionCached
+    
+    /**
+     * Test of provisionRowTable method, of class HiveTableProvisioner. A failing table creation is retried.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testProvisionRetried() throws Exception {
+        System.out.println("Testing HiveTableProvisioner.provisionRowTable (retried)");
+        when(mockHiveClient.doCreateTable(anyString())).thenReturn(false, false, true);
+        provisioner.provisionRowTable(dirPath);
+        verify(mockHiveClient, timeout(5000).times(3)).doCreateTable(anyString());
+        provisioner.provisionRowTable(dirPath);
+        Thread.sleep(100);
+        verify(mockHiveClient, times(3)).doCreateTable(anyString());
+    } // testProvisionRetried
+    
+} // HiveTableProvisionerTest
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.http;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+
+/**
+ *
+ * @author frb
+ */
+public class HostSelectorTest {
+    
+    // constants
+    private final String[] hosts = {"host1", "host2", "host3"};
+    
+    /**
+     * Test of select method, of class HostSelector, when using the failover strategy.
+     */
+    @Test
+    public void testSelectFailover() {
+        System.out.println("Testing HostSelector.select (failover strategy)");
+        HostSelector selector = new HostSelector(hosts, HostSelector.Strategy.FAILOVER);
+        assertEquals(Arrays.asList("host1", "host2", "host3"), selector.select());
+        selector.onStart("host1");
+        selector.onFailure("host1");
+        selector.onStart("host2");
+        selector.onSuccess("host2", 10);
+        assertEquals(Arrays.asList("host2", "host1", "host3"), selector.select());
+    } // testSelectFailover
+    
+    /**
+     * Test of select method, of class HostSelector, when using the round robin strategy.
+     */
+    @Test
+    public void testSelectRoundRobin() {
+        System.out.println("Testing HostSelector.select (round robin strategy)");
+        HostSelector selector = new HostSelector(hosts, HostSelector.Strategy.ROUND_ROBIN);
+        assertEquals("host1", selector.select().get(0));
+        assertEquals("host2", selector.select().get(0));
+        assertEquals("host3", selector.select().get(0));
+        assertEquals("host1", selector.select().get(0));
+    } // testSelectRoundRobin
+    
+    /**
+     * Test of select method, of class HostSelector, when using the least outstanding requests strategy.
+     */
+    @Test
+    public void testSelectLeastOutstanding() {
+        System.out.println("Testing HostSelector.select (least outstanding requests strategy)");
+        HostSelector selector = new HostSelector(hosts, HostSelector.Strategy.LEAST_OUTSTANDING);
+        selector.onStart("host1");
+        selector.onStart("host1");
+        selector.onStart("host2");
+        assertEquals(Arrays.asList("host3", "host2", "host1"), selector.select());
+        assertEquals(2, selector.getOutstanding("host1"));
+    } // testSelectLeastOutstanding
+    
+    /**
+     * Test of select method, of class HostSelector, when using the EWMA latency strategy.
+     */
+    @Test
+    public void testSelectEWMA() {
+        System.out.println("Testing HostSelector.select (EWMA latency strategy)");
+        HostSelector selector = new HostSelector(hosts, HostSelector.Strategy.EWMA);
+        
+        for (String host : hosts) {
+            selector.onStart(host);
+        } // for
+        
+        selector.onSuccess("host1", 300);
+        selector.onSuccess("host2", 100);
+        selector.onSuccess("host3", 200);
+        
+        for (int i = 0; i < hosts.length; i++) {
+            assertEquals(Arrays.asList("host2", "host3", "host1"), selector.select());
+        } // for
+        
+        // the outstanding requests penalize the fastest host
+        selector.onStart("host2");
+        selector.onStart("host2");
+        assertEquals("host3", selector.select().get(0));
+    } // testSelectEWMA
+    
+    /**
+     * Test of onFailure method, of class HostSelector, regarding the ejection and probation of the hosts.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testEjection() throws Exception {
+        System.out.println("Testing HostSelector.onFailure (ejection and probation)");
+        HostSelector selector = new HostSelector(hosts, HostSelector.Strategy.ROUND_ROBIN, 100);
+        
+        for (int i = 0; i < 3; i++) {
+            selector.onStart("host1");
+            selector.onFailure("host1");
+        } // for
+        
+        assertTrue(selector.isEjected("host1"));
+        
+        // ejected hosts are tried the last
+        for (int i = 0; i < hosts.length; i++) {
+            assertEquals("host1", selector.select().get(2));
+        } // for
+        
+        // once the ejection time has elapsed, a single trial request is sent to the host on probation
+        Thread.sleep(150);
+        assertFalse(selector.isEjected("host1"));
+        assertEquals("host1", selector.select().get(0));
+        assertEquals("host1", selector.select().get(2));
+        
+        // a failed trial ejects the host again
+        selector.onStart("host1");
+        selector.onFailure("host1");
+        assertTrue(selector.isEjected("host1"));
+        
+        // a succeeded trial makes the host healthy again
+        Thread.sleep(150);
+        assertEquals("host1", selector.select().get(0));
+        selector.onStart("host1");
+        selector.onSuccess("host1", 10);
+        assertFalse(selector.isEjected("host1"));
+        selector.onStart("host1");
+        selector.onFailure("host1");
+        assertFalse(selector.isEjected("host1"));
+    } // testEjection
+    
+} // HostSelectorTest
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.http;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import static org.mockito.Mockito.*; // this is required by "when" like functions
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class HttpBackendTest {
+    
+    // instance to be tested
+    private HttpBackend backend;
+    
+    // mocks
+    @Mock
+    private HttpClient mockHttpClient;
+    
+    // constants
+    private final String[] hosts = {"host1", "host2"};
+    
+    /**
+     * Sets up tests by creating a unique instance of the tested class.
+     */
+    @Before
+    public void setUp() {
+        backend = new HttpBackend(hosts, "80", false, false, null, null, null, null) {
+        };
+        backend.setHttpClient(mockHttpClient);
+    } // setUp
+    
+    /**
+     * Test of doRequest method, of class HttpBackend, regarding the failover among the hosts.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDoRequestFailover() throws Exception {
+        System.out.println("Testing HttpBackend.doRequest (a 4xx status is returned without failing over)");
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(createResponse(409));
+        JsonResponse response = backend.doRequest("GET", "/path", true, null, null);
+        assertEquals(409, response.getStatusCode());
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+        assertFalse(backend.getHostSelector().isEjected("host1"));
+        assertEquals(0, backend.getHostSelector().getOutstanding("host1"));
+        
+        System.out.println("Testing HttpBackend.doRequest (a 5xx status fails over)");
+        reset(mockHttpClient);
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(createResponse(503))
+                .thenReturn(createResponse(200));
+        response = backend.doRequest("GET", "/path", true, null, null);
+        assertEquals(200, response.getStatusCode());
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    } // testDoRequestFailover
+    
+    private BasicHttpResponse createResponse(int status) throws Exception {
+        BasicHttpResponse response = new BasicHttpResponse(new ProtocolVersion("http", 1, 1), status, "reason");
+        response.setEntity(new StringEntity("{}"));
+        return response;
+    } // createResponse
+    
+} // HttpBackendTest
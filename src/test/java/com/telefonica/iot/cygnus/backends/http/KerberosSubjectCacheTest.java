@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.http;
+
+import java.util.Date;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginException;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+
+/**
+ *
+ * @author frb
+ * 
+ * The KDC is replaced by a stand-in issuing ticket granting tickets with a configurable lifetime.
+ */
+public class KerberosSubjectCacheTest {
+    
+    // instance to be tested
+    private KerberosSubjectCache cache;
+    
+    // constants
+    private final String user = "krb5_user@REALM";
+    private final String password = "krb5_password";
+    
+    // other instances
+    private long ticketLifetime;
+    
+    /**
+     * Sets up tests by creating a unique instance of the tested class, whose logins are answered by the KDC stand-in.
+     */
+    @Before
+    public void setUp() {
+        ticketLifetime = 3600000;
+        cache = new KerberosSubjectCache() {
+            
+            @Override
+            protected Subject login(String user, String password) throws LoginException {
+                long now = System.currentTimeMillis();
+                Subject subject = new Subject();
+                subject.getPrivateCredentials().add(new KerberosTicket(new byte[0], new KerberosPrincipal(user),
+                        new KerberosPrincipal("krbtgt/REALM@REALM"), new byte[0], 0, new boolean[32], new Date(now),
+                        new Date(now), new Date(now + ticketLifetime), null, null));
+                return subject;
+            } // login
+            
+        };
+    } // setUp
+    
+    /**
+     * Test of getSubject method, of class KerberosSubjectCache.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetSubject() throws Exception {
+        System.out.println("Testing KerberosSubjectCache.getSubject (a single login per principal)");
+        Subject subject = cache.getSubject(user, password);
+        assertSame(subject, cache.getSubject(user, password));
+        assertEquals(1, cache.getNumLogins());
+        cache.getSubject("other_user@REALM", password);
+        assertEquals(2, cache.getNumLogins());
+        
+        System.out.println("Testing KerberosSubjectCache.getSubject (a new login after invalidating)");
+        cache.invalidate(user);
+        assertNotSame(subject, cache.getSubject(user, password));
+        assertEquals(3, cache.getNumLogins());
+        
+        System.out.println("Testing KerberosSubjectCache.getSubject (a new login when the ticket is about to expire)");
+        ticketLifetime = 0;
+        cache.invalidate(user);
+        subject = cache.getSubject(user, password);
+        assertNotSame(subject, cache.getSubject(user, password));
+        assertEquals(5, cache.getNumLogins());
+    } // testGetSubject
+    
+} // KerberosSubjectCacheTest
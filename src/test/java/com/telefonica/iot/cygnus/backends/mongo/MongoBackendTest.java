@@ -0,0 +1,437 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.backends.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.bulk.WriteConcernError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.telefonica.iot.cygnus.backends.mongo.MongoBackend.PointsLayout;
+import com.telefonica.iot.cygnus.backends.mongo.MongoBackend.Resolution;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
+import com.telefonica.iot.cygnus.sinks.OrionMongoBaseSink.DataModel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import static org.mockito.Mockito.*; // this is required by "when" like functions
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MongoBackendTest {
+    
+    // mocks
+    @Mock
+    private MongoClient mockMongoClient;
+    @Mock
+    private MongoDatabase mockMongoDatabase;
+    @Mock
+    private MongoCollection<Document> mockMongoCollection;
+    @Mock
+    private MongoIterable<String> mockCollectionNames;
+    @Mock
+    private MongoCursor<String> mockCollectionNamesCursor;
+    
+    // constants
+    private final String dbName = "db-name";
+    private final String collectionName = "collection-name";
+    private final String entityId = "car1";
+    private final String entityType = "car";
+    private final String attrName = "speed";
+    private final String attrType = "float";
+    private final double value = 112.9;
+    private final long[] timestamps = {
+        0L, // epoch
+        1429535775L, // 2015-04-20T13:16:15Z
+        951782399L, // 2000-02-28T23:59:59Z, leap year
+        951868800L, // 2000-03-01T00:00:00Z
+        1456790399L, // 2016-02-29T23:59:59Z
+        1451606399L, // 2015-12-31T23:59:59Z
+        4107542400L // 2100-03-01T00:00:00Z, not a leap year
+    };
+    
+    /**
+     * Sets up tests by defining the behaviour of the mocked classes.
+     */
+    @Before
+    public void setUp() {
+        when(mockMongoClient.getDatabase(dbName)).thenReturn(mockMongoDatabase);
+        when(mockMongoDatabase.getCollection(collectionName)).thenReturn(mockMongoCollection);
+        when(mockMongoDatabase.listCollectionNames()).thenReturn(mockCollectionNames);
+        when(mockCollectionNames.iterator()).thenReturn(mockCollectionNamesCursor);
+        when(mockCollectionNamesCursor.hasNext()).thenReturn(true, false);
+        when(mockCollectionNamesCursor.next()).thenReturn(collectionName);
+    } // setUp
+    
+    /**
+     * Test of createCollection method, of class MongoBackend.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testCreateCollection() throws Exception {
+        System.out.println("Testing MongoBackend.createCollection (collections cache)");
+        MongoBackend backend = new MongoBackend("localhost:27017", "", "", DataModel.COLLECTIONPERENTITY);
+        backend.setClient(mockMongoClient);
+        String newCollectionName = "new-collection-name";
+        
+        // the existent collection is known once the database collections are listed
+        backend.createCollection(dbName, collectionName);
+        verify(mockMongoDatabase, never()).createCollection(collectionName);
+        
+        // the new collection is created just once
+        backend.createCollection(dbName, newCollectionName);
+        backend.createCollection(dbName, newCollectionName);
+        verify(mockMongoDatabase, times(1)).createCollection(newCollectionName);
+        assertTrue(backend.isKnownCollection(dbName, newCollectionName));
+        
+        // the database collections are listed just once
+        verify(mockMongoDatabase, times(1)).listCollectionNames();
+    } // testCreateCollection
+    
+    /**
+     * Test of storeCollectionHash method, of class MongoBackend.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testStoreCollectionHash() throws Exception {
+        System.out.println("Testing MongoBackend.storeCollectionHash (a single upsert per hash)");
+        MongoBackend backend = new MongoBackend("localhost:27017", "", "", DataModel.COLLECTIONPERENTITY);
+        backend.setClient(mockMongoClient);
+        when(mockMongoDatabase.getCollection("collection_names")).thenReturn(mockMongoCollection);
+        
+        for (int i = 0; i < 3; i++) {
+            backend.storeCollectionHash(dbName, "hash", true, "service", "/servicepath", entityId, entityType,
+                    attrName, null);
+        } // for
+        
+        backend.storeCollectionHash(dbName, "hash", false, "service", "/servicepath", entityId, entityType,
+                attrName, null);
+        verify(mockMongoDatabase, times(1)).createCollection("collection_names");
+        verify(mockMongoCollection, times(2)).updateOne(any(Bson.class), any(Bson.class), any(UpdateOptions.class));
+    } // testStoreCollectionHash
+    
+    /**
+     * Test of createAggregatedPoints method, of class MongoBackend.
+     */
+    @Test
+    public void testCreateAggregatedPoints() {
+        System.out.println("Testing MongoBackend.createAggregatedPoints (origins and offsets as given by a calendar)");
+        
+        for (long ts : timestamps) {
+            List<AggregatedPoint> points = MongoBackend.createAggregatedPoints(ts, entityId, entityType, attrName,
+                    attrType, value);
+            assertEquals(Resolution.values().length, points.size());
+            
+            for (AggregatedPoint point : points) {
+                GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+                calendar.setTimeInMillis(ts * 1000);
+                int offset;
+                
+                switch (point.getResolution()) {
+                    case SECOND:
+                        offset = calendar.get(Calendar.SECOND);
+                        calendar.set(Calendar.SECOND, 0);
+                        break;
+                    case MINUTE:
+                        offset = calendar.get(Calendar.MINUTE);
+                        calendar.set(Calendar.SECOND, 0);
+                        calendar.set(Calendar.MINUTE, 0);
+                        break;
+                    case HOUR:
+                        offset = calendar.get(Calendar.HOUR_OF_DAY);
+                        calendar.set(Calendar.SECOND, 0);
+                        calendar.set(Calendar.MINUTE, 0);
+                        calendar.set(Calendar.HOUR_OF_DAY, 0);
+                        break;
+                    case DAY:
+                        offset = calendar.get(Calendar.DAY_OF_MONTH);
+                        calendar.set(Calendar.SECOND, 0);
+                        calendar.set(Calendar.MINUTE, 0);
+                        calendar.set(Calendar.HOUR_OF_DAY, 0);
+                        calendar.set(Calendar.DAY_OF_MONTH, 1);
+                        break;
+                    default:
+                        offset = calendar.get(Calendar.MONTH) + 1;
+                        calendar.set(Calendar.SECOND, 0);
+                        calendar.set(Calendar.MINUTE, 0);
+                        calendar.set(Calendar.HOUR_OF_DAY, 0);
+                        calendar.set(Calendar.DAY_OF_MONTH, 1);
+                        calendar.set(Calendar.MONTH, 0);
+                } // switch
+                
+                assertEquals("offset (ts=" + ts + ", resolution=" + point.getResolution() + ")", offset,
+                        point.getOffset());
+                assertEquals("origin (ts=" + ts + ", resolution=" + point.getResolution() + ")",
+                        calendar.getTimeInMillis() / 1000, point.getOrigin());
+                assertEquals(1, point.getSamples());
+                assertEquals(value * value, point.getSum2(), 0);
+            } // for
+        } // for
+    } // testCreateAggregatedPoints
+    
+    /**
+     * Test of insertContextDataRaw method, of class MongoBackend.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testInsertContextDataRaw() throws Exception {
+        System.out.println("Testing MongoBackend.insertContextDataRaw (write concern error, all the documents are "
+                + "retried)");
+        MongoBackend backend = new MongoBackend("localhost:27017", "", "", DataModel.COLLECTIONPERENTITY, 8388608, 1,
+                PointsLayout.ARRAY, 100);
+        backend.setClient(mockMongoClient);
+        ArrayList<Document> docs = new ArrayList<Document>();
+        docs.add(MongoBackend.createRawDocument(DataModel.COLLECTIONPERENTITY, timestamps[1], entityId, entityType,
+                attrName, attrType, "112.9"));
+        docs.add(MongoBackend.createRawDocument(DataModel.COLLECTIONPERENTITY, timestamps[1], entityId, entityType,
+                attrName, attrType, "115.8"));
+        MongoBulkWriteException writeConcernException = new MongoBulkWriteException(
+                BulkWriteResult.acknowledged(docs.size(), 0, 0, 0, new ArrayList<BulkWriteUpsert>()),
+                new ArrayList<BulkWriteError>(), new WriteConcernError(64, "waiting for replication timed out",
+                        new BsonDocument()), new ServerAddress());
+        doThrow(writeConcernException).doNothing().when(mockMongoCollection).insertMany(anyList(),
+                any(InsertManyOptions.class));
+        ArgumentCaptor<List> inserted = ArgumentCaptor.forClass(List.class);
+        backend.insertContextDataRaw(dbName, collectionName, docs);
+        verify(mockMongoCollection, times(2)).insertMany(inserted.capture(), any(InsertManyOptions.class));
+        assertEquals(docs.size(), inserted.getAllValues().get(1).size());
+        
+        System.out.println("Testing MongoBackend.insertContextDataRaw (documents still rejected after the last "
+                + "retry, the insertion fails)");
+        ArrayList<BulkWriteError> errors = new ArrayList<BulkWriteError>();
+        errors.add(new BulkWriteError(11000, "duplicate key", new BsonDocument(), 0));
+        errors.add(new BulkWriteError(2, "bad value", new BsonDocument(), 1));
+        MongoBulkWriteException writeException = new MongoBulkWriteException(
+                BulkWriteResult.acknowledged(0, 0, 0, 0, new ArrayList<BulkWriteUpsert>()), errors, null,
+                new ServerAddress());
+        ArrayList<BulkWriteError> retryErrors = new ArrayList<BulkWriteError>();
+        retryErrors.add(new BulkWriteError(2, "bad value", new BsonDocument(), 0));
+        MongoBulkWriteException retryWriteException = new MongoBulkWriteException(
+                BulkWriteResult.acknowledged(0, 0, 0, 0, new ArrayList<BulkWriteUpsert>()), retryErrors, null,
+                new ServerAddress());
+        reset(mockMongoCollection);
+        doThrow(writeException).doThrow(retryWriteException).when(mockMongoCollection).insertMany(anyList(),
+                any(InsertManyOptions.class));
+        
+        try {
+            backend.insertContextDataRaw(dbName, collectionName, docs);
+            fail("The documents rejected after the last retry must make the insertion fail");
+        } catch (CygnusPersistenceError e) {
+            verify(mockMongoCollection, times(2)).insertMany(inserted.capture(), any(InsertManyOptions.class));
+            // only the rejected document is retried, the duplicated one was already inserted
+            assertEquals(1, inserted.getValue().size());
+        } // try catch
+    } // testInsertContextDataRaw
+    
+    /**
+     * Test of insertContextDataAggregated method, of class MongoBackend, array layout.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testInsertContextDataAggregatedArray() throws Exception {
+        System.out.println("Testing MongoBackend.insertContextDataAggregated (array layout, prepopulate cache)");
+        MongoBackend backend = new MongoBackend("localhost:27017", "", "", DataModel.COLLECTIONPERENTITY, 8388608, 3,
+                PointsLayout.ARRAY, 100);
+        backend.setClient(mockMongoClient);
+        List<AggregatedPoint> points = MongoBackend.createAggregatedPoints(timestamps[1], entityId, entityType,
+                attrName, attrType, value);
+        ArrayList<BulkWriteUpsert> upserts = new ArrayList<BulkWriteUpsert>();
+        
+        for (int i = 0; i < points.size(); i++) {
+            upserts.add(new BulkWriteUpsert(i, new BsonString("id" + i)));
+        } // for
+        
+        when(mockMongoCollection.bulkWrite(anyList(), any(BulkWriteOptions.class)))
+                .thenReturn(BulkWriteResult.acknowledged(0, points.size(), 0, points.size(), upserts))
+                .thenReturn(BulkWriteResult.acknowledged(0, points.size(), 0, points.size(),
+                        new ArrayList<BulkWriteUpsert>()))
+                .thenReturn(BulkWriteResult.acknowledged(0, 0, 0, 0, new ArrayList<BulkWriteUpsert>()))
+                .thenReturn(BulkWriteResult.acknowledged(0, points.size(), 0, points.size(), upserts));
+        ArgumentCaptor<List> requests = ArgumentCaptor.forClass(List.class);
+        
+        // the documents are not known, thus they are prepopulated
+        backend.insertContextDataAggregated(dbName, collectionName, points);
+        // the documents are known to be prepopulated
+        backend.insertContextDataAggregated(dbName, collectionName, points);
+        // the documents are known to be prepopulated, but they have been removed, thus the updates are lost
+        try {
+            backend.insertContextDataAggregated(dbName, collectionName, points);
+            fail("The lost updates must make the insertion fail");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(e.getMessage().contains("lost updates=" + points.size()));
+        } // try catch
+        
+        // the documents are not known anymore
+        backend.insertContextDataAggregated(dbName, collectionName, points);
+        verify(mockMongoCollection, times(4)).bulkWrite(requests.capture(), any(BulkWriteOptions.class));
+        assertEquals(2 * points.size(), requests.getAllValues().get(0).size());
+        assertEquals(points.size(), requests.getAllValues().get(1).size());
+        assertEquals(points.size(), requests.getAllValues().get(2).size());
+        assertEquals(2 * points.size(), requests.getAllValues().get(3).size());
+        
+        System.out.println("Testing MongoBackend.insertContextDataAggregated (array layout, only the requests not "
+                + "applied are retried)");
+        backend = new MongoBackend("localhost:27017", "", "", DataModel.COLLECTIONPERENTITY, 8388608, 3,
+                PointsLayout.ARRAY, 100);
+        backend.setClient(mockMongoClient);
+        reset(mockMongoCollection);
+        ArrayList<BulkWriteError> errors = new ArrayList<BulkWriteError>();
+        errors.add(new BulkWriteError(11000, "duplicate key", new BsonDocument(), 2));
+        MongoBulkWriteException writeException = new MongoBulkWriteException(
+                BulkWriteResult.acknowledged(0, 0, 0, 0, upserts.subList(0, 2)), errors, null, new ServerAddress());
+        when(mockMongoCollection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenThrow(writeException)
+                .thenReturn(BulkWriteResult.acknowledged(0, points.size(), 0, points.size(),
+                        upserts.subList(0, points.size() - 2)));
+        requests = ArgumentCaptor.forClass(List.class);
+        backend.insertContextDataAggregated(dbName, collectionName, points);
+        verify(mockMongoCollection, times(2)).bulkWrite(requests.capture(), any(BulkWriteOptions.class));
+        assertEquals(2 * points.size(), requests.getAllValues().get(0).size());
+        assertEquals(2 * points.size() - 2, requests.getAllValues().get(1).size());
+        
+        System.out.println("Testing MongoBackend.insertContextDataAggregated (array layout, write concern error "
+                + "only, the applied requests are not retried)");
+        reset(mockMongoCollection);
+        MongoBulkWriteException writeConcernException = new MongoBulkWriteException(
+                BulkWriteResult.acknowledged(0, points.size(), 0, points.size(), new ArrayList<BulkWriteUpsert>()),
+                new ArrayList<BulkWriteError>(), new WriteConcernError(64, "waiting for replication timed out",
+                        new BsonDocument()), new ServerAddress());
+        when(mockMongoCollection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenThrow(writeConcernException);
+        backend.insertContextDataAggregated(dbName, collectionName, points);
+        verify(mockMongoCollection, times(1)).bulkWrite(anyList(), any(BulkWriteOptions.class));
+        
+        System.out.println("Testing MongoBackend.insertContextDataAggregated (array layout, the updates are retried "
+                + "only if none of them was applied)");
+        backend = new MongoBackend("localhost:27017", "", "", DataModel.COLLECTIONPERENTITY, 8388608, 0,
+                PointsLayout.ARRAY, 100);
+        backend.setClient(mockMongoClient);
+        reset(mockMongoCollection);
+        errors = new ArrayList<BulkWriteError>();
+        errors.add(new BulkWriteError(2, "bad value", new BsonDocument(), 1));
+        when(mockMongoCollection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenThrow(
+                new MongoBulkWriteException(BulkWriteResult.acknowledged(0, 0, 0, 0, upserts.subList(0, 1)), errors,
+                        null, new ServerAddress()));
+        
+        try {
+            backend.insertContextDataAggregated(dbName, collectionName, points);
+            fail("The not applied updates must make the insertion fail");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(e.getMessage().contains("lost updates=" + points.size()));
+        } // try catch
+        
+        reset(mockMongoCollection);
+        errors = new ArrayList<BulkWriteError>();
+        errors.add(new BulkWriteError(2, "bad value", new BsonDocument(), points.size() + 2));
+        when(mockMongoCollection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenThrow(
+                new MongoBulkWriteException(BulkWriteResult.acknowledged(0, 2, 0, 2, upserts), errors, null,
+                        new ServerAddress()));
+        
+        try {
+            backend.insertContextDataAggregated(dbName, collectionName, points);
+            fail("The not applied updates must make the insertion fail");
+        } catch (CygnusRuntimeError e) {
+            assertTrue(e.getMessage().contains("applied updates=2, lost updates=" + (points.size() - 2)));
+        } // try catch
+    } // testInsertContextDataAggregatedArray
+    
+    /**
+     * Test of insertContextDataAggregated method, of class MongoBackend, keyed layout.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testInsertContextDataAggregatedKeyed() throws Exception {
+        System.out.println("Testing MongoBackend.insertContextDataAggregated (keyed layout, a single upsert per "
+                + "point)");
+        MongoBackend backend = new MongoBackend("localhost:27017", "", "", DataModel.COLLECTIONPERENTITY, 8388608, 3,
+                PointsLayout.KEYED, 100);
+        backend.setClient(mockMongoClient);
+        List<AggregatedPoint> points = MongoBackend.createAggregatedPoints(timestamps[1], entityId, entityType,
+                attrName, attrType, value);
+        ArgumentCaptor<List> requests = ArgumentCaptor.forClass(List.class);
+        backend.insertContextDataAggregated(dbName, collectionName, points);
+        verify(mockMongoCollection, times(1)).bulkWrite(requests.capture(), any(BulkWriteOptions.class));
+        assertEquals(points.size(), requests.getValue().size());
+        
+        for (Object request : requests.getValue()) {
+            assertTrue(((UpdateOneModel) request).getOptions().isUpsert());
+        } // for
+        
+        // 2015-04-20T13:16:15Z, the first point regards to the second resolution
+        UpdateOneModel update = (UpdateOneModel) requests.getValue().get(0);
+        assertTrue(update.getUpdate().toString().contains("points.15.samples"));
+        
+        System.out.println("Testing MongoBackend.insertContextDataAggregated (keyed layout, the upserts are retried "
+                + "only if none of them was applied)");
+        ArrayList<BulkWriteError> errors = new ArrayList<BulkWriteError>();
+        
+        for (int i = 0; i < points.size(); i++) {
+            errors.add(new BulkWriteError(2, "bad value", new BsonDocument(), i));
+        } // for
+        
+        reset(mockMongoCollection);
+        when(mockMongoCollection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenThrow(
+                new MongoBulkWriteException(BulkWriteResult.acknowledged(0, 0, 0, 0, new ArrayList<BulkWriteUpsert>()),
+                        errors, null, new ServerAddress()));
+        
+        try {
+            backend.insertContextDataAggregated(dbName, collectionName, points);
+            fail("The not applied upserts must make the insertion fail");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(e.getMessage().contains("lost updates=" + points.size()));
+        } // try catch
+        
+        reset(mockMongoCollection);
+        when(mockMongoCollection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenThrow(
+                new MongoBulkWriteException(BulkWriteResult.acknowledged(0, 0, 0, 0, new ArrayList<BulkWriteUpsert>()),
+                        errors.subList(0, 1), null, new ServerAddress()));
+        
+        try {
+            backend.insertContextDataAggregated(dbName, collectionName, points);
+            fail("The not applied upserts must make the insertion fail");
+        } catch (CygnusRuntimeError e) {
+            assertTrue(e.getMessage().contains("applied updates=" + (points.size() - 1) + ", lost updates=1"));
+        } // try catch
+    } // testInsertContextDataAggregatedKeyed
+    
+} // MongoBackendTest
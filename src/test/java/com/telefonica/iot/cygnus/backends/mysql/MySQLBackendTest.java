@@ -19,8 +19,16 @@
 package com.telefonica.iot.cygnus.backends.mysql;
 
 import com.telefonica.iot.cygnus.backends.mysql.MySQLBackend.MySQLDriver;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
@@ -28,7 +36,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -49,6 +63,8 @@ public class MySQLBackendTest {
     private Connection mockConnection;
     @Mock
     private Statement mockStatement;
+    @Mock
+    private PreparedStatement mockPreparedStatement;
     
     // constants
     private final String host = "localhost";
@@ -77,6 +93,8 @@ public class MySQLBackendTest {
                 Mockito.anyString(), Mockito.anyString())).thenReturn(mockConnection);
         when(mockConnection.createStatement()).thenReturn(mockStatement);
         when(mockStatement.executeUpdate(Mockito.anyString())).thenReturn(1);
+        when(mockConnection.prepareStatement(Mockito.anyString())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeUpdate()).thenReturn(1);
     } // setUp
     
     /**
@@ -142,20 +160,260 @@ public class MySQLBackendTest {
         } // try catch finally
     } // testCreateTable
     
+    /**
+     * Test of the databases and tables cache, of class MySQLBackend.
+     */
+    @Test
+    public void testDDLCache() {
+        System.out.println("Testing MySQLBackend DDL cache (databases and tables are created once)");
+        
+        try {
+            backend.createDatabase(dbName1);
+            backend.createDatabase(dbName1);
+            backend.createTable(dbName1, tableName1);
+            backend.createTable(dbName1, tableName1);
+            verify(mockStatement, times(2)).executeUpdate(Mockito.anyString());
+            assertTrue(backend.isKnownDatabase(dbName1));
+            assertTrue(backend.isKnownTable(dbName1, tableName1));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        System.out.println("Testing MySQLBackend DDL cache (invalidation when the table does not exist anymore)");
+        
+        try {
+            when(mockPreparedStatement.executeBatch()).thenThrow(
+                    new SQLException("Table 'db1.table1' doesn't exist", "42S02", 1146));
+            backend.insertContextData(dbName1, tableName1, 123456789, "2015-01-01T00:00:00.000", "car1", "car",
+                    "speed", "float", "112.9", "[]");
+            fail("A persistence error was expected");
+        } catch (CygnusPersistenceError e) {
+            assertFalse(backend.isKnownTable(dbName1, tableName1));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testDDLCache
+    
     /**
      * Test of insertContextData method, of class MySQLBackend.
      */
     @Test
     public void testInsertContextData() {
-        System.out.println("Testing MySQLBackend.insertContextData");
+        System.out.println("Testing MySQLBackend.insertContextData (the statement is prepared once per table)");
+        
+        try {
+            backend.insertContextData(dbName1, tableName1, 123456789, "2015-01-01T00:00:00.000", "car1", "car",
+                    "speed", "float", "112.9", "[]");
+            backend.insertContextData(dbName1, tableName1, 123456790, "2015-01-01T00:00:01.000", "car1", "car",
+                    "speed", "float", "'quoted' value", "[]");
+            verify(mockConnection, times(1)).prepareStatement(Mockito.anyString());
+            verify(mockPreparedStatement, times(2)).executeBatch();
+            verify(mockPreparedStatement).setString(7, "'quoted' value");
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        System.out.println("Testing MySQLBackend.insertContextData (the statement is prepared once per column set)");
+        
+        try {
+            HashMap<String, String> attrs = new HashMap<String, String>();
+            attrs.put("speed", "112.9");
+            HashMap<String, String> mds = new HashMap<String, String>();
+            mds.put("speed_md", "[]");
+            backend.insertContextData(dbName1, tableName2, "2015-01-01T00:00:00.000", attrs, mds);
+            backend.insertContextData(dbName1, tableName2, "2015-01-01T00:00:01.000", attrs, mds);
+            attrs.put("fuel", "34.5");
+            backend.insertContextData(dbName1, tableName2, "2015-01-01T00:00:02.000", attrs, mds);
+            verify(mockConnection, times(3)).prepareStatement(Mockito.anyString());
+            
+            // a single connection has been used
+            verify(mockDriver, times(1)).getConnection(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                    Mockito.anyString(), Mockito.anyString());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
     } // testInsertContextData
     
+    /**
+     * Test of insertContextData method, of class MySQLBackend, when inserting many rows at the same time.
+     */
+    @Test
+    public void testInsertContextDataBatch() {
+        System.out.println("Testing MySQLBackend.insertContextData (batches of up to maxRowsPerInsert rows)");
+        MySQLBackend batchingBackend = new MySQLBackend(host, port, user, password, 10, 10, 300000, 30000, 10, 2);
+        batchingBackend.setDriver(mockDriver);
+        ArrayList<LinkedHashMap<String, String>> rows = new ArrayList<LinkedHashMap<String, String>>();
+        
+        for (int i = 0; i < 5; i++) {
+            rows.add(MySQLBackend.createRow(123456789 + i, "2015-01-01T00:00:00.000", "car1", "car", "speed", "float",
+                    Integer.toString(i), "[]"));
+        } // for
+        
+        try {
+            batchingBackend.insertContextData(dbName1, tableName1, rows);
+            verify(mockConnection, times(1)).prepareStatement(Mockito.anyString());
+            verify(mockPreparedStatement, times(5)).addBatch();
+            verify(mockPreparedStatement, times(3)).executeBatch();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testInsertContextDataBatch
+    
+    /**
+     * Test of insertContextData method, of class MySQLBackend, when some rows are rejected by MySQL.
+     */
+    @Test
+    public void testInsertContextDataWrongRows() {
+        System.out.println("Testing MySQLBackend.insertContextData (a batch with a wrong row is inserted row by row)");
+        MySQLBackend batchingBackend = new MySQLBackend(host, port, user, password, 10, 10, 300000, 30000, 10, 2);
+        batchingBackend.setDriver(mockDriver);
+        ArrayList<LinkedHashMap<String, String>> rows = new ArrayList<LinkedHashMap<String, String>>();
+        
+        for (int i = 0; i < 4; i++) {
+            rows.add(MySQLBackend.createRow(123456789 + i, "2015-01-01T00:00:00.000", "car1", "car", "speed", "float",
+                    Integer.toString(i), "[]"));
+        } // for
+        
+        try {
+            SQLException dataTooLong = new SQLException("Data too long for column 'attrValue'", "22001", 1406);
+            when(mockPreparedStatement.executeBatch()).thenThrow(dataTooLong).thenReturn(new int[] {1, 1});
+            when(mockPreparedStatement.executeUpdate()).thenThrow(dataTooLong).thenReturn(1);
+            batchingBackend.insertContextData(dbName1, tableName1, rows);
+            verify(mockPreparedStatement, times(1)).clearBatch();
+            verify(mockPreparedStatement, times(2)).executeBatch();
+            verify(mockPreparedStatement, times(2)).executeUpdate();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        System.out.println("Testing MySQLBackend.insertContextData (a group with an unknown column is discarded)");
+        
+        try {
+            HashMap<String, String> attrs = new HashMap<String, String>();
+            attrs.put("unknown", "1");
+            HashMap<String, String> mds = new HashMap<String, String>();
+            mds.put("unknown_md", "[]");
+            ArrayList<LinkedHashMap<String, String>> columnRows = new ArrayList<LinkedHashMap<String, String>>();
+            columnRows.add(MySQLBackend.createRow("2015-01-01T00:00:00.000", attrs, mds));
+            columnRows.add(MySQLBackend.createRow("2015-01-01T00:00:01.000", attrs, mds));
+            columnRows.add(MySQLBackend.createRow("2015-01-01T00:00:02.000", attrs, mds));
+            doThrow(new SQLException("Unknown column 'unknown' in 'field list'", "42S22", 1054))
+                    .when(mockPreparedStatement).executeBatch();
+            batchingBackend.insertContextData(dbName1, tableName2, columnRows);
+            
+            // the second chunk is not tried, and no row is inserted one by one
+            verify(mockPreparedStatement, times(3)).executeBatch();
+            verify(mockPreparedStatement, times(2)).executeUpdate();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        System.out.println("Testing MySQLBackend.insertContextData (connection errors are not retried row by row)");
+        
+        try {
+            doThrow(new SQLException("Communications link failure", "08S01", 0))
+                    .when(mockPreparedStatement).executeBatch();
+            batchingBackend.insertContextData(dbName1, tableName1, rows);
+            fail("A connection error should be a persistence error");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(e.getMessage().contains("Communications link failure"));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testInsertContextDataWrongRows
+    
     /**
      * Test of getConnection method, of class MySQLBackend.
      */
     @Test
     public void testGetConnection() {
-        System.out.println("Testing MySQLBackend.getConnection");
+        System.out.println("Testing MySQLBackend.getConnection (connections are reused)");
+        
+        try {
+            backend.createTable(dbName1, tableName1);
+            backend.createTable(dbName1, tableName2);
+            verify(mockDriver, times(1)).getConnection(host, port, dbName1, user, password);
+            verify(mockConnection, never()).close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        System.out.println("Testing MySQLBackend.getConnection (the number of connections is limited)");
+        MySQLBackend limitedBackend = new MySQLBackend(host, port, user, password, 1, 1, 300000, 30000, 10, 100);
+        limitedBackend.setDriver(mockDriver);
+        
+        try {
+            limitedBackend.createTable(dbName1, tableName1);
+            limitedBackend.createTable(dbName2, tableName1);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } finally {
+            // the connection to the first database was closed in order to open the connection to the second one
+            assertEquals(1, limitedBackend.getConnections().size());
+            assertTrue(limitedBackend.getConnections().containsKey(dbName2));
+        } // try catch finally
+        
+        System.out.println("Testing MySQLBackend.getConnection (idle connections are validated)");
+        MySQLBackend validatingBackend = new MySQLBackend(host, port, user, password, 10, 10, 300000, 0, 10, 100);
+        validatingBackend.setDriver(mockDriver);
+        
+        try {
+            when(mockConnection.isValid(Mockito.anyInt())).thenReturn(true);
+            validatingBackend.createTable(dbName2, tableName1);
+            Thread.sleep(5);
+            validatingBackend.createTable(dbName2, tableName2);
+            verify(mockConnection, times(1)).isValid(Mockito.anyInt());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        System.out.println("Testing MySQLBackend.getConnection (a slow database does not block the rest)");
+        final MySQLBackend slowBackend = new MySQLBackend(host, port, user, password, 10, 10, 300000, 30000, 10, 100);
+        slowBackend.setDriver(mockDriver);
+        
+        try {
+            when(mockDriver.getConnection(host, port, dbName1, user, password)).thenAnswer(new Answer<Connection>() {
+                
+                @Override
+                public Connection answer(InvocationOnMock invocation) throws Throwable {
+                    Thread.sleep(1000);
+                    return mockConnection;
+                } // answer
+                
+            });
+            Thread slowThread = new Thread() {
+                
+                @Override
+                public void run() {
+                    try {
+                        slowBackend.createTable(dbName1, tableName1);
+                    } catch (Exception e) {
+                        System.out.println(e.getMessage());
+                    } // try catch
+                } // run
+                
+            };
+            slowThread.start();
+            Thread.sleep(100);
+            long start = System.currentTimeMillis();
+            slowBackend.createTable(dbName2, tableName1);
+            assertTrue(System.currentTimeMillis() - start < 500);
+            slowThread.join();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        System.out.println("Testing MySQLBackend.getConnection (no connection is borrowed once closed)");
+        slowBackend.close();
+        
+        try {
+            slowBackend.createTable(dbName2, tableName2);
+            fail("A persistence error was expected");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(e.getMessage().contains("closed"));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
     } // testGetConnection
     
     /**
@@ -18,6 +18,7 @@
 
 package com.telefonica.iot.cygnus.handlers;
 
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.handlers.OrionRestHandler;
 import com.telefonica.iot.cygnus.utils.TestConstants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
@@ -161,4 +162,52 @@ public class OrionRestHandlerTest {
         assertTrue(eventMessage.length != 0);
     } // testGetEvents
     
+    /**
+     * Test of getEvents method, of class OrionRestHandler, when the notification can be parsed at the source.
+     */
+    @Test
+    public void testGetEventsParsedAtSource() throws Exception {
+        System.out.println("Testing 'getEvents' method from class 'OrionRestHandler' (notification parsed at source");
+        String notification = ""
+                + "{\n"
+                + "    \"subscriptionId\" : \"51c0ac9ed714fb3b37d7d5a8\",\n"
+                + "    \"originator\" : \"localhost\",\n"
+                + "    \"contextResponses\" : [\n"
+                + "        {\n"
+                + "            \"contextElement\" : {\n"
+                + "                \"attributes\" : [\n"
+                + "                    {\n"
+                + "                        \"name\" : \"speed\",\n"
+                + "                        \"type\" : \"float\",\n"
+                + "                        \"value\" : \"112.9\"\n"
+                + "                    }\n"
+                + "                ],\n"
+                + "                \"type\" : \"car\",\n"
+                + "                \"isPattern\" : \"false\",\n"
+                + "                \"id\" : \"car1\"\n"
+                + "            },\n"
+                + "            \"statusCode\" : {\n"
+                + "                \"code\" : \"200\",\n"
+                + "                \"reasonPhrase\" : \"OK\"\n"
+                + "            }\n"
+                + "        }\n"
+                + "    ]\n"
+                + "}";
+        when(mockRequest.getReader()).thenReturn(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(notification.getBytes()))));
+        handler.configure(context);
+        List result = handler.getEvents(mockRequest);
+        assertTrue(result.size() == 1);
+        Event event = (Event) result.get(0);
+        assertTrue(event instanceof NotifyContextRequestEvent);
+        assertEquals("car1", ((NotifyContextRequestEvent) event).getNotification().getContextResponses().get(0)
+                .getContextElement().getId());
+        
+        // the body is a compact serialization of the notification, which must be parseable as well
+        String body = new String(event.getBody());
+        assertFalse(body.contains(" "));
+        assertEquals("112.9", TestUtils.createJsonNotifyContextRequest(body).getContextResponses().get(0)
+                .getContextElement().getAttributes().get(0).getContextValue(false));
+    } // testGetEventsParsedAtSource
+    
 } // OrionRestHandlerTest
\ No newline at end of file
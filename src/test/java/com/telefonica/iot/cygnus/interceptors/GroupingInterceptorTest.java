@@ -22,8 +22,10 @@ import java.util.HashMap;
 import java.util.Map;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.Event;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.interceptors.GroupingInterceptor.GroupingRule;
 import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.TestUtils;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -297,5 +299,31 @@ public class GroupingInterceptorTest {
         datasets = afterInterceptingEventHeaders.get(Constants.HEADER_SERVICE_PATH);
         assertEquals(datasets, "def_servpath,def_servpath");
     } // testIntercept
+    
+    /**
+     * Test of intercept method, of class GroupingInterceptor, when the notification was already parsed at the source.
+     */
+    @Test
+    public void testInterceptAlreadyParsed() {
+        System.out.println("Testing DestinationExtractor.intercept (notification already parsed)");
+        
+        // create a grouping interceptor
+        groupingInterceptor = new GroupingInterceptor(groupingRulesFileName);
+        groupingInterceptor.initialize();
+        
+        // create an event carrying the parsed notification; the body is deliberately not parseable, thus the
+        // interceptor must use the carried notification instead of parsing the body again
+        event = new NotifyContextRequestEvent(beforeInterceptingEventHeaders, "not parseable".getBytes(),
+                TestUtils.createXMLNotifyContextRequest(eventData));
+        
+        // intercept the event
+        Event interceptedEvent = groupingInterceptor.intercept(event);
+        
+        // analyze the validity of the intercepted event
+        assertTrue(interceptedEvent instanceof NotifyContextRequestEvent);
+        Map<String, String> afterInterceptingEventHeaders = interceptedEvent.getHeaders();
+        assertEquals("numeric_rooms,numeric_rooms", afterInterceptingEventHeaders.get(Constants.DESTINATION));
+        assertEquals("rooms,rooms", afterInterceptingEventHeaders.get(Constants.HEADER_SERVICE_PATH));
+    } // testInterceptAlreadyParsed
 
 } // GroupingInterceptorTest
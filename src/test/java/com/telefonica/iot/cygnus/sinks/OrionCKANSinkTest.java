@@ -19,14 +19,20 @@
 package com.telefonica.iot.cygnus.sinks;
 
 import com.telefonica.iot.cygnus.backends.ckan.CKANBackend;
+import com.telefonica.iot.cygnus.backends.http.HostSelector;
 import static org.mockito.Mockito.*; // this is required by "when" like functions
 import static org.junit.Assert.*; // this is required by "fail" like assertions
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import org.junit.Before;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.apache.flume.Context;
@@ -192,6 +198,23 @@ public class OrionCKANSinkTest {
         assertEquals(ckanHost, sink.getCKANHost());
         assertEquals(ckanPort, sink.getCKANPort());
         assertEquals(apiKey, sink.getAPIKey());
+        assertEquals(1000, sink.getMaxRecordsPerUpsert());
+        assertEquals(1048576, sink.getMaxBytesPerUpsert());
+        assertEquals(3600, sink.getCacheTtl());
+        assertEquals(1000, sink.getCacheMaxOrgs());
+        assertEquals("", sink.getCacheSnapshotFile());
+        assertEquals(60, sink.getCacheSnapshotInterval());
+        assertFalse(sink.getCacheWarmUp());
+        assertEquals(1000, sink.getCacheWarmUpPageSize());
+        assertEquals(4, sink.getCacheWarmUpParallelism());
+        assertEquals(HostSelector.Strategy.FAILOVER, sink.getHostSelection());
+        context.put("host_selection", "ewma");
+        sink.configure(context);
+        assertEquals(HostSelector.Strategy.EWMA, sink.getHostSelection());
+        assertEquals(0, sink.getMaxInFlightPerHost());
+        context.put("max_in_flight_per_host", "-1");
+        sink.configure(context);
+        assertEquals(0, sink.getMaxInFlightPerHost());
     } // testConfigure
 
     /**
@@ -314,4 +337,78 @@ public class OrionCKANSinkTest {
         } // try catch finally
     } // testProcessContextResponses
     
+    /**
+     * Test of persistBatch method, of class OrionCKANSink. The records regarding the same resource are persisted at
+     * the same time, independently of the event they come from.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatch() throws Exception {
+        System.out.println("Testing OrionCKANSinkTest.persistBatch");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("timestamp", Long.toString(recvTimeTs));
+        headers.put(Constants.HEADER_SERVICE, normalServiceName);
+        headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+        headers.put(Constants.DESTINATION, singleDestinationName);
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        } // for
+        
+        String record = "{ \"attrName\": \"speed\" }";
+        when(mockCKANBackend.createRecord(anyLong(), anyString(), anyString(), anyString(), anyString(),
+                anyString())).thenReturn(record);
+        sink.persistBatch(batch);
+        verify(mockCKANBackend, times(3)).createRecord(eq(recvTimeTs), anyString(), eq("speed"), anyString(),
+                anyString(), anyString());
+        ArgumentCaptor<List> records = ArgumentCaptor.forClass(List.class);
+        verify(mockCKANBackend, times(1)).persist(eq(normalServiceName),
+                eq(normalServiceName + "_" + singleServicePathName), eq(singleDestinationName), records.capture(),
+                eq(true));
+        assertEquals(3, records.getValue().size());
+        assertEquals(record, records.getValue().get(0));
+    } // testPersistBatch
+    
+    /**
+     * Test of persistBatch method, of class OrionCKANSink, when the records of a resource cannot be persisted.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatchWrongResource() throws Exception {
+        System.out.println("Testing OrionCKANSinkTest.persistBatch (a wrong resource does not stop the rest of "
+                + "resources)");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        String[] destinations = {"wrong", singleDestinationName};
+        
+        for (String destination : destinations) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, normalServiceName);
+            headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+            headers.put(Constants.DESTINATION, destination);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        } // for
+        
+        when(mockCKANBackend.createRecord(anyLong(), anyString(), anyString(), anyString(), anyString(),
+                anyString())).thenReturn("{ \"attrName\": \"speed\" }");
+        String pkgName = normalServiceName + "_" + singleServicePathName;
+        doThrow(new CygnusRuntimeError("Cannot persist the data")).when(mockCKANBackend).persist(
+                eq(normalServiceName), eq(pkgName), eq("wrong"), anyList(), eq(true));
+        
+        try {
+            sink.persistBatch(batch);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        verify(mockCKANBackend, times(1)).persist(eq(normalServiceName), eq(pkgName), eq(singleDestinationName),
+                anyList(), eq(true));
+        verify(mockCKANBackend, times(1)).sync();
+    } // testPersistBatchWrongResource
+    
 } // OrionCKANSinkTest
@@ -22,12 +22,31 @@ import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendImpl;
 import static org.junit.Assert.*; // this is required by "fail" like assertions
 import static org.mockito.Mockito.*; // this is required by "when" like functions
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.backends.http.HostSelector;
 import com.telefonica.iot.cygnus.backends.http.HttpClientFactory;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.file.SeekableByteArrayInput;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
 import org.junit.Before;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.apache.flume.Context;
 import org.apache.flume.channel.MemoryChannel;
@@ -188,6 +207,34 @@ public class OrionHDFSSinkTest {
         assertEquals(cosmosDefaultUsername, sink.getCosmosDefaultUsername());
         assertEquals(oauth2Token, sink.getOAuth2Token());
         assertEquals(hivePort, sink.getHivePort());
+        assertFalse(sink.getBinaryBackend());
+        context.put("backend_impl", "binary");
+        context.put("backend_max_open_files", "10");
+        context.put("roll_max_bytes", "1024");
+        context.put("roll_interval", "60");
+        sink.configure(context);
+        assertTrue(sink.getBinaryBackend());
+        assertEquals(10, sink.getBackendMaxOpenFiles());
+        assertEquals(1024, sink.getRollMaxBytes());
+        assertEquals(60, sink.getRollInterval());
+        context.put("hdfs_host", "namenode1,namenode2");
+        sink.configure(context);
+        assertEquals(1, sink.getCosmosHost().length);
+        context.put("krb5_auth", "true");
+        sink.configure(context);
+        assertFalse(sink.getBinaryBackend());
+        context.put("krb5_auth", "false");
+        assertEquals(HostSelector.Strategy.FAILOVER, sink.getHostSelection());
+        context.put("host_selection", "least_outstanding");
+        sink.configure(context);
+        assertEquals(HostSelector.Strategy.LEAST_OUTSTANDING, sink.getHostSelection());
+        context.put("host_selection", "random");
+        sink.configure(context);
+        assertEquals(HostSelector.Strategy.FAILOVER, sink.getHostSelection());
+        assertEquals(0, sink.getMaxInFlightPerHost());
+        context.put("max_in_flight_per_host", "8");
+        sink.configure(context);
+        assertEquals(8, sink.getMaxInFlightPerHost());
     } // testConfigure
 
     /**
@@ -310,4 +357,373 @@ public class OrionHDFSSinkTest {
         } // try catch finally
     } // testProcessContextResponses
     
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatch() throws Exception {
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (a single HDFS operation per file)");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, normalServiceName);
+            headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+            headers.put(Constants.DESTINATION, singleDestinationName);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        } // for
+        
+        String hdfsFile = normalServiceName + "/" + singleServicePathName + "/" + singleDestinationName + "/"
+                + singleDestinationName + ".txt";
+        when(mockWebHDFSBackend.exists(hdfsFile)).thenReturn(true);
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).exists(hdfsFile);
+        verify(mockWebHDFSBackend, times(1)).append(eq(hdfsFile), argThat(new ArgumentMatcher<String>() {
+            
+            @Override
+            public boolean matches(Object data) {
+                return ((String) data).split("\n").length == 3;
+            } // matches
+            
+        }));
+        verify(mockWebHDFSBackend, never()).createFile(anyString(), anyString());
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (buffer maximum number of lines reached)");
+        context.put("buffer_max_lines", "2");
+        sink.configure(context);
+        assertEquals(2, sink.getBufferMaxLines());
+        reset(mockWebHDFSBackend);
+        when(mockWebHDFSBackend.exists(hdfsFile)).thenReturn(true);
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).append(eq(hdfsFile), argThat(new ArgumentMatcher<String>() {
+            
+            @Override
+            public boolean matches(Object data) {
+                return ((String) data).split("\n").length == 2;
+            } // matches
+            
+        }));
+        verify(mockWebHDFSBackend, times(1)).append(eq(hdfsFile), argThat(new ArgumentMatcher<String>() {
+            
+            @Override
+            public boolean matches(Object data) {
+                return ((String) data).split("\n").length == 1;
+            } // matches
+            
+        }));
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (the events written in advance are reported when "
+                + "a later write fails)");
+        reset(mockWebHDFSBackend);
+        when(mockWebHDFSBackend.exists(hdfsFile)).thenReturn(true);
+        doNothing().doThrow(new CygnusPersistenceError("HttpFS not available")).when(mockWebHDFSBackend)
+                .append(eq(hdfsFile), anyString());
+        
+        try {
+            sink.persistBatch(batch);
+            fail("A persistence error was expected");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(2, e.getPersistedEvents());
+        } // try catch
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (the events whose lines were all written are "
+                + "reported when a pipelined append fails)");
+        context.put("buffer_max_lines", "100");
+        sink.configure(context);
+        ArrayList<NotifyContextRequestEvent> twoFilesBatch = new ArrayList<NotifyContextRequestEvent>();
+        twoFilesBatch.add(batch.get(0));
+        
+        for (int i = 0; i < 2; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>(batch.get(0).getHeaders());
+            headers.put(Constants.DESTINATION, "other");
+            twoFilesBatch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        } // for
+        
+        String otherHdfsFile = normalServiceName + "/" + singleServicePathName + "/other/other.txt";
+        reset(mockWebHDFSBackend);
+        when(mockWebHDFSBackend.exists(anyString())).thenReturn(true);
+        doThrow(new CygnusPersistenceError("HttpFS not available")).when(mockWebHDFSBackend).sync();
+        when(mockWebHDFSBackend.getFailedFiles()).thenReturn(Arrays.asList(otherHdfsFile));
+        
+        try {
+            sink.persistBatch(twoFilesBatch);
+            fail("A persistence error was expected");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(1, e.getPersistedEvents());
+        } // try catch
+        
+        when(mockWebHDFSBackend.getFailedFiles()).thenReturn(Arrays.asList(hdfsFile, otherHdfsFile));
+        
+        try {
+            sink.persistBatch(twoFilesBatch);
+            fail("A persistence error was expected");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(0, e.getPersistedEvents());
+        } // try catch
+    } // testPersistBatch
+    
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink, regarding the cache of known HDFS files.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatchKnownFiles() throws Exception {
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (the file existence is checked only once)");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("timestamp", Long.toString(recvTimeTs));
+        headers.put(Constants.HEADER_SERVICE, normalServiceName);
+        headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+        headers.put(Constants.DESTINATION, singleDestinationName);
+        batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        String hdfsFolder = normalServiceName + "/" + singleServicePathName + "/" + singleDestinationName;
+        String hdfsFile = hdfsFolder + "/" + singleDestinationName + ".txt";
+        reset(mockWebHDFSBackend);
+        when(mockWebHDFSBackend.exists(hdfsFile)).thenReturn(true);
+        sink.persistBatch(batch);
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).exists(hdfsFile);
+        verify(mockWebHDFSBackend, times(2)).append(eq(hdfsFile), anyString());
+        verify(mockWebHDFSBackend, never()).createDir(anyString());
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (the file is created again if removed)");
+        reset(mockWebHDFSBackend);
+        when(mockWebHDFSBackend.exists(hdfsFile)).thenReturn(false);
+        doThrow(new Exception()).when(mockWebHDFSBackend).append(eq(hdfsFile), anyString());
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).exists(hdfsFile);
+        verify(mockWebHDFSBackend, times(1)).createDir(hdfsFolder);
+        verify(mockWebHDFSBackend, times(1)).createFile(eq(hdfsFile), anyString());
+        reset(mockWebHDFSBackend);
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, never()).exists(anyString());
+        verify(mockWebHDFSBackend, times(1)).append(eq(hdfsFile), anyString());
+        verify(mockWebHDFSBackend, never()).createDir(anyString());
+    } // testPersistBatchKnownFiles
+    
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink, regarding the partitioned layout.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatchPartitioned() throws Exception {
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (partitioned layout)");
+        context.put("file_layout", "partitioned");
+        sink.configure(context);
+        assertTrue(sink.getPartitionedLayout());
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("timestamp", Long.toString(recvTimeTs));
+        headers.put(Constants.HEADER_SERVICE, normalServiceName);
+        headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+        headers.put(Constants.DESTINATION, singleDestinationName);
+        batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        String hdfsFolder = normalServiceName + "/" + singleServicePathName + "/" + singleDestinationName;
+        String partitionPath = "year=1970/month=01/day=02/hour=10";
+        String hdfsFile = hdfsFolder + "/" + partitionPath + "/" + singleDestinationName + ".txt";
+        reset(mockWebHDFSBackend);
+        when(mockWebHDFSBackend.exists(hdfsFile)).thenReturn(false);
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).createDir(hdfsFolder);
+        verify(mockWebHDFSBackend, times(1)).provisionHiveTable(hdfsFolder);
+        verify(mockWebHDFSBackend, times(1)).createFile(eq(hdfsFile), anyString());
+        verify(mockWebHDFSBackend, times(1)).provisionHivePartition(hdfsFolder, partitionPath, true);
+        verify(mockWebHDFSBackend, times(1)).sync();
+    } // testPersistBatchPartitioned
+    
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink, regarding the Avro output format.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatchAvro() throws Exception {
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (Avro output format, row mode)");
+        context.put("output_format", "avro");
+        sink.configure(context);
+        assertTrue(sink.getAvroOutput());
+        assertEquals("deflate", sink.getAvroCodec());
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, normalServiceName);
+            headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+            headers.put(Constants.DESTINATION, singleDestinationName);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        } // for
+        
+        String hdfsFolder = normalServiceName + "/" + singleServicePathName + "/" + singleDestinationName;
+        String hdfsFile = hdfsFolder + "/" + singleDestinationName + ".avro";
+        AvroWrites avroWrites = new AvroWrites();
+        reset(mockWebHDFSBackend);
+        avroWrites.stub();
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).writeAvro(eq(hdfsFile), any(Schema.class), eq("deflate"),
+                anyListOf(GenericRecord.class));
+        verify(mockWebHDFSBackend, times(1)).provisionHiveAvroTable(eq(hdfsFolder), anyString(), eq(true));
+        verify(mockWebHDFSBackend, never()).exists(anyString());
+        assertEquals(1, avroWrites.records.size());
+        assertEquals(3, avroWrites.records.get(0).size());
+        
+        for (GenericRecord record : avroWrites.records.get(0)) {
+            assertEquals("car1", record.get(Constants.ENTITY_ID).toString());
+            assertEquals(ATTRNAME, record.get(Constants.ATTR_NAME).toString());
+            assertEquals("112.9", record.get(Constants.ATTR_VALUE).toString());
+        } // for
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (Avro output format, column mode)");
+        context.put("attr_persistence", "column");
+        sink.configure(context);
+        avroWrites = new AvroWrites();
+        reset(mockWebHDFSBackend);
+        avroWrites.stub();
+        sink.persistBatch(batch);
+        verify(mockWebHDFSBackend, times(1)).writeAvro(eq(hdfsFile), any(Schema.class), eq("deflate"),
+                anyListOf(GenericRecord.class));
+        assertEquals(3, avroWrites.records.get(0).size());
+        
+        for (GenericRecord record : avroWrites.records.get(0)) {
+            assertEquals("112.9", record.get(ATTRNAME).toString());
+        } // for
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (Avro output format, column mode, the attribute "
+                + "set changes)");
+        NotifyContextRequest twoAttrsNotification = TestUtils.createJsonNotifyContextRequest(
+                singleContextElementNotification.replace("\"attributes\" : [\n", "\"attributes\" : [\n"
+                + "                    {\n"
+                + "                        \"name\" : \"oil\",\n"
+                + "                        \"type\" : \"float\",\n"
+                + "                        \"value\" : \"75\"\n"
+                + "                    },\n"));
+        ArrayList<NotifyContextRequestEvent> changingBatch = new ArrayList<NotifyContextRequestEvent>();
+        changingBatch.add(batch.get(0));
+        changingBatch.add(new NotifyContextRequestEvent(batch.get(0).getHeaders(), new byte[0],
+                twoAttrsNotification));
+        sink = new OrionHDFSSink();
+        sink.setPersistenceBackend(mockWebHDFSBackend);
+        sink.configure(context);
+        avroWrites = new AvroWrites();
+        reset(mockWebHDFSBackend);
+        avroWrites.stub();
+        sink.persistBatch(changingBatch);
+        
+        // a write per schema; the table schema is extended with the new attribute, which defaults to null
+        assertEquals(2, avroWrites.records.size());
+        ArgumentCaptor<String> tableSchema = ArgumentCaptor.forClass(String.class);
+        verify(mockWebHDFSBackend, times(2)).provisionHiveAvroTable(eq(hdfsFolder), tableSchema.capture(),
+                eq(false));
+        Schema mergedSchema = new Schema.Parser().parse(tableSchema.getValue());
+        assertNotNull(mergedSchema.getField("oil"));
+        GenericRecord record = readAs(avroWrites.schemas.get(0), avroWrites.records.get(0).get(0), mergedSchema);
+        assertEquals("112.9", record.get(ATTRNAME).toString());
+        assertNull(record.get("oil"));
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (Avro output format, column mode, the table schema "
+                + "was persisted by a previous run)");
+        sink = new OrionHDFSSink();
+        sink.setPersistenceBackend(mockWebHDFSBackend);
+        sink.configure(context);
+        avroWrites = new AvroWrites();
+        reset(mockWebHDFSBackend);
+        avroWrites.stub();
+        when(mockWebHDFSBackend.getHiveAvroTableSchema(hdfsFolder, false)).thenReturn(mergedSchema.toString());
+        sink.persistBatch(batch);
+        
+        // the table is provisioned again, but it does not lose the attribute not notified since the restart
+        tableSchema = ArgumentCaptor.forClass(String.class);
+        verify(mockWebHDFSBackend, times(1)).provisionHiveAvroTable(eq(hdfsFolder), tableSchema.capture(),
+                eq(false));
+        assertEquals(mergedSchema, new Schema.Parser().parse(tableSchema.getValue()));
+        
+        System.out.println("Testing OrionHDFSSinkTest.persistBatch (Avro output format, column mode, attribute names "
+                + "encoded the same way)");
+        String collidingAttrs = "";
+        
+        for (String attrName : new String[] {"a-b", "a_b", "a_md", "a"}) {
+            collidingAttrs += "                    {\n"
+                    + "                        \"name\" : \"" + attrName + "\",\n"
+                    + "                        \"type\" : \"float\",\n"
+                    + "                        \"value\" : \"" + attrName + "\"\n"
+                    + "                    },\n";
+        } // for
+        
+        NotifyContextRequest collidingNotification = TestUtils.createJsonNotifyContextRequest(
+                singleContextElementNotification.replace("\"attributes\" : [\n", "\"attributes\" : [\n"
+                + collidingAttrs));
+        ArrayList<NotifyContextRequestEvent> collidingBatch = new ArrayList<NotifyContextRequestEvent>();
+        collidingBatch.add(new NotifyContextRequestEvent(batch.get(0).getHeaders(), new byte[0],
+                collidingNotification));
+        sink = new OrionHDFSSink();
+        sink.setPersistenceBackend(mockWebHDFSBackend);
+        sink.configure(context);
+        avroWrites = new AvroWrites();
+        reset(mockWebHDFSBackend);
+        avroWrites.stub();
+        sink.persistBatch(collidingBatch);
+        assertEquals(1, avroWrites.records.size());
+        record = avroWrites.records.get(0).get(0);
+        HashSet<String> values = new HashSet<String>();
+        
+        for (Schema.Field field : record.getSchema().getFields()) {
+            if (!field.name().equals(Constants.RECV_TIME) && !field.name().endsWith("_md")) {
+                values.add(record.get(field.name()).toString());
+            } // if
+        } // for
+        
+        assertEquals(new HashSet<String>(Arrays.asList("a-b", "a_b", "a_md", "a", "112.9")), values);
+        assertEquals("a_b", record.get("a_b").toString());
+        assertEquals("a", record.get("a").toString());
+    } // testPersistBatchAvro
+    
+    /**
+     * Collects the Avro records written through the mocked backend. The records are copied since the buffer of the
+     * sink is emptied once written.
+     */
+    private class AvroWrites implements Answer<Void> {
+        
+        private final ArrayList<Schema> schemas = new ArrayList<Schema>();
+        private final ArrayList<List<GenericRecord>> records = new ArrayList<List<GenericRecord>>();
+        
+        void stub() throws Exception {
+            doAnswer(this).when(mockWebHDFSBackend).writeAvro(anyString(), any(Schema.class), anyString(),
+                    anyListOf(GenericRecord.class));
+        } // stub
+        
+        @Override
+        @SuppressWarnings("unchecked")
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            schemas.add((Schema) invocation.getArguments()[1]);
+            records.add(new ArrayList<GenericRecord>((List<GenericRecord>) invocation.getArguments()[3]));
+            return null;
+        } // answer
+        
+    } // AvroWrites
+    
+    private GenericRecord readAs(Schema writerSchema, GenericRecord record, Schema readerSchema) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(
+                new GenericDatumWriter<GenericRecord>(writerSchema));
+        writer.create(writerSchema, out);
+        writer.append(record);
+        writer.close();
+        DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(
+                new SeekableByteArrayInput(out.toByteArray()), new GenericDatumReader<GenericRecord>(null,
+                readerSchema));
+        
+        try {
+            return reader.next();
+        } finally {
+            reader.close();
+        } // try finally
+    } // readAs
+    
 } // OrionHDFSSinkTest
@@ -17,6 +17,7 @@
  */
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.backends.mongo.MongoBackend.PointsLayout;
 import org.apache.flume.Context;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.lifecycle.LifecycleState;
@@ -82,6 +83,11 @@ public class OrionMongoBaseSinkTest {
         assertEquals(sink.getDataModel(dataModel), sink.getDataModel());
         assertEquals(dbPrefix, sink.getDbPrefix());
         assertEquals(collectionPrefix, sink.getCollectionPrefix());
+        assertEquals(PointsLayout.ARRAY, sink.getPointsLayout());
+        assertEquals(10000, sink.getPrepopulateCacheSize());
+        context.put("points_layout", "keyed");
+        sink.configure(context);
+        assertEquals(PointsLayout.KEYED, sink.getPointsLayout());
     } // testConfigure
 
     /**
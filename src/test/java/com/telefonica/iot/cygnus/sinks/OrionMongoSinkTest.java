@@ -19,9 +19,12 @@ package com.telefonica.iot.cygnus.sinks;
 
 import com.telefonica.iot.cygnus.backends.mongo.MongoBackend;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import org.apache.flume.Context;
 import org.apache.flume.channel.MemoryChannel;
 import static org.junit.Assert.assertTrue;
@@ -29,8 +32,13 @@ import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import org.mockito.runners.MockitoJUnitRunner;
 
 /**
@@ -214,5 +222,43 @@ public class OrionMongoSinkTest {
             assertTrue(true);
         } // try catch finally
     } // testProcessContextResponses
+    
+    /**
+     * Test of persistBatch method, of class OrionMongoSink.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatch() throws Exception {
+        System.out.println("Testing OrionMongoSink.persistBatch (a single insertion per collection)");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put(Constants.HEADER_TIMESTAMP, Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, serviceHeader);
+            headers.put(Constants.HEADER_SERVICE_PATH, multipleServicePathHeader);
+            headers.put(Constants.DESTINATION, multipleDestinationHeader);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], multipleNotifyContextRequest));
+        } // for
+        
+        String batchDbName = dbPrefix + serviceHeader;
+        sink.persistBatch(batch);
+        verify(mockMongoBackend, times(1)).createDatabase(batchDbName);
+        
+        for (String collection : new String[] {"/4wheelsSport_sport1", "/4wheelsUrban_urban1"}) {
+            verify(mockMongoBackend, times(1)).createCollection(batchDbName, collectionPrefix + collection);
+            verify(mockMongoBackend, times(1)).insertContextDataRaw(eq(batchDbName), eq(collectionPrefix + collection),
+                    argThat(new ArgumentMatcher<List>() {
+
+                @Override
+                public boolean matches(Object docs) {
+                    return ((List) docs).size() == 3;
+                } // matches
+
+            }));
+        } // for
+    } // testPersistBatch
 
 } // OrionMongoSinkTest
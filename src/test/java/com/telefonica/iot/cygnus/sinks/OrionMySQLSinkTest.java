@@ -22,15 +22,20 @@ import static org.junit.Assert.*; // this is required by "fail" like assertions
 import static org.mockito.Mockito.*; // this is required by "when" like functions
 import com.telefonica.iot.cygnus.backends.mysql.MySQLBackend;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import org.apache.flume.Context;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.lifecycle.LifecycleState;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -201,6 +206,19 @@ public class OrionMySQLSinkTest {
         assertEquals(mysqlUsername, sink.getMySQLUsername());
         assertEquals(mysqlPassword, sink.getMySQLPassword());
         assertEquals(attrPersistence, sink.getRowAttrPersistence() ? "row" : "column");
+        assertEquals(50, sink.getMaxConns());
+        assertEquals(10, sink.getMaxConnsPerDb());
+        
+        // invalid pool parameters fall back to their defaults
+        context.put("mysql_max_conns", "0");
+        context.put("mysql_max_conns_per_db", "-1");
+        context.put("mysql_stmt_cache_size", "0");
+        context.put("mysql_max_rows_per_insert", "0");
+        sink.configure(context);
+        assertEquals(50, sink.getMaxConns());
+        assertEquals(10, sink.getMaxConnsPerDb());
+        assertEquals(50, sink.getStmtCacheSize());
+        assertEquals(100, sink.getMaxRowsPerInsert());
     } // testConfigure
 
     /**
@@ -323,4 +341,75 @@ public class OrionMySQLSinkTest {
         } // try catch finally
     } // testProcessContextResponses
     
+    /**
+     * Test of persistBatch method, of class OrionMySQLSink.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatch() throws Exception {
+        System.out.println("Testing OrionMySQLSinkTest.persistBatch (a single insertion per table)");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, normalServiceName);
+            headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+            headers.put(Constants.DESTINATION, singleDestinationName);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        } // for
+        
+        String tableName = singleServicePathName + "_" + singleDestinationName;
+        sink.persistBatch(batch);
+        verify(mockMySQLBackend, times(1)).createDatabase(normalServiceName);
+        verify(mockMySQLBackend, times(1)).createTable(normalServiceName, tableName);
+        verify(mockMySQLBackend, times(1)).insertContextData(eq(normalServiceName), eq(tableName),
+                argThat(new ArgumentMatcher<List>() {
+            
+            @Override
+            public boolean matches(Object rows) {
+                return ((List) rows).size() == 3;
+            } // matches
+            
+        }));
+    } // testPersistBatch
+    
+    /**
+     * Test of persistBatch method, of class OrionMySQLSink, when the rows of a table cannot be persisted.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatchWrongTable() throws Exception {
+        System.out.println("Testing OrionMySQLSinkTest.persistBatch (a wrong table does not stop the rest of tables)");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        String[] destinations = {"wrong", singleDestinationName};
+        
+        for (String destination : destinations) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put("timestamp", Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, normalServiceName);
+            headers.put(Constants.HEADER_SERVICE_PATH, singleServicePathName);
+            headers.put(Constants.DESTINATION, destination);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], singleNotifyContextRequest));
+        } // for
+        
+        String wrongTableName = singleServicePathName + "_wrong";
+        String tableName = singleServicePathName + "_" + singleDestinationName;
+        doThrow(new CygnusBadContextData("Data too long")).when(mockMySQLBackend).insertContextData(
+                eq(normalServiceName), eq(wrongTableName), any(ArrayList.class));
+        
+        try {
+            sink.persistBatch(batch);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        verify(mockMySQLBackend, times(1)).insertContextData(eq(normalServiceName), eq(tableName),
+                any(ArrayList.class));
+    } // testPersistBatchWrongTable
+    
 } // OrionMySQLSinkTest
\ No newline at end of file
@@ -17,20 +17,34 @@
  */
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.backends.mongo.AggregatedPoint;
 import com.telefonica.iot.cygnus.backends.mongo.MongoBackend;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import org.apache.flume.Context;
 import org.apache.flume.channel.MemoryChannel;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import org.mockito.runners.MockitoJUnitRunner;
 
 /**
@@ -44,7 +58,7 @@ public class OrionSTHSinkTest {
     private MongoBackend mockMongoBackend;
     
     // instance to be tested
-    private OrionMongoSink sink;
+    private OrionSTHSink sink;
     
     // other instances
     private Context context;
@@ -152,7 +166,7 @@ public class OrionSTHSinkTest {
     @Before
     public void setUp() throws Exception {
         // set up the instance of the tested class
-        sink = new OrionMongoSink();
+        sink = new OrionSTHSink();
         sink.setBackend(mockMongoBackend);
         
         // set up other instances
@@ -214,4 +228,154 @@ public class OrionSTHSinkTest {
         } // try catch finally
     } // testProcessContextResponses
     
+    /**
+     * Test of persistBatch method, of class OrionSTHSink.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatch() throws Exception {
+        System.out.println("Testing OrionSTHSink.persistBatch (a single bulk write per collection)");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put(Constants.HEADER_TIMESTAMP, Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, serviceHeader);
+            headers.put(Constants.HEADER_SERVICE_PATH, multipleServicePathHeader);
+            headers.put(Constants.DESTINATION, multipleDestinationHeader);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], multipleNotifyContextRequest));
+        } // for
+        
+        String batchDbName = dbPrefix + serviceHeader;
+        sink.persistBatch(batch);
+        verify(mockMongoBackend, times(1)).createDatabase(batchDbName);
+        
+        for (String collection : new String[] {"/4wheelsSport_sport1.aggr", "/4wheelsUrban_urban1.aggr"}) {
+            verify(mockMongoBackend, times(1)).createCollection(batchDbName, collectionPrefix + collection);
+            verify(mockMongoBackend, times(1)).insertContextDataAggregated(eq(batchDbName),
+                    eq(collectionPrefix + collection), argThat(new ArgumentMatcher<List>() {
+
+                @Override
+                public boolean matches(Object points) {
+                    // 3 samples, 5 resolutions per sample
+                    return ((List) points).size() == 15;
+                } // matches
+
+            }));
+        } // for
+    } // testPersistBatch
+    
+    /**
+     * Test of persistBatch method, of class OrionSTHSink, when pre-aggregating.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPersistBatchPreAggregation() throws Exception {
+        System.out.println("Testing OrionSTHSink.persistBatch (pre-aggregation)");
+        context.put("pre_aggregation", "true");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        assertTrue(sink.getPreAggregation());
+        ArrayList<NotifyContextRequestEvent> batch = new ArrayList<NotifyContextRequestEvent>();
+        
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put(Constants.HEADER_TIMESTAMP, Long.toString(recvTimeTs));
+            headers.put(Constants.HEADER_SERVICE, serviceHeader);
+            headers.put(Constants.HEADER_SERVICE_PATH, multipleServicePathHeader);
+            headers.put(Constants.DESTINATION, multipleDestinationHeader);
+            batch.add(new NotifyContextRequestEvent(headers, new byte[0], multipleNotifyContextRequest));
+        } // for
+        
+        String batchDbName = dbPrefix + serviceHeader;
+        sink.persistBatch(batch);
+        
+        for (String collection : new String[] {"/4wheelsSport_sport1.aggr", "/4wheelsUrban_urban1.aggr"}) {
+            verify(mockMongoBackend, times(1)).insertContextDataAggregated(eq(batchDbName),
+                    eq(collectionPrefix + collection), argThat(new ArgumentMatcher<List>() {
+
+                @Override
+                public boolean matches(Object points) {
+                    // the 3 samples regarding the same offset are merged, 5 resolutions
+                    if (((List) points).size() != 5) {
+                        return false;
+                    } // if
+                    
+                    for (Object point : (List) points) {
+                        if (((AggregatedPoint) point).getSamples() != 3) {
+                            return false;
+                        } // if
+                    } // for
+                    
+                    return true;
+                } // matches
+
+            }));
+        } // for
+        
+        System.out.println("Testing OrionSTHSink.persistBatch (pre-aggregation, maximum number of points reached)");
+        context.put("max_aggregated_points", "5");
+        sink.configure(context);
+        reset(mockMongoBackend);
+        sink.persistBatch(batch);
+        
+        // each sample fills up the maximum number of points (5 resolutions), thus the points are updated once per
+        // event and collection
+        for (String collection : new String[] {"/4wheelsSport_sport1.aggr", "/4wheelsUrban_urban1.aggr"}) {
+            verify(mockMongoBackend, times(3)).insertContextDataAggregated(eq(batchDbName),
+                    eq(collectionPrefix + collection), anyList());
+        } // for
+        
+        System.out.println("Testing OrionSTHSink.persistBatch (pre-aggregation, the events already updated are not "
+                + "re-injected)");
+        reset(mockMongoBackend);
+        doNothing().doThrow(new CygnusPersistenceError("Mongo is down")).when(mockMongoBackend)
+                .insertContextDataAggregated(eq(batchDbName), eq(collectionPrefix + "/4wheelsSport_sport1.aggr"),
+                        anyList());
+        
+        try {
+            sink.persistBatch(batch);
+            fail("The failed update must make the batch fail");
+        } catch (CygnusPersistenceError e) {
+            // the first event was updated before the maximum number of points was reached
+            assertEquals(1, e.getPersistedEvents());
+        } // try catch
+        
+        System.out.println("Testing OrionSTHSink.persistBatch (pre-aggregation, a collection failing once other "
+                + "collections of the same events were updated is discarded)");
+        reset(mockMongoBackend);
+        doThrow(new CygnusPersistenceError("Mongo is down")).when(mockMongoBackend).insertContextDataAggregated(
+                eq(batchDbName), eq(collectionPrefix + "/4wheelsUrban_urban1.aggr"), anyList());
+        
+        try {
+            sink.persistBatch(batch);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        verify(mockMongoBackend, times(3)).insertContextDataAggregated(eq(batchDbName),
+                eq(collectionPrefix + "/4wheelsSport_sport1.aggr"), anyList());
+        
+        System.out.println("Testing OrionSTHSink.persistBatch (pre-aggregation, a part is persisted once any of its "
+                + "collections has been updated)");
+        reset(mockMongoBackend);
+        
+        // the second part updates its first collection but not the second one, and the third part updates nothing
+        doNothing().doNothing().doThrow(new CygnusPersistenceError("Mongo is down")).when(mockMongoBackend)
+                .insertContextDataAggregated(eq(batchDbName), eq(collectionPrefix + "/4wheelsSport_sport1.aggr"),
+                        anyList());
+        doNothing().doThrow(new CygnusPersistenceError("Mongo is down")).when(mockMongoBackend)
+                .insertContextDataAggregated(eq(batchDbName), eq(collectionPrefix + "/4wheelsUrban_urban1.aggr"),
+                        anyList());
+        
+        try {
+            sink.persistBatch(batch);
+            fail("The failed update must make the batch fail");
+        } catch (CygnusPersistenceError e) {
+            assertEquals(2, e.getPersistedEvents());
+        } // try catch
+    } // testPersistBatchPreAggregation
+    
 } // OrionSTHSinkTest
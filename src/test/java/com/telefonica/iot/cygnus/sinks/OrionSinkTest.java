@@ -0,0 +1,321 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.channels.CygnusMemoryChannel;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.events.NotifyContextRequestEvent;
+import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class OrionSinkTest {
+    
+    /**
+     * Sink recording the persisted entities. Those entities named "failing" cannot be persisted due to a persistence
+     * error, and those named "bad" cannot be persisted due to bad context data.
+     */
+    private static class RecordingSink extends OrionSink {
+        
+        private final ArrayList<String> persisted = new ArrayList<String>();
+        private final ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+        
+        @Override
+        void persist(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+            String entityId = getEntityId(notification);
+            
+            if (entityId.equals("failing")) {
+                throw new CygnusPersistenceError("Failing entity");
+            } else if (entityId.equals("bad")) {
+                throw new CygnusBadContextData("Bad entity");
+            } // if else if
+            
+            persisted.add(entityId);
+        } // persist
+        
+        @Override
+        void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+            batchSizes.add(batch.size());
+            super.persistBatch(batch);
+        } // persistBatch
+        
+        private String getEntityId(NotifyContextRequest notification) {
+            return notification.getContextResponses().get(0).getContextElement().getId();
+        } // getEntityId
+        
+    } // RecordingSink
+    
+    /**
+     * Sink whose batch writes are not idempotent; it isolates the wrong events by itself, before writing anything.
+     */
+    private static class NonIdempotentSink extends RecordingSink {
+        
+        @Override
+        void persistBatch(List<NotifyContextRequestEvent> batch) throws Exception {
+            ((RecordingSink) this).batchSizes.add(batch.size());
+            ArrayList<NotifyContextRequestEvent> valid = new ArrayList<NotifyContextRequestEvent>();
+            
+            for (NotifyContextRequestEvent event : batch) {
+                try {
+                    if (!((RecordingSink) this).getEntityId(event.getNotification()).startsWith("car")) {
+                        throw new CygnusBadContextData("Wrong entity");
+                    } // if
+                    
+                    valid.add(event);
+                } catch (Exception e) {
+                    skipWrongEvent(event, e);
+                } // try catch
+            } // for
+            
+            for (NotifyContextRequestEvent event : valid) {
+                persist(event.getHeaders(), event.getNotification());
+            } // for
+            
+            // a wrong event detected once something has been written
+            throw new CygnusBadContextData("Late wrong event");
+        } // persistBatch
+        
+    } // NonIdempotentSink
+    
+    // instance to be tested
+    private RecordingSink sink;
+    
+    // other instances
+    private CygnusMemoryChannel channel;
+    
+    // constants
+    private final String notificationTemplate = ""
+            + "{\n"
+            + "    \"subscriptionId\" : \"51c0ac9ed714fb3b37d7d5a8\",\n"
+            + "    \"originator\" : \"localhost\",\n"
+            + "    \"contextResponses\" : [\n"
+            + "        {\n"
+            + "            \"contextElement\" : {\n"
+            + "                \"attributes\" : [\n"
+            + "                    {\n"
+            + "                        \"name\" : \"speed\",\n"
+            + "                        \"type\" : \"float\",\n"
+            + "                        \"value\" : \"112.9\"\n"
+            + "                    }\n"
+            + "                ],\n"
+            + "                \"type\" : \"car\",\n"
+            + "                \"isPattern\" : \"false\",\n"
+            + "                \"id\" : \"%s\"\n"
+            + "            },\n"
+            + "            \"statusCode\" : {\n"
+            + "                \"code\" : \"200\",\n"
+            + "                \"reasonPhrase\" : \"OK\"\n"
+            + "            }\n"
+            + "        }\n"
+            + "    ]\n"
+            + "}";
+    
+    /**
+     * Sets up tests by creating a unique instance of the tested class, and by defining the behaviour of the mocked
+     * classes.
+     *  
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        Context channelContext = new Context();
+        channelContext.put("capacity", "100");
+        channelContext.put("transactionCapacity", "100");
+        channelContext.put("keep-alive", "0");
+        channel = new CygnusMemoryChannel();
+        channel.configure(channelContext);
+        
+        Context context = new Context();
+        context.put("batch_size", "3");
+        context.put("batch_timeout", "1");
+        sink = new RecordingSink();
+        sink.configure(context);
+        sink.setChannel(channel);
+    } // setUp
+    
+    /**
+     * Test of configure method, of class OrionSink.
+     */
+    @Test
+    public void testConfigure() {
+        System.out.println("Testing OrionSink.configure");
+        assertEquals(3, sink.getBatchSize());
+        assertEquals(1, sink.getBatchTimeout());
+        
+        // wrong values default
+        Context context = new Context();
+        context.put("batch_size", "0");
+        sink.configure(context);
+        assertEquals(1, sink.getBatchSize());
+        assertEquals(30, sink.getBatchTimeout());
+    } // testConfigure
+    
+    /**
+     * Test of process method, of class OrionSink, when all the events are persisted.
+     */
+    @Test
+    public void testProcessBatch() throws Exception {
+        System.out.println("Testing OrionSink.process (batch)");
+        putEvents("car1", "car2", "car3", "car4", "car5");
+        
+        assertEquals(Status.READY, sink.process());
+        assertEquals(3, sink.batchSizes.get(0).intValue());
+        assertEquals(2, channel.getNumEvents());
+        assertEquals(Status.READY, sink.process());
+        assertEquals(2, sink.batchSizes.get(1).intValue());
+        assertEquals(0, channel.getNumEvents());
+        assertEquals(5, sink.persisted.size());
+    } // testProcessBatch
+    
+    /**
+     * Test of process method, of class OrionSink, when the batch is filled while waiting for the batch timeout.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testProcessBatchTimeout() throws Exception {
+        System.out.println("Testing OrionSink.process (batch filled within the batch timeout)");
+        putEvents("car1");
+        Thread producer = new Thread() {
+            
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    return;
+                } // try catch
+                
+                putEvents("car2");
+            } // run
+            
+        };
+        
+        producer.start();
+        long start = System.currentTimeMillis();
+        assertEquals(Status.READY, sink.process());
+        producer.join();
+        
+        // the batch is not closed when the channel becomes empty, but when the batch timeout is reached
+        assertEquals(2, sink.batchSizes.get(0).intValue());
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        assertEquals(0, channel.getNumEvents());
+    } // testProcessBatchTimeout
+    
+    /**
+     * Test of process method, of class OrionSink, when some events within the batch cannot be persisted.
+     */
+    @Test
+    public void testProcessPartialFailure() throws Exception {
+        System.out.println("Testing OrionSink.process (partial failure)");
+        putEvents("car1", "bad", "failing");
+        
+        // the bad event is discarded and the failing one is re-injected, but not the already persisted one
+        assertEquals(Status.BACKOFF, sink.process());
+        assertEquals(1, sink.persisted.size());
+        assertEquals("car1", sink.persisted.get(0));
+        assertEquals(1, channel.getNumEvents());
+        
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        Event event = channel.take();
+        txn.commit();
+        txn.close();
+        assertEquals("4", event.getHeaders().get(Constants.HEADER_TTL));
+        
+        // the events following the failing one are re-injected as well
+        putEvents("car2", "failing", "car3");
+        assertEquals(Status.BACKOFF, sink.process());
+        assertEquals(2, sink.persisted.size());
+        assertEquals("car2", sink.persisted.get(1));
+        assertEquals(2, channel.getNumEvents());
+    } // testProcessPartialFailure
+    
+    /**
+     * Test of process method, of class OrionSink, when an error not related to the persistence backend escapes the
+     * sink once something has been written.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testProcessLateNonPersistenceError() throws Exception {
+        System.out.println("Testing OrionSink.process (late error not related to the persistence backend)");
+        Context context = new Context();
+        context.put("batch_size", "3");
+        context.put("batch_timeout", "1");
+        sink = new NonIdempotentSink();
+        sink.configure(context);
+        sink.setChannel(channel);
+        putEvents("car1", "bad", "car2");
+        
+        // the wrong event is skipped by the sink, and the written events are not written again
+        assertEquals(Status.READY, sink.process());
+        assertEquals(1, sink.batchSizes.size());
+        assertEquals(2, sink.persisted.size());
+        assertEquals(0, channel.getNumEvents());
+    } // testProcessLateNonPersistenceError
+    
+    /**
+     * Test of process method, of class OrionSink, when none of the events within the batch can be persisted.
+     */
+    @Test
+    public void testProcessTotalFailure() throws Exception {
+        System.out.println("Testing OrionSink.process (total failure)");
+        putEvents("failing", "failing");
+        
+        // the whole transaction is rollbacked
+        assertEquals(Status.BACKOFF, sink.process());
+        assertEquals(0, sink.persisted.size());
+        assertEquals(2, channel.getNumEvents());
+    } // testProcessTotalFailure
+    
+    private void putEvents(String... entityIds) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        
+        for (String entityId : entityIds) {
+            HashMap<String, String> headers = new HashMap<String, String>();
+            headers.put(Constants.HEADER_TTL, "5");
+            headers.put(Constants.HEADER_TRANSACTION_ID, "1234567890-123-1234567890");
+            NotifyContextRequest notification = TestUtils.createJsonNotifyContextRequest(
+                    String.format(notificationTemplate, entityId));
+            channel.put(new NotifyContextRequestEvent(headers, new byte[0], notification));
+        } // for
+        
+        txn.commit();
+        txn.close();
+    } // putEvents
+    
+} // OrionSinkTest